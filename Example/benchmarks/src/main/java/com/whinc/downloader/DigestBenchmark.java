@@ -0,0 +1,92 @@
+package com.whinc.downloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of verifying while writing: one segment written in 32 KB chunks through the default
+ * {@link FileSink} with each chunk fed to the running digest of an {@link IntegrityCheck}, then
+ * verified. {@code none} writes without a check and is the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DigestBenchmark {
+    private static final int CHUNK = 32 * 1024;
+
+    @Param({"16777216"})
+    public int size;
+
+    @Param({"none", "CRC32", "CRC32C", "MD5", "SHA-256"})
+    public String algorithm;
+
+    private byte[] mData;
+    private String mDigest;
+    private File mFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mData = new byte[size];
+        new Random(42).nextBytes(mData);
+        if (!"none".equals(algorithm)) {
+            StreamDigest digest = StreamDigest.newInstance(algorithm);
+            digest.update(mData, 0, size);
+            mDigest = StreamDigest.toHex(digest.digest());
+        }
+        mFile = File.createTempFile("bench", ".bin");
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long writeAndVerify() throws IOException {
+        IntegrityCheck check = mDigest != null ? IntegrityCheck.forFile(algorithm, mDigest) : null;
+        Segment segment = new Segment(0, 0, size);
+        if (check != null) {
+            check.start(size, new Segment[]{segment}, mFile, false);
+        }
+        FileSink sink = FileSink.open(mFile, FileSink.MODE_CHANNEL);
+        try {
+            sink.allocate(size);
+            FileSink.Writer writer = sink.newWriter();
+            try {
+                for (int pos = 0; pos < size; pos += CHUNK) {
+                    int n = Math.min(CHUNK, size - pos);
+                    writer.write(pos, mData, pos, n);
+                    if (check != null) {
+                        check.update(segment, pos, mData, pos, n);
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            sink.close();
+        }
+        if (check != null) {
+            check.verify(mFile);
+        }
+        return mFile.length();
+    }
+}
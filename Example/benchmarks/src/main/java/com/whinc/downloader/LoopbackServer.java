@@ -0,0 +1,89 @@
+package com.whinc.downloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP server on the loopback interface serving one in-memory file of random bytes, so the
+ * benchmarks measure the engine and not the network. Supports {@code HEAD}, single byte ranges
+ * ({@code Accept-Ranges: bytes}) and keep-alive, like the servers the engine is built for. The
+ * content is generated from a fixed seed, every run serves the same bytes.
+ */
+final class LoopbackServer {
+    private static final int CHUNK = 64 * 1024;
+
+    private final byte[] mData;
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    LoopbackServer(int size) throws IOException {
+        mData = new byte[size];
+        new Random(42).nextBytes(mData);
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/file";
+    }
+
+    byte[] data() {
+        return mData;
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        long start = 0;
+        long end = mData.length - 1;
+        int code = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring(6).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            if (bounds[1].length() > 0) {
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+            code = 206;
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + end + "/" + mData.length);
+        }
+        long length = end - start + 1;
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        exchange.getResponseHeaders().set("ETag", "\"bench\"");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(code, length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            for (long off = start; off <= end; off += CHUNK) {
+                out.write(mData, (int) off, (int) Math.min(CHUNK, end + 1 - off));
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
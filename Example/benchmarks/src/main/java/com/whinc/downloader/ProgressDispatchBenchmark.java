@@ -0,0 +1,71 @@
+package com.whinc.downloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of one {@link CallbackDispatcher#progress} call, which every transfer makes each time a
+ * progress step has been written, by minimum interval of the {@link ProgressPolicy}. The listener
+ * runs on the calling thread, so an interval of 0 includes delivering every update. The contended
+ * variant reports from 4 threads into one dispatcher, like parallel segments do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ProgressDispatchBenchmark {
+    private static final long TOTAL = Long.MAX_VALUE / 2;
+    private static final long STEP = 64 * 1024;
+
+    @Param({"0", "16", "100"})
+    public long intervalMillis;
+
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+    private CallbackDispatcher mDispatcher;
+
+    @Setup
+    public void setUp() {
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        mDispatcher = new CallbackDispatcher(direct,
+                new ProgressPolicy().setMinIntervalMillis(intervalMillis),
+                new CallbackDispatcher.ProgressSink() {
+                    @Override
+                    public void onProgress(ProgressSnapshot snapshot) {
+                        mDelivered.incrementAndGet();
+                    }
+                });
+    }
+
+    @Benchmark
+    public void progress() {
+        mDispatcher.progress(mBytes.addAndGet(STEP), TOTAL);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void progressContended() {
+        mDispatcher.progress(mBytes.addAndGet(STEP), TOTAL);
+    }
+}
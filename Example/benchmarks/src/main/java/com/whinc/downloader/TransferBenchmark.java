@@ -0,0 +1,99 @@
+package com.whinc.downloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole {@link HttpTransfer}s from the {@link LoopbackServer}: probe, segment requests over pooled
+ * connections, writing and journaling, by segment count and write strategy. A failed transfer
+ * fails the benchmark instead of being measured as a fast one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TransferBenchmark {
+    @Param({"16777216"})
+    public int size;
+
+    @Param({"1", "2", "4", "8"})
+    public int segmentCount;
+
+    /** {@link FileSink#MODE_STREAM}, {@code MODE_CHANNEL} or {@code MODE_MMAP} */
+    @Param({"0", "1", "2"})
+    public int writeMode;
+
+    private LoopbackServer mServer;
+    private HttpStack mStack;
+    private ExecutorService mExecutor;
+    private File mFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mServer = new LoopbackServer(size);
+        mStack = new PooledHttpStack(new ConnectionPool());
+        mExecutor = Executors.newCachedThreadPool();
+        mFile = File.createTempFile("bench", ".bin");
+    }
+
+    @TearDown
+    public void tearDown() {
+        mServer.stop();
+        mExecutor.shutdownNow();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long transfer() {
+        Result result = new Result();
+        new HttpTransfer(mStack, mExecutor, mServer.url(), mFile, segmentCount, false, result)
+                .setWriteMode(writeMode)
+                .run();
+        if (result.mReason != 0) {
+            throw new IllegalStateException("transfer failed: " + result.mReason + " " + result.mMessage);
+        }
+        return mFile.length();
+    }
+
+    private static final class Result implements TransferListener {
+        int mReason = -1;
+        String mMessage;
+
+        @Override
+        public void onStarted(long totalBytes) {
+        }
+
+        @Override
+        public void onProgress(long downloadedBytes, long totalBytes) {
+        }
+
+        @Override
+        public void onSuccessful(File file) {
+            mReason = 0;
+        }
+
+        @Override
+        public void onFailed(int reason, String message) {
+            mReason = reason;
+            mMessage = message;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.whinc.downloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a preallocated file through {@link FileSink} the way one segment does, by size of the
+ * chunks handed to the writer and write strategy, without any network in between.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class WriteBenchmark {
+    @Param({"16777216"})
+    public int size;
+
+    @Param({"4096", "16384", "32768", "131072"})
+    public int bufferSize;
+
+    /** {@link FileSink#MODE_STREAM}, {@code MODE_CHANNEL} or {@code MODE_MMAP} */
+    @Param({"0", "1", "2"})
+    public int writeMode;
+
+    private byte[] mBuffer;
+    private File mFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mBuffer = new byte[bufferSize];
+        new Random(42).nextBytes(mBuffer);
+        mFile = File.createTempFile("bench", ".bin");
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long write() throws DownloadException {
+        FileSink sink = FileSink.open(mFile, writeMode);
+        try {
+            sink.allocate(size);
+            FileSink.Writer writer = sink.newWriter();
+            try {
+                for (long pos = 0; pos < size; pos += bufferSize) {
+                    writer.write(pos, mBuffer, 0, (int) Math.min(bufferSize, size - pos));
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            sink.close();
+        }
+        return mFile.length();
+    }
+}
@@ -0,0 +1,372 @@
+package com.whinc.downloader;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Unpacks an archive into a directory while it downloads, see
+ * {@link HttpDownloader#setExtractor(ArchiveExtractor)}. The archive itself is never stored, so
+ * every byte is written once and no space is needed for the archive.<br>
+ *     <br>
+ * Zip, tar and gzip compressed tar archives are read as a stream, in the order of their entries.
+ * Zip entries are found by their local headers; the central directory at the end is not needed,
+ * but a stored (uncompressed) entry written with a data descriptor cannot be read this way. Tar
+ * archives may use ustar, GNU long names and pax path headers; only regular files and directories
+ * are extracted, links and special files are skipped.<br>
+ *     <br>
+ * An {@link EntryFilter} chooses the entries to extract, the others are read past without being
+ * written. An entry whose name would place it outside the target directory fails the download.
+ * Existing files are overwritten.
+ *     <pre>
+ *         downloader.setExtractor(new ArchiveExtractor(ArchiveExtractor.FORMAT_TAR_GZ)
+ *                 .setEntryFilter(new ArchiveExtractor.EntryFilter() {
+ *                     public boolean accept(String name) {
+ *                         return !name.startsWith("docs/");
+ *                     }
+ *                 }))
+ *                 .download(url, targetDir);
+ *     </pre>
+ * This class has no Android dependency.
+ */
+public final class ArchiveExtractor {
+    public static final int FORMAT_ZIP = 0;
+    public static final int FORMAT_TAR = 1;
+    public static final int FORMAT_TAR_GZ = 2;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int TAR_BLOCK = 512;
+    /** report entry progress every time this many bytes have been written */
+    private static final long PROGRESS_STEP = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Chooses the entries to extract. */
+    public interface EntryFilter {
+        /** @param name path of the entry in the archive, separated by '/' */
+        boolean accept(String name);
+    }
+
+    /** Progress of the extracted entries, called on the downloading thread; must not block. */
+    public interface EntryListener {
+        /** @param size uncompressed size, -1 if the archive does not say */
+        void onEntryStarted(String name, long size);
+
+        void onEntryProgress(String name, long writtenBytes, long size);
+
+        void onEntryExtracted(String name, File file);
+    }
+
+    private final int mFormat;
+    private EntryFilter mFilter;
+    private EntryListener mListener;
+
+    /** @param format one of {@link #FORMAT_ZIP}, {@link #FORMAT_TAR} and {@link #FORMAT_TAR_GZ} */
+    public ArchiveExtractor(int format) {
+        if (format < FORMAT_ZIP || format > FORMAT_TAR_GZ) {
+            throw new IllegalArgumentException("unknown archive format: " + format);
+        }
+        mFormat = format;
+    }
+
+    /** @param filter null to extract all entries */
+    public ArchiveExtractor setEntryFilter(EntryFilter filter) {
+        mFilter = filter;
+        return this;
+    }
+
+    public ArchiveExtractor setEntryListener(EntryListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Extract the archive read from in into directory. Does not read past the end of the archive,
+     * zip's central directory is left in the stream.
+     * @throws DownloadException with {@link DownloadReason#ERROR_FILE_ERROR} if an entry cannot be
+     * written or lies outside directory, other IOExceptions come from reading in
+     */
+    void extract(InputStream in, File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new DownloadException(DownloadReason.ERROR_FILE_ERROR, "Cannot create dir: " + directory);
+        }
+        File root = directory.getCanonicalFile();
+        // 关闭解压流以释放Inflater, 但不关闭下载的响应
+        InputStream source = new FilterInputStream(in) {
+            @Override
+            public void close() {
+            }
+        };
+        switch (mFormat) {
+            case FORMAT_ZIP:
+                ZipInputStream zip = new ZipInputStream(source);
+                try {
+                    extractZip(zip, root);
+                } finally {
+                    zip.close();
+                }
+                break;
+            case FORMAT_TAR_GZ:
+                InputStream gzip = new GZIPInputStream(source, BUFFER_SIZE);
+                try {
+                    extractTar(gzip, root);
+                } finally {
+                    gzip.close();
+                }
+                break;
+            default:
+                extractTar(in, root);
+                break;
+        }
+    }
+
+    private void extractZip(ZipInputStream in, File root) throws IOException {
+        ZipEntry entry;
+        while ((entry = in.getNextEntry()) != null) {
+            extractEntry(in, root, entry.getName(), entry.isDirectory(), entry.getSize(),
+                    entry.getTime());
+        }
+    }
+
+    private void extractTar(InputStream in, File root) throws IOException {
+        byte[] header = new byte[TAR_BLOCK];
+        String longName = null;
+        while (true) {
+            readFully(in, header, TAR_BLOCK);
+            if (isZeros(header)) {
+                return;     // 归档结束
+            }
+            String name = cString(header, 0, 100);
+            long size = octal(header, 124, 12);
+            long mtime = octal(header, 136, 12);
+            byte type = header[156];
+            if ("ustar".equals(cString(header, 257, 6).trim())) {
+                String prefix = cString(header, 345, 155);
+                if (prefix.length() > 0) {
+                    name = prefix + "/" + name;
+                }
+            }
+            if (longName != null) {
+                name = longName;
+                longName = null;
+            }
+            if (type == 'L' || type == 'x') {
+                // GNU长文件名, 或pax扩展头中的path, 作用于下一个条目
+                byte[] data = new byte[(int) size];
+                readFully(in, data, data.length);
+                skip(in, padding(size));
+                longName = type == 'L' ? cString(data, 0, data.length) : paxPath(data);
+                continue;
+            }
+            boolean file = type == '0' || type == 0 || type == '7';
+            boolean dir = type == '5';
+            if (file || dir) {
+                extractEntry(new BoundedStream(in, size), root, name, dir, size, mtime * 1000);
+            }
+            skip(in, (file ? 0 : size) + padding(size));
+        }
+    }
+
+    /** Extract one entry read from in, which ends with the entry, or read past it. */
+    private void extractEntry(InputStream in, File root, String name, boolean dir, long size,
+                              long time) throws IOException {
+        File target = new File(root, name).getCanonicalFile();
+        if (!target.getPath().startsWith(root.getPath() + File.separator) && !target.equals(root)) {
+            throw new DownloadException(DownloadReason.ERROR_FILE_ERROR,
+                    "entry outside target dir: " + name);
+        }
+        if (dir || (mFilter != null && !mFilter.accept(name))) {
+            if (dir && (mFilter == null || mFilter.accept(name))
+                    && !target.isDirectory() && !target.mkdirs()) {
+                throw new DownloadException(DownloadReason.ERROR_FILE_ERROR, "Cannot create dir: " + target);
+            }
+            skip(in, Long.MAX_VALUE);
+            return;
+        }
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new DownloadException(DownloadReason.ERROR_FILE_ERROR, "Cannot create dir: " + parent);
+        }
+        EntryListener listener = mListener;
+        if (listener != null) {
+            listener.onEntryStarted(name, size);
+        }
+        OutputStream out;
+        try {
+            out = new FileOutputStream(target);
+        } catch (IOException e) {
+            throw new DownloadException(DownloadReason.ERROR_FILE_ERROR, e.getMessage(), e);
+        }
+        long written = 0;
+        long reported = 0;
+        ByteBuffer pooled = BufferPool.shared().acquire();
+        try {
+            byte[] buffer = pooled.array();
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                try {
+                    out.write(buffer, 0, n);
+                } catch (IOException e) {
+                    throw new DownloadException(DownloadReason.ERROR_FILE_ERROR, e.getMessage(), e);
+                }
+                written += n;
+                if (listener != null && written - reported >= PROGRESS_STEP) {
+                    reported = written;
+                    listener.onEntryProgress(name, written, size);
+                }
+            }
+        } finally {
+            BufferPool.shared().release(pooled);
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (time > 0) {
+            target.setLastModified(time);
+        }
+        if (listener != null) {
+            if (written != reported) {
+                listener.onEntryProgress(name, written, size);
+            }
+            listener.onEntryExtracted(name, target);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int n = in.read(b, off, len - off);
+            if (n < 0) {
+                throw new EOFException("archive ended after " + off + " of " + len + " bytes");
+            }
+            off += n;
+        }
+    }
+
+    /** Read past count bytes of in or to its end, whichever comes first. */
+    private static void skip(InputStream in, long count) throws IOException {
+        ByteBuffer pooled = BufferPool.shared().acquire();
+        try {
+            byte[] buffer = pooled.array();
+            while (count > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+                if (n < 0) {
+                    return;
+                }
+                count -= n;
+            }
+        } finally {
+            BufferPool.shared().release(pooled);
+        }
+    }
+
+    private static long padding(long size) {
+        return (TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK;
+    }
+
+    private static boolean isZeros(byte[] b) {
+        for (byte x : b) {
+            if (x != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String cString(byte[] b, int off, int len) {
+        int end = off;
+        while (end < off + len && b[end] != 0) {
+            end++;
+        }
+        return new String(b, off, end - off, UTF_8);
+    }
+
+    /** Parse a tar number field, octal text or big endian binary with the high bit set. */
+    private static long octal(byte[] b, int off, int len) throws IOException {
+        if ((b[off] & 0x80) != 0) {
+            long value = b[off] & 0x7f;
+            for (int i = 1; i < len; i++) {
+                value = (value << 8) | (b[off + i] & 0xff);
+            }
+            return value;
+        }
+        String s = cString(b, off, len).trim();
+        if (s.length() == 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(s, 8);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad tar header field: " + s);
+        }
+    }
+
+    /** @return the path of pax records "length key=value\n", or null if there is none */
+    private static String paxPath(byte[] data) {
+        int off = 0;
+        while (off < data.length) {
+            int space = off;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, off, space - off, UTF_8));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (length <= 0 || off + length > data.length) {
+                return null;
+            }
+            String record = new String(data, space + 1, off + length - space - 2, UTF_8);
+            if (record.startsWith("path=")) {
+                return record.substring(5);
+            }
+            off += length;
+        }
+        return null;
+    }
+
+    /** The data of one tar entry, ends after size bytes. */
+    private static final class BoundedStream extends InputStream {
+        private final InputStream mIn;
+        private long mRemaining;
+
+        BoundedStream(InputStream in, long size) {
+            mIn = in;
+            mRemaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int n = mIn.read(b, off, (int) Math.min(len, mRemaining));
+            if (n < 0) {
+                throw new EOFException("archive ended inside an entry");
+            }
+            mRemaining -= n;
+            return n;
+        }
+    }
+}
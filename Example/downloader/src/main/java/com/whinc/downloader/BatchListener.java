@@ -0,0 +1,27 @@
+package com.whinc.downloader;
+
+import android.net.Uri;
+
+/**
+ * Callbacks of a batch started with {@link Downloader#downloadAll(java.util.Collection, BatchListener)},
+ * invoked on the downloader's callback executor and never concurrently. There is one listener
+ * for the whole batch, the files themselves have no listener.
+ */
+public interface BatchListener {
+    /**
+     * Aggregate progress of the batch, throttled by the downloader's {@link ProgressPolicy}.
+     * @param snapshot bytes summed over all files; the total is -1 while a file without an
+     *                 expected size has not started. Reused for every call, do not keep a reference
+     * @param completedFiles files that have succeeded or failed
+     * @param failedFiles files that have failed
+     * @param totalFiles number of files in the batch
+     */
+    void onProgress(ProgressSnapshot snapshot, int completedFiles, int failedFiles, int totalFiles);
+
+    void onItemSuccessful(DownloadSpec spec, Uri downloadedFile);
+
+    void onItemFailed(DownloadSpec spec, int reasonCode, String reason);
+
+    /** Called once, after the last file or when the batch has been cancelled. */
+    void onCompleted(BatchResult result);
+}
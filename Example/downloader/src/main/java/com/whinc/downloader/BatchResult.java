@@ -0,0 +1,64 @@
+package com.whinc.downloader;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of a batch, see {@link DownloadBatch}. Files that had not completed when the batch was
+ * cancelled count neither as successful nor as failed.
+ */
+public final class BatchResult {
+    private final int mFileCount;
+    private final int mSuccessfulCount;
+    private final long mDownloadedBytes;
+    private final boolean mCancelled;
+    private final List<DownloadSpec> mFailed;
+    private final Map<DownloadSpec, Integer> mReasons;
+
+    BatchResult(int fileCount, int successfulCount, long downloadedBytes, boolean cancelled,
+                List<DownloadSpec> failed, Map<DownloadSpec, Integer> reasons) {
+        mFileCount = fileCount;
+        mSuccessfulCount = successfulCount;
+        mDownloadedBytes = downloadedBytes;
+        mCancelled = cancelled;
+        mFailed = Collections.unmodifiableList(failed);
+        mReasons = reasons;
+    }
+
+    /** @return true if every file has been downloaded */
+    public boolean isSuccessful() {
+        return mSuccessfulCount == mFileCount;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public int getFileCount() {
+        return mFileCount;
+    }
+
+    public int getSuccessfulCount() {
+        return mSuccessfulCount;
+    }
+
+    public int getFailedCount() {
+        return mFailed.size();
+    }
+
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    /** @return the failed files, in the order of the batch */
+    public List<DownloadSpec> getFailed() {
+        return mFailed;
+    }
+
+    /** @return the {@link DownloadReason} code spec failed with, or 0 if it has not failed */
+    public int getFailureReason(DownloadSpec spec) {
+        Integer reason = mReasons.get(spec);
+        return reason == null ? 0 : reason;
+    }
+}
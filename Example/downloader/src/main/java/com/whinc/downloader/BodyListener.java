@@ -0,0 +1,24 @@
+package com.whinc.downloader;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Callbacks of a download kept in memory, see {@link HttpDownloader#load(String, File, BodyListener)}.
+ * Exactly one of them is invoked, on the downloader's callback executor, unless the download is
+ * cancelled.
+ */
+public interface BodyListener {
+    /**
+     * The body has been downloaded, and verified if a digest is expected.
+     * @param body the bytes between its position and limit. The buffer may be pooled and reused
+     *             after this call returns: copy what you keep, e.g.
+     *             {@code byte[] b = new byte[body.remaining()]; body.get(b);}
+     */
+    void onLoaded(ByteBuffer body);
+
+    /** The body was larger than the memory limit and has been saved to file instead. */
+    void onSpilled(File file);
+
+    void onFailed(int reasonCode, String reason);
+}
@@ -0,0 +1,145 @@
+package com.whinc.downloader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers of {@link #BUFFER_SIZE} bytes reused by all transfers of the in-process download engine,
+ * so that a download allocates no buffer per connection or segment and leaves no garbage behind.
+ * One pool is shared by all {@link HttpDownloader}s, see {@link DownloaderFactory#getBufferPool()}.
+ * <br>
+ *     <br>
+ * The buffers carry the bytes read from a connection through the digest to the file writer, the
+ * same array all the way. Every thread keeps the last buffer it released and takes it back without
+ * synchronization; further buffers are kept in a shared pool of at most {@link #setMaxPooled(int)}
+ * buffers, and dropped for the garbage collector when it is full. A miss is an acquire that had
+ * to allocate, a steady miss rate above zero means the pool is too small for the number of
+ * concurrent connections.<br>
+ *     <br>
+ * The buffers are heap buffers, not direct ones. The bytes arrive from the InputStream of a
+ * response into an array, and the digests, the file writers and the archive extractor all take
+ * arrays; a direct buffer would add a copy on each side instead of saving one. Pooling still
+ * removes the allocation per connection, which is what the direct buffers were meant to avoid.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+public final class BufferPool {
+    /** capacity of every buffer */
+    public static final int BUFFER_SIZE = 32 * 1024;
+    private static final int DEFAULT_MAX_POOLED = 64;
+
+    private static final BufferPool sShared = new BufferPool(DEFAULT_MAX_POOLED);
+
+    private final ThreadLocal<ByteBuffer> mThreadCache = new ThreadLocal<ByteBuffer>();
+    private final AtomicLong mAcquired = new AtomicLong();
+    private final AtomicLong mMissed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile int mMaxPooled;
+
+    // 以下字段由this保护
+    private final ArrayDeque<ByteBuffer> mPool = new ArrayDeque<ByteBuffer>();
+
+    BufferPool(int maxPooled) {
+        mMaxPooled = maxPooled;
+    }
+
+    /** @return the pool shared by all downloaders */
+    static BufferPool shared() {
+        return sShared;
+    }
+
+    /**
+     * Keep at most count buffers in the shared pool, besides the one each thread keeps. Default is
+     * 64, 2MB at most.
+     */
+    public BufferPool setMaxPooled(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must not be negative: " + count);
+        }
+        mMaxPooled = count;
+        synchronized (this) {
+            while (mPool.size() > count) {
+                mPool.pollFirst();
+            }
+        }
+        return this;
+    }
+
+    public int getMaxPooled() {
+        return mMaxPooled;
+    }
+
+    /** @return buffers in the shared pool, not counting those kept by threads */
+    public synchronized int getPooledCount() {
+        return mPool.size();
+    }
+
+    /** @return buffers handed out so far */
+    public long getAcquireCount() {
+        return mAcquired.get();
+    }
+
+    /** @return buffers that had to be allocated because the pool was empty */
+    public long getMissCount() {
+        return mMissed.get();
+    }
+
+    /** @return misses per acquire, 0 if nothing has been acquired yet */
+    public double getMissRate() {
+        long acquired = mAcquired.get();
+        return acquired > 0 ? (double) mMissed.get() / acquired : 0;
+    }
+
+    /** @return released buffers dropped because the shared pool was full */
+    public long getDropCount() {
+        return mDropped.get();
+    }
+
+    /** @return a cleared, array backed buffer of {@link #BUFFER_SIZE} bytes */
+    ByteBuffer acquire() {
+        mAcquired.incrementAndGet();
+        ByteBuffer buffer = mThreadCache.get();
+        if (buffer != null) {
+            mThreadCache.set(null);
+        } else {
+            synchronized (this) {
+                buffer = mPool.pollLast();
+            }
+        }
+        if (buffer == null) {
+            mMissed.incrementAndGet();
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer taken from this pool, it must not be used afterwards. Does nothing if
+     * buffer is null.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (mThreadCache.get() == null) {
+            mThreadCache.set(buffer);
+            return;
+        }
+        synchronized (this) {
+            if (mPool.size() < mMaxPooled) {
+                mPool.addLast(buffer);
+                return;
+            }
+        }
+        mDropped.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{pooled=" + getPooledCount() + "/" + mMaxPooled
+                + " acquired=" + mAcquired.get() + " missed=" + mMissed.get()
+                + " dropped=" + mDropped.get() + "}";
+    }
+}
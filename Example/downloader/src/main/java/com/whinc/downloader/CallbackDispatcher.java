@@ -0,0 +1,146 @@
+package com.whinc.downloader;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers the callbacks of one download on a callback {@link Executor}.<br>
+ *     <br>
+ * Status events are queued and always delivered, in the order they were posted. Progress updates
+ * are filtered by a {@link ProgressPolicy} and merged: at most one progress delivery is pending at a
+ * time and it reports the latest values when it runs. Pending progress is flushed before every
+ * status event, so the listener sees the final progress before success or failure. Callbacks never
+ * run concurrently, even on a multi-threaded executor. Progress is delivered through one
+ * {@link ProgressSnapshot} updated in place, so a delivery allocates nothing.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class CallbackDispatcher {
+
+    /** Receives merged progress updates on the callback executor. */
+    interface ProgressSink {
+        void onProgress(ProgressSnapshot snapshot);
+    }
+
+    private final Executor mExecutor;
+    private final ProgressSink mSink;
+    private final long mMinIntervalNanos;
+    private final long mMinBytesDelta;
+    private final float mMinPercentDelta;
+    private final ProgressSnapshot mSnapshot;
+
+    private final Queue<Runnable> mEvents = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // 以下字段由this保护
+    private long mLatestBytes = -1;
+    private long mLatestTotal = -1;
+    private long mLatestNanos;
+    private long mAcceptedBytes = -1;
+    private long mAcceptedNanos;
+    private long mDeliveredBytes = -1;
+    private boolean mProgressPending;
+
+    CallbackDispatcher(Executor executor, ProgressPolicy policy, ProgressSink sink) {
+        mExecutor = executor;
+        mSink = sink;
+        mMinIntervalNanos = policy.getMinIntervalMillis() * 1000000L;
+        mMinBytesDelta = policy.getMinBytesDelta();
+        mMinPercentDelta = policy.getMinPercentDelta();
+        mSnapshot = new ProgressSnapshot(System.nanoTime());
+    }
+
+    /** Record progress, may be called from any thread. */
+    void progress(long downloadedBytes, long totalBytes) {
+        synchronized (this) {
+            mLatestBytes = downloadedBytes;
+            mLatestTotal = totalBytes;
+            long now = System.nanoTime();
+            mLatestNanos = now;
+            if (!accept(downloadedBytes, totalBytes, now)) {
+                return;
+            }
+            mAcceptedBytes = downloadedBytes;
+            mAcceptedNanos = now;
+            if (mProgressPending) {
+                return;     // 已有待分发的进度, 分发时会读取最新值
+            }
+            mProgressPending = true;
+        }
+        schedule();
+    }
+
+    /** Queue a status event, it is never dropped or merged. */
+    void post(Runnable event) {
+        synchronized (this) {
+            if (mLatestBytes != mDeliveredBytes) {
+                mProgressPending = true;
+            }
+        }
+        mEvents.add(event);
+        schedule();
+    }
+
+    private boolean accept(long downloadedBytes, long totalBytes, long now) {
+        if (mAcceptedBytes < 0 || downloadedBytes == totalBytes) {
+            return true;
+        }
+        if (now - mAcceptedNanos < mMinIntervalNanos) {
+            return false;
+        }
+        long delta = downloadedBytes - mAcceptedBytes;
+        if (delta < mMinBytesDelta) {
+            return false;
+        }
+        return totalBytes <= 0 || delta * 100f / totalBytes >= mMinPercentDelta;
+    }
+
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(mDrain);
+        }
+    }
+
+    private void drain() {
+        do {
+            deliverProgress();
+            Runnable event;
+            while ((event = mEvents.poll()) != null) {
+                deliverProgress();
+                event.run();
+            }
+            mScheduled.set(false);
+        } while (hasPendingWork() && mScheduled.compareAndSet(false, true));
+    }
+
+    private synchronized boolean hasPendingWork() {
+        return mProgressPending || !mEvents.isEmpty();
+    }
+
+    private void deliverProgress() {
+        long bytes;
+        long total;
+        long nanos;
+        synchronized (this) {
+            if (!mProgressPending) {
+                return;
+            }
+            mProgressPending = false;
+            bytes = mLatestBytes;
+            total = mLatestTotal;
+            nanos = mLatestNanos;
+            mDeliveredBytes = bytes;
+        }
+        // 只在回调线程中更新, 不需要同步
+        mSnapshot.update(bytes, total, nanos);
+        mSink.onProgress(mSnapshot);
+    }
+}
@@ -0,0 +1,225 @@
+package com.whinc.downloader;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive connections of the in-process download engine, shared by all {@link HttpDownloader}s
+ * created by {@link DownloaderFactory}, see {@link DownloaderFactory#getConnectionPool()}.<br>
+ *     <br>
+ * A connection whose response body has been read to the end is returned here and reused by the
+ * next request to the same scheme, host and port, saving the TCP and TLS handshakes. At most
+ * {@link #setMaxIdlePerHost(int)} idle connections are kept per host; a connection idle for longer
+ * than {@link #setKeepAliveMillis(long)} is closed by a daemon thread that only runs while the pool
+ * is not empty. {@link #getHitCount()} and {@link #getMissCount()} tell how often a request found a
+ * connection to reuse, which helps to size the pool.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+public final class ConnectionPool {
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    // 以下字段由this保护
+    /** idle connections per route, most recently used first */
+    private final Map<String, Deque<HttpConnection>> mIdle = new HashMap<String, Deque<HttpConnection>>();
+    private int mIdleCount;
+    private int mMaxIdlePerHost = 5;
+    private long mKeepAliveNanos = 5 * 60 * 1000000000L;
+    private boolean mCleanupRunning;
+
+    private final Runnable mCleanup = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                long waitNanos = cleanup(System.nanoTime());
+                if (waitNanos < 0) {
+                    return;
+                }
+                synchronized (ConnectionPool.this) {
+                    try {
+                        long millis = waitNanos / 1000000L;
+                        ConnectionPool.this.wait(millis, (int) (waitNanos - millis * 1000000L));
+                    } catch (InterruptedException e) {
+                        mCleanupRunning = false;
+                        return;
+                    }
+                }
+            }
+        }
+    };
+
+    ConnectionPool() {}
+
+    /** Maximum number of idle connections kept per host, default is 5. 0 disables reuse. */
+    public ConnectionPool setMaxIdlePerHost(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("max must not be negative: " + max);
+        }
+        synchronized (this) {
+            mMaxIdlePerHost = max;
+        }
+        cleanup(System.nanoTime());
+        return this;
+    }
+
+    /** How long an idle connection is kept before it is closed, default is 5 minutes. */
+    public ConnectionPool setKeepAliveMillis(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("keep alive must be positive: " + millis);
+        }
+        synchronized (this) {
+            mKeepAliveNanos = millis * 1000000L;
+            notifyAll();    // 让清理线程按新的期限重新计算
+        }
+        return this;
+    }
+
+    /** @return number of requests that reused a pooled connection */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /** @return number of requests that had to open a new connection */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** @return number of idle connections closed because they expired or the pool was full */
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdleCount;
+    }
+
+    /** Close all idle connections. */
+    public void evictAll() {
+        List<HttpConnection> evicted = new ArrayList<HttpConnection>();
+        synchronized (this) {
+            for (Deque<HttpConnection> deque : mIdle.values()) {
+                evicted.addAll(deque);
+            }
+            mIdle.clear();
+            mIdleCount = 0;
+        }
+        close(evicted);
+    }
+
+    /**
+     * Take a healthy idle connection to route and count a hit, or count a miss.
+     * @return the connection, or null if a new one must be opened
+     */
+    HttpConnection get(String route) {
+        while (true) {
+            HttpConnection connection;
+            synchronized (this) {
+                Deque<HttpConnection> deque = mIdle.get(route);
+                connection = deque == null ? null : deque.pollFirst();
+                if (connection == null) {
+                    mMisses.incrementAndGet();
+                    return null;
+                }
+                mIdleCount--;
+                if (deque.isEmpty()) {
+                    mIdle.remove(route);
+                }
+            }
+            // 服务器可能已关闭空闲连接, 在锁外检查
+            if (connection.isHealthy()) {
+                mHits.incrementAndGet();
+                return connection;
+            }
+            mEvictions.incrementAndGet();
+            connection.close();
+        }
+    }
+
+    /** Return a connection whose last response has been read completely. */
+    void put(HttpConnection connection) {
+        HttpConnection evicted = null;
+        synchronized (this) {
+            if (mMaxIdlePerHost > 0) {
+                connection.idleSinceNanos = System.nanoTime();
+                Deque<HttpConnection> deque = mIdle.get(connection.route);
+                if (deque == null) {
+                    deque = new ArrayDeque<HttpConnection>();
+                    mIdle.put(connection.route, deque);
+                }
+                deque.addFirst(connection);
+                mIdleCount++;
+                if (deque.size() > mMaxIdlePerHost) {
+                    evicted = deque.pollLast();
+                    mIdleCount--;
+                }
+                if (!mCleanupRunning) {
+                    mCleanupRunning = true;
+                    Thread thread = new Thread(mCleanup, "ConnectionPool-cleanup");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } else {
+                evicted = connection;
+            }
+        }
+        if (evicted != null) {
+            mEvictions.incrementAndGet();
+            evicted.close();
+        }
+    }
+
+    /**
+     * Close expired connections and trim every host to its limit.
+     * @return nanoseconds until the next connection expires, or -1 if the pool is empty
+     */
+    private long cleanup(long now) {
+        List<HttpConnection> evicted = new ArrayList<HttpConnection>();
+        long waitNanos = -1;
+        synchronized (this) {
+            Iterator<Deque<HttpConnection>> deques = mIdle.values().iterator();
+            while (deques.hasNext()) {
+                Deque<HttpConnection> deque = deques.next();
+                Iterator<HttpConnection> it = deque.iterator();
+                int kept = 0;
+                while (it.hasNext()) {
+                    HttpConnection connection = it.next();
+                    long idle = now - connection.idleSinceNanos;
+                    if (idle >= mKeepAliveNanos || kept >= mMaxIdlePerHost) {
+                        it.remove();
+                        evicted.add(connection);
+                    } else {
+                        kept++;
+                        long remaining = mKeepAliveNanos - idle;
+                        if (waitNanos < 0 || remaining < waitNanos) {
+                            waitNanos = remaining;
+                        }
+                    }
+                }
+                if (deque.isEmpty()) {
+                    deques.remove();
+                }
+            }
+            mIdleCount -= evicted.size();
+            if (waitNanos < 0) {
+                mCleanupRunning = false;
+            }
+        }
+        mEvictions.addAndGet(evicted.size());
+        close(evicted);
+        return waitNanos;
+    }
+
+    private static void close(List<HttpConnection> connections) {
+        for (HttpConnection connection : connections) {
+            connection.close();
+        }
+    }
+}
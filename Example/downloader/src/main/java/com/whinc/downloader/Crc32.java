@@ -0,0 +1,165 @@
+package com.whinc.downloader;
+
+/**
+ * CRC-32 ({@code java.util.zip} polynomial) or CRC-32C (Castagnoli) computed in software with
+ * slicing-by-8 tables, since {@code java.util.zip.CRC32C} does not exist on Android.<br>
+ *     <br>
+ * The CRC of two adjacent byte ranges can be combined with {@link #combine(int, long, long, long)}
+ * without the data, so segments downloaded in parallel are checksummed independently and the
+ * results joined into the CRC of the whole file.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class Crc32 extends StreamDigest {
+    /** reflected polynomials */
+    static final int CRC32_POLY = 0xedb88320;
+    static final int CRC32C_POLY = 0x82f63b78;
+
+    private static int[][] sCrc32Tables;
+    private static int[][] sCrc32cTables;
+
+    private final int mPoly;
+    private final int[][] mTables;
+    private int mCrc;
+
+    Crc32(int poly) {
+        mPoly = poly;
+        mTables = tables(poly);
+    }
+
+    private static synchronized int[][] tables(int poly) {
+        if (poly == CRC32_POLY) {
+            if (sCrc32Tables == null) {
+                sCrc32Tables = createTables(poly);
+            }
+            return sCrc32Tables;
+        }
+        if (poly == CRC32C_POLY) {
+            if (sCrc32cTables == null) {
+                sCrc32cTables = createTables(poly);
+            }
+            return sCrc32cTables;
+        }
+        return createTables(poly);
+    }
+
+    private static int[][] createTables(int poly) {
+        int[][] t = new int[8][256];
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ poly : c >>> 1;
+            }
+            t[0][n] = c;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int k = 1; k < 8; k++) {
+                t[k][n] = (t[k - 1][n] >>> 8) ^ t[0][t[k - 1][n] & 0xff];
+            }
+        }
+        return t;
+    }
+
+    int poly() {
+        return mPoly;
+    }
+
+    @Override
+    void update(byte[] b, int off, int len) {
+        int[] t0 = mTables[0], t1 = mTables[1], t2 = mTables[2], t3 = mTables[3];
+        int[] t4 = mTables[4], t5 = mTables[5], t6 = mTables[6], t7 = mTables[7];
+        int crc = ~mCrc;
+        // 每次处理8字节
+        while (len >= 8) {
+            int a = crc ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+                    | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+            int c = (b[off + 4] & 0xff) | (b[off + 5] & 0xff) << 8
+                    | (b[off + 6] & 0xff) << 16 | (b[off + 7] & 0xff) << 24;
+            crc = t7[a & 0xff] ^ t6[(a >>> 8) & 0xff] ^ t5[(a >>> 16) & 0xff] ^ t4[a >>> 24]
+                    ^ t3[c & 0xff] ^ t2[(c >>> 8) & 0xff] ^ t1[(c >>> 16) & 0xff] ^ t0[c >>> 24];
+            off += 8;
+            len -= 8;
+        }
+        while (len-- > 0) {
+            crc = t0[(crc ^ b[off++]) & 0xff] ^ (crc >>> 8);
+        }
+        mCrc = ~crc;
+    }
+
+    /** @return the CRC of the bytes since the last reset, as an unsigned value */
+    long getValue() {
+        return mCrc & 0xffffffffL;
+    }
+
+    void reset() {
+        mCrc = 0;
+    }
+
+    @Override
+    byte[] digest() {
+        byte[] result = toBytes(getValue());
+        reset();
+        return result;
+    }
+
+    /** @return crc as 4 big endian bytes, the usual way to write a CRC in hex */
+    static byte[] toBytes(long crc) {
+        return new byte[]{(byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc};
+    }
+
+    /**
+     * Combine the CRCs of two adjacent ranges, the zlib {@code crc32_combine} algorithm.
+     * @param crc1 CRC of the first range
+     * @param crc2 CRC of the second range
+     * @param len2 length of the second range
+     * @return CRC of both ranges
+     */
+    static long combine(int poly, long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        int[] even = new int[32];
+        int[] odd = new int[32];
+        odd[0] = poly;     // 一个0比特对应的算子
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);  // 2个0比特
+        square(odd, even);  // 4个0比特
+        int c = (int) crc1;
+        do {
+            square(even, odd);
+            if ((len2 & 1) != 0) {
+                c = times(even, c);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((len2 & 1) != 0) {
+                c = times(odd, c);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return (c ^ (int) crc2) & 0xffffffffL;
+    }
+
+    private static int times(int[] mat, int vec) {
+        int sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(mat, mat[n]);
+        }
+    }
+}
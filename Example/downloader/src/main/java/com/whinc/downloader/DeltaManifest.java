@@ -0,0 +1,160 @@
+package com.whinc.downloader;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Block checksums of a file, published next to it so that clients holding an older version can
+ * download only the blocks that changed, see {@link HttpDownloader#setDeltaManifest(String)}.<br>
+ *     <br>
+ * The file is cut into blocks of a fixed size, the last one may be shorter. Every block has a weak
+ * rolling checksum (the rsync checksum, cheap to slide over the local file one byte at a time) and
+ * an MD5 digest to confirm a weak match. Generate manifests with
+ * {@link #write(File, int, OutputStream)}, for example in the build that publishes the file.<br>
+ *     <br>
+ * Layout, all values big endian:
+ *     <pre>
+ *     int    magic "WDLM"
+ *     int    version
+ *     long   file length
+ *     int    block size
+ *     blocks * (int weak checksum, 16 bytes MD5)
+ *     </pre>
+ * This class has no Android dependency.
+ */
+public final class DeltaManifest {
+    private static final int MAGIC = 0x57444c4d;    // "WDLM"
+    private static final int VERSION = 1;
+    private static final int MIN_BLOCK_SIZE = 512;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+    static final int STRONG_SIZE = 16;
+
+    final long length;
+    final int blockSize;
+    final int[] weak;
+    /** MD5 of block i at {@code i * STRONG_SIZE} */
+    final byte[] strong;
+
+    private DeltaManifest(long length, int blockSize, int[] weak, byte[] strong) {
+        this.length = length;
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Write the manifest of source to out.
+     * @param blockSize smaller blocks find more unchanged data but make the manifest larger; a few
+     *                  KB to 64 KB suits most files
+     */
+    public static void write(File source, int blockSize, OutputStream out) throws IOException {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("block size out of range: " + blockSize);
+        }
+        long length = source.length();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(length);
+        data.writeInt(blockSize);
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+        InputStream in = new FileInputStream(source);
+        try {
+            for (long pos = 0; pos < length; pos += blockSize) {
+                int len = (int) Math.min(blockSize, length - pos);
+                readFully(in, block, len);
+                data.writeInt(weakChecksum(block, 0, len));
+                md5.update(block, 0, len);
+                data.write(md5.digest());
+            }
+        } finally {
+            in.close();
+        }
+        data.flush();
+    }
+
+    /** @throws IOException if in is not a valid manifest */
+    static DeltaManifest read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+            throw new IOException("not a delta manifest");
+        }
+        long length = data.readLong();
+        int blockSize = data.readInt();
+        if (length < 0 || blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE
+                || (length + blockSize - 1) / blockSize > Integer.MAX_VALUE / STRONG_SIZE) {
+            throw new IOException("bad delta manifest header");
+        }
+        int count = (int) ((length + blockSize - 1) / blockSize);
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_SIZE];
+        for (int i = 0; i < count; i++) {
+            weak[i] = data.readInt();
+            data.readFully(strong, i * STRONG_SIZE, STRONG_SIZE);
+        }
+        return new DeltaManifest(length, blockSize, weak, strong);
+    }
+
+    int blockCount() {
+        return weak.length;
+    }
+
+    long blockStart(int block) {
+        return (long) block * blockSize;
+    }
+
+    int blockLength(int block) {
+        return (int) Math.min(blockSize, length - blockStart(block));
+    }
+
+    /** @return true if digest is the MD5 of block */
+    boolean strongEquals(int block, byte[] digest) {
+        int base = block * STRONG_SIZE;
+        for (int i = 0; i < STRONG_SIZE; i++) {
+            if (strong[base + i] != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The rsync weak checksum: {@code a} in the low and {@code b} in the high 16 bits. */
+    static int weakChecksum(byte[] b, int off, int len) {
+        int a = 0;
+        int s = 0;
+        for (int i = 0; i < len; i++) {
+            a += b[off + i] & 0xff;
+            s += a;
+        }
+        return (a & 0xffff) | (s & 0xffff) << 16;
+    }
+
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int n = in.read(b, off, len - off);
+            if (n < 0) {
+                throw new EOFException("file shrank while reading");
+            }
+            off += n;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package com.whinc.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Updates an existing file to the version described by a {@link DeltaManifest}, downloading only
+ * the blocks that are not found in the old file.<br>
+ *     <br>
+ * The rsync weak checksum of every block of the new version is slid over the old file one byte at
+ * a time; where it matches, the MD5 of the window confirms the block, so unchanged blocks are found
+ * even if data was inserted or removed before them. Missing blocks are fetched with range requests
+ * over up to the transfer's segment count of connections, merged into as few ranges as possible,
+ * and each fetched block is checked against its MD5.<br>
+ *     <br>
+ * If every block found in the old file sits at its final offset, the file is updated in place and
+ * only the changed blocks are written. Otherwise the new version is assembled in
+ * {@code <file>.delta} and renamed over the old file, so an interrupted update leaves the old file
+ * intact. An interrupted in-place update leaves a mix of both versions, which the next update
+ * simply reuses.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class DeltaUpdate {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final HttpTransfer mTransfer;
+    private final ExecutorService mExecutor;
+    private final String mUrl;
+    private final String mManifestUrl;
+    private final String mIfRange;
+    private final File mFile;
+    private final int mConnections;
+    private final int mWriteMode;
+
+    DeltaUpdate(HttpTransfer transfer, ExecutorService executor, String url, String manifestUrl,
+                String ifRange, File file, int connections, int writeMode) {
+        mTransfer = transfer;
+        mExecutor = executor;
+        mUrl = url;
+        mManifestUrl = manifestUrl;
+        mIfRange = ifRange;
+        mFile = file;
+        mConnections = connections;
+        mWriteMode = writeMode;
+    }
+
+    /**
+     * @param sink the target file, used for an in-place update
+     * @return false if the manifest is not available or does not match, or nothing of the old file
+     *     can be reused; the file must then be downloaded completely
+     */
+    boolean run(long length, FileSink sink) throws IOException {
+        DeltaManifest manifest = fetchManifest();
+        if (manifest == null || manifest.length != length) {
+            return false;
+        }
+        long[] sources = match(manifest);
+        boolean inPlace = true;
+        long reused = 0;
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] >= 0) {
+                reused += manifest.blockLength(i);
+                inPlace &= sources[i] == manifest.blockStart(i);
+            }
+        }
+        if (mTransfer.isStopped()) {
+            return true;    // 已取消
+        }
+        if (reused == 0) {
+            return false;
+        }
+
+        mTransfer.started(length, reused);
+        if (inPlace) {
+            sink.allocate(length);
+            fetchMissing(manifest, sources, sink);
+            return true;
+        }
+        File temp = new File(mFile.getPath() + ".delta");
+        FileSink target = FileSink.open(temp, mWriteMode);
+        boolean done = false;
+        try {
+            target.allocate(length);
+            copyReused(manifest, sources, target);
+            fetchMissing(manifest, sources, target);
+            target.close();
+            done = !mTransfer.isStopped();
+            if (done && !temp.renameTo(mFile) && !(mFile.delete() && temp.renameTo(mFile))) {
+                throw new DownloadException(DownloadReason.ERROR_FILE_ERROR,
+                        "cannot rename " + temp + " to " + mFile);
+            }
+            return true;
+        } finally {
+            target.close();
+            if (!done) {
+                temp.delete();
+            }
+        }
+    }
+
+    /** @return the manifest, or null if it cannot be downloaded or read */
+    private DeltaManifest fetchManifest() throws IOException {
+        HttpResponse response = null;
+        try {
+            response = mTransfer.open(new HttpRequest(mManifestUrl));
+            return DeltaManifest.read(response.body);
+        } catch (IOException e) {
+            if (mTransfer.isStopped()) {
+                throw e;
+            }
+            return null;    // 没有清单时下载整个文件
+        } finally {
+            if (response != null) {
+                mTransfer.release(response);
+            }
+        }
+    }
+
+    /** @return for every block of the new version its offset in the old file, or -1 */
+    private long[] match(DeltaManifest manifest) throws IOException {
+        int count = manifest.blockCount();
+        int bs = manifest.blockSize;
+        long[] sources = new long[count];
+        Arrays.fill(sources, -1);
+        // 最后一个块可能较短, 不参与滑动匹配
+        int full = manifest.length % bs == 0 ? count : count - 1;
+        BlockIndex index = new BlockIndex(manifest, full);
+        MessageDigest md5 = DeltaManifest.md5();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            long localLength = raf.length();
+            int found = 0;
+            if (localLength >= bs && full > 0) {
+                byte[] buf = new byte[Math.max(BUFFER_SIZE, 2 * bs)];
+                int filled = fill(raf, buf, 0);
+                long base = 0;
+                int pos = 0;
+                int weak = DeltaManifest.weakChecksum(buf, 0, bs);
+                int a = weak & 0xffff;
+                int b = weak >>> 16;
+                while (found < full && !mTransfer.isStopped()) {
+                    boolean matched = false;
+                    int block = index.first(weak);
+                    if (block >= 0) {
+                        md5.update(buf, pos, bs);
+                        byte[] digest = md5.digest();
+                        for (; block >= 0; block = index.next(block, weak)) {
+                            if (manifest.strongEquals(block, digest)) {
+                                matched = true;
+                                if (sources[block] < 0) {
+                                    sources[block] = base + pos;
+                                    found++;
+                                }
+                            }
+                        }
+                    }
+                    int step = matched ? bs : 1;
+                    if (pos + step + bs > filled) {
+                        System.arraycopy(buf, pos, buf, 0, filled - pos);
+                        base += pos;
+                        filled -= pos;
+                        pos = 0;
+                        filled = fill(raf, buf, filled);
+                        if (step + bs > filled) {
+                            break;
+                        }
+                    }
+                    if (matched) {
+                        pos += bs;
+                        weak = DeltaManifest.weakChecksum(buf, pos, bs);
+                        a = weak & 0xffff;
+                        b = weak >>> 16;
+                    } else {
+                        // 窗口后移一个字节
+                        int out = buf[pos] & 0xff;
+                        int in = buf[pos + bs] & 0xff;
+                        a = (a - out + in) & 0xffff;
+                        b = (b - bs * out + a) & 0xffff;
+                        weak = a | b << 16;
+                        pos++;
+                    }
+                }
+            }
+            if (full < count) {
+                matchLastBlock(manifest, sources, raf, localLength, md5);
+            }
+        } finally {
+            raf.close();
+        }
+        return sources;
+    }
+
+    /** Look for the short last block at its own offset and at the end of the old file. */
+    private static void matchLastBlock(DeltaManifest manifest, long[] sources, RandomAccessFile raf,
+                                       long localLength, MessageDigest md5) throws IOException {
+        int last = manifest.blockCount() - 1;
+        int len = manifest.blockLength(last);
+        long[] candidates = {manifest.blockStart(last), localLength - len};
+        byte[] buf = new byte[len];
+        for (long offset : candidates) {
+            if (offset < 0 || offset + len > localLength) {
+                continue;
+            }
+            raf.seek(offset);
+            raf.readFully(buf);
+            if (DeltaManifest.weakChecksum(buf, 0, len) == manifest.weak[last]) {
+                md5.update(buf, 0, len);
+                if (manifest.strongEquals(last, md5.digest())) {
+                    sources[last] = offset;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static int fill(RandomAccessFile raf, byte[] buf, int filled) throws IOException {
+        int n;
+        while (filled < buf.length && (n = raf.read(buf, filled, buf.length - filled)) > 0) {
+            filled += n;
+        }
+        return filled;
+    }
+
+    /** Copy runs of reused blocks that are adjacent in both files with one transfer each. */
+    private void copyReused(DeltaManifest manifest, long[] sources, FileSink target) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            int i = 0;
+            while (i < sources.length && !mTransfer.isStopped()) {
+                if (sources[i] < 0) {
+                    i++;
+                    continue;
+                }
+                int j = i + 1;
+                while (j < sources.length && sources[j] == sources[i] + manifest.blockStart(j - i)) {
+                    j++;
+                }
+                long len = manifest.blockStart(j - 1) + manifest.blockLength(j - 1)
+                        - manifest.blockStart(i);
+                target.copyFrom(raf.getChannel(), sources[i], manifest.blockStart(i), len);
+                i = j;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void fetchMissing(final DeltaManifest manifest, long[] sources, final FileSink target)
+            throws IOException {
+        final Queue<int[]> ranges = new ConcurrentLinkedQueue<int[]>();
+        int i = 0;
+        while (i < sources.length) {
+            if (sources[i] >= 0) {
+                i++;
+                continue;
+            }
+            int j = i + 1;
+            while (j < sources.length && sources[j] < 0) {
+                j++;
+            }
+            ranges.add(new int[]{i, j});
+            i = j;
+        }
+
+        int workers = Math.max(1, Math.min(mConnections, ranges.size()));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(workers);
+        for (int w = 0; w < workers; w++) {
+            futures.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    int[] range;
+                    try {
+                        while ((range = ranges.poll()) != null && !mTransfer.isStopped()) {
+                            fetch(manifest, range[0], range[1], target);
+                        }
+                    } catch (IOException e) {
+                        mTransfer.stop();
+                        throw e;
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            mTransfer.stop();
+            Thread.currentThread().interrupt();
+            throw new DownloadException(DownloadReason.ERROR_UNKNOWN, "interrupted", e);
+        } catch (ExecutionException e) {
+            mTransfer.stop();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new DownloadException(DownloadReason.ERROR_UNKNOWN, String.valueOf(cause), cause);
+        }
+    }
+
+    /** Download blocks [from, to) and check each of them against the manifest. */
+    private void fetch(DeltaManifest manifest, int from, int to, FileSink target) throws IOException {
+        long start = manifest.blockStart(from);
+        long end = manifest.blockStart(to - 1) + manifest.blockLength(to - 1);
+        HttpRequest request = new HttpRequest(mUrl).range(start, end - 1);
+        if (mIfRange != null) {
+            request.header("If-Range", mIfRange);
+        }
+        HttpResponse response = mTransfer.open(request);
+        FileSink.Writer out = target.newWriter();
+        ByteBuffer pooled = BufferPool.shared().acquire();
+        try {
+            if (response.code != 206) {
+                throw new DownloadException(DownloadReason.ERROR_CANNOT_RESUME,
+                        "server ignored range request, status " + response.code);
+            }
+            InputStream in = response.body;
+            MessageDigest md5 = DeltaManifest.md5();
+            byte[] buffer = pooled.array();
+            int block = from;
+            long blockEnd = start + manifest.blockLength(from);
+            long position = start;
+            while (position < end && !mTransfer.isStopped()) {
+                int n;
+                try {
+                    n = in.read(buffer, 0,
+                            mTransfer.readLength((int) Math.min(buffer.length, blockEnd - position)));
+                } catch (IOException e) {
+                    if (mTransfer.isStopped()) {
+                        return;
+                    }
+                    throw new DownloadException(DownloadReason.ERROR_HTTP_DATA_ERROR,
+                            e.getMessage(), e);
+                }
+                if (n < 0) {
+                    throw new DownloadException(DownloadReason.ERROR_HTTP_DATA_ERROR,
+                            "connection closed early at " + position);
+                }
+                out.write(position, buffer, 0, n);
+                md5.update(buffer, 0, n);
+                position += n;
+                if (position == blockEnd) {
+                    if (!manifest.strongEquals(block, md5.digest())) {
+                        throw new DownloadException(DownloadReason.ERROR_DIGEST_MISMATCH,
+                                "block " + block + " does not match the delta manifest");
+                    }
+                    block++;
+                    blockEnd += block < to ? manifest.blockLength(block) : 0;
+                }
+                mTransfer.onBytesWritten(n);
+                mTransfer.throttle(n);
+            }
+        } finally {
+            BufferPool.shared().release(pooled);
+            out.close();
+            mTransfer.release(response);
+        }
+    }
+
+    /** Blocks by weak checksum, an open addressing table with chains of equal checksums. */
+    private static final class BlockIndex {
+        private final int[] mWeak;
+        private final int[] mHeads;
+        private final int[] mNext;
+
+        BlockIndex(DeltaManifest manifest, int count) {
+            mWeak = manifest.weak;
+            int size = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) * 2;
+            mHeads = new int[size];
+            Arrays.fill(mHeads, -1);
+            mNext = new int[count];
+            // 倒序插入, 链表按块序号升序
+            for (int i = count - 1; i >= 0; i--) {
+                int h = hash(mWeak[i]) & (size - 1);
+                mNext[i] = mHeads[h];
+                mHeads[h] = i;
+            }
+        }
+
+        /** @return the first block with this weak checksum, or -1 */
+        int first(int weak) {
+            int block = mHeads[hash(weak) & (mHeads.length - 1)];
+            return block < 0 || mWeak[block] == weak ? block : next(block, weak);
+        }
+
+        /** @return the next block after block with this weak checksum, or -1 */
+        int next(int block, int weak) {
+            for (block = mNext[block]; block >= 0; block = mNext[block]) {
+                if (mWeak[block] == weak) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        private static int hash(int weak) {
+            int h = weak * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.whinc.downloader;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A batch of downloads started with {@link Downloader#downloadAll(Collection, BatchListener)}, and
+ * the future of its {@link BatchResult}.<br>
+ *     <br>
+ * The batch keeps the state of its files in plain arrays indexed by their position, the files
+ * have no listener, dispatcher or handle of their own: every file reports to the batch, which sums
+ * the bytes and counts the results and delivers them through one {@link CallbackDispatcher}. The
+ * future completes once every file has succeeded or failed; a failed file does not fail the
+ * batch, see {@link BatchResult#getFailed()}. {@link #cancel(boolean)} stops the files still
+ * waiting or running and completes the batch at once, {@link #get()} then throws
+ * {@link CancellationException}.
+ */
+public final class DownloadBatch implements Future<BatchResult> {
+    private static final byte PENDING = 0;
+    private static final byte SUCCESSFUL = 1;
+    private static final byte FAILED = 2;
+
+    private final DownloadSpec[] mSpecs;
+    private final BatchListener mListener;
+    private final CallbackDispatcher mDispatcher;
+    private Runnable mCanceller;
+
+    // 以下字段由this保护
+    private final byte[] mStates;
+    private final int[] mReasons;
+    private final long[] mDownloaded;
+    /** size of each file, -1 while unknown */
+    private final long[] mTotals;
+    private long mDownloadedBytes;
+    private long mTotalBytes;
+    private int mUnknownSizes;
+    private int mSuccessful;
+    private int mFailed;
+    private BatchResult mResult;
+
+    DownloadBatch(Collection<DownloadSpec> specs, BatchListener listener, Executor executor,
+                  ProgressPolicy policy) {
+        mSpecs = specs.toArray(new DownloadSpec[specs.size()]);
+        mListener = listener;
+        mDispatcher = new CallbackDispatcher(executor, policy, new CallbackDispatcher.ProgressSink() {
+            @Override
+            public void onProgress(ProgressSnapshot snapshot) {
+                if (mListener != null) {
+                    int completed;
+                    int failed;
+                    synchronized (DownloadBatch.this) {
+                        completed = mSuccessful + mFailed;
+                        failed = mFailed;
+                    }
+                    mListener.onProgress(snapshot, completed, failed, mSpecs.length);
+                }
+            }
+        });
+        int count = mSpecs.length;
+        mStates = new byte[count];
+        mReasons = new int[count];
+        mDownloaded = new long[count];
+        mTotals = new long[count];
+        for (int i = 0; i < count; i++) {
+            if (mSpecs[i] == null) {
+                throw new IllegalArgumentException("spec " + i + " is null");
+            }
+            long size = mSpecs[i].getExpectedSize();
+            mTotals[i] = size;
+            if (size >= 0) {
+                mTotalBytes += size;
+            } else {
+                mUnknownSizes++;
+            }
+        }
+    }
+
+    /** Set how the downloader stops the remaining files, before the batch is started. */
+    void setCanceller(Runnable canceller) {
+        mCanceller = canceller;
+    }
+
+    /** Complete an empty batch, called once all files have been submitted. */
+    void started() {
+        if (mSpecs.length == 0) {
+            synchronized (this) {
+                complete(false);
+            }
+        }
+    }
+
+    int size() {
+        return mSpecs.length;
+    }
+
+    DownloadSpec spec(int index) {
+        return mSpecs[index];
+    }
+
+    /** @return true while file index has neither succeeded nor failed */
+    synchronized boolean isPending(int index) {
+        return mResult == null && mStates[index] == PENDING;
+    }
+
+    /** Record the progress of file index, may be called from any thread. */
+    synchronized void itemProgress(int index, long downloadedBytes, long totalBytes) {
+        if (mResult != null || mStates[index] != PENDING) {
+            return;
+        }
+        mDownloadedBytes += downloadedBytes - mDownloaded[index];
+        mDownloaded[index] = downloadedBytes;
+        if (totalBytes >= 0) {
+            setTotal(index, totalBytes);
+        }
+        mDispatcher.progress(mDownloadedBytes, aggregateTotal());
+    }
+
+    void itemSuccessful(int index, final Uri downloadedFile) {
+        final DownloadSpec spec = mSpecs[index];
+        synchronized (this) {
+            if (mResult != null || mStates[index] != PENDING) {
+                return;
+            }
+            mStates[index] = SUCCESSFUL;
+            mSuccessful++;
+            if (mTotals[index] >= 0) {
+                // 从缓存复制等情况没有进度回调
+                mDownloadedBytes += mTotals[index] - mDownloaded[index];
+                mDownloaded[index] = mTotals[index];
+            } else {
+                setTotal(index, mDownloaded[index]);
+            }
+            mDispatcher.progress(mDownloadedBytes, aggregateTotal());
+            if (mListener != null) {
+                mDispatcher.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onItemSuccessful(spec, downloadedFile);
+                    }
+                });
+            }
+            completeIfDone();
+        }
+    }
+
+    void itemFailed(int index, final int reason) {
+        final DownloadSpec spec = mSpecs[index];
+        synchronized (this) {
+            if (mResult != null || mStates[index] != PENDING) {
+                return;
+            }
+            mStates[index] = FAILED;
+            mReasons[index] = reason;
+            mFailed++;
+            setTotal(index, mDownloaded[index]);    // 失败的文件不再有剩余字节
+            mDispatcher.progress(mDownloadedBytes, aggregateTotal());
+            if (mListener != null) {
+                mDispatcher.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onItemFailed(spec, reason, DownloadReason.getReasonString(reason));
+                    }
+                });
+            }
+            completeIfDone();
+        }
+    }
+
+    private void setTotal(int index, long totalBytes) {
+        long old = mTotals[index];
+        if (old == totalBytes) {
+            return;
+        }
+        if (old < 0) {
+            mUnknownSizes--;
+        } else {
+            mTotalBytes -= old;
+        }
+        mTotalBytes += totalBytes;
+        mTotals[index] = totalBytes;
+    }
+
+    private long aggregateTotal() {
+        return mUnknownSizes == 0 ? mTotalBytes : -1;
+    }
+
+    private void completeIfDone() {
+        if (mSuccessful + mFailed == mSpecs.length) {
+            complete(false);
+        }
+    }
+
+    private void complete(boolean cancelled) {
+        List<DownloadSpec> failed = new ArrayList<DownloadSpec>(mFailed);
+        Map<DownloadSpec, Integer> reasons = new IdentityHashMap<DownloadSpec, Integer>();
+        for (int i = 0; i < mSpecs.length; i++) {
+            if (mStates[i] == FAILED) {
+                failed.add(mSpecs[i]);
+                reasons.put(mSpecs[i], mReasons[i]);
+            }
+        }
+        final BatchResult result = new BatchResult(mSpecs.length, mSuccessful, mDownloadedBytes,
+                cancelled, failed, reasons);
+        mResult = result;
+        notifyAll();
+        if (mListener != null) {
+            mDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onCompleted(result);
+                }
+            });
+        }
+    }
+
+    /** @return number of files that have succeeded or failed so far */
+    public synchronized int getCompletedCount() {
+        return mSuccessful + mFailed;
+    }
+
+    public synchronized int getFailedCount() {
+        return mFailed;
+    }
+
+    public synchronized long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    /**
+     * Stop the files that are waiting or running, their partial data is deleted; files already
+     * downloaded are kept. {@link BatchListener#onCompleted(BatchResult)} is still called.
+     * @param mayInterruptIfRunning ignored, running files are always stopped
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mResult != null) {
+                return false;
+            }
+            complete(true);
+        }
+        if (mCanceller != null) {
+            mCanceller.run();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mResult != null && mResult.isCancelled();
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mResult != null;
+    }
+
+    /** Wait for the batch to complete, must not be called on the callback thread. */
+    @Override
+    public synchronized BatchResult get() throws InterruptedException {
+        while (mResult == null) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized BatchResult get(long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mResult == null) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return result();
+    }
+
+    private BatchResult result() {
+        if (mResult.isCancelled()) {
+            throw new CancellationException();
+        }
+        return mResult;
+    }
+}
@@ -0,0 +1,415 @@
+package com.whinc.downloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of downloaded files in front of {@link HttpDownloader}, see
+ * {@link HttpDownloader#setCache(DownloadCache)}.<br>
+ *     <br>
+ * Files are stored once per content under their SHA-256 digest, an entry maps a url to its file
+ * together with the {@code ETag} and {@code Last-Modified} validators of the response. Downloading
+ * a cached url sends a conditional {@code GET} with the validators; if the server answers
+ * {@code 304 Not Modified}, or reports the same strong {@code ETag} and length, the file is copied
+ * from the cache, otherwise the body of the response is the new file, downloaded over that one
+ * connection. A download with an expected SHA-256 digest
+ * ({@link HttpDownloader#setExpectedDigest(String, String)}) is served from any cached file with
+ * that content, without asking the server.<br>
+ *     <br>
+ * The total size of the stored files is kept below {@link #getMaxSize()} by evicting the least
+ * recently used entries; a file shared by several urls is deleted with its last entry. The index is
+ * a small binary file read once when the cache is created and rewritten whenever it changes.
+ * Responses without validators are not cached. Other files in the directory are left alone, but a
+ * directory of its own, e.g. a subdirectory of the app's cache directory, is recommended.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+public final class DownloadCache {
+    static final String DIGEST = "SHA-256";
+
+    private static final int MAGIC = 0x57444c43;    // "WDLC"
+    private static final int VERSION = 1;
+    private static final String INDEX = "index";
+    /** name of the copies being stored, {@code put<random>.tmp} */
+    private static final String TEMP_PREFIX = "put";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    // 以下字段由this保护
+    /** entries by url, least recently used first */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    /** number of entries referring to each stored file */
+    private final Map<String, Integer> mRefs = new HashMap<String, Integer>();
+    private long mSize;
+
+    /**
+     * Open the cache in directory, creating it if necessary.
+     * @param maxSize maximum total size of the cached files in bytes
+     * @throws IOException if the directory cannot be created
+     */
+    public DownloadCache(File directory, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("max size must be positive: " + maxSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create dir: " + directory);
+        }
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        synchronized (this) {
+            readIndex();
+            deleteUnreferenced();
+            trim();
+        }
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /** @return total size of the cached files */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    /** @return number of downloads served from the cache */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /** @return number of downloads that had to go to the network */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** Remove the entry of url, its file is deleted if no other url refers to it. */
+    public synchronized void remove(String url) {
+        Entry entry = mEntries.remove(url);
+        if (entry != null) {
+            release(entry);
+            writeIndexQuietly();
+        }
+    }
+
+    /** Remove all entries and files. */
+    public synchronized void evictAll() {
+        for (Entry entry : mEntries.values()) {
+            release(entry);
+        }
+        mEntries.clear();
+        writeIndexQuietly();
+    }
+
+    /** @return the entry of url, or null if url is not cached */
+    synchronized Entry get(String url) {
+        Entry entry = mEntries.get(url);
+        if (entry != null && !fileOf(entry.digest).isFile()) {
+            remove(url);    // 文件被外部删除
+            return null;
+        }
+        return entry;
+    }
+
+    /** @return true if a file with the SHA-256 digest is cached */
+    synchronized boolean contains(String digest) {
+        return mRefs.containsKey(digest) && fileOf(digest).isFile();
+    }
+
+    /**
+     * Copy the cached file with digest to target, outside the lock so other downloads go on.
+     * @return false if the cached file has disappeared, an evicted file may still be read
+     */
+    boolean copyTo(String digest, File target) throws IOException {
+        try {
+            FileSink.copy(fileOf(digest), target);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        return true;
+    }
+
+    void hit() {
+        mHits.incrementAndGet();
+    }
+
+    void miss() {
+        mMisses.incrementAndGet();
+    }
+
+    /**
+     * Store a copy of file as the response to url. Does nothing without validators or if the file
+     * is larger than the whole cache.
+     */
+    void put(String url, File file, String etag, String lastModified) throws IOException {
+        if ((etag == null && lastModified == null) || file.length() > mMaxSize) {
+            return;
+        }
+        // 在锁外复制并计算摘要
+        File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, mDirectory);
+        StreamDigest digest = StreamDigest.newInstance(DIGEST);
+        long length = 0;
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                OutputStream out = new FileOutputStream(temp);
+                ByteBuffer pooled = BufferPool.shared().acquire();
+                try {
+                    byte[] buffer = pooled.array();
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        length += n;
+                    }
+                } finally {
+                    BufferPool.shared().release(pooled);
+                    out.close();
+                }
+            } finally {
+                closeQuietly(in);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        store(url, temp, StreamDigest.toHex(digest.digest()), length, etag, lastModified);
+    }
+
+    private synchronized void store(String url, File temp, String digest, long length, String etag,
+                                    String lastModified) throws IOException {
+        Entry old = mEntries.remove(url);
+        if (old != null) {
+            release(old);
+        }
+        File blob = fileOf(digest);
+        if (mRefs.containsKey(digest) && blob.isFile()) {
+            temp.delete();  // 内容相同的文件已在缓存中
+        } else {
+            blob.delete();
+            if (!temp.renameTo(blob)) {
+                temp.delete();
+                writeIndexQuietly();
+                throw new IOException("Cannot rename " + temp + " to " + blob);
+            }
+        }
+        Entry entry = new Entry(digest, length, etag, lastModified);
+        mEntries.put(url, entry);
+        retain(entry);
+        trim();
+        writeIndexQuietly();
+    }
+
+    private File fileOf(String digest) {
+        return new File(mDirectory, digest);
+    }
+
+    private void retain(Entry entry) {
+        Integer refs = mRefs.get(entry.digest);
+        if (refs == null) {
+            mRefs.put(entry.digest, 1);
+            mSize += entry.length;
+        } else {
+            mRefs.put(entry.digest, refs + 1);
+        }
+    }
+
+    private void release(Entry entry) {
+        Integer refs = mRefs.get(entry.digest);
+        if (refs == null) {
+            return;
+        }
+        if (refs > 1) {
+            mRefs.put(entry.digest, refs - 1);
+        } else {
+            mRefs.remove(entry.digest);
+            mSize -= entry.length;
+            fileOf(entry.digest).delete();
+        }
+    }
+
+    /** Evict least recently used entries until the files fit into the maximum size. */
+    private void trim() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            release(entry);
+        }
+    }
+
+    private void readIndex() {
+        File index = new File(mDirectory, INDEX);
+        if (!index.isFile()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String url = in.readUTF();
+                    String digest = in.readUTF();
+                    long length = in.readLong();
+                    String etag = readString(in);
+                    String lastModified = readString(in);
+                    Entry entry = new Entry(digest, length, etag, lastModified);
+                    mEntries.put(url, entry);
+                    retain(entry);
+                }
+            } finally {
+                closeQuietly(in);
+            }
+        } catch (IOException e) {
+            mEntries.clear();   // 索引损坏, 清空缓存
+            mRefs.clear();
+            mSize = 0;
+        }
+    }
+
+    /**
+     * Delete files of the cache that no entry refers to, left behind by a crash or a damaged index.
+     * Only names the cache creates are touched, the directory may be shared with other files.
+     */
+    private void deleteUnreferenced() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if ((isDigest(name) && !mRefs.containsKey(name)) || name.equals(INDEX + ".tmp")
+                    || (name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX))) {
+                file.delete();
+            }
+        }
+    }
+
+    /** @return true if name is a file name of {@link #fileOf(String)}: 64 lower case hex digits */
+    private static boolean isDigest(String name) {
+        if (name.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeIndexQuietly() {
+        try {
+            writeIndex();
+        } catch (IOException ignored) {
+            // 下次启动时读不到的条目会被当作未缓存
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        File temp = new File(mDirectory, INDEX + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeUTF(entry.digest);
+                out.writeLong(entry.length);
+                writeString(out, entry.etag);
+                writeString(out, entry.lastModified);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(new File(mDirectory, INDEX))) {
+            temp.delete();
+            throw new IOException("Cannot replace index in " + mDirectory);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** A cached response, immutable. */
+    static final class Entry {
+        /** SHA-256 of the file in hex, also its name in the cache directory */
+        final String digest;
+        final long length;
+        final String etag;
+        final String lastModified;
+
+        Entry(String digest, long length, String etag, String lastModified) {
+            this.digest = digest;
+            this.length = length;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /** Add the validators to a request for the cached url. */
+        void addConditions(HttpRequest request) {
+            if (etag != null) {
+                request.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                request.header("If-Modified-Since", lastModified);
+            }
+        }
+
+        /**
+         * @return true if response to the conditional request shows the cached file is current: a
+         * 304, or the same strong {@code ETag} and length from a server ignoring the condition
+         */
+        boolean isCurrent(HttpResponse response) {
+            if (response.code == 304) {
+                return true;
+            }
+            String responseEtag = response.header("ETag");
+            return response.isSuccessful() && etag != null && !etag.startsWith("W/")
+                    && etag.equals(responseEtag) && response.contentLength() == length;
+        }
+    }
+}
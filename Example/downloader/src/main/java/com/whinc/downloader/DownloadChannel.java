@@ -0,0 +1,235 @@
+package com.whinc.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A download read by its caller while the bytes arrive, see
+ * {@link HttpDownloader#open(String, File)}.<br>
+ *     <br>
+ * The channel sends its {@code GET} request on the first read and then hands out the response body
+ * in order, straight from the connection. There is no buffer between the connection and the caller:
+ * a caller that reads slowly lets the socket buffers fill up and TCP slows the server down. A heap
+ * buffer passed to {@link #read(ByteBuffer)} is filled in place; a direct or read-only one goes
+ * through a buffer of the {@link BufferPool}, held until the channel ends. The bytes may also be
+ * written to a tee file on the way, which is complete once the channel has returned -1; closing
+ * the channel before that deletes it.<br>
+ *     <br>
+ * An {@link IntegrityCheck} is updated with every read, the end of the body is only reported after
+ * it has passed, otherwise the read fails with {@link DownloadReason#ERROR_DIGEST_MISMATCH}. Reads
+ * are held to the downloader's {@link RateLimiter}. Only one thread reads at a time, {@link #close()}
+ * may be called from any thread and unblocks a read.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class DownloadChannel implements ReadableByteChannel {
+    private final HttpStack mStack;
+    private final String mUrl;
+    private final File mTee;
+    private final IntegrityCheck mCheck;
+    private final RateLimiter mRateLimiter;
+    private final Object mReadLock = new Object();
+    private volatile boolean mOpen = true;
+    private volatile HttpResponse mResponse;
+
+    // 以下字段由mReadLock保护
+    /** taken from the pool for a dst without an accessible array, null until then */
+    private ByteBuffer mBuffer;
+    private Segment mSegment;
+    private long mLength = -1;
+    private FileSink mSink;
+    private FileSink.Writer mWriter;
+    private boolean mEnd;
+
+    /**
+     * @param tee file to write the bytes to as well, or null
+     * @param check verify the bytes against a copy of check, or null
+     * @param limiter limit of the read rate, or null
+     */
+    DownloadChannel(HttpStack stack, String url, File tee, IntegrityCheck check, RateLimiter limiter) {
+        mStack = stack;
+        mUrl = url;
+        mTee = tee;
+        mCheck = check == null ? null : check.copy();
+        mRateLimiter = limiter;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (mReadLock) {
+            if (!mOpen) {
+                throw new ClosedChannelException();
+            }
+            if (mEnd) {
+                return -1;
+            }
+            if (mSegment == null) {
+                connect();
+            }
+            // 有数组的dst直接读入, 否则经由缓冲池的缓冲
+            byte[] b;
+            int off;
+            int len = dst.remaining();
+            if (dst.hasArray()) {
+                b = dst.array();
+                off = dst.arrayOffset() + dst.position();
+            } else {
+                if (mBuffer == null) {
+                    mBuffer = BufferPool.shared().acquire();
+                }
+                b = mBuffer.array();
+                off = 0;
+                len = Math.min(len, b.length);
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (mRateLimiter != null) {
+                len = mRateLimiter.chunk(len);
+            }
+            int n;
+            try {
+                n = mResponse.body.read(b, off, len);
+            } catch (IOException e) {
+                if (!mOpen) {
+                    throw new ClosedChannelException();
+                }
+                throw new DownloadException(DownloadReason.ERROR_HTTP_DATA_ERROR, e.getMessage(), e);
+            }
+            if (n < 0) {
+                finish();
+                return -1;
+            }
+            long position = mSegment.position;
+            if (mWriter != null) {
+                mWriter.write(position, b, off, n);
+            }
+            if (mCheck != null) {
+                mCheck.update(mSegment, position, b, off, n);
+            }
+            mSegment.position = position + n;
+            if (dst.hasArray()) {
+                dst.position(dst.position() + n);
+            } else {
+                dst.put(b, 0, n);
+            }
+            throttle(n);
+            return n;
+        }
+    }
+
+    /**
+     * Send the request unless a read already has.
+     * @return length of the body, or -1 if the server did not report it
+     */
+    long length() throws IOException {
+        synchronized (mReadLock) {
+            if (!mOpen) {
+                throw new ClosedChannelException();
+            }
+            if (mSegment == null && !mEnd) {
+                connect();
+            }
+            return mLength;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public void close() {
+        mOpen = false;
+        HttpResponse response = mResponse;
+        if (response != null) {
+            response.abort();   // 唤醒阻塞的读操作
+        }
+        synchronized (mReadLock) {
+            boolean complete = mEnd;
+            release();
+            if (!complete && mTee != null) {
+                mTee.delete();
+            }
+        }
+    }
+
+    private void connect() throws IOException {
+        HttpResponse response = mStack.execute(new HttpRequest(mUrl));
+        mResponse = response;
+        if (!mOpen) {
+            response.abort();   // 连接期间被关闭
+            throw new ClosedChannelException();
+        }
+        if (!response.isSuccessful()) {
+            response.close();
+            throw HttpTransfer.httpError(response.code);
+        }
+        long length = response.contentLength();
+        Segment segment = new Segment(0, 0, length >= 0 ? length : Long.MAX_VALUE);
+        try {
+            if (mCheck != null) {
+                mCheck.start(length, new Segment[]{segment}, mTee, false);
+            }
+            if (mTee != null) {
+                mSink = FileSink.open(mTee, FileSink.MODE_CHANNEL);
+                mSink.allocate(Math.max(length, 0));
+                mWriter = mSink.newWriter();
+            }
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+        mLength = length;
+        mSegment = segment;
+    }
+
+    /** The body has ended, check it is complete before reporting the end. */
+    private void finish() throws IOException {
+        if (mLength >= 0 && mSegment.position != mLength) {
+            throw new DownloadException(DownloadReason.ERROR_HTTP_DATA_ERROR,
+                    "connection closed early: " + mSegment);
+        }
+        if (mCheck != null) {
+            mCheck.verify(mTee);
+        }
+        mEnd = true;
+        release();
+    }
+
+    private void release() {
+        HttpResponse response = mResponse;
+        if (response != null) {
+            response.close();
+        }
+        if (mWriter != null) {
+            mWriter.close();
+            mWriter = null;
+        }
+        if (mSink != null) {
+            mSink.close();
+            mSink = null;
+        }
+        if (mBuffer != null) {
+            BufferPool.shared().release(mBuffer);
+            mBuffer = null;
+        }
+    }
+
+    /** Charge n bytes to the rate limit and wait until reading may go on, or the channel is closed. */
+    private void throttle(int n) {
+        if (mRateLimiter == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long deadline = now + mRateLimiter.acquire(n, now);
+        while (mOpen && (now = System.nanoTime()) < deadline) {
+            LockSupport.parkNanos(deadline - now);
+        }
+    }
+}
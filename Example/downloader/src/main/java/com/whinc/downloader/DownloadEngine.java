@@ -0,0 +1,36 @@
+package com.whinc.downloader;
+
+import android.content.Context;
+
+/**
+ * A way of downloading files, chosen per download by a {@link RoutingPolicy}. Two engines are
+ * built in: {@link DownloaderFactory#SYSTEM_ENGINE}, the system {@link android.app.DownloadManager}
+ * behind {@link DownloaderImpl}, and {@link DownloaderFactory#IN_PROCESS_ENGINE}, the
+ * {@link HttpDownloader}. Implement this interface to plug in another one and add it with
+ * {@link RoutingPolicy#addEngine(DownloadEngine)}.<br>
+ *     <br>
+ * An engine declares what it guarantees with the flags below; a download that requires a guarantee
+ * is only routed to an engine that gives it.
+ */
+public interface DownloadEngine {
+    /** a download continues while the process is not running and completes without it */
+    int SURVIVES_PROCESS_DEATH = 1;
+    /** a download is shown by the system, in its notification and Downloads app */
+    int SYSTEM_VISIBLE = 1 << 1;
+    /** a running download can be paused, not only a waiting one */
+    int PAUSABLE = 1 << 2;
+    /**
+     * a download starts at once in this process, without a round trip to another process: fit
+     * for small and foreground downloads
+     */
+    int LOW_LATENCY = 1 << 3;
+
+    /** @return the flags of the guarantees this engine gives, see {@link DownloadEngine} */
+    int getGuarantees();
+
+    /**
+     * @return a new downloader of this engine. A {@link RoutingDownloader} keeps it for all the
+     * downloads it routes here and configures it before each of them.
+     */
+    Downloader<?> create(Context context);
+}
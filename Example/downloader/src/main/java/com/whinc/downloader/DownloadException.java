@@ -0,0 +1,28 @@
+package com.whinc.downloader;
+
+import java.io.IOException;
+
+/**
+ * {@link IOException} carrying one of the {@link DownloadReason} codes, thrown inside the
+ * in-process download engine and reported to {@link DownloadListener#onFailed(int, String)}.
+ */
+public class DownloadException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int mReason;
+
+    public DownloadException(int reason, String message) {
+        super(message);
+        mReason = reason;
+    }
+
+    public DownloadException(int reason, String message, Throwable cause) {
+        super(message, cause);
+        mReason = reason;
+    }
+
+    /** @return one of the {@link DownloadReason} codes */
+    public int getReason() {
+        return mReason;
+    }
+}
@@ -0,0 +1,249 @@
+package com.whinc.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Crash-safe record of a ranged download, kept next to the target file as {@code <file>.journal}.<br>
+ *     <br>
+ * The journal is a small fixed-size file mapped into memory. It stores the entity length, the
+ * {@code ETag} and {@code Last-Modified} validators and, for every segment, its byte range and how
+ * far it has been written. Recording progress is a single {@code putLong} into the mapped buffer,
+ * no system call, and the data survives the death of the process because it lives in the page
+ * cache. {@link HttpTransfer} uses it to continue only the missing ranges after a restart.<br>
+ *     <br>
+ * A segment split while downloading is appended with {@link #add(Segment)} before the end of the
+ * split segment is lowered, so a crash in between leaves two overlapping segments rather than a
+ * gap; {@link #segments()} cuts the earlier one at the start of the later one.<br>
+ *     <br>
+ * Layout, all values big endian:
+ *     <pre>
+ *     0    int    magic "WDLJ"
+ *     4    int    version
+ *     8    long   entity length
+ *     16   int    segment count
+ *     20   int    reserved
+ *     24   short + 126 bytes  ETag (UTF-8)
+ *     152  short + 126 bytes  Last-Modified (UTF-8)
+ *     280  MAX_SEGMENTS * (long start, long end, long position)
+ *     </pre>
+ * A validator longer than 126 bytes is stored as {@code #} and the hex SHA-256 of its UTF-8 bytes,
+ * which neither an ETag nor an HTTP date starts with.
+ */
+final class DownloadJournal {
+    static final int MAX_SEGMENTS = 64;
+
+    private static final int MAGIC = 0x57444c4a;    // "WDLJ"
+    private static final int VERSION = 1;
+    private static final int STRING_SIZE = 128;
+    private static final int OFFSET_LENGTH = 8;
+    private static final int OFFSET_COUNT = 16;
+    private static final int OFFSET_ETAG = 24;
+    private static final int OFFSET_LAST_MODIFIED = OFFSET_ETAG + STRING_SIZE;
+    private static final int OFFSET_SEGMENTS = OFFSET_LAST_MODIFIED + STRING_SIZE;
+    private static final int SEGMENT_SIZE = 24;
+    private static final int FILE_SIZE = OFFSET_SEGMENTS + MAX_SEGMENTS * SEGMENT_SIZE;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final MappedByteBuffer mBuffer;
+
+    private DownloadJournal(File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+        mFile = file;
+        mRaf = raf;
+        mBuffer = buffer;
+    }
+
+    static File fileFor(File target) {
+        return new File(target.getPath() + ".journal");
+    }
+
+    /** Create a new journal for target, replacing any existing one. */
+    static DownloadJournal create(File target, long length, String etag, String lastModified,
+                                  Segment[] segments) throws IOException {
+        if (segments.length > MAX_SEGMENTS) {
+            throw new IllegalArgumentException("too many segments: " + segments.length);
+        }
+        File file = fileFor(target);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(FILE_SIZE);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            buffer.putInt(0, 0);    // 写完之前标记为无效
+            buffer.putInt(4, VERSION);
+            buffer.putLong(OFFSET_LENGTH, length);
+            buffer.putInt(OFFSET_COUNT, segments.length);
+            putString(buffer, OFFSET_ETAG, etag);
+            putString(buffer, OFFSET_LAST_MODIFIED, lastModified);
+            DownloadJournal journal = new DownloadJournal(file, raf, buffer);
+            for (Segment segment : segments) {
+                int offset = offsetOf(segment.index);
+                buffer.putLong(offset, segment.start);
+                buffer.putLong(offset + 8, segment.end);
+                journal.update(segment);
+            }
+            buffer.putInt(0, MAGIC);
+            return journal;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /** @return the journal of target, or null if there is none or it is not readable */
+    static DownloadJournal open(File target) {
+        File file = fileFor(target);
+        if (!file.isFile() || file.length() != FILE_SIZE) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            int count = buffer.getInt(OFFSET_COUNT);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || count <= 0 || count > MAX_SEGMENTS) {
+                raf.close();
+                return null;
+            }
+            return new DownloadJournal(file, raf, buffer);
+        } catch (IOException e) {
+            closeQuietly(raf);
+            return null;
+        }
+    }
+
+    long length() {
+        return mBuffer.getLong(OFFSET_LENGTH);
+    }
+
+    /** @return whether the journal was created with these validators, null for a missing one */
+    boolean matches(String etag, String lastModified) {
+        return equals(getString(mBuffer, OFFSET_ETAG), stored(etag))
+                && equals(getString(mBuffer, OFFSET_LAST_MODIFIED), stored(lastModified));
+    }
+
+    /** @return the recorded segments, positioned where the previous run stopped */
+    Segment[] segments() {
+        int count = mBuffer.getInt(OFFSET_COUNT);
+        Segment[] segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            int offset = offsetOf(i);
+            segments[i] = new Segment(i, mBuffer.getLong(offset), mBuffer.getLong(offset + 8));
+            segments[i].position = mBuffer.getLong(offset + 16);
+        }
+        Segment[] byStart = segments.clone();
+        Arrays.sort(byStart, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+            }
+        });
+        for (int i = 0; i + 1 < byStart.length; i++) {
+            Segment segment = byStart[i];
+            if (segment.end > byStart[i + 1].start) {
+                segment.end = byStart[i + 1].start;     // 分割时中断, 以后一个分段为准
+                segment.position = Math.min(segment.position, segment.end);
+            }
+        }
+        return segments;
+    }
+
+    /** Record the segment's position, call only after the bytes before it have been written. */
+    void update(Segment segment) {
+        mBuffer.putLong(offsetOf(segment.index) + 16, segment.position);
+    }
+
+    /** Record a segment split off another one, call before {@link #updateEnd} of the other. */
+    void add(Segment segment) {
+        if (segment.index >= MAX_SEGMENTS) {
+            throw new IllegalArgumentException("too many segments: " + (segment.index + 1));
+        }
+        int offset = offsetOf(segment.index);
+        mBuffer.putLong(offset, segment.start);
+        mBuffer.putLong(offset + 8, segment.end);
+        update(segment);
+        if (mBuffer.getInt(OFFSET_COUNT) <= segment.index) {
+            mBuffer.putInt(OFFSET_COUNT, segment.index + 1);
+        }
+    }
+
+    /** Record that the end of segment has been lowered. */
+    void updateEnd(Segment segment) {
+        mBuffer.putLong(offsetOf(segment.index) + 8, segment.end);
+    }
+
+    void close() {
+        mBuffer.force();
+        closeQuietly(mRaf);
+    }
+
+    void delete() {
+        closeQuietly(mRaf);
+        mFile.delete();
+    }
+
+    private static int offsetOf(int index) {
+        return OFFSET_SEGMENTS + index * SEGMENT_SIZE;
+    }
+
+    private static void putString(MappedByteBuffer buffer, int offset, String value) {
+        value = stored(value);
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(UTF_8);
+        int len = bytes.length;
+        buffer.putShort(offset, (short) len);
+        for (int i = 0; i < len; i++) {
+            buffer.put(offset + 2 + i, bytes[i]);
+        }
+    }
+
+    private static String getString(MappedByteBuffer buffer, int offset) {
+        int len = buffer.getShort(offset);
+        if (len <= 0 || len > STRING_SIZE - 2) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            bytes[i] = buffer.get(offset + 2 + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    /** @return value as it is stored, its digest if it does not fit */
+    private static String stored(String value) {
+        if (value == null || value.length() == 0) {
+            return null;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        if (bytes.length <= STRING_SIZE - 2) {
+            return value;
+        }
+        try {
+            return "#" + StreamDigest.toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
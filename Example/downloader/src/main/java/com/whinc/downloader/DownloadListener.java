@@ -17,7 +17,18 @@ public interface DownloadListener {
 
     void onPending();
 
+    /**
+     * @deprecated sizes overflow for files larger than 2GB, use {@link #onProgress(ProgressSnapshot)}.
+     * Only called by {@link DownloadListenerAdapter#onProgress(ProgressSnapshot)}.
+     */
+    @Deprecated
     void onRunning(int downloadedBytes, int totalBytes);
 
+    /**
+     * Called while the download is running, see {@link Downloader#setProgressPolicy(ProgressPolicy)}.
+     * @param snapshot reused for every call of the same download, do not keep a reference
+     */
+    void onProgress(ProgressSnapshot snapshot);
+
     void onPaused(int reasonCode, String reason);
 }
@@ -3,7 +3,10 @@ package com.whinc.downloader;
 import android.net.Uri;
 
 /**
- * Created by wuhui on 9/6/15.
+ * Created by wuhui on 9/6/15.<br>
+ *     <br>
+ * Bridges {@link #onProgress(ProgressSnapshot)} to the old {@link #onRunning(int, int)} callback,
+ * sizes are clamped to {@link Integer#MAX_VALUE}.
  */
 public class DownloadListenerAdapter implements DownloadListener {
     @Override
@@ -31,6 +34,15 @@ public class DownloadListenerAdapter implements DownloadListener {
 
     }
 
+    @Override
+    public void onProgress(ProgressSnapshot snapshot) {
+        onRunning(toInt(snapshot.getDownloadedBytes()), toInt(snapshot.getTotalBytes()));
+    }
+
+    private static int toInt(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
     @Override
     public void onPaused(int reasonCode, String reason) {
 
@@ -0,0 +1,18 @@
+package com.whinc.downloader;
+
+/**
+ * Receives the {@link TransferMetrics} of every in-process download, see
+ * {@link DownloaderFactory#setMetrics(DownloadMetrics)} and
+ * {@link HttpDownloader#setMetrics(DownloadMetrics)}. Implement it to bridge the numbers to a
+ * telemetry system, or use {@link HistogramMetrics} to keep counters and histograms in process.
+ * Downloads handed to the system download manager are not measured.
+ */
+public interface DownloadMetrics {
+    /**
+     * Called once for every transfer when it ends, successful, failed or stopped by a pause, a
+     * preemption or a cancel; a paused download that is resumed is a new transfer. Called on the
+     * downloading thread after the listener's callback has been queued, must be quick and must
+     * not block.
+     */
+    void onTransferFinished(TransferMetrics metrics);
+}
@@ -0,0 +1,220 @@
+package com.whinc.downloader;
+
+import android.app.DownloadManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.v4.util.LongSparseArray;
+
+import static android.app.DownloadManager.ACTION_DOWNLOAD_COMPLETE;
+import static android.app.DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR;
+import static android.app.DownloadManager.COLUMN_ID;
+import static android.app.DownloadManager.COLUMN_LOCAL_URI;
+import static android.app.DownloadManager.COLUMN_REASON;
+import static android.app.DownloadManager.COLUMN_STATUS;
+import static android.app.DownloadManager.COLUMN_TOTAL_SIZE_BYTES;
+import static android.app.DownloadManager.EXTRA_DOWNLOAD_ID;
+import static android.app.DownloadManager.Query;
+import static android.app.DownloadManager.STATUS_FAILED;
+import static android.app.DownloadManager.STATUS_SUCCESSFUL;
+
+/**
+ * 进程内唯一的系统下载状态监听器, 所有 {@link DownloaderImpl} 共享<br>
+ *     <br>
+ * Registers one {@link ContentObserver} on the download provider and one
+ * {@link DownloadManager#ACTION_DOWNLOAD_COMPLETE} receiver for the whole process, no matter how
+ * many downloads are running. Each provider change runs a single batched query for all watched
+ * download ids and routes every row to its {@link Client}; the final status of a download,
+ * successful or failed, is routed only once, although the completion broadcast queries it again. A
+ * download whose row has disappeared, removed by another app or the user, completes without a
+ * final status, since no broadcast will come for it. Both registrations are removed, and the
+ * application {@link Context} released, as soon as the last download completes. Queries run on a
+ * background thread, never on the main looper.
+ */
+final class DownloadObserver {
+    private static final Uri DOWNLOADS_URI = Uri.parse("content://downloads/my_downloads");
+    private static final DownloadObserver sInstance = new DownloadObserver();
+    /** the id filter becomes one SQL parameter per id, SQLite allows at most 999 */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /** Receives the status of one download, called on the observer's background thread. */
+    interface Client {
+        /** @param cursor positioned at the row of this client's download */
+        void onStatusChanged(long downloadId, Cursor cursor, Columns columns);
+
+        void onCompleted(long downloadId);
+    }
+
+    /** Column indices of the download provider's cursor, resolved once. */
+    static final class Columns {
+        final int id;
+        final int status;
+        final int reason;
+        final int totalSize;
+        final int downloadedSoFar;
+        final int localUri;
+
+        Columns(Cursor cursor) {
+            id = cursor.getColumnIndexOrThrow(COLUMN_ID);
+            status = cursor.getColumnIndexOrThrow(COLUMN_STATUS);
+            reason = cursor.getColumnIndexOrThrow(COLUMN_REASON);
+            totalSize = cursor.getColumnIndexOrThrow(COLUMN_TOTAL_SIZE_BYTES);
+            downloadedSoFar = cursor.getColumnIndexOrThrow(COLUMN_BYTES_DOWNLOADED_SO_FAR);
+            localUri = cursor.getColumnIndexOrThrow(COLUMN_LOCAL_URI);
+        }
+    }
+
+    private final LongSparseArray<Client> mClients = new LongSparseArray<Client>();
+    /** ids whose final status has been dispatched */
+    private final LongSparseArray<Boolean> mFinished = new LongSparseArray<Boolean>();
+    private final Handler mHandler = createBackgroundHandler();
+    private Context mContext;
+    private Columns mColumns;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            long downloadId = intent.getLongExtra(EXTRA_DOWNLOAD_ID, -1);
+            if (getClient(downloadId) != null) {
+                // 先分发尚未分发的最终状态, 再通知完成
+                dispatch(new long[]{downloadId});
+                complete(downloadId);
+            }
+        }
+    };
+
+    private final ContentObserver mObserver = new ContentObserver(mHandler) {
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            super.onChange(selfChange);
+            dispatch(watchedIds());
+        }
+    };
+
+    private DownloadObserver() {}
+
+    private static Handler createBackgroundHandler() {
+        HandlerThread thread = new HandlerThread("DownloadObserver", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return new Handler(thread.getLooper());
+    }
+
+    static DownloadObserver get() {
+        return sInstance;
+    }
+
+    /** Start delivering the status of downloadId to client, until the download completes. */
+    synchronized void register(Context context, long downloadId, Client client) {
+        mClients.put(downloadId, client);
+        if (mContext == null) {
+            mContext = context.getApplicationContext();
+            mContext.registerReceiver(mReceiver, new IntentFilter(ACTION_DOWNLOAD_COMPLETE), null, mHandler);
+            mContext.getContentResolver().registerContentObserver(DOWNLOADS_URI, true, mObserver);
+        }
+    }
+
+    synchronized void unregister(long downloadId) {
+        mClients.remove(downloadId);
+        mFinished.remove(downloadId);
+        if (mClients.size() == 0 && mContext != null) {
+            mContext.getContentResolver().unregisterContentObserver(mObserver);
+            mContext.unregisterReceiver(mReceiver);
+            mContext = null;
+        }
+    }
+
+    private synchronized Client getClient(long downloadId) {
+        return mClients.get(downloadId);
+    }
+
+    private void complete(long downloadId) {
+        Client client = getClient(downloadId);
+        unregister(downloadId);
+        if (client != null) {
+            client.onCompleted(downloadId);
+        }
+    }
+
+    /** @return false if the final status of downloadId has been dispatched before */
+    private synchronized boolean markFinished(long downloadId) {
+        if (mFinished.get(downloadId) != null || mClients.get(downloadId) == null) {
+            return false;
+        }
+        mFinished.put(downloadId, Boolean.TRUE);
+        return true;
+    }
+
+    private synchronized long[] watchedIds() {
+        long[] ids = new long[mClients.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mClients.keyAt(i);
+        }
+        return ids;
+    }
+
+    private synchronized DownloadManager downloadManager() {
+        return mContext == null ? null
+                : (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
+    }
+
+    /** 批量查询并分发下载状态, 每次查询最多 {@link #MAX_IDS_PER_QUERY} 个id */
+    private void dispatch(long[] ids) {
+        if (ids.length <= MAX_IDS_PER_QUERY) {
+            dispatchChunk(ids);
+            return;
+        }
+        for (int from = 0; from < ids.length; from += MAX_IDS_PER_QUERY) {
+            long[] chunk = new long[Math.min(MAX_IDS_PER_QUERY, ids.length - from)];
+            System.arraycopy(ids, from, chunk, 0, chunk.length);
+            dispatchChunk(chunk);
+        }
+    }
+
+    private void dispatchChunk(long[] ids) {
+        DownloadManager downloadMgr = downloadManager();
+        if (ids.length == 0 || downloadMgr == null) {
+            return;
+        }
+        Cursor cursor = downloadMgr.query(new Query().setFilterById(ids));
+        if (cursor == null) {
+            return;
+        }
+        LongSparseArray<Boolean> seen = new LongSparseArray<Boolean>(ids.length);
+        try {
+            if (mColumns == null && cursor.getCount() > 0) {
+                mColumns = new Columns(cursor);
+            }
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(mColumns.id);
+                seen.put(id, Boolean.TRUE);
+                int status = cursor.getInt(mColumns.status);
+                if ((status == STATUS_SUCCESSFUL || status == STATUS_FAILED) && !markFinished(id)) {
+                    continue;   // 最终状态已分发过, 完成广播会再次查询
+                }
+                Client client = getClient(id);
+                if (client != null) {
+                    client.onStatusChanged(id, cursor, mColumns);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        for (long id : ids) {
+            if (seen.get(id) == null && getClient(id) != null) {
+                complete(id);   // 下载已被删除, 不会再有完成广播
+            }
+        }
+    }
+}
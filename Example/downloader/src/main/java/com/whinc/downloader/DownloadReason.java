@@ -0,0 +1,95 @@
+package com.whinc.downloader;
+
+/**
+ * Reason codes reported through {@link DownloadListener#onFailed(int, String)} and
+ * {@link DownloadListener#onPaused(int, String)}.<br>
+ *     <br>
+ * The values are the same as the {@code ERROR_*} and {@code PAUSED_*} constants of
+ * {@link android.app.DownloadManager}, so every {@link Downloader} implementation reports failures
+ * the same way. HTTP errors (4xx and 5xx) are reported with the HTTP status code as the reason code.
+ */
+public final class DownloadReason {
+    public static final int ERROR_UNKNOWN = 1000;
+    public static final int ERROR_FILE_ERROR = 1001;
+    public static final int ERROR_UNHANDLED_HTTP_CODE = 1002;
+    public static final int ERROR_HTTP_DATA_ERROR = 1004;
+    public static final int ERROR_TOO_MANY_REDIRECTS = 1005;
+    public static final int ERROR_INSUFFICIENT_SPACE = 1006;
+    public static final int ERROR_DEVICE_NOT_FOUND = 1007;
+    public static final int ERROR_CANNOT_RESUME = 1008;
+    public static final int ERROR_FILE_ALREADY_EXISTS = 1009;
+    /** the downloaded bytes do not match the expected digest, see {@link Downloader#setExpectedDigest} */
+    public static final int ERROR_DIGEST_MISMATCH = 1100;
+
+    public static final int PAUSED_WAITING_TO_RETRY = 1;
+    public static final int PAUSED_WAITING_FOR_NETWORK = 2;
+    public static final int PAUSED_QUEUED_FOR_WIFI = 3;
+    public static final int PAUSED_UNKNOWN = 4;
+    /** paused by {@link Downloader#pause()} */
+    public static final int PAUSED_BY_USER = 100;
+    /** paused by {@link DownloadScheduler} to give the slot to a download of higher priority */
+    public static final int PAUSED_PREEMPTED = 101;
+
+    private DownloadReason() {}
+
+    /** 返回原因码对应的描述字符串, 未知原因码返回长度为0的字符串("") */
+    public static String getReasonString(int reason) {
+        String result = "";
+        switch (reason) {
+            case ERROR_CANNOT_RESUME:
+                result = "ERROR_CANNOT_RESUME";
+                break;
+            case ERROR_DEVICE_NOT_FOUND:
+                result = "ERROR_DEVICE_NOT_FOUND";
+                break;
+            case ERROR_FILE_ALREADY_EXISTS:
+                result = "ERROR_FILE_ALREADY_EXISTS";
+                break;
+            case ERROR_DIGEST_MISMATCH:
+                result = "ERROR_DIGEST_MISMATCH";
+                break;
+            case ERROR_FILE_ERROR:
+                result = "ERROR_FILE_ERROR";
+                break;
+            case ERROR_HTTP_DATA_ERROR:
+                result = "ERROR_HTTP_DATA_ERROR";
+                break;
+            case ERROR_INSUFFICIENT_SPACE:
+                result = "ERROR_INSUFFICIENT_SPACE";
+                break;
+            case ERROR_TOO_MANY_REDIRECTS:
+                result = "ERROR_TOO_MANY_REDIRECTS";
+                break;
+            case ERROR_UNHANDLED_HTTP_CODE:
+                result = "ERROR_UNHANDLED_HTTP_CODE";
+                break;
+            case ERROR_UNKNOWN:
+                result = "ERROR_UNKNOWN";
+                break;
+            case PAUSED_QUEUED_FOR_WIFI:
+                result = "PAUSED_QUEUED_FOR_WIFI";
+                break;
+            case PAUSED_UNKNOWN:
+                result = "PAUSED_UNKNOWN";
+                break;
+            case PAUSED_WAITING_FOR_NETWORK:
+                result = "PAUSED_WAITING_FOR_NETWORK";
+                break;
+            case PAUSED_WAITING_TO_RETRY:
+                result = "PAUSED_WAITING_TO_RETRY";
+                break;
+            case PAUSED_BY_USER:
+                result = "PAUSED_BY_USER";
+                break;
+            case PAUSED_PREEMPTED:
+                result = "PAUSED_PREEMPTED";
+                break;
+            default:
+                if (reason >= 400 && reason < 600) {
+                    result = "HTTP_" + reason;
+                }
+                break;
+        }
+        return result;
+    }
+}
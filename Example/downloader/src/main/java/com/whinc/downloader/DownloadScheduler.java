@@ -0,0 +1,334 @@
+package com.whinc.downloader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Decides when downloads start. Shared by all {@link Downloader}s created by
+ * {@link DownloaderFactory}, see {@link DownloaderFactory#getScheduler()}.<br>
+ *     <br>
+ * At most {@link #setMaxConcurrent(int)} downloads run at once and at most
+ * {@link #setMaxPerHost(int)} of them against the same host. Waiting downloads start in priority
+ * order ({@link Downloader#setPriority(int)}), first come first served within one priority. When a
+ * download cannot start because all slots are taken by downloads of lower priority, one of those is
+ * paused (preempted) and queued again; it continues where it stopped once a slot is free. Only
+ * in-process downloads ({@link HttpDownloader}) can be preempted. Downloads handed to the system
+ * {@link android.app.DownloadManager} hold their slot only while the system runs them: one the
+ * system pauses, for example while it waits for a network, gives its slot up and takes it back when
+ * it runs again, also beyond the limits since the system does not wait for a slot.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+public final class DownloadScheduler {
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    /**
+     * A download managed by the scheduler. {@link #onStart()} is called when the task gets a slot,
+     * the task must then call {@link #finished(Task, boolean)} exactly once when it stops.
+     */
+    abstract static class Task {
+        private static final int IDLE = 0;
+        private static final int QUEUED = 1;
+        private static final int RUNNING = 2;
+        private static final int PREEMPTING = 3;
+
+        final String host;
+        final int priority;
+        private long mSequence;
+        private int mState = IDLE;
+
+        Task(String host, int priority) {
+            this.host = host == null ? "" : host;
+            this.priority = priority;
+        }
+
+        /** Start the download, called without the scheduler's lock held. */
+        abstract void onStart();
+
+        /** @return true if {@link #onPreempt()} is supported */
+        boolean isPreemptible() {
+            return false;
+        }
+
+        /**
+         * Stop the running download so its slot can be given to a download of higher priority.
+         * Called with the scheduler's lock held, must not block. The task must still call
+         * {@link #finished(Task, boolean)} with {@code requeue = true} once it has stopped.
+         */
+        void onPreempt() {
+        }
+    }
+
+    private static final Comparator<Task> ORDER = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            return a.mSequence < b.mSequence ? -1 : (a.mSequence == b.mSequence ? 0 : 1);
+        }
+    };
+
+    // 以下字段由this保护
+    private final Map<String, PriorityQueue<Task>> mQueues = new HashMap<String, PriorityQueue<Task>>();
+    private final Map<String, Integer> mRunningPerHost = new HashMap<String, Integer>();
+    private final List<Task> mRunning = new ArrayList<Task>();
+    private int mQueuedCount;
+    private long mNextSequence;
+    private int mMaxConcurrent = 4;
+    private int mMaxPerHost = 2;
+    private boolean mPreemptionEnabled = true;
+    private boolean mPreempting;
+
+    DownloadScheduler() {}
+
+    /** Maximum number of downloads running at once, default is 4. */
+    public DownloadScheduler setMaxConcurrent(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be positive: " + max);
+        }
+        synchronized (this) {
+            mMaxConcurrent = max;
+        }
+        startReadyTasks();
+        return this;
+    }
+
+    /** Maximum number of downloads running at once against the same host, default is 2. */
+    public DownloadScheduler setMaxPerHost(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be positive: " + max);
+        }
+        synchronized (this) {
+            mMaxPerHost = max;
+        }
+        startReadyTasks();
+        return this;
+    }
+
+    /** Whether downloads of higher priority may pause running downloads, default is true. */
+    public DownloadScheduler setPreemptionEnabled(boolean enabled) {
+        synchronized (this) {
+            mPreemptionEnabled = enabled;
+        }
+        return this;
+    }
+
+    public synchronized int getRunningCount() {
+        return mRunning.size();
+    }
+
+    public synchronized int getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    /** Queue task, it is started as soon as a slot is free. */
+    void submit(Task task) {
+        synchronized (this) {
+            if (task.mState != Task.IDLE) {
+                throw new IllegalStateException("task already submitted");
+            }
+            enqueue(task);
+        }
+        startReadyTasks();
+    }
+
+    /** Queue many tasks at once, e.g. the files of a {@link DownloadBatch}. */
+    void submitAll(Collection<? extends Task> tasks) {
+        synchronized (this) {
+            for (Task task : tasks) {
+                if (task.mState != Task.IDLE) {
+                    throw new IllegalStateException("task already submitted");
+                }
+            }
+            for (Task task : tasks) {
+                enqueue(task);
+            }
+        }
+        startReadyTasks();
+    }
+
+    /** Remove a task that has not been started yet. @return false if it is not queued */
+    synchronized boolean remove(Task task) {
+        if (task.mState != Task.QUEUED) {
+            return false;
+        }
+        PriorityQueue<Task> queue = mQueues.get(task.host);
+        queue.remove(task);
+        if (queue.isEmpty()) {
+            mQueues.remove(task.host);
+        }
+        mQueuedCount--;
+        task.mState = Task.IDLE;
+        return true;
+    }
+
+    /** Remove those of tasks that have not been started yet, in one pass over the queues. */
+    synchronized void removeAll(Collection<? extends Task> tasks) {
+        Set<Task> queued = new HashSet<Task>();
+        for (Task task : tasks) {
+            if (task.mState == Task.QUEUED) {
+                queued.add(task);
+                task.mState = Task.IDLE;
+            }
+        }
+        if (queued.isEmpty()) {
+            return;
+        }
+        Iterator<PriorityQueue<Task>> it = mQueues.values().iterator();
+        while (it.hasNext()) {
+            PriorityQueue<Task> queue = it.next();
+            queue.removeAll(queued);
+            if (queue.isEmpty()) {
+                it.remove();
+            }
+        }
+        mQueuedCount -= queued.size();
+    }
+
+    /**
+     * Release the slot of a started task.
+     * @param requeue true to queue the task again, e.g. after it has been preempted
+     */
+    void finished(Task task, boolean requeue) {
+        synchronized (this) {
+            if (task.mState != Task.RUNNING && task.mState != Task.PREEMPTING) {
+                return;
+            }
+            if (task.mState == Task.PREEMPTING) {
+                mPreempting = false;
+            }
+            mRunning.remove(task);
+            Integer count = mRunningPerHost.get(task.host);
+            if (count != null && count > 1) {
+                mRunningPerHost.put(task.host, count - 1);
+            } else {
+                mRunningPerHost.remove(task.host);
+            }
+            task.mState = Task.IDLE;
+            if (requeue) {
+                enqueue(task);
+            }
+        }
+        startReadyTasks();
+    }
+
+    /**
+     * Count a task as running again that gave its slot up with {@link #finished(Task, boolean)}
+     * but went on outside the scheduler, e.g. a system download resumed by the system. The slot is
+     * taken even beyond the limits, such a task cannot be held back. Does nothing if the task is
+     * queued or running.
+     */
+    synchronized void occupy(Task task) {
+        if (task.mState != Task.IDLE) {
+            return;
+        }
+        mRunning.add(task);
+        Integer count = mRunningPerHost.get(task.host);
+        mRunningPerHost.put(task.host, count == null ? 1 : count + 1);
+        task.mState = Task.RUNNING;
+    }
+
+    private void enqueue(Task task) {
+        // 被抢占的任务保留原来的顺序号, 恢复时排在同优先级任务的前面
+        if (task.mSequence == 0) {
+            task.mSequence = ++mNextSequence;
+        }
+        PriorityQueue<Task> queue = mQueues.get(task.host);
+        if (queue == null) {
+            queue = new PriorityQueue<Task>(11, ORDER);
+            mQueues.put(task.host, queue);
+        }
+        queue.add(task);
+        mQueuedCount++;
+        task.mState = Task.QUEUED;
+    }
+
+    private void startReadyTasks() {
+        List<Task> ready = new ArrayList<Task>();
+        synchronized (this) {
+            while (mRunning.size() < mMaxConcurrent) {
+                Task task = pollNext();
+                if (task == null) {
+                    break;
+                }
+                mRunning.add(task);
+                Integer count = mRunningPerHost.get(task.host);
+                mRunningPerHost.put(task.host, count == null ? 1 : count + 1);
+                task.mState = Task.RUNNING;
+                ready.add(task);
+            }
+            preemptIfNeeded();
+        }
+        for (Task task : ready) {
+            task.onStart();
+        }
+    }
+
+    /** @return the most important queued task whose host is below its limit, or null */
+    private Task pollNext() {
+        Task best = null;
+        for (Map.Entry<String, PriorityQueue<Task>> e : mQueues.entrySet()) {
+            Task head = e.getValue().peek();
+            if (head != null && runningCount(e.getKey()) < mMaxPerHost
+                    && (best == null || ORDER.compare(head, best) < 0)) {
+                best = head;
+            }
+        }
+        if (best != null) {
+            PriorityQueue<Task> queue = mQueues.get(best.host);
+            queue.poll();
+            if (queue.isEmpty()) {
+                mQueues.remove(best.host);
+            }
+            mQueuedCount--;
+        }
+        return best;
+    }
+
+    /** Preempt one running task of lower priority than a blocked queued task, one at a time. */
+    private void preemptIfNeeded() {
+        if (!mPreemptionEnabled || mPreempting || mQueuedCount == 0) {
+            return;
+        }
+        boolean globalFull = mRunning.size() >= mMaxConcurrent;
+        for (PriorityQueue<Task> queue : mQueues.values()) {
+            Task waiting = queue.peek();
+            if (waiting == null) {
+                continue;
+            }
+            boolean hostFull = runningCount(waiting.host) >= mMaxPerHost;
+            Task victim = null;
+            for (Task running : mRunning) {
+                if (running.mState == Task.RUNNING && running.isPreemptible()
+                        && running.priority < waiting.priority
+                        && (!hostFull || running.host.equals(waiting.host))
+                        && (globalFull || hostFull)
+                        && (victim == null || ORDER.compare(running, victim) > 0)) {
+                    victim = running;
+                }
+            }
+            if (victim != null) {
+                victim.mState = Task.PREEMPTING;
+                mPreempting = true;
+                victim.onPreempt();
+                return;
+            }
+        }
+    }
+
+    private int runningCount(String host) {
+        Integer count = mRunningPerHost.get(host);
+        return count == null ? 0 : count;
+    }
+}
@@ -0,0 +1,70 @@
+package com.whinc.downloader;
+
+import java.io.File;
+
+/**
+ * One file of a batch started with {@link Downloader#downloadAll(java.util.Collection, BatchListener)}:
+ * where it comes from, where it is saved and, optionally, its size and digest as listed in the
+ * manifest of the batch.<br>
+ *     <br>
+ * The expected size only serves the aggregate progress: with it the total of the batch is known
+ * before every file has started, without it the total is reported as unknown until then.
+ *     <pre>
+ *         specs.add(new DownloadSpec(url, file).setExpectedSize(size).setExpectedDigest("SHA-256", hex));
+ *     </pre>
+ */
+public final class DownloadSpec {
+    private final String mUrl;
+    private final File mSavePath;
+    private long mExpectedSize = -1;
+    private IntegrityCheck mIntegrityCheck;
+
+    public DownloadSpec(String url, File savePath) {
+        if (url == null || savePath == null) {
+            throw new IllegalArgumentException("url and savePath must not be null");
+        }
+        mUrl = url;
+        mSavePath = savePath;
+    }
+
+    /** @param bytes size of the file, -1 if unknown */
+    public DownloadSpec setExpectedSize(long bytes) {
+        if (bytes < -1) {
+            throw new IllegalArgumentException("size must not be negative: " + bytes);
+        }
+        mExpectedSize = bytes;
+        return this;
+    }
+
+    /**
+     * Verify the file against an expected digest, a mismatch fails the file with
+     * {@link DownloadReason#ERROR_DIGEST_MISMATCH}.
+     * @see Downloader#setExpectedDigest(String, String)
+     */
+    public DownloadSpec setExpectedDigest(String algorithm, String digest) {
+        mIntegrityCheck = algorithm == null ? null : IntegrityCheck.forFile(algorithm, digest);
+        return this;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public File getSavePath() {
+        return mSavePath;
+    }
+
+    /** @return size of the file, or -1 if unknown */
+    public long getExpectedSize() {
+        return mExpectedSize;
+    }
+
+    IntegrityCheck getIntegrityCheck() {
+        return mIntegrityCheck;
+    }
+
+    @Override
+    public String toString() {
+        return mUrl + " -> " + mSavePath;
+    }
+}
@@ -2,6 +2,8 @@ package com.whinc.downloader;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.Executor;
 
 /**
  * Created by wuhui on 9/6/15.
@@ -12,6 +14,36 @@ public interface Downloader<T extends Downloader> {
     T setDescription(String description);
     T setNotificationVisible(boolean b);
 
+    /**
+     * Set the executor on which {@link DownloadListener} callbacks are invoked, default is the
+     * main thread. Callbacks of one download never run concurrently.
+     */
+    T setCallbackExecutor(Executor executor);
+
+    /**
+     * Set how often progress is reported, see {@link ProgressPolicy}. Status changes are always
+     * reported.
+     */
+    T setProgressPolicy(ProgressPolicy policy);
+
+    /**
+     * Set the scheduling priority of the following downloads, one of the
+     * {@code DownloadScheduler.PRIORITY_*} constants, default is
+     * {@link DownloadScheduler#PRIORITY_NORMAL}. See {@link DownloadScheduler}.
+     */
+    T setPriority(int priority);
+
+    /**
+     * Verify the following downloads against an expected digest. A mismatch is reported through
+     * {@link DownloadListener#onFailed(int, String)} with {@link DownloadReason#ERROR_DIGEST_MISMATCH}
+     * instead of {@code onSuccessful}.
+     * @param algorithm a {@link java.security.MessageDigest} algorithm such as {@code "SHA-256"} or
+     *                  {@code "MD5"}, or {@code "CRC32"} or {@code "CRC32C"}; null to stop verifying
+     * @param digest expected digest in hex, a CRC as 8 hex digits
+     * @throws IllegalArgumentException if the algorithm is not available or digest is not hex
+     */
+    T setExpectedDigest(String algorithm, String digest);
+
     /**
      * download specified resource and save to specified local sdcard
      * @param url resource location
@@ -20,4 +52,33 @@ public interface Downloader<T extends Downloader> {
      * @throws IllegalArgumentException if url is a illegal format
      */
     void download(String url, File savePath) throws IOException, IllegalArgumentException;
+
+    /**
+     * Download many files in one call. All files are queued in the {@link DownloadScheduler} at
+     * once and report to one listener, the batch costs far less per file than a downloader per
+     * file. Files use the callback executor, progress policy and priority of this downloader and
+     * the digest of their {@link DownloadSpec}; they are not shared with other downloads of the
+     * same url. {@link #pause()}, {@link #resume()} and {@link #cancel()} do not affect the batch,
+     * cancel it through the returned future.
+     * @param listener may be null, e.g. to only wait on the future
+     * @throws IllegalArgumentException if a url is a illegal format, no file is started then
+     */
+    DownloadBatch downloadAll(Collection<DownloadSpec> specs, BatchListener listener)
+            throws IllegalArgumentException;
+
+    /**
+     * Pause the current download, {@link DownloadListener#onPaused(int, String)} is called with
+     * {@link DownloadReason#PAUSED_BY_USER}.
+     * @return false if there is no download to pause, or the download cannot be paused
+     */
+    boolean pause();
+
+    /**
+     * Resume the current download after {@link #pause()}.
+     * @return false if the current download is not paused
+     */
+    boolean resume();
+
+    /** Cancel the current download and delete its partial data, no further callbacks are delivered. */
+    void cancel();
 }
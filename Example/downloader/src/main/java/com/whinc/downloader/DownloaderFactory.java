@@ -6,9 +6,124 @@ import android.content.Context;
  * Created by wuhui on 9/6/15.
  */
 public class DownloaderFactory {
+    /** the system {@link android.app.DownloadManager}, see {@link DownloaderImpl} */
+    public static final DownloadEngine SYSTEM_ENGINE = new DownloadEngine() {
+        @Override
+        public int getGuarantees() {
+            return SURVIVES_PROCESS_DEATH | SYSTEM_VISIBLE;
+        }
 
-    /** create a new {@link Downloader} instance */
-    public static Downloader create(Context context) {
-        return new DownloaderImpl(context);
+        @Override
+        public Downloader<?> create(Context context) {
+            return new DownloaderImpl(context, sScheduler, sFlights);
+        }
+
+        @Override
+        public String toString() {
+            return "SYSTEM_ENGINE";
+        }
+    };
+
+    /** the in-process {@link HttpDownloader}, with the settings of {@link #createHttp()} */
+    public static final DownloadEngine IN_PROCESS_ENGINE = new DownloadEngine() {
+        @Override
+        public int getGuarantees() {
+            return PAUSABLE | LOW_LATENCY;
+        }
+
+        @Override
+        public Downloader<?> create(Context context) {
+            return createHttp();
+        }
+
+        @Override
+        public String toString() {
+            return "IN_PROCESS_ENGINE";
+        }
+    };
+
+    private static final DownloadScheduler sScheduler = new DownloadScheduler();
+    private static final ConnectionPool sConnectionPool = new ConnectionPool();
+    private static final HttpStack sHttpStack = new PooledHttpStack(sConnectionPool);
+    private static final SingleFlight sFlights = new SingleFlight();
+    private static final RateLimiter sRateLimiter = new RateLimiter(null);
+    private static volatile DownloadMetrics sMetrics;
+    private static volatile RoutingPolicy sRoutingPolicy = new RoutingPolicy(SYSTEM_ENGINE, IN_PROCESS_ENGINE);
+
+    /** @return the scheduler shared by all downloaders created by this factory */
+    public static DownloadScheduler getScheduler() {
+        return sScheduler;
+    }
+
+    /** @return the keep-alive connections shared by all {@link HttpDownloader}s */
+    public static ConnectionPool getConnectionPool() {
+        return sConnectionPool;
+    }
+
+    /**
+     * @return the bandwidth limit shared by all {@link HttpDownloader}s, unlimited by default.
+     * Downloads handed to the system download manager cannot be limited.
+     */
+    public static RateLimiter getRateLimiter() {
+        return sRateLimiter;
+    }
+
+    /**
+     * @return the buffers reused by all {@link HttpDownloader}s, its counters show whether it is
+     * large enough for the number of concurrent connections
+     */
+    public static BufferPool getBufferPool() {
+        return BufferPool.shared();
+    }
+
+    /**
+     * Measure the downloads of {@link HttpDownloader}s created from now on, see
+     * {@link HttpDownloader#setMetrics(DownloadMetrics)}. Off by default.
+     * @param metrics e.g. a {@link HistogramMetrics}, null to stop measuring
+     */
+    public static void setMetrics(DownloadMetrics metrics) {
+        sMetrics = metrics;
+    }
+
+    /** @return the metrics given to new {@link HttpDownloader}s, or null */
+    public static DownloadMetrics getMetrics() {
+        return sMetrics;
+    }
+
+    /**
+     * Choose the engines of the downloaders created by {@link #create(Context)} from now on. The
+     * default policy chooses between {@link #SYSTEM_ENGINE} and {@link #IN_PROCESS_ENGINE}, add
+     * other engines to it or set another one.
+     */
+    public static void setRoutingPolicy(RoutingPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy == null");
+        }
+        sRoutingPolicy = policy;
+    }
+
+    public static RoutingPolicy getRoutingPolicy() {
+        return sRoutingPolicy;
+    }
+
+    /**
+     * create a new {@link Downloader} instance. Every download goes to the engine the routing
+     * policy chooses for it, see {@link RoutingDownloader}; without an expected size, foreground
+     * flag or required guarantee that is the system download manager. A download of a url that is
+     * already being downloaded by any downloader of this factory waits for that download and
+     * receives a copy of its file, see {@link SingleFlight}.
+     */
+    public static RoutingDownloader create(Context context) {
+        return new RoutingDownloader(context, sRoutingPolicy);
+    }
+
+    /**
+     * create a new {@link HttpDownloader} which downloads in process over several parallel
+     * connections instead of using the system download manager. Connections are kept alive and
+     * reused across downloads, see {@link #getConnectionPool()}. Downloads of the same url are
+     * coalesced as in {@link #create(Context)}.
+     */
+    public static HttpDownloader createHttp() {
+        return new HttpDownloader(sHttpStack, sScheduler, sFlights, sRateLimiter).setMetrics(sMetrics);
     }
 }
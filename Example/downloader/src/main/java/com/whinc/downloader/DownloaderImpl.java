@@ -1,39 +1,19 @@
 package com.whinc.downloader;
 
 import android.app.DownloadManager;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.Handler;
-import android.os.Looper;
+import android.support.v4.util.LongSparseArray;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
 
-import static android.app.DownloadManager.ACTION_DOWNLOAD_COMPLETE;
-import static android.app.DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR;
-import static android.app.DownloadManager.COLUMN_REASON;
-import static android.app.DownloadManager.COLUMN_STATUS;
-import static android.app.DownloadManager.COLUMN_TOTAL_SIZE_BYTES;
-import static android.app.DownloadManager.ERROR_CANNOT_RESUME;
-import static android.app.DownloadManager.ERROR_DEVICE_NOT_FOUND;
-import static android.app.DownloadManager.ERROR_FILE_ALREADY_EXISTS;
-import static android.app.DownloadManager.ERROR_FILE_ERROR;
-import static android.app.DownloadManager.ERROR_HTTP_DATA_ERROR;
-import static android.app.DownloadManager.ERROR_INSUFFICIENT_SPACE;
-import static android.app.DownloadManager.ERROR_TOO_MANY_REDIRECTS;
-import static android.app.DownloadManager.ERROR_UNHANDLED_HTTP_CODE;
-import static android.app.DownloadManager.ERROR_UNKNOWN;
-import static android.app.DownloadManager.EXTRA_DOWNLOAD_ID;
-import static android.app.DownloadManager.PAUSED_QUEUED_FOR_WIFI;
-import static android.app.DownloadManager.PAUSED_UNKNOWN;
-import static android.app.DownloadManager.PAUSED_WAITING_FOR_NETWORK;
-import static android.app.DownloadManager.PAUSED_WAITING_TO_RETRY;
-import static android.app.DownloadManager.Query;
 import static android.app.DownloadManager.Request;
 import static android.app.DownloadManager.STATUS_FAILED;
 import static android.app.DownloadManager.STATUS_PAUSED;
@@ -44,113 +24,221 @@ import static android.app.DownloadManager.STATUS_SUCCESSFUL;
 /**
  * 利用Android系统下载管理器 {@link DownloadManager} 实现 {@link Downloader} 接口<br>
  *     <br>
+ * Downloads are handed to the system only when the shared {@link DownloadScheduler} gives them a
+ * slot, which they give up while the system pauses them. {@link DownloadManager} has no API to
+ * pause a running download, so {@link #pause()} only succeeds while the download is still waiting
+ * in the scheduler, and such downloads are never preempted.<br>
+ *     <br>
+ * A download of a url that another downloader of the same {@link DownloaderFactory} is already
+ * downloading is not enqueued again, it follows that download and receives a copy of its file
+ * (reported as a {@code file://} uri), see {@link SingleFlight}.<br>
+ *     <br>
  * 使用时需要添加权限"android.permission.INTERNET" 和 "android.permission.WRITE_EXTERNAL_STORAGE"
  */
 public class DownloaderImpl implements Downloader<DownloaderImpl> {
 
     private final Context mContext;
-    private long mDownloadId;
+    private final DownloadScheduler mScheduler;
+    private final SingleFlight mFlights;
+    private volatile long mDownloadId = -1;
     private DownloadListener mDownloadListener;
     private String mTitle;
     private String mDescription;
     private boolean mNotificationVisible;
+    private Executor mCallbackExecutor = MainThreadExecutor.get();
+    private ProgressPolicy mProgressPolicy = new ProgressPolicy();
+    private int mPriority = DownloadScheduler.PRIORITY_NORMAL;
+    private IntegrityCheck mIntegrityCheck;
+    private CallbackDispatcher mDispatcher;
+    private volatile ManagerTask mTask;
+    private volatile Follower mFollower;
 
-    private BroadcastReceiver mReceiver = new BroadcastReceiver() {
+    private final CallbackDispatcher.ProgressSink mProgressSink = new CallbackDispatcher.ProgressSink() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            long downloadId = intent.getLongExtra(EXTRA_DOWNLOAD_ID, -1);
-            if (mDownloadId == downloadId && mDownloadListener != null) {
-                mDownloadListener.onCompleted();
-
-                unregisterReceiver();
-                unregisterContentObserver();
+        public void onProgress(ProgressSnapshot snapshot) {
+            if (mDownloadListener != null) {
+                mDownloadListener.onProgress(snapshot);
             }
         }
     };
 
-    private ContentObserver mObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+    private final DownloadObserver.Client mClient = new DownloadObserver.Client() {
         @Override
-        public boolean deliverSelfNotifications() {
-            return true;
+        public void onStatusChanged(long downloadId, Cursor cursor, DownloadObserver.Columns columns) {
+            dispatchStatus(downloadId, cursor, columns);       // 更新下载状态
         }
 
         @Override
-        public void onChange(boolean selfChange) {
-            super.onChange(selfChange);
-            if (mDownloadListener == null) {
-                return;
-            }
-
-            DownloadManager downloadMgr = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
-            Query query = new Query().setFilterById(mDownloadId);
-            Cursor cursor = downloadMgr.query(query);
-            try {
-                if (cursor != null && cursor.moveToFirst()) {
-                    dispatchStatus(cursor);       // 更新下载状态
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+        public void onCompleted(long downloadId) {
+            ManagerTask task = mTask;
+            if (task != null) {
+                task.finish();
+                if (task.mFlight.isAbandoned()) {
+                    // 跟随者已复制文件, 删除被取消的下载
+                    DownloadManager downloadMgr = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
+                    downloadMgr.remove(downloadId);
+                    return;
                 }
             }
+            mDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mDownloadListener != null) {
+                        mDownloadListener.onCompleted();
+                    }
+                }
+            });
         }
     };
 
-    DownloaderImpl(Context context) {
+    DownloaderImpl(Context context, DownloadScheduler scheduler, SingleFlight flights) {
         mContext = context;
-
-        registerReceiver();         // 注册下载完成广播
-        registerContentObserver();  // 注册下载进度监听
-    }
-
-    private void registerContentObserver() {
-        Uri uri = Uri.parse("content://downloads/my_downloads");
-        mContext.getContentResolver().registerContentObserver(uri, true, mObserver);
+        mScheduler = scheduler;
+        mFlights = flights;
     }
 
-    private void unregisterContentObserver() {
-        mContext.getContentResolver().unregisterContentObserver(mObserver);
-    }
-
-    public void registerReceiver() {
-        IntentFilter intentFilter = new IntentFilter(ACTION_DOWNLOAD_COMPLETE);
-        mContext.registerReceiver(mReceiver, intentFilter);
-    }
-
-    private void unregisterReceiver() {
-        mContext.unregisterReceiver(mReceiver);
-    }
-
-    /** 分发下载状态 */
-    private void dispatchStatus(Cursor cursor) {
-        int state = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_STATUS));
-        int reasonCode = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_REASON));
+    /**
+     * 分发下载状态, 在 {@link DownloadObserver} 的后台线程调用, 回调转到 {@link #mCallbackExecutor} 执行.
+     * Every status is forwarded to the downloads following this one first.
+     */
+    private void dispatchStatus(long downloadId, Cursor cursor, DownloadObserver.Columns columns) {
+        int state = cursor.getInt(columns.status);
+        final int reasonCode = cursor.getInt(columns.reason);
+        ManagerTask task = mTask;
+        if (task != null) {
+            if (state == STATUS_PAUSED) {
+                mScheduler.finished(task, false);   // 系统暂停期间不占用名额
+            } else if (state == STATUS_RUNNING) {
+                task.occupy();
+            }
+            forward(task.mFlight, state, reasonCode, cursor, columns);
+            if (task.mFlight.isAbandoned()) {
+                return;
+            }
+        }
         switch (state) {
             case STATUS_PENDING:
-                mDownloadListener.onPending();
+                mDispatcher.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDownloadListener != null) {
+                            mDownloadListener.onPending();
+                        }
+                    }
+                });
                 break;
             case STATUS_RUNNING:
-                int totalBytes = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_TOTAL_SIZE_BYTES));
-                int downloadedBytes = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_BYTES_DOWNLOADED_SO_FAR));
-                mDownloadListener.onRunning(downloadedBytes, totalBytes);
+                long totalBytes = cursor.getLong(columns.totalSize);
+                long downloadedBytes = cursor.getLong(columns.downloadedSoFar);
+                mDispatcher.progress(downloadedBytes, totalBytes);
                 break;
             case STATUS_PAUSED:
-                mDownloadListener.onPaused(reasonCode, getReasonString(reasonCode));
+                mDispatcher.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDownloadListener != null) {
+                            mDownloadListener.onPaused(reasonCode, DownloadReason.getReasonString(reasonCode));
+                        }
+                    }
+                });
                 break;
             case STATUS_FAILED:
-                mDownloadListener.onFailed(reasonCode, getReasonString(reasonCode));
+                mDispatcher.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDownloadListener != null) {
+                            mDownloadListener.onFailed(reasonCode, DownloadReason.getReasonString(reasonCode));
+                        }
+                    }
+                });
                 break;
             case STATUS_SUCCESSFUL:
                 // 通过下面方法获取的是用户传入的保存路径
 //                Uri downloadedFile = Uri.parse(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_LOCAL_URI)));
                 // 下面方法获取的是实际保存路径(如果用户指定文件已经存在,DownloadManager会自动重命名文件,这里获取重命名后的文件)
                 DownloadManager downloadMgr = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
-                Uri downloadedFile = downloadMgr.getUriForDownloadedFile(mDownloadId);
-                mDownloadListener.onSuccessful(downloadedFile);
+                final Uri downloadedFile = downloadMgr.getUriForDownloadedFile(downloadId);
+                if (task != null && task.mCheck != null && !verify(task.mCheck, downloadedFile)) {
+                    break;
+                }
+                mDispatcher.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDownloadListener != null) {
+                            mDownloadListener.onSuccessful(downloadedFile);
+                        }
+                    }
+                });
+                break;
+        }
+    }
+
+    private static void forward(SingleFlight.Flight flight, int state, int reasonCode, Cursor cursor,
+                                DownloadObserver.Columns columns) {
+        switch (state) {
+            case STATUS_PENDING:
+                flight.onPending();
+                break;
+            case STATUS_RUNNING:
+                flight.onProgress(cursor.getLong(columns.downloadedSoFar), cursor.getLong(columns.totalSize));
+                break;
+            case STATUS_PAUSED:
+                flight.onPaused(reasonCode);
+                break;
+            case STATUS_FAILED:
+                flight.onFailed(reasonCode, DownloadReason.getReasonString(reasonCode));
+                break;
+            case STATUS_SUCCESSFUL:
+                String localUri = cursor.getString(columns.localUri);
+                String path = localUri == null ? null : Uri.parse(localUri).getPath();
+                if (path != null) {
+                    flight.onSuccessful(new File(path));    // 在观察者线程上复制给跟随者
+                } else {
+                    flight.onFailed(DownloadReason.ERROR_FILE_ERROR,
+                            DownloadReason.getReasonString(DownloadReason.ERROR_FILE_ERROR));
+                }
                 break;
         }
     }
 
+    /**
+     * {@link DownloadManager} writes the file itself, so it has to be read again to be verified.
+     * Runs on the {@link DownloadObserver} thread, before the completion is dispatched.
+     * @return true if the file matches, otherwise onFailed has been posted
+     */
+    private boolean verify(IntegrityCheck check, Uri downloadedFile) {
+        final int reasonCode = check(check, downloadedFile);
+        if (reasonCode == 0) {
+            return true;
+        }
+        mDispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mDownloadListener != null) {
+                    mDownloadListener.onFailed(reasonCode, DownloadReason.getReasonString(reasonCode));
+                }
+            }
+        });
+        return false;
+    }
+
+    /** @return 0 if the file matches, otherwise the {@link DownloadReason} code */
+    private int check(IntegrityCheck check, Uri downloadedFile) {
+        try {
+            InputStream in = mContext.getContentResolver().openInputStream(downloadedFile);
+            try {
+                check.verify(in);
+            } finally {
+                in.close();
+            }
+            return 0;
+        } catch (DownloadException e) {
+            return e.getReason();
+        } catch (IOException e) {
+            return DownloadReason.ERROR_FILE_ERROR;
+        }
+    }
+
     public DownloaderImpl setDownloadListener(DownloadListener l) {
         mDownloadListener = l;
         return this;
@@ -174,8 +262,38 @@ public class DownloaderImpl implements Downloader<DownloaderImpl> {
         return this;
     }
 
+    @Override
+    public DownloaderImpl setCallbackExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor == null");
+        }
+        mCallbackExecutor = executor;
+        return this;
+    }
+
+    @Override
+    public DownloaderImpl setProgressPolicy(ProgressPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy == null");
+        }
+        mProgressPolicy = policy;
+        return this;
+    }
+
+    @Override
+    public DownloaderImpl setPriority(int priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    /** The file is read once more after {@link DownloadManager} has completed it. */
+    @Override
+    public DownloaderImpl setExpectedDigest(String algorithm, String digest) {
+        mIntegrityCheck = algorithm == null ? null : IntegrityCheck.forFile(algorithm, digest);
+        return this;
+    }
+
     public void download(String url, File saveFile) throws IOException, IllegalArgumentException {
-        DownloadManager downloadMgr = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
         Request request;
         request = new Request(Uri.parse(url));
         request.setDestinationUri(Uri.fromFile(saveFile));
@@ -186,53 +304,479 @@ public class DownloaderImpl implements Downloader<DownloaderImpl> {
         } else {
             request.setNotificationVisibility(Request.VISIBILITY_HIDDEN);
         }
-        mDownloadId = downloadMgr.enqueue(request);
+        mDispatcher = new CallbackDispatcher(mCallbackExecutor, mProgressPolicy, mProgressSink);
+        Follower follower = new Follower(url, saveFile);
+        SingleFlight.Flight flight = mFlights.follow(url, saveFile, mIntegrityCheck, follower);
+        if (flight != null) {
+            follower.mFlight = flight;  // 同一url正在下载, 等待其结果
+            mTask = null;
+            mFollower = follower;
+            return;
+        }
+        ManagerTask task = new ManagerTask(request, url, Uri.parse(url).getHost());
+        mFollower = null;
+        mTask = task;
+        mScheduler.submit(task);
     }
 
-    private String getReasonString(int reason) {
-        String result = "";
-        switch (reason) {
-            case ERROR_CANNOT_RESUME:
-                result = "ERROR_CANNOT_RESUME";
-                break;
-            case ERROR_DEVICE_NOT_FOUND:
-                result = "ERROR_DEVICE_NOT_FOUND";
-                break;
-            case ERROR_FILE_ALREADY_EXISTS:
-                result = "ERROR_FILE_ALREADY_EXISTS";
-                break;
-            case ERROR_FILE_ERROR:
-                result = "ERROR_FILE_ERROR";
-                break;
-            case ERROR_HTTP_DATA_ERROR:
-                result = "ERROR_HTTP_DATA_ERROR";
-                break;
-            case ERROR_INSUFFICIENT_SPACE:
-                result = "ERROR_INSUFFICIENT_SPACE";
-                break;
-            case ERROR_TOO_MANY_REDIRECTS:
-                result = "ERROR_TOO_MANY_REDIRECTS";
-                break;
-            case ERROR_UNHANDLED_HTTP_CODE:
-                result = "ERROR_UNHANDLED_HTTP_CODE";
-                break;
-            case ERROR_UNKNOWN:
-                result = "ERROR_UNKNOWN";
-                break;
-            case PAUSED_QUEUED_FOR_WIFI:
-                result = "PAUSED_QUEUED_FOR_WIFI";
-                break;
-            case PAUSED_UNKNOWN:
-                result = "PAUSED_UNKNOWN";
-                break;
-            case PAUSED_WAITING_FOR_NETWORK:
-                result = "PAUSED_WAITING_FOR_NETWORK";
-                break;
-            case PAUSED_WAITING_TO_RETRY:
-                result = "PAUSED_WAITING_TO_RETRY";
-                break;
+    /**
+     * The files share one {@link DownloadObserver.Client} and are handed to
+     * {@link DownloadManager} as the scheduler gives them a slot, with the title, description
+     * and notification settings of this downloader.
+     */
+    @Override
+    public DownloadBatch downloadAll(Collection<DownloadSpec> specs, BatchListener listener) {
+        DownloadBatch batch = new DownloadBatch(specs, listener, mCallbackExecutor, mProgressPolicy);
+        final BatchClient client = new BatchClient(batch);
+        final List<BatchTask> tasks = new ArrayList<BatchTask>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Uri uri = Uri.parse(batch.spec(i).getUrl());
+            String scheme = uri.getScheme();
+            if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+                throw new IllegalArgumentException("Can only download HTTP/HTTPS URIs: " + uri);
+            }
+            tasks.add(new BatchTask(client, i, uri));
+        }
+        batch.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.removeAll(tasks);
+                client.cancel();
+            }
+        });
+        mScheduler.submitAll(tasks);
+        batch.started();
+        return batch;
+    }
+
+    /** Only succeeds while the download waits for a slot, see the class documentation. */
+    @Override
+    public boolean pause() {
+        Follower follower = mFollower;
+        if (follower != null) {
+            return follower.pause();
+        }
+        ManagerTask task = mTask;
+        if (task == null || task.mFlight.isAbandoned() || !mScheduler.remove(task)) {
+            return false;
+        }
+        task.mPaused = true;
+        task.mFlight.onPaused(DownloadReason.PAUSED_BY_USER);   // 跟随者离开
+        postPaused(DownloadReason.PAUSED_BY_USER);
+        return true;
+    }
+
+    @Override
+    public boolean resume() {
+        Follower follower = mFollower;
+        if (follower != null) {
+            return follower.resume();
+        }
+        ManagerTask task = mTask;
+        if (task == null || !task.mPaused) {
+            return false;
+        }
+        task.mPaused = false;
+        task.lead();
+        mScheduler.submit(task);
+        return true;
+    }
+
+    @Override
+    public void cancel() {
+        Follower follower = mFollower;
+        if (follower != null) {
+            follower.cancel();
+            return;
+        }
+        ManagerTask task = mTask;
+        if (task == null || task.mFlight.abandon()) {
+            return;     // 其它下载仍在等待这个文件
+        }
+        cancel(task);
+    }
+
+    private void cancel(ManagerTask task) {
+        task.mPaused = false;
+        if (mScheduler.remove(task) || task.cancelStart()) {
+            return;     // 还未交给系统下载管理器
+        }
+        long downloadId = mDownloadId;
+        if (downloadId != -1) {
+            DownloadObserver.get().unregister(downloadId);
+            DownloadManager downloadMgr = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
+            downloadMgr.remove(downloadId);
+            task.finish();
+        }
+    }
+
+    private void postPaused(final int reasonCode) {
+        mDispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mDownloadListener != null) {
+                    mDownloadListener.onPaused(reasonCode, DownloadReason.getReasonString(reasonCode));
+                }
+            }
+        });
+    }
+
+    /** 获得调度器分配的名额后才交给系统下载管理器, 并带领同一url的其它下载 */
+    private class ManagerTask extends DownloadScheduler.Task {
+        private final Request mRequest;
+        private final String mUrl;
+        private final IntegrityCheck mCheck;
+        private volatile boolean mPaused;
+        private volatile SingleFlight.Flight mFlight;
+        /** set once the system download has completed or been removed, guarded by this */
+        private boolean mDone;
+        /** set once onStart() has enqueued the system download, guarded by this */
+        private boolean mEnqueued;
+        /** set by a cancel between getting the slot and onStart(), guarded by this */
+        private boolean mCancelled;
+
+        ManagerTask(Request request, String url, String host) {
+            super(host, mPriority);
+            mRequest = request;
+            mUrl = url;
+            mCheck = mIntegrityCheck;
+            lead();
+        }
+
+        void lead() {
+            mFlight = mFlights.lead(mUrl, new Runnable() {
+                @Override
+                public void run() {
+                    cancel(ManagerTask.this);   // 放弃后最后一个跟随者也已离开
+                }
+            });
+        }
+
+        @Override
+        void onStart() {
+            DownloadManager downloadMgr = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
+            synchronized (this) {
+                if (!mCancelled) {
+                    // 在本对象锁内入队, 取消时要么看到下载id, 要么阻止入队
+                    mDownloadId = downloadMgr.enqueue(mRequest);
+                    mEnqueued = true;
+                    // 监听下载进度和完成
+                    DownloadObserver.get().register(mContext, mDownloadId, mClient);
+                    return;
+                }
+            }
+            finish();   // 获得名额后, 入队前已被取消
+        }
+
+        /**
+         * Cancel the download if onStart() has not enqueued it yet, it then returns the slot without
+         * enqueuing.
+         * @return false if the system download exists and must be removed
+         */
+        synchronized boolean cancelStart() {
+            if (mEnqueued) {
+                return false;
+            }
+            mCancelled = true;
+            return true;
+        }
+
+        /** The system runs the download again, take the slot back unless it has completed. */
+        synchronized void occupy() {
+            if (!mDone) {
+                mScheduler.occupy(this);
+            }
+        }
+
+        void finish() {
+            synchronized (this) {
+                mDone = true;
+            }
+            mScheduler.finished(this, false);
+        }
+    }
+
+    /** 批量下载的一个文件, 获得名额后才交给系统下载管理器 */
+    private class BatchTask extends DownloadScheduler.Task {
+        private final BatchClient mClient;
+        private final int mIndex;
+        private final Uri mUri;
+
+        BatchTask(BatchClient client, int index, Uri uri) {
+            super(uri.getHost(), mPriority);
+            mClient = client;
+            mIndex = index;
+            mUri = uri;
+        }
+
+        @Override
+        void onStart() {
+            if (mClient.mBatch.isDone()) {
+                mScheduler.finished(this, false);   // 批量下载已被取消
+                return;
+            }
+            Request request = new Request(mUri);
+            request.setDestinationUri(Uri.fromFile(mClient.mBatch.spec(mIndex).getSavePath()));
+            request.setTitle(mTitle);
+            request.setDescription(mDescription);
+            request.setNotificationVisibility(mNotificationVisible
+                    ? Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED : Request.VISIBILITY_HIDDEN);
+            DownloadManager downloadMgr = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
+            long downloadId = downloadMgr.enqueue(request);
+            if (!mClient.add(downloadId, this)) {
+                downloadMgr.remove(downloadId);     // 入队期间被取消
+                mScheduler.finished(this, false);
+            }
         }
-        return result;
     }
 
+    /**
+     * Receives the status of all running files of one batch, registered with
+     * {@link DownloadObserver} once per file id but a single object for the whole batch.
+     */
+    private class BatchClient implements DownloadObserver.Client {
+        private final DownloadBatch mBatch;
+        // 以下字段由this保护
+        private final LongSparseArray<BatchTask> mTasks = new LongSparseArray<BatchTask>();
+        private boolean mCancelled;
+
+        BatchClient(DownloadBatch batch) {
+            mBatch = batch;
+        }
+
+        /** @return false if the batch has been cancelled, the download must be removed */
+        synchronized boolean add(long downloadId, BatchTask task) {
+            if (mCancelled) {
+                return false;
+            }
+            mTasks.put(downloadId, task);
+            // 在本对象锁内注册, 取消时不会遗漏
+            DownloadObserver.get().register(mContext, downloadId, this);
+            return true;
+        }
+
+        private synchronized BatchTask get(long downloadId) {
+            return mTasks.get(downloadId);
+        }
+
+        /** Take the slot of a file back that the system runs again, unless it has been removed. */
+        private synchronized void occupy(long downloadId, BatchTask task) {
+            if (mTasks.get(downloadId) == task) {
+                mScheduler.occupy(task);
+            }
+        }
+
+        private synchronized BatchTask remove(long downloadId) {
+            BatchTask task = mTasks.get(downloadId);
+            mTasks.remove(downloadId);
+            return task;
+        }
+
+        /** Remove the running downloads from {@link DownloadManager} with one call. */
+        void cancel() {
+            long[] ids;
+            BatchTask[] tasks;
+            synchronized (this) {
+                mCancelled = true;
+                ids = new long[mTasks.size()];
+                tasks = new BatchTask[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = mTasks.keyAt(i);
+                    tasks[i] = mTasks.valueAt(i);
+                    DownloadObserver.get().unregister(ids[i]);
+                }
+                mTasks.clear();
+            }
+            if (ids.length > 0) {
+                DownloadManager downloadMgr = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
+                downloadMgr.remove(ids);
+            }
+            for (BatchTask task : tasks) {
+                mScheduler.finished(task, false);
+            }
+        }
+
+        @Override
+        public void onStatusChanged(long downloadId, Cursor cursor, DownloadObserver.Columns columns) {
+            BatchTask task = get(downloadId);
+            if (task == null || !mBatch.isPending(task.mIndex)) {
+                return;     // 已完成或已取消的文件
+            }
+            switch (cursor.getInt(columns.status)) {
+                case STATUS_PAUSED:
+                    mScheduler.finished(task, false);   // 系统暂停期间不占用名额
+                    break;
+                case STATUS_RUNNING:
+                    occupy(downloadId, task);
+                    mBatch.itemProgress(task.mIndex, cursor.getLong(columns.downloadedSoFar),
+                            cursor.getLong(columns.totalSize));
+                    break;
+                case STATUS_FAILED:
+                    mBatch.itemFailed(task.mIndex, cursor.getInt(columns.reason));
+                    break;
+                case STATUS_SUCCESSFUL:
+                    DownloadManager downloadMgr = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
+                    Uri downloadedFile = downloadMgr.getUriForDownloadedFile(downloadId);
+                    IntegrityCheck check = mBatch.spec(task.mIndex).getIntegrityCheck();
+                    int reason = check == null ? 0 : check(check, downloadedFile);
+                    if (reason == 0) {
+                        mBatch.itemSuccessful(task.mIndex, downloadedFile);
+                    } else {
+                        mBatch.itemFailed(task.mIndex, reason);
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void onCompleted(long downloadId) {
+            BatchTask task = remove(downloadId);
+            if (task != null) {
+                mScheduler.finished(task, false);
+                // 没有看到最终状态, 例如下载已被其它应用删除
+                mBatch.itemFailed(task.mIndex, DownloadReason.ERROR_UNKNOWN);
+            }
+        }
+    }
+
+    /**
+     * A download following the {@link SingleFlight} of another one with the same url. Pausing or
+     * cancelling it only leaves the flight, {@link #resume()} downloads the url again.
+     */
+    private class Follower implements SingleFlight.Member {
+        private final String mUrl;
+        private final File mFile;
+        private final CallbackDispatcher mFollowerDispatcher = mDispatcher;
+        private volatile SingleFlight.Flight mFlight;
+        /** set once the follower has left the flight, suppresses its callbacks */
+        private boolean mLeft;
+        private boolean mPaused;
+
+        Follower(String url, File file) {
+            mUrl = url;
+            mFile = file;
+        }
+
+        synchronized boolean pause() {
+            if (mLeft) {
+                return false;
+            }
+            mLeft = true;
+            mFlight.remove(this);
+            mPaused = true;
+            firePaused(DownloadReason.PAUSED_BY_USER);
+            return true;
+        }
+
+        synchronized boolean resume() {
+            if (!mPaused) {
+                return false;
+            }
+            mPaused = false;
+            try {
+                download(mUrl, mFile);
+            } catch (IOException e) {
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void cancel() {
+            mPaused = false;
+            if (!mLeft) {
+                mLeft = true;
+                mFlight.remove(this);
+            }
+        }
+
+        @Override
+        public synchronized void onPending() {
+            if (!mLeft) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mDownloadListener.onPending();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onStarted(long totalBytes) {
+            onProgress(0, totalBytes);
+        }
+
+        @Override
+        public synchronized void onProgress(long downloadedBytes, long totalBytes) {
+            if (!mLeft) {
+                mFollowerDispatcher.progress(downloadedBytes, totalBytes);
+            }
+        }
+
+        @Override
+        public synchronized void onPaused(int reason) {
+            if (!mLeft) {
+                firePaused(reason);
+            }
+        }
+
+        @Override
+        public synchronized void onSuccessful(final File file) {
+            if (mLeft) {
+                return;
+            }
+            mLeft = true;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mDownloadListener.onSuccessful(Uri.fromFile(file));
+                    mDownloadListener.onCompleted();
+                }
+            });
+        }
+
+        @Override
+        public synchronized void onFailed(final int reason, String message) {
+            if (mLeft) {
+                return;
+            }
+            mLeft = true;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mDownloadListener.onFailed(reason, DownloadReason.getReasonString(reason));
+                    mDownloadListener.onCompleted();
+                }
+            });
+        }
+
+        @Override
+        public synchronized void onDetached(int reason) {
+            if (!mLeft) {
+                mLeft = true;
+                mPaused = true;
+                firePaused(reason);
+            }
+        }
+
+        private void firePaused(final int reason) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mDownloadListener.onPaused(reason, DownloadReason.getReasonString(reason));
+                }
+            });
+        }
+
+        private void post(final Runnable callback) {
+            mFollowerDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mDownloadListener != null) {
+                        callback.run();
+                    }
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,314 @@
+package com.whinc.downloader;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A few carrier threads driving the sockets of many {@link NioTransfer}s with selectors, instead
+ * of one blocked thread per connection.<br>
+ *     <br>
+ * Every transfer is pinned to one {@link Carrier} for its lifetime: its socket is registered with
+ * the carrier's selector, and all of its protocol state is touched on that thread only, so it needs
+ * no lock. Work that may block, name lookups and file writes, runs on a small pool of worker
+ * threads and posts its result back to the carrier. Each carrier keeps the idle keep-alive
+ * connections of its transfers, watched by the selector so that one closed by the server is
+ * dropped at once. The number of threads does not grow with the number of transfers.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class EventLoop {
+    private static final int MAX_CARRIERS = 4;
+    /** idle connections kept per route and carrier */
+    private static final int MAX_IDLE_PER_ROUTE = 16;
+    private static final long KEEP_ALIVE_NANOS = 60 * 1000000000L;
+
+    private static EventLoop sShared;
+
+    private final Carrier[] mCarriers;
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final ExecutorService mWorkers;
+
+    /** Receives the readiness of a registered channel on its carrier thread. */
+    interface Handler {
+        void onReady(SelectionKey key);
+    }
+
+    /** The loop shared by all {@link HttpDownloader}s, started on first use. */
+    static synchronized EventLoop shared() {
+        if (sShared == null) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            sShared = new EventLoop(Math.max(1, Math.min(MAX_CARRIERS, processors / 2)),
+                    Math.max(2, Math.min(MAX_CARRIERS, processors)));
+        }
+        return sShared;
+    }
+
+    EventLoop(int carriers, int workers) {
+        mWorkers = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "EventLoop-worker-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mCarriers = new Carrier[carriers];
+        for (int i = 0; i < carriers; i++) {
+            try {
+                mCarriers[i] = new Carrier(i + 1, Selector.open());
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot open selector", e);
+            }
+            mCarriers[i].start();
+        }
+    }
+
+    /** @return the carrier a new transfer is pinned to, in turn */
+    Carrier next() {
+        return mCarriers[(mNext.getAndIncrement() & Integer.MAX_VALUE) % mCarriers.length];
+    }
+
+    /** @return the threads for blocking work: name lookups, file writes and completing transfers */
+    ExecutorService workers() {
+        return mWorkers;
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or null if the runtime has none
+     * (before Java 21, and on Android)
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /** A timer of a {@link Carrier}, it runs on the carrier thread unless cancelled before. */
+    static final class Timer implements Comparable<Timer> {
+        private final long mDeadline;
+        private final Runnable mTask;
+        private boolean mCancelled;
+
+        Timer(long deadline, Runnable task) {
+            mDeadline = deadline;
+            mTask = task;
+        }
+
+        /** Called on the carrier thread. */
+        void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return mDeadline < other.mDeadline ? -1 : (mDeadline == other.mDeadline ? 0 : 1);
+        }
+    }
+
+    /** One selector and the thread running it. */
+    static final class Carrier extends Thread {
+        private final Selector mSelector;
+        private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+
+        // 以下字段只在载体线程访问
+        private final PriorityQueue<Timer> mTimers = new PriorityQueue<Timer>();
+        /** idle connections per route, most recently used last */
+        private final Map<String, ArrayDeque<Idle>> mIdle = new HashMap<String, ArrayDeque<Idle>>();
+
+        Carrier(int index, Selector selector) {
+            super("EventLoop-" + index);
+            setDaemon(true);
+            mSelector = selector;
+        }
+
+        /** Run task on the carrier thread, may be called from any thread. */
+        void execute(Runnable task) {
+            mTasks.add(task);
+            if (Thread.currentThread() != this && mWakeupPending.compareAndSet(false, true)) {
+                mSelector.wakeup();
+            }
+        }
+
+        /** Run task after delayNanos, called on the carrier thread. */
+        Timer schedule(long delayNanos, Runnable task) {
+            Timer timer = new Timer(System.nanoTime() + delayNanos, task);
+            mTimers.add(timer);
+            return timer;
+        }
+
+        /** Register channel for ops, called on the carrier thread. */
+        SelectionKey register(SocketChannel channel, int ops, Handler handler)
+                throws ClosedChannelException {
+            return channel.register(mSelector, ops, handler);
+        }
+
+        /**
+         * Take an idle connection to route, called on the carrier thread. Its key is kept, with no
+         * interest, and attached to handler.
+         * @return the key of the connection, or null if there is none
+         */
+        SelectionKey takeIdle(String route, Handler handler) {
+            ArrayDeque<Idle> idle = mIdle.get(route);
+            while (idle != null && !idle.isEmpty()) {
+                Idle connection = idle.pollLast();
+                if (idle.isEmpty()) {
+                    mIdle.remove(route);
+                }
+                connection.mTimer.cancel();
+                SelectionKey key = connection.mKey;
+                if (key.isValid() && key.channel().isOpen()) {
+                    key.interestOps(0);
+                    key.attach(handler);
+                    return key;
+                }
+                idle = mIdle.get(route);
+            }
+            return null;
+        }
+
+        /** Keep the connection of key for the next transfer to route, called on the carrier thread. */
+        void putIdle(String route, SelectionKey key) {
+            ArrayDeque<Idle> idle = mIdle.get(route);
+            if (idle == null) {
+                idle = new ArrayDeque<Idle>();
+                mIdle.put(route, idle);
+            }
+            if (idle.size() >= MAX_IDLE_PER_ROUTE) {
+                Idle eldest = idle.pollFirst();
+                eldest.mTimer.cancel();
+                close(eldest.mKey);
+            }
+            Idle connection = new Idle(route, key);
+            connection.mTimer = schedule(KEEP_ALIVE_NANOS, connection);
+            key.attach(connection);
+            key.interestOps(SelectionKey.OP_READ);  // 服务器关闭连接时可读
+            idle.addLast(connection);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long timeoutMillis = runTimers();
+                try {
+                    if (!mTasks.isEmpty()) {
+                        mSelector.selectNow();
+                    } else if (timeoutMillis < 0) {
+                        mSelector.select();
+                    } else {
+                        mSelector.select(timeoutMillis);
+                    }
+                } catch (IOException e) {
+                    continue;
+                }
+                mWakeupPending.set(false);
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid()) {
+                        ((Handler) key.attachment()).onReady(key);
+                    }
+                }
+                Runnable task;
+                while ((task = mTasks.poll()) != null) {
+                    task.run();
+                }
+            }
+        }
+
+        /** Run due timers. @return milliseconds until the next one, -1 if there is none */
+        private long runTimers() {
+            long now = System.nanoTime();
+            Timer timer;
+            while ((timer = mTimers.peek()) != null) {
+                if (timer.mCancelled) {
+                    mTimers.poll();
+                } else if (timer.mDeadline <= now) {
+                    mTimers.poll();
+                    timer.mTask.run();
+                    now = System.nanoTime();
+                } else {
+                    // select(0)会一直等待, 至少等待1ms
+                    return Math.max(1, (timer.mDeadline - now) / 1000000L);
+                }
+            }
+            return -1;
+        }
+
+        /** An idle keep-alive connection, dropped when the server closes it or it expires. */
+        private final class Idle implements Handler, Runnable {
+            final String mRoute;
+            final SelectionKey mKey;
+            Timer mTimer;
+
+            Idle(String route, SelectionKey key) {
+                mRoute = route;
+                mKey = key;
+            }
+
+            /** Readable while idle: the server has closed the connection, or sent garbage. */
+            @Override
+            public void onReady(SelectionKey key) {
+                drop();
+            }
+
+            /** Expired. */
+            @Override
+            public void run() {
+                drop();
+            }
+
+            private void drop() {
+                mTimer.cancel();
+                ArrayDeque<Idle> idle = mIdle.get(mRoute);
+                if (idle != null && idle.remove(this) && idle.isEmpty()) {
+                    mIdle.remove(mRoute);
+                }
+                close(mKey);
+            }
+        }
+    }
+
+    /** Cancel key and close its channel. */
+    static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Read from channel into buffer, limited to max bytes. @return bytes read, -1 at end of stream */
+    static int read(SocketChannel channel, ByteBuffer buffer, int max) throws IOException {
+        int limit = buffer.limit();
+        buffer.limit(Math.min(limit, buffer.position() + max));
+        try {
+            return channel.read(buffer);
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+}
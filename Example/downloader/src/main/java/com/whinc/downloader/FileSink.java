@@ -0,0 +1,309 @@
+package com.whinc.downloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Target file of a {@link HttpTransfer}, opened once and shared by all segments.<br>
+ *     <br>
+ * Every segment writes through its own {@link Writer}, which puts bytes at absolute file positions
+ * in one of the {@link HttpDownloader} write modes:
+ * <ul>
+ *     <li>{@link HttpDownloader#WRITE_STREAM}: {@link RandomAccessFile#seek} and {@code write} on a
+ *     file descriptor of its own, the behaviour of earlier versions</li>
+ *     <li>{@link HttpDownloader#WRITE_CHANNEL}: positional {@link FileChannel#write(ByteBuffer, long)}
+ *     of the heap buffer on the shared channel, no seek and no descriptor per segment</li>
+ *     <li>{@link HttpDownloader#WRITE_MMAP}: copies into a {@link MappedByteBuffer} window of the
+ *     preallocated file, no system call per write. Needs a known length, otherwise
+ *     {@code WRITE_CHANNEL} is used. Each segment maps one window at a time and forces it to the
+ *     file before moving on; a dropped window is only unmapped by the garbage collector, so once
+ *     {@link #MAX_MAPPED} bytes of the file have been mapped the remaining writes go through the
+ *     channel</li>
+ * </ul>
+ * This class has no Android dependency.
+ */
+final class FileSink {
+    static final int MODE_STREAM = 0;
+    static final int MODE_CHANNEL = 1;
+    static final int MODE_MMAP = 2;
+    /** size of a mapped window */
+    private static final long MAP_WINDOW = 8 * 1024 * 1024;
+    /** bytes of one file mapped at most, small enough for the address space of 32 bit processes */
+    private static final long MAX_MAPPED = 4 * MAP_WINDOW;
+
+    private final File mFile;
+    private final int mMode;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private long mLength = -1;
+    private MetricsRecorder mRecorder;
+    /** bytes that may still be mapped by the writers of this file */
+    private final AtomicLong mMapBudget = new AtomicLong(MAX_MAPPED);
+
+    private FileSink(File file, int mode, RandomAccessFile raf) {
+        mFile = file;
+        mMode = mode;
+        mRaf = raf;
+        mChannel = raf.getChannel();
+    }
+
+    /** Open file for writing, creating its directory if it is missing. */
+    static FileSink open(File file, int mode) throws DownloadException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new DownloadException(DownloadReason.ERROR_FILE_ERROR, "cannot create dir: " + dir);
+        }
+        try {
+            return new FileSink(file, mode, new RandomAccessFile(file, "rw"));
+        } catch (IOException e) {
+            throw new DownloadException(DownloadReason.ERROR_FILE_ERROR, e.getMessage(), e);
+        }
+    }
+
+    /** Measure the time spent preallocating and writing, before any writer is created. */
+    void setRecorder(MetricsRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    /**
+     * Reserve length bytes up front, so a full disk is reported before any byte is downloaded.
+     * Truncates the file if length is 0.
+     */
+    void allocate(long length) throws DownloadException {
+        File dir = mFile.getAbsoluteFile().getParentFile();
+        long required = length - mFile.length();
+        if (required > 0 && dir != null && dir.getUsableSpace() < required) {
+            throw new DownloadException(DownloadReason.ERROR_INSUFFICIENT_SPACE,
+                    "need " + required + " bytes in " + dir);
+        }
+        long start = System.nanoTime();
+        try {
+            mRaf.setLength(length);
+        } catch (IOException e) {
+            throw new DownloadException(DownloadReason.ERROR_INSUFFICIENT_SPACE, e.getMessage(), e);
+        }
+        if (mRecorder != null) {
+            mRecorder.disk(System.nanoTime() - start);
+        }
+        mLength = length;
+    }
+
+    /** Copy count bytes at srcPosition of src to dstPosition, without passing them through the heap. */
+    void copyFrom(FileChannel src, long srcPosition, long dstPosition, long count)
+            throws DownloadException {
+        try {
+            while (count > 0) {
+                long n = mChannel.transferFrom(src.position(srcPosition), dstPosition, count);
+                if (n <= 0) {
+                    throw new IOException("source ended at " + srcPosition);
+                }
+                srcPosition += n;
+                dstPosition += n;
+                count -= n;
+            }
+        } catch (IOException e) {
+            throw new DownloadException(DownloadReason.ERROR_FILE_ERROR, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copy source over target.
+     * @throws java.io.FileNotFoundException if source cannot be opened, any failure of target is
+     * reported as a {@link DownloadException}
+     */
+    static void copy(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            FileSink sink = open(target, MODE_CHANNEL);
+            try {
+                sink.allocate(length);
+                sink.copyFrom(channel, 0, 0, length);
+            } finally {
+                sink.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    Writer newWriter() throws DownloadException {
+        Writer writer;
+        switch (mMode) {
+            case MODE_STREAM:
+                writer = new StreamWriter(open(mFile, mMode).mRaf);
+                break;
+            case MODE_MMAP:
+                writer = mLength > 0 ? new MappedWriter(mChannel, mLength, mMapBudget)
+                        : new ChannelWriter(mChannel);
+                break;
+            default:
+                writer = new ChannelWriter(mChannel);
+                break;
+        }
+        writer.mRecorder = mRecorder;
+        return writer;
+    }
+
+    void close() {
+        try {
+            mRaf.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Writes one segment, used by a single thread. */
+    abstract static class Writer {
+        /** receives the write time when the writer is closed, null if it is not measured */
+        private MetricsRecorder mRecorder;
+        private long mNanos;
+
+        /** Write len bytes of b at the absolute file position. */
+        final void write(long position, byte[] b, int off, int len) throws DownloadException {
+            long start = mRecorder != null ? System.nanoTime() : 0;
+            try {
+                doWrite(position, b, off, len);
+            } catch (IOException e) {
+                throw new DownloadException(DownloadReason.ERROR_FILE_ERROR, e.getMessage(), e);
+            }
+            if (mRecorder != null) {
+                mNanos += System.nanoTime() - start;    // 只累加到本地字段, 关闭时才上报
+            }
+        }
+
+        abstract void doWrite(long position, byte[] b, int off, int len) throws IOException;
+
+        final void close() {
+            release();
+            if (mRecorder != null) {
+                mRecorder.disk(mNanos);
+                mRecorder = null;
+            }
+        }
+
+        void release() {
+        }
+    }
+
+    private static final class StreamWriter extends Writer {
+        private final RandomAccessFile mRaf;
+        private long mPosition = -1;
+
+        StreamWriter(RandomAccessFile raf) {
+            mRaf = raf;
+        }
+
+        @Override
+        void doWrite(long position, byte[] b, int off, int len) throws IOException {
+            if (position != mPosition) {
+                mRaf.seek(position);
+            }
+            mRaf.write(b, off, len);
+            mPosition = position + len;
+        }
+
+        @Override
+        void release() {
+            try {
+                mRaf.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static final class ChannelWriter extends Writer {
+        private final FileChannel mChannel;
+
+        ChannelWriter(FileChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        void doWrite(long position, byte[] b, int off, int len) throws IOException {
+            writeFully(mChannel, ByteBuffer.wrap(b, off, len), position);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static final class MappedWriter extends Writer {
+        private final FileChannel mChannel;
+        private final long mLength;
+        private final AtomicLong mBudget;
+        private MappedByteBuffer mWindow;
+        private long mWindowStart;
+        /** set once the budget is spent, the rest is written through the channel */
+        private boolean mUnmapped;
+
+        MappedWriter(FileChannel channel, long length, AtomicLong budget) {
+            mChannel = channel;
+            mLength = length;
+            mBudget = budget;
+        }
+
+        @Override
+        void doWrite(long position, byte[] b, int off, int len) throws IOException {
+            if (position + len > mLength) {
+                throw new IOException("write beyond end of file: " + (position + len));
+            }
+            while (len > 0) {
+                if (mWindow == null || position < mWindowStart
+                        || position >= mWindowStart + mWindow.capacity()) {
+                    drop();
+                    long size = Math.min(MAP_WINDOW, mLength - position);
+                    if (mUnmapped || !take(size)) {
+                        mUnmapped = true;
+                        writeFully(mChannel, ByteBuffer.wrap(b, off, len), position);
+                        return;
+                    }
+                    mWindowStart = position;
+                    mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+                }
+                int offset = (int) (position - mWindowStart);
+                int n = Math.min(len, mWindow.capacity() - offset);
+                mWindow.position(offset);
+                mWindow.put(b, off, n);
+                position += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /** @return true if size bytes could be taken from the budget of the file */
+        private boolean take(long size) {
+            long left;
+            do {
+                left = mBudget.get();
+                if (left < size) {
+                    return false;
+                }
+            } while (!mBudget.compareAndSet(left, left - size));
+            return true;
+        }
+
+        /** Write the current window to the file and drop it, the mapping is removed by the GC. */
+        private void drop() {
+            if (mWindow != null) {
+                mWindow.force();
+                mWindow = null;
+            }
+        }
+
+        @Override
+        void release() {
+            drop();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.whinc.downloader;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative long values with a fixed relative precision, in the manner of
+ * HdrHistogram, used by {@link HistogramMetrics}.<br>
+ *     <br>
+ * Values below 32 are counted exactly. Above, every power of two is cut into 16 linear buckets,
+ * so a value is known to within 1/16 (about 6%) of itself, from 32 up to {@link Long#MAX_VALUE},
+ * in 960 counters allocated once. Recording is one array index computed from the leading zeros of
+ * the value and a few atomic adds: no lock, no allocation. Queries read the counters without
+ * stopping writers, a percentile taken while values are recorded may miss the latest ones.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** values below this are their own bucket */
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int LINEAR_EXPONENT = SUB_BUCKET_BITS + 1;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - LINEAR_EXPONENT) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    Histogram() {}
+
+    void record(long value) {
+        if (value < 0) {
+            return;
+        }
+        mCounts.incrementAndGet(index(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /** @return sum of all values, it wraps around once it exceeds {@link Long#MAX_VALUE} */
+    public long getSum() {
+        return mSum.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /** @return the mean, 0 if there is no value */
+    public double getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * @param percentile in [0, 100], e.g. 99.9
+     * @return the highest value that falls into the same bucket as the value at percentile, never
+     * above {@link #getMax()}; 0 if there is no value
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile out of range: " + percentile);
+        }
+        long total = 0;
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return LINEAR_LIMIT + (exponent - LINEAR_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    private static long highestValue(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exponent = LINEAR_EXPONENT + (index - LINEAR_LIMIT) / SUB_BUCKETS;
+        int sub = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lowest = (long) (SUB_BUCKETS + sub) << shift;
+        return lowest + ((1L << shift) - 1);
+    }
+}
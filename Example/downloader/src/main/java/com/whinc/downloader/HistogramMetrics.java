@@ -0,0 +1,172 @@
+package com.whinc.downloader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link DownloadMetrics} that keeps counters and {@link Histogram}s of all transfers in process,
+ * to be read or exported periodically.
+ *     <pre>
+ *         HistogramMetrics metrics = new HistogramMetrics();
+ *         DownloaderFactory.setMetrics(metrics);
+ *         ...
+ *         long p99 = metrics.getFirstByteMicros().getValueAtPercentile(99);
+ *     </pre>
+ * Times are recorded in microseconds. The phase histograms receive a value for every transfer that
+ * went through the phase: DNS, connect and TLS only when the transfer opened a connection, TLS
+ * only for https. Durations and throughput are only recorded for successful transfers, so stopped
+ * and failed ones do not skew them; all transfers are counted. Recording takes a handful of atomic
+ * adds once per transfer.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+public final class HistogramMetrics implements DownloadMetrics {
+    private final AtomicLong mTransfers = new AtomicLong();
+    private final AtomicLong mSuccessful = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mCancelled = new AtomicLong();
+    private final AtomicLong mCached = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mConnectionsOpened = new AtomicLong();
+    private final AtomicLong mConnectionsReused = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mHedges = new AtomicLong();
+    private final AtomicLong mSplits = new AtomicLong();
+
+    private final Histogram mDns = new Histogram();
+    private final Histogram mConnect = new Histogram();
+    private final Histogram mTls = new Histogram();
+    private final Histogram mFirstByte = new Histogram();
+    private final Histogram mDuration = new Histogram();
+    private final Histogram mDisk = new Histogram();
+    private final Histogram mBytesPerSecond = new Histogram();
+    private final Histogram mSegments = new Histogram();
+
+    @Override
+    public void onTransferFinished(TransferMetrics m) {
+        mTransfers.incrementAndGet();
+        if (m.isCancelled()) {
+            mCancelled.incrementAndGet();
+        } else if (m.isSuccessful()) {
+            mSuccessful.incrementAndGet();
+        } else {
+            mFailed.incrementAndGet();
+        }
+        if (m.isCached()) {
+            mCached.incrementAndGet();
+        }
+        mBytes.addAndGet(m.getBytes());
+        mRequests.addAndGet(m.getRequests());
+        mConnectionsOpened.addAndGet(m.getConnectionsOpened());
+        mConnectionsReused.addAndGet(m.getConnectionsReused());
+        mRetries.addAndGet(m.getRetries());
+        mHedges.addAndGet(m.getHedges());
+        mSplits.addAndGet(m.getSplits());
+
+        if (m.getConnectionsOpened() > 0) {
+            mDns.record(micros(m.getDnsNanos()));
+            mConnect.record(micros(m.getConnectNanos()));
+            if (m.getTlsNanos() > 0) {
+                mTls.record(micros(m.getTlsNanos()));
+            }
+        }
+        if (m.getFirstByteNanos() >= 0) {
+            mFirstByte.record(micros(m.getFirstByteNanos()));
+        }
+        if (m.isSuccessful()) {
+            mDuration.record(micros(m.getDurationNanos()));
+            mDisk.record(micros(m.getDiskNanos()));
+            if (m.getBytes() > 0 && m.getBodyNanos() > 0) {
+                mBytesPerSecond.record((long) m.getBytesPerSecond());
+            }
+            mSegments.record(m.getSegments());
+        }
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+    public long getTransferCount() {
+        return mTransfers.get();
+    }
+
+    public long getSuccessfulCount() {
+        return mSuccessful.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    /** @return transfers stopped by a pause, a preemption or a cancel */
+    public long getCancelledCount() {
+        return mCancelled.get();
+    }
+
+    public long getCachedCount() {
+        return mCached.get();
+    }
+
+    /** @return bytes received over the network by all transfers */
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    public long getConnectionsOpened() {
+        return mConnectionsOpened.get();
+    }
+
+    public long getConnectionsReused() {
+        return mConnectionsReused.get();
+    }
+
+    public long getRetryCount() {
+        return mRetries.get();
+    }
+
+    public long getHedgeCount() {
+        return mHedges.get();
+    }
+
+    public long getSplitCount() {
+        return mSplits.get();
+    }
+
+    /** @return DNS lookup time per transfer that opened a connection */
+    public Histogram getDnsMicros() {
+        return mDns;
+    }
+
+    public Histogram getConnectMicros() {
+        return mConnect;
+    }
+
+    public Histogram getTlsMicros() {
+        return mTls;
+    }
+
+    public Histogram getFirstByteMicros() {
+        return mFirstByte;
+    }
+
+    public Histogram getDurationMicros() {
+        return mDuration;
+    }
+
+    public Histogram getDiskMicros() {
+        return mDisk;
+    }
+
+    public Histogram getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    public Histogram getSegments() {
+        return mSegments;
+    }
+}
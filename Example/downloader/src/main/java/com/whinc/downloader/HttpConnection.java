@@ -0,0 +1,350 @@
+package com.whinc.downloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * One HTTP/1.1 connection to a host, reused through {@link ConnectionPool} for consecutive
+ * requests. Not thread safe: a connection carries one exchange at a time, its response body is read
+ * by a single thread. {@link #close()} may be called from any thread to abort a blocked read.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class HttpConnection {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /** pool key, {@code scheme://host:port} */
+    final String route;
+    /** set by {@link ConnectionPool} when the connection becomes idle */
+    long idleSinceNanos;
+
+    private final Socket mSocket;
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final int mReadTimeout;
+    /** version of the last response read */
+    private boolean mHttp10;
+
+    private HttpConnection(String route, Socket socket, int readTimeout) throws IOException {
+        this.route = route;
+        mSocket = socket;
+        mIn = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+        mOut = new BufferedOutputStream(socket.getOutputStream(), 4 * 1024);
+        mReadTimeout = readTimeout;
+    }
+
+    static String route(String scheme, String host, int port) {
+        return scheme + "://" + host + ":" + port;
+    }
+
+    /**
+     * Open a new connection, with a verified TLS session if scheme is https.
+     * @param recorder receives the time of the DNS lookup, TCP connect and TLS handshake, or null
+     */
+    static HttpConnection connect(String scheme, String host, int port, int connectTimeout,
+                                  int readTimeout, MetricsRecorder recorder) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            long start = System.nanoTime();
+            InetSocketAddress address = new InetSocketAddress(host, port);   // 解析域名
+            long resolved = System.nanoTime();
+            socket.connect(address, connectTimeout);
+            long connected = System.nanoTime();
+            socket.setSoTimeout(readTimeout);
+            if ("https".equalsIgnoreCase(scheme)) {
+                SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(socket, host, port, true);
+                socket = ssl;
+                ssl.startHandshake();
+                if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, ssl.getSession())) {
+                    throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+                }
+            }
+            if (recorder != null) {
+                long secured = System.nanoTime();
+                recorder.connected(resolved - start, connected - resolved,
+                        socket instanceof SSLSocket ? secured - connected : 0);
+            }
+            return new HttpConnection(route(scheme, host, port), socket, readTimeout);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    /** Send the request line and headers, there is never a request body. */
+    void writeRequest(String method, String target, Map<String, String> headers) throws IOException {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+        }
+        sb.append("\r\n");
+        mOut.write(sb.toString().getBytes(ISO_8859_1));
+        mOut.flush();
+    }
+
+    /**
+     * Read the status line and headers of the response, skipping interim 1xx responses.
+     * @param headers receives the headers, names in lower case
+     * @return the status code
+     */
+    int readResponseHead(Map<String, String> headers) throws IOException {
+        while (true) {
+            String statusLine = readLine();
+            // HTTP/1.1 200 OK
+            if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12
+                    || statusLine.charAt(8) != ' ') {
+                throw new ProtocolException("Unexpected status line: " + statusLine);
+            }
+            int code;
+            try {
+                code = Integer.parseInt(statusLine.substring(9, 12));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Unexpected status line: " + statusLine);
+            }
+            headers.clear();
+            mHttp10 = statusLine.startsWith("HTTP/1.0");
+            String line;
+            while ((line = readLine()).length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    throw new ProtocolException("Unexpected header: " + line);
+                }
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                if (!headers.containsKey(name)) {
+                    headers.put(name, line.substring(colon + 1).trim());
+                }
+            }
+            if (code >= 200) {
+                return code;
+            }
+        }
+    }
+
+    /**
+     * @return the response body, positioned after the headers. {@link BodyListener#onBodyEnd}
+     *     is called once, when the body has been read to the end or has been closed.
+     */
+    InputStream openBody(Map<String, String> headers, BodyListener listener) {
+        String transferEncoding = headers.get("transfer-encoding");
+        if (transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+            return new BodyStream(BodyStream.CHUNKED, 0, listener);
+        }
+        String contentLength = headers.get("content-length");
+        if (contentLength != null) {
+            try {
+                return new BodyStream(BodyStream.FIXED, Long.parseLong(contentLength.trim()), listener);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return new BodyStream(BodyStream.UNTIL_CLOSE, 0, listener);
+    }
+
+    /** @return true if the connection may carry another exchange after a response with headers */
+    boolean isKeepAlive(Map<String, String> headers) {
+        String connection = headers.get("connection");
+        if (connection != null) {
+            connection = connection.toLowerCase(Locale.US);
+            if (connection.contains("close")) {
+                return false;
+            }
+            if (connection.contains("keep-alive")) {
+                return true;
+            }
+        }
+        return !mHttp10;
+    }
+
+    /** @return false if the peer has closed the idle connection */
+    boolean isHealthy() {
+        if (mSocket.isClosed() || mSocket.isInputShutdown() || mSocket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            mSocket.setSoTimeout(1);
+            mIn.mark(1);
+            if (mIn.read() == -1) {
+                return false;
+            }
+            mIn.reset();
+            return true;    // 空闲连接上不应有数据, 但不影响复用
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                mSocket.setSoTimeout(mReadTimeout);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    void close() {
+        closeQuietly(mSocket);
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int c;
+        while ((c = mIn.read()) != '\n') {
+            if (c == -1) {
+                throw new ProtocolException("Unexpected end of stream");
+            }
+            if (sb.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Line too long");
+            }
+            sb.append((char) c);
+        }
+        int len = sb.length();
+        if (len > 0 && sb.charAt(len - 1) == '\r') {
+            sb.setLength(len - 1);
+        }
+        return sb.toString();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Told when a response body ends. */
+    interface BodyListener {
+        /** @param complete true if the body was read to its end, the connection is then reusable */
+        void onBodyEnd(boolean complete);
+    }
+
+    /** Response body framed by Content-Length, chunked encoding or the end of the connection. */
+    private final class BodyStream extends InputStream {
+        static final int FIXED = 0;
+        static final int CHUNKED = 1;
+        static final int UNTIL_CLOSE = 2;
+
+        private final int mFraming;
+        private final BodyListener mListener;
+        /** bytes left in the body or the current chunk, -1 before the first chunk */
+        private long mRemaining;
+        private boolean mEnded;
+
+        BodyStream(int framing, long length, BodyListener listener) {
+            mFraming = framing;
+            mListener = listener;
+            mRemaining = framing == CHUNKED ? -1 : length;
+            if (framing == FIXED && length == 0) {
+                end(true);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mEnded) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                if (mFraming == UNTIL_CLOSE) {
+                    int n = mIn.read(b, off, len);
+                    if (n == -1) {
+                        end(false);
+                    }
+                    return n;
+                }
+                if (mFraming == CHUNKED && mRemaining <= 0 && !nextChunk()) {
+                    return -1;
+                }
+                int n = mIn.read(b, off, (int) Math.min(len, mRemaining));
+                if (n == -1) {
+                    end(false);
+                    throw new ProtocolException("Unexpected end of body");
+                }
+                mRemaining -= n;
+                // 分段下载读满Range后不会再读到-1, 这里就归还连接
+                if (mRemaining == 0 && mFraming == FIXED) {
+                    end(true);
+                }
+                return n;
+            } catch (IOException e) {
+                end(false);
+                throw e;
+            }
+        }
+
+        /** @return false at the last chunk, after its trailers have been read */
+        private boolean nextChunk() throws IOException {
+            if (mRemaining == 0) {
+                readLine();     // 上一块数据后的CRLF
+            }
+            String line = readLine();
+            int semicolon = line.indexOf(';');
+            String size = (semicolon >= 0 ? line.substring(0, semicolon) : line).trim();
+            try {
+                mRemaining = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Bad chunk size: " + line);
+            }
+            if (mRemaining < 0) {
+                throw new ProtocolException("Bad chunk size: " + line);
+            }
+            if (mRemaining == 0) {
+                while (readLine().length() > 0) {
+                    // 忽略trailer
+                }
+                end(true);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (mEnded) {
+                return 0;
+            }
+            int available = mIn.available();
+            return mFraming == UNTIL_CLOSE ? available : (int) Math.min(available, Math.max(mRemaining, 0));
+        }
+
+        /** Closing before the end drops the connection, the rest of the body is not drained. */
+        @Override
+        public void close() {
+            if (!mEnded) {
+                end(false);
+            }
+        }
+
+        private void end(boolean complete) {
+            if (!mEnded) {
+                mEnded = true;
+                mListener.onBodyEnd(complete);
+            }
+        }
+    }
+}
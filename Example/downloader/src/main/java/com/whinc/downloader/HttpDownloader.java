@@ -0,0 +1,1189 @@
+package com.whinc.downloader;
+
+import android.net.Uri;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在进程内直接通过HTTP下载的 {@link Downloader} 实现, 不经过系统 {@link android.app.DownloadManager}<br>
+ *     <br>
+ * If the server supports byte ranges, the file is downloaded over several connections in parallel
+ * (see {@link #setSegmentCount(int)}); a connection that finishes early takes over half of the
+ * largest remaining range, and stalled ranges can be hedged ({@link #setHedgeDelay(long)}).
+ * Otherwise the file is downloaded over a single connection. Listener callbacks are
+ * delivered on the main thread unless {@link #setCallbackExecutor(Executor)} is used. Title,
+ * description and notification settings are accepted for interface compatibility but have no
+ * effect, no system notification is shown.<br>
+ *     <br>
+ * While a ranged download runs, its progress is recorded in a journal next to the target file. If
+ * the process dies, {@link #resume(String, File)} continues the download where it stopped.<br>
+ *     <br>
+ * Downloads are started by the shared {@link DownloadScheduler}, which may pause (preempt) them in
+ * favour of downloads of higher priority; a preempted download continues from its journal.
+ * Downloads can be answered from a {@link DownloadCache}, see {@link #setCache(DownloadCache)}.<br>
+ *     <br>
+ * 使用时需要添加权限"android.permission.INTERNET", 保存到外部存储时还需要"android.permission.WRITE_EXTERNAL_STORAGE"
+ */
+public class HttpDownloader implements Downloader<HttpDownloader> {
+    /** {@link java.io.RandomAccessFile#seek} and {@code write}, one file descriptor per segment */
+    public static final int WRITE_STREAM = FileSink.MODE_STREAM;
+    /** positional {@link java.nio.channels.FileChannel} writes from a heap buffer, the default */
+    public static final int WRITE_CHANNEL = FileSink.MODE_CHANNEL;
+    /** copy into a memory mapped window of the file, needs a known length */
+    public static final int WRITE_MMAP = FileSink.MODE_MMAP;
+
+    /** every download blocks a thread per connection, the default */
+    public static final int EXECUTION_THREADS = 0;
+    /**
+     * plain http downloads over a single connection share the selector threads of an event loop,
+     * any other download runs on a virtual thread where the runtime has them, otherwise on a thread
+     */
+    public static final int EXECUTION_EVENT_LOOP = 1;
+
+    /** default of {@link #setMemoryLimit(long)} */
+    public static final long DEFAULT_MEMORY_LIMIT = 512 * 1024;
+
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HttpDownloader-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Executor of the downloads the event loop does not take. */
+    private static final class VirtualThreads {
+        static final ExecutorService sExecutor;
+
+        static {
+            ExecutorService executor = EventLoop.newVirtualThreadExecutor();
+            sExecutor = executor != null ? executor : HttpDownloader.sExecutor;
+        }
+    }
+
+    private final HttpStack mStack;
+    private final DownloadScheduler mScheduler;
+    private final SingleFlight mFlights;
+    private final RateLimiter mRateLimiter;
+    private DownloadListener mDownloadListener;
+    private String mTitle;
+    private String mDescription;
+    private boolean mNotificationVisible;
+    private int mSegmentCount = HttpTransfer.DEFAULT_SEGMENT_COUNT;
+    private boolean mAdaptiveSegments;
+    private long mHedgeDelay;
+    private Executor mCallbackExecutor = MainThreadExecutor.get();
+    private ProgressPolicy mProgressPolicy = new ProgressPolicy();
+    private int mPriority = DownloadScheduler.PRIORITY_NORMAL;
+    private int mWriteMode = WRITE_CHANNEL;
+    private int mExecutionMode = EXECUTION_THREADS;
+    private IntegrityCheck mIntegrityCheck;
+    private String mDeltaManifestUrl;
+    private DownloadCache mCache;
+    private ArchiveExtractor mExtractor;
+    private DownloadMetrics mMetrics;
+    private long mMemoryLimit = DEFAULT_MEMORY_LIMIT;
+    private volatile Handle mTask;
+
+    HttpDownloader(HttpStack stack, DownloadScheduler scheduler, SingleFlight flights,
+                   RateLimiter globalLimiter) {
+        mStack = stack;
+        mScheduler = scheduler;
+        mFlights = flights;
+        mRateLimiter = new RateLimiter(globalLimiter);
+    }
+
+    @Override
+    public HttpDownloader setDownloadListener(DownloadListener l) {
+        mDownloadListener = l;
+        return this;
+    }
+
+    @Override
+    public HttpDownloader setTitle(String title) {
+        mTitle = title;
+        return this;
+    }
+
+    @Override
+    public HttpDownloader setDescription(String description) {
+        mDescription = description;
+        return this;
+    }
+
+    @Override
+    public HttpDownloader setNotificationVisible(boolean b) {
+        mNotificationVisible = b;
+        return this;
+    }
+
+    @Override
+    public HttpDownloader setCallbackExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor == null");
+        }
+        mCallbackExecutor = executor;
+        return this;
+    }
+
+    @Override
+    public HttpDownloader setProgressPolicy(ProgressPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy == null");
+        }
+        mProgressPolicy = policy;
+        return this;
+    }
+
+    @Override
+    public HttpDownloader setPriority(int priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of parallel connections used for one file, default is 4, at most 64.
+     * Small files and servers without range support always use one connection.
+     */
+    public HttpDownloader setSegmentCount(int count) {
+        if (count < 1 || count > DownloadJournal.MAX_SEGMENTS) {
+            throw new IllegalArgumentException("segment count out of range: " + count);
+        }
+        mSegmentCount = count;
+        return this;
+    }
+
+    /**
+     * Let the number of parallel connections follow the measured bandwidth: downloads start with
+     * two connections and add one as long as that raises the throughput, up to
+     * {@link #setSegmentCount(int)}, and drop one when it does not. Off by default, all connections
+     * are used from the start.
+     */
+    public HttpDownloader setAdaptiveSegments(boolean adaptive) {
+        mAdaptiveSegments = adaptive;
+        return this;
+    }
+
+    /**
+     * Send a second, hedged request for the rest of a segment whose connection has delivered no
+     * bytes for delayMillis; the first of both to deliver keeps the segment, the other is closed.
+     * @param delayMillis 0, the default, never hedges
+     */
+    public HttpDownloader setHedgeDelay(long delayMillis) {
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException("delay must not be negative: " + delayMillis);
+        }
+        mHedgeDelay = delayMillis;
+        return this;
+    }
+
+    /**
+     * Choose how downloaded bytes are written to the file, one of {@link #WRITE_STREAM},
+     * {@link #WRITE_CHANNEL} and {@link #WRITE_MMAP}. All modes preallocate
+     * the file when its length is known and fail with {@link DownloadReason#ERROR_INSUFFICIENT_SPACE}
+     * before downloading if it does not fit.
+     */
+    public HttpDownloader setWriteMode(int mode) {
+        if (mode < WRITE_STREAM || mode > WRITE_MMAP) {
+            throw new IllegalArgumentException("unknown write mode: " + mode);
+        }
+        mWriteMode = mode;
+        return this;
+    }
+
+    /**
+     * Choose how the following downloads use threads, {@link #EXECUTION_THREADS} or
+     * {@link #EXECUTION_EVENT_LOOP}. With the event loop a few threads serve thousands of concurrent
+     * small downloads: a plain http download without resume journal, cache, delta manifest or
+     * extractor is sent as a single {@code GET} over a kept-alive connection; the others run as
+     * before. Raise {@link DownloadScheduler#setMaxConcurrent(int)} and
+     * {@link DownloadScheduler#setMaxPerHost(int)} to let that many run at once.
+     */
+    public HttpDownloader setExecutionMode(int mode) {
+        if (mode != EXECUTION_THREADS && mode != EXECUTION_EVENT_LOOP) {
+            throw new IllegalArgumentException("unknown execution mode: " + mode);
+        }
+        mExecutionMode = mode;
+        return this;
+    }
+
+    /**
+     * The digest is computed while the bytes are written, the file is not read again. A CRC is
+     * computed per segment and combined, so it keeps parallel connections; any other algorithm can
+     * only be computed in file order and downloads over a single connection. Use
+     * {@link #setExpectedBlockDigests(String, long, String[])} to verify parallel downloads with a
+     * cryptographic digest.
+     */
+    @Override
+    public HttpDownloader setExpectedDigest(String algorithm, String digest) {
+        mIntegrityCheck = algorithm == null ? null : IntegrityCheck.forFile(algorithm, digest);
+        return this;
+    }
+
+    /**
+     * Verify the following downloads block by block: the file is cut into blocks of blockSize
+     * bytes, the last one may be shorter, and digests[i] is the digest of block i. Segments are
+     * aligned to blocks, so they are still downloaded in parallel, and every block is checked as
+     * soon as it is complete; a mismatch fails the download with
+     * {@link DownloadReason#ERROR_DIGEST_MISMATCH} right away.
+     * @param algorithm see {@link #setExpectedDigest(String, String)}, null to stop verifying
+     */
+    public HttpDownloader setExpectedBlockDigests(String algorithm, long blockSize, String[] digests) {
+        mIntegrityCheck = algorithm == null ? null
+                : IntegrityCheck.forBlocks(algorithm, blockSize, digests);
+        return this;
+    }
+
+    /**
+     * Update an existing savePath with only the blocks that changed. If savePath exists when the
+     * download starts, the {@link DeltaManifest} at manifestUrl, which must describe the file at
+     * the download url, is fetched first; blocks found anywhere in the old file are reused and only
+     * the others are downloaded with range requests. Without an old file, a manifest or any
+     * reusable block the file is downloaded completely.
+     * @param manifestUrl url of the manifest, null to always download completely
+     */
+    public HttpDownloader setDeltaManifest(String manifestUrl) {
+        mDeltaManifestUrl = manifestUrl;
+        return this;
+    }
+
+    /**
+     * Limit the bandwidth of this downloader's downloads, including the one running now, 0 removes
+     * the limit. The limit of {@link DownloaderFactory#getRateLimiter()} applies as well.
+     */
+    public HttpDownloader setMaxBytesPerSecond(long bytesPerSecond) {
+        mRateLimiter.setBytesPerSecond(bytesPerSecond);
+        return this;
+    }
+
+    /**
+     * Look up the following downloads in cache first and store them there when they complete. A
+     * cached file is copied to savePath if the server confirms it is unchanged, or without asking
+     * the server if it matches the SHA-256 digest given to {@link #setExpectedDigest(String, String)}.
+     * One cache is best shared by all downloaders.
+     * @param cache null to always download from the network
+     */
+    public HttpDownloader setCache(DownloadCache cache) {
+        mCache = cache;
+        return this;
+    }
+
+    /**
+     * Unpack the following downloads while they arrive: savePath is the directory the entries are
+     * extracted into and the archive itself is not stored. Progress counts the bytes of the
+     * archive, {@link DownloadListener#onSuccessful(Uri)} receives the directory. Extracted
+     * downloads use one connection and are not resumed, cached or shared; a paused one starts
+     * over, and cancelling leaves the entries extracted so far. An expected digest is checked
+     * against the archive once it has been extracted.
+     * @param extractor null to store the downloaded file
+     */
+    public HttpDownloader setExtractor(ArchiveExtractor extractor) {
+        mExtractor = extractor;
+        return this;
+    }
+
+    /**
+     * Report the {@link TransferMetrics} of the following downloads to metrics, the default is the
+     * one of {@link DownloaderFactory#setMetrics(DownloadMetrics)} at the time this downloader was
+     * created. Channels returned by {@link #open(String, File)} are not measured.
+     * @param metrics null to not measure
+     */
+    public HttpDownloader setMetrics(DownloadMetrics metrics) {
+        mMetrics = metrics;
+        return this;
+    }
+
+    /**
+     * Keep the body of the following {@link #load(String, File, BodyListener)} downloads in memory
+     * up to this many bytes, default is 512KB. A larger body is saved to the spill file.
+     */
+    public HttpDownloader setMemoryLimit(long bytes) {
+        if (bytes < 0 || bytes >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("limit out of range: " + bytes);
+        }
+        mMemoryLimit = bytes;
+        return this;
+    }
+
+    @Override
+    public void download(String url, File savePath) throws IOException, IllegalArgumentException {
+        start(url, Collections.<String>emptyList(), savePath, false);
+    }
+
+    /**
+     * Download one file from several equivalent sources, e.g. mirrors. If the file supports byte
+     * ranges its segments are fetched from all sources at once, most of them from the source that
+     * measures fastest; segments move away from a source that turns out slow or failing while the
+     * download runs, and it fails only when every source has failed. A file without ranges is
+     * downloaded from the first source that answers.<br>
+     *     <br>
+     * The sources must serve the same bytes: set an expected digest, see
+     * {@link #setExpectedDigest(String, String)}, to detect one that does not. The download is
+     * shared with others of the first url as in {@link #download(String, File)}.
+     * @param urls equivalent sources in order of preference, at least one
+     */
+    public void download(List<String> urls, File savePath) throws IOException, IllegalArgumentException {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("no url");
+        }
+        for (String url : urls) {
+            checkUrl(url);
+        }
+        start(urls.get(0), new ArrayList<String>(urls.subList(1, urls.size())), savePath, false);
+    }
+
+    /**
+     * Continue a download that was interrupted, for example because the process died. Only the
+     * missing byte ranges recorded in the journal next to savePath are downloaded. If there is no
+     * journal, or the server's {@code ETag}, {@code Last-Modified} or length no longer match the
+     * journal, the file is downloaded from the start.
+     * @see #download(String, File)
+     */
+    public void resume(String url, File savePath) throws IOException, IllegalArgumentException {
+        start(url, Collections.<String>emptyList(), savePath, true);
+    }
+
+    /**
+     * Read url while it downloads, instead of waiting for the complete file. The request is sent on
+     * the first read, which must not happen on the main thread; the bytes are returned in order as
+     * they arrive and a slow reader slows the transfer down. Use
+     * {@link java.nio.channels.Channels#newInputStream(ReadableByteChannel)} for a stream.<br>
+     *     <br>
+     * The expected digest and the bandwidth limits of this downloader apply: the end of the body is
+     * only reported once the digest has passed. The download is not scheduled, cached or shared
+     * with other downloads of url, and no listener is called.
+     * @param teeFile also write the bytes to this file, complete once a read has returned -1 and
+     *                deleted if the channel is closed before; null for none
+     * @return an open channel, which must be closed
+     */
+    public ReadableByteChannel open(String url, File teeFile) throws IOException {
+        checkUrl(url);
+        if (teeFile != null) {
+            makeParentDir(teeFile);
+        }
+        return new DownloadChannel(mStack, url, teeFile, mIntegrityCheck, mRateLimiter);
+    }
+
+    /**
+     * Download a small file, such as a configuration or a thumbnail, into memory: the body is
+     * handed to {@link BodyListener#onLoaded(ByteBuffer)} and nothing is written to storage. A body
+     * larger than {@link #setMemoryLimit(long)}, known from its {@code Content-Length} or found out
+     * while it arrives, is saved to spillPath instead and reported to
+     * {@link BodyListener#onSpilled(File)}.<br>
+     *     <br>
+     * The download is scheduled with the priority of this downloader and uses one connection; the
+     * expected digest and the bandwidth limits apply. It is not cached or shared with other
+     * downloads of url, cannot be paused, and the download listener is not called.
+     * @param spillPath where to save a body over the limit, its directory is only created then
+     */
+    public void load(String url, File spillPath, BodyListener listener) throws IllegalArgumentException {
+        URI uri = checkUrl(url);
+        if (listener == null) {
+            throw new IllegalArgumentException("listener == null");
+        }
+        LoadTask task = new LoadTask(url, spillPath, listener, uri.getHost());
+        mTask = task;
+        mScheduler.submit(task);
+    }
+
+    /**
+     * The files use the connection, write mode, cache and bandwidth settings of this downloader;
+     * a delta manifest or an extractor does not apply to them. A file may be preempted like any
+     * other download and continues from its journal.
+     */
+    @Override
+    public DownloadBatch downloadAll(Collection<DownloadSpec> specs, BatchListener listener) {
+        DownloadBatch batch = new DownloadBatch(specs, listener, mCallbackExecutor, mProgressPolicy);
+        final List<BatchTask> tasks = new ArrayList<BatchTask>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            URI uri = checkUrl(batch.spec(i).getUrl());
+            tasks.add(new BatchTask(batch, i, uri.getHost()));
+        }
+        batch.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.removeAll(tasks);
+                for (BatchTask task : tasks) {
+                    task.cancel();
+                }
+            }
+        });
+        mScheduler.submitAll(tasks);
+        batch.started();
+        return batch;
+    }
+
+    /** Parsed with {@link URI}, not {@link Uri}, so the downloader also runs on a plain JVM. */
+    private static URI checkUrl(String url) {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid URL: " + url, e);
+        }
+        String scheme = uri.getScheme();
+        if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+            throw new IllegalArgumentException("Can only download HTTP/HTTPS URIs: " + url);
+        }
+        return uri;
+    }
+
+    private static void makeParentDir(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create dir: " + dir);
+        }
+    }
+
+    private static ExecutorService executor(int executionMode) {
+        return executionMode == EXECUTION_EVENT_LOOP ? VirtualThreads.sExecutor : sExecutor;
+    }
+
+    private static EventLoop eventLoop(int executionMode) {
+        return executionMode == EXECUTION_EVENT_LOOP ? EventLoop.shared() : null;
+    }
+
+    private void start(String url, List<String> mirrors, File savePath, boolean resume)
+            throws IOException {
+        URI uri = checkUrl(url);
+        makeParentDir(savePath);
+
+        ListenerBridge bridge = new ListenerBridge(mDownloadListener, mCallbackExecutor, mProgressPolicy);
+        bridge.onPending();
+        Follower follower = new Follower(url, mirrors, savePath, bridge);
+        SingleFlight.Flight flight = mExtractor != null ? null
+                : mFlights.follow(url, savePath, mIntegrityCheck, follower);
+        if (flight != null) {
+            follower.mFlight = flight;  // 同一url正在下载, 等待其结果
+            mTask = follower;
+            return;
+        }
+        HttpTask task = new HttpTask(url, mirrors, savePath, resume, bridge, uri.getHost());
+        mTask = task;
+        mScheduler.submit(task);
+    }
+
+    @Override
+    public boolean pause() {
+        Handle task = mTask;
+        return task != null && task.pause();
+    }
+
+    @Override
+    public boolean resume() {
+        Handle task = mTask;
+        return task != null && task.resume();
+    }
+
+    @Override
+    public void cancel() {
+        Handle task = mTask;
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    /** The current download, either transferring itself or following another one. */
+    private interface Handle {
+        boolean pause();
+
+        boolean resume();
+
+        void cancel();
+    }
+
+    /**
+     * One download scheduled by {@link DownloadScheduler}. A paused or preempted task stops its
+     * {@link HttpTransfer}, keeping the journal, and continues with a resuming transfer when it is
+     * started again. The task leads the {@link SingleFlight} of its url, a task cancelled while
+     * others follow it keeps running for them.
+     */
+    private class HttpTask extends DownloadScheduler.Task implements Handle {
+        private static final int STOP_NONE = 0;
+        private static final int STOP_PREEMPT = 1;
+        private static final int STOP_PAUSE = 2;
+        private static final int STOP_CANCEL = 3;
+
+        private final String mUrl;
+        private final List<String> mMirrors;
+        private final File mFile;
+        private final int mSegmentCount;
+        private final boolean mAdaptiveSegments;
+        private final long mHedgeDelay;
+        private final int mWriteMode;
+        private final IntegrityCheck mCheck;
+        private final String mDeltaManifestUrl;
+        private final DownloadCache mCache;
+        private final ArchiveExtractor mExtractor;
+        private final DownloadMetrics mMetrics;
+        private final int mExecutionMode;
+        private final ListenerBridge mBridge;
+
+        // 以下字段由this保护
+        private boolean mResume;
+        private boolean mPaused;
+        private boolean mDone;
+        private int mStop = STOP_NONE;
+        private HttpTransfer mTransfer;
+
+        HttpTask(String url, List<String> mirrors, File file, boolean resume, ListenerBridge bridge,
+                 String host) {
+            super(host, mPriority);
+            mUrl = url;
+            mMirrors = mirrors;
+            mFile = file;
+            mSegmentCount = HttpDownloader.this.mSegmentCount;
+            mAdaptiveSegments = HttpDownloader.this.mAdaptiveSegments;
+            mHedgeDelay = HttpDownloader.this.mHedgeDelay;
+            mWriteMode = HttpDownloader.this.mWriteMode;
+            mCheck = HttpDownloader.this.mIntegrityCheck;
+            mDeltaManifestUrl = HttpDownloader.this.mDeltaManifestUrl;
+            mCache = HttpDownloader.this.mCache;
+            mExtractor = HttpDownloader.this.mExtractor;
+            mMetrics = HttpDownloader.this.mMetrics;
+            mExecutionMode = HttpDownloader.this.mExecutionMode;
+            mResume = resume;
+            mBridge = bridge;
+            bridge.mFlight = lead();
+        }
+
+        private SingleFlight.Flight lead() {
+            Runnable deserted = new Runnable() {
+                @Override
+                public void run() {
+                    cancelNow();    // 放弃后最后一个跟随者也已离开
+                }
+            };
+            // 解压的结果是目录, 不能复制给跟随者
+            return mExtractor != null ? mFlights.solo(mUrl, deserted) : mFlights.lead(mUrl, deserted);
+        }
+
+        @Override
+        void onStart() {
+            final HttpTransfer transfer;
+            synchronized (this) {
+                if (mStop != STOP_NONE) {
+                    transfer = null;    // 启动前已被暂停或取消
+                } else {
+                    transfer = new HttpTransfer(mStack, executor(mExecutionMode), mUrl, mFile,
+                            mSegmentCount, mResume, mBridge)
+                            .setWriteMode(mWriteMode)
+                            .setAdaptiveConnections(mAdaptiveSegments)
+                            .setHedgeDelay(mHedgeDelay)
+                            .setIntegrityCheck(mCheck)
+                            .setDeltaManifest(mDeltaManifestUrl)
+                            .setCache(mCache)
+                            .setRateLimiter(mRateLimiter)
+                            .setExtractor(mExtractor)
+                            .setMetrics(mMetrics)
+                            .setMirrors(mMirrors)
+                            .setEventLoop(eventLoop(mExecutionMode));
+                    mTransfer = transfer;
+                }
+            }
+            if (transfer == null) {
+                onStopped(true);
+                return;
+            }
+            transfer.start(new Runnable() {
+                @Override
+                public void run() {
+                    onStopped(!transfer.isCompleted());
+                }
+            });
+        }
+
+        @Override
+        boolean isPreemptible() {
+            return true;
+        }
+
+        @Override
+        void onPreempt() {
+            stop(STOP_PREEMPT);
+        }
+
+        // 不能在持有本对象锁时调用调度器: 调度器会在持有自己的锁时调用onPreempt()
+        @Override
+        public boolean pause() {
+            synchronized (this) {
+                if (mDone || mPaused || mBridge.mFlight.isAbandoned()) {
+                    return false;
+                }
+            }
+            if (mScheduler.remove(this)) {
+                synchronized (this) {
+                    mPaused = true;
+                    mResume = true;
+                }
+                mBridge.onPaused(DownloadReason.PAUSED_BY_USER);
+                return true;
+            }
+            return stop(STOP_PAUSE);
+        }
+
+        @Override
+        public boolean resume() {
+            synchronized (this) {
+                if (!mPaused) {
+                    return false;
+                }
+                mPaused = false;
+            }
+            mBridge.mFlight = lead();   // 暂停时跟随者已离开
+            mBridge.onPending();
+            mScheduler.submit(this);
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+            if (!mBridge.mFlight.abandon()) {
+                cancelNow();
+            }
+        }
+
+        private void cancelNow() {
+            boolean removed = mScheduler.remove(this);
+            synchronized (this) {
+                if (mDone) {
+                    return;
+                }
+                if (!removed && !mPaused) {
+                    stop(STOP_CANCEL);      // 正在运行, 停止后删除文件
+                    return;
+                }
+                mPaused = false;
+                mDone = true;
+            }
+            deleteFiles();
+        }
+
+        /**
+         * Ask the running transfer to stop, a stronger request overrides a weaker one. A task that
+         * has been given a slot but not started yet stops as soon as {@link #onStart()} is called.
+         */
+        private synchronized boolean stop(int reason) {
+            if (mDone || mPaused) {
+                return false;
+            }
+            if (mStop < reason) {
+                if (mTransfer != null && !mTransfer.cancel()) {
+                    return false;   // 结果已报告, onStopped()即将被调用
+                }
+                mStop = reason;
+            }
+            return true;
+        }
+
+        /** Called once the transfer has returned. */
+        private void onStopped(boolean cancelled) {
+            int stop;
+            synchronized (this) {
+                stop = cancelled ? mStop : STOP_NONE;
+                mStop = STOP_NONE;
+                mTransfer = null;
+                switch (stop) {
+                    case STOP_PREEMPT:
+                        mResume = true;
+                        break;
+                    case STOP_PAUSE:
+                        mResume = true;
+                        mPaused = true;
+                        break;
+                    default:
+                        mDone = true;
+                        break;
+                }
+            }
+            mScheduler.finished(this, stop == STOP_PREEMPT);
+            if (stop == STOP_PREEMPT) {
+                mBridge.onPaused(DownloadReason.PAUSED_PREEMPTED);
+            } else if (stop == STOP_PAUSE) {
+                mBridge.onPaused(DownloadReason.PAUSED_BY_USER);
+            } else if (stop == STOP_CANCEL
+                    || (stop == STOP_NONE && mBridge.mFlight.isAbandoned())) {
+                deleteFiles();  // 被放弃的下载在跟随者复制文件后删除
+            }
+        }
+
+        private void deleteFiles() {
+            mFile.delete();
+            DownloadJournal.fileFor(mFile).delete();
+        }
+    }
+
+    /**
+     * One file of a {@link DownloadBatch}, it reports straight to the batch and does not lead a
+     * {@link SingleFlight}. A preempted file is queued again and continues from its journal, a
+     * cancelled one deletes its partial data.
+     */
+    private class BatchTask extends DownloadScheduler.Task implements TransferListener {
+        private final DownloadBatch mBatch;
+        private final int mIndex;
+        private final int mSegmentCount;
+        private final boolean mAdaptiveSegments;
+        private final long mHedgeDelay;
+        private final int mWriteMode;
+        private final DownloadCache mCache;
+        private final DownloadMetrics mMetrics;
+        private final int mExecutionMode;
+
+        // 以下字段由this保护
+        private boolean mResume;
+        private boolean mPreempted;
+        private boolean mCancelled;
+        private boolean mDone;
+        private HttpTransfer mTransfer;
+
+        BatchTask(DownloadBatch batch, int index, String host) {
+            super(host, mPriority);
+            mBatch = batch;
+            mIndex = index;
+            mSegmentCount = HttpDownloader.this.mSegmentCount;
+            mAdaptiveSegments = HttpDownloader.this.mAdaptiveSegments;
+            mHedgeDelay = HttpDownloader.this.mHedgeDelay;
+            mWriteMode = HttpDownloader.this.mWriteMode;
+            mCache = HttpDownloader.this.mCache;
+            mMetrics = HttpDownloader.this.mMetrics;
+            mExecutionMode = HttpDownloader.this.mExecutionMode;
+        }
+
+        @Override
+        void onStart() {
+            final DownloadSpec spec = mBatch.spec(mIndex);
+            final HttpTransfer transfer;
+            synchronized (this) {
+                if (mCancelled || mPreempted) {
+                    transfer = null;    // 启动前已被取消或抢占
+                } else {
+                    transfer = new HttpTransfer(mStack, executor(mExecutionMode), spec.getUrl(),
+                            spec.getSavePath(), mSegmentCount, mResume, this)
+                            .setWriteMode(mWriteMode)
+                            .setAdaptiveConnections(mAdaptiveSegments)
+                            .setHedgeDelay(mHedgeDelay)
+                            .setIntegrityCheck(spec.getIntegrityCheck())
+                            .setCache(mCache)
+                            .setRateLimiter(mRateLimiter)
+                            .setMetrics(mMetrics)
+                            .setEventLoop(eventLoop(mExecutionMode));
+                    mTransfer = transfer;
+                }
+            }
+            if (transfer == null) {
+                onStopped(true);
+                return;
+            }
+            transfer.start(new Runnable() {
+                @Override
+                public void run() {
+                    onStopped(!transfer.isCompleted());
+                }
+            });
+        }
+
+        @Override
+        boolean isPreemptible() {
+            return true;
+        }
+
+        @Override
+        synchronized void onPreempt() {
+            // 已报告结果的传输不再抢占, 结束后不会重新排队
+            mPreempted = mTransfer == null || mTransfer.cancel();
+        }
+
+        /** Stop the file for a cancelled batch, the batch has already removed it from the queue. */
+        void cancel() {
+            synchronized (this) {
+                if (mTransfer != null) {
+                    mCancelled = mTransfer.cancel();    // 停止后删除文件, 已完成的保留
+                    return;
+                }
+                mCancelled = true;
+                if (mDone || !mResume) {
+                    return;     // 已完成, 或从未运行
+                }
+                mDone = true;
+            }
+            deleteFiles();
+        }
+
+        private void onStopped(boolean cancelled) {
+            boolean requeue;
+            boolean delete;
+            synchronized (this) {
+                requeue = cancelled && mPreempted && !mCancelled;
+                delete = cancelled && mCancelled && (mTransfer != null || mResume);
+                mPreempted = false;
+                mResume = true;
+                mDone = !requeue;
+                mTransfer = null;
+            }
+            mScheduler.finished(this, requeue);
+            if (delete) {
+                deleteFiles();
+            }
+        }
+
+        private void deleteFiles() {
+            File file = mBatch.spec(mIndex).getSavePath();
+            file.delete();
+            DownloadJournal.fileFor(file).delete();
+        }
+
+        @Override
+        public void onStarted(long totalBytes) {
+            mBatch.itemProgress(mIndex, 0, totalBytes);
+        }
+
+        @Override
+        public void onProgress(long downloadedBytes, long totalBytes) {
+            mBatch.itemProgress(mIndex, downloadedBytes, totalBytes);
+        }
+
+        @Override
+        public void onSuccessful(File file) {
+            mBatch.itemSuccessful(mIndex, Uri.fromFile(file));
+        }
+
+        @Override
+        public void onFailed(int reason, String message) {
+            mBatch.itemFailed(mIndex, reason);
+        }
+    }
+
+    /**
+     * A download that follows the {@link SingleFlight} of another one with the same url, it has no
+     * connection of its own. Pausing or cancelling it only leaves the flight, {@link #resume()}
+     * starts over.
+     */
+    private class Follower implements Handle, SingleFlight.Member {
+        private final String mUrl;
+        private final List<String> mMirrors;
+        private final File mFile;
+        private final ListenerBridge mBridge;
+        private volatile SingleFlight.Flight mFlight;
+        /** set once the follower has left the flight, suppresses its callbacks */
+        private volatile boolean mLeft;
+        private volatile boolean mPaused;
+
+        Follower(String url, List<String> mirrors, File file, ListenerBridge bridge) {
+            mUrl = url;
+            mMirrors = mirrors;
+            mFile = file;
+            mBridge = bridge;
+        }
+
+        @Override
+        public synchronized boolean pause() {
+            if (mLeft) {
+                return false;
+            }
+            mLeft = true;
+            mFlight.remove(this);
+            mPaused = true;
+            mBridge.onPaused(DownloadReason.PAUSED_BY_USER);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean resume() {
+            if (!mPaused) {
+                return false;
+            }
+            mPaused = false;
+            try {
+                start(mUrl, mMirrors, mFile, true);
+            } catch (IOException e) {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized void cancel() {
+            mPaused = false;
+            if (!mLeft) {
+                mLeft = true;
+                mFlight.remove(this);
+            }
+        }
+
+        @Override
+        public void onPending() {
+            if (!mLeft) {
+                mBridge.onPending();
+            }
+        }
+
+        @Override
+        public void onStarted(long totalBytes) {
+            if (!mLeft) {
+                mBridge.onStarted(totalBytes);
+            }
+        }
+
+        @Override
+        public void onProgress(long downloadedBytes, long totalBytes) {
+            if (!mLeft) {
+                mBridge.onProgress(downloadedBytes, totalBytes);
+            }
+        }
+
+        @Override
+        public void onPaused(int reason) {
+            if (!mLeft) {
+                mBridge.onPaused(reason);
+            }
+        }
+
+        @Override
+        public synchronized void onSuccessful(File file) {
+            if (!mLeft) {
+                mLeft = true;
+                mBridge.onSuccessful(file);
+            }
+        }
+
+        @Override
+        public synchronized void onFailed(int reason, String message) {
+            if (!mLeft) {
+                mLeft = true;
+                mBridge.onFailed(reason, message);
+            }
+        }
+
+        @Override
+        public synchronized void onDetached(int reason) {
+            if (!mLeft) {
+                mLeft = true;
+                mPaused = true;
+                mBridge.onPaused(reason);
+            }
+        }
+    }
+
+    /** A download kept in memory, scheduled like any other and run by a {@link MemoryTransfer}. */
+    private class LoadTask extends DownloadScheduler.Task implements Handle {
+        private final MemoryTransfer mTransfer;
+        private final File mSpillFile;
+        private final BodyListener mListener;
+        private final Executor mCallbackExecutor;
+        private final int mExecutionMode;
+        private volatile boolean mCancelled;
+
+        LoadTask(String url, File spillFile, BodyListener listener, String host) {
+            super(host, mPriority);
+            mTransfer = new MemoryTransfer(mStack, url, mMemoryLimit, spillFile, mIntegrityCheck,
+                    mRateLimiter);
+            mSpillFile = spillFile;
+            mListener = listener;
+            mCallbackExecutor = HttpDownloader.this.mCallbackExecutor;
+            mExecutionMode = HttpDownloader.this.mExecutionMode;
+        }
+
+        @Override
+        void onStart() {
+            executor(mExecutionMode).execute(new Runnable() {
+                @Override
+                public void run() {
+                    load();
+                }
+            });
+        }
+
+        private void load() {
+            ByteBuffer body = null;
+            int reason = 0;
+            try {
+                body = mTransfer.load();
+            } catch (DownloadException e) {
+                reason = e.getReason();
+            } catch (IOException e) {
+                reason = DownloadReason.ERROR_HTTP_DATA_ERROR;
+            } catch (RuntimeException e) {
+                reason = DownloadReason.ERROR_UNKNOWN;
+            }
+            mScheduler.finished(this, false);
+            if (mCancelled) {
+                mTransfer.release(body);
+                if (reason == 0 && body == null) {
+                    mSpillFile.delete();
+                }
+                return;
+            }
+            final ByteBuffer loaded = body;
+            final int failure = reason;
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (failure != 0) {
+                        mListener.onFailed(failure, DownloadReason.getReasonString(failure));
+                    } else if (loaded == null) {
+                        mListener.onSpilled(mSpillFile);
+                    } else {
+                        try {
+                            mListener.onLoaded(loaded);
+                        } finally {
+                            mTransfer.release(loaded);  // 回调返回后缓冲区回到池中
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public boolean pause() {
+            return false;
+        }
+
+        @Override
+        public boolean resume() {
+            return false;
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            if (!mScheduler.remove(this)) {
+                mTransfer.cancel();
+            }
+        }
+    }
+
+    /**
+     * 将 {@link TransferListener} 回调经 {@link CallbackDispatcher} 转发到 {@link DownloadListener}.
+     * The bridge of a leading task also forwards every callback to its flight, and stays silent once
+     * the flight has been abandoned.
+     */
+    private static class ListenerBridge implements TransferListener, CallbackDispatcher.ProgressSink {
+        private final DownloadListener mListener;
+        private final CallbackDispatcher mDispatcher;
+        /** flight led by this download, null for a follower */
+        volatile SingleFlight.Flight mFlight;
+
+        ListenerBridge(DownloadListener listener, Executor executor, ProgressPolicy policy) {
+            mListener = listener;
+            mDispatcher = new CallbackDispatcher(executor, policy, this);
+        }
+
+        private boolean isSilent() {
+            SingleFlight.Flight flight = mFlight;
+            return mListener == null || (flight != null && flight.isAbandoned());
+        }
+
+        void onPending() {
+            SingleFlight.Flight flight = mFlight;
+            if (flight != null) {
+                flight.onPending();
+            }
+            if (isSilent()) {
+                return;
+            }
+            mDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onPending();
+                }
+            });
+        }
+
+        void onPaused(final int reason) {
+            SingleFlight.Flight flight = mFlight;
+            if (flight != null) {
+                flight.onPaused(reason);
+            }
+            if (isSilent()) {
+                return;
+            }
+            mDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onPaused(reason, DownloadReason.getReasonString(reason));
+                }
+            });
+        }
+
+        @Override
+        public void onStarted(long totalBytes) {
+            SingleFlight.Flight flight = mFlight;
+            if (flight != null) {
+                flight.onStarted(totalBytes);
+            }
+            if (!isSilent()) {
+                mDispatcher.progress(0, totalBytes);
+            }
+        }
+
+        @Override
+        public void onProgress(long downloadedBytes, long totalBytes) {
+            SingleFlight.Flight flight = mFlight;
+            if (flight != null) {
+                flight.onProgress(downloadedBytes, totalBytes);
+            }
+            if (!isSilent()) {
+                mDispatcher.progress(downloadedBytes, totalBytes);
+            }
+        }
+
+        @Override
+        public void onSuccessful(final File file) {
+            SingleFlight.Flight flight = mFlight;
+            if (flight != null) {
+                flight.onSuccessful(file);  // 先把文件复制给跟随者
+            }
+            if (isSilent()) {
+                return;
+            }
+            mDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onSuccessful(Uri.fromFile(file));
+                    mListener.onCompleted();
+                }
+            });
+        }
+
+        @Override
+        public void onFailed(final int reason, String message) {
+            SingleFlight.Flight flight = mFlight;
+            if (flight != null) {
+                flight.onFailed(reason, message);
+            }
+            if (isSilent()) {
+                return;
+            }
+            mDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onFailed(reason, DownloadReason.getReasonString(reason));
+                    mListener.onCompleted();
+                }
+            });
+        }
+
+        /** 由 {@link CallbackDispatcher} 在回调线程调用 */
+        @Override
+        public void onProgress(ProgressSnapshot snapshot) {
+            mListener.onProgress(snapshot);
+        }
+    }
+}
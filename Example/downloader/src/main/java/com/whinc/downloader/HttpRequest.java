@@ -0,0 +1,47 @@
+package com.whinc.downloader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single HTTP request issued by the in-process download engine through a {@link HttpStack}.
+ */
+final class HttpRequest {
+    final String url;
+    String method = "GET";
+    /** first byte of the requested range, or -1 to request the whole entity */
+    long rangeStart = -1;
+    /** last byte (inclusive) of the requested range, or -1 for an open-ended range */
+    long rangeEnd = -1;
+    final Map<String, String> headers = new LinkedHashMap<String, String>();
+    /** receives the connection and exchange timings of the request, or null */
+    MetricsRecorder recorder;
+
+    HttpRequest(String url) {
+        this.url = url;
+    }
+
+    HttpRequest method(String method) {
+        this.method = method;
+        return this;
+    }
+
+    HttpRequest range(long start, long end) {
+        rangeStart = start;
+        rangeEnd = end;
+        return this;
+    }
+
+    HttpRequest header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /** @return value of the {@code Range} header, or null if no range is requested */
+    String rangeHeader() {
+        if (rangeStart < 0) {
+            return null;
+        }
+        return "bytes=" + rangeStart + "-" + (rangeEnd >= 0 ? String.valueOf(rangeEnd) : "");
+    }
+}
@@ -0,0 +1,89 @@
+package com.whinc.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Response of a {@link HttpRequest}. The body must be released with {@link #close()}, which lets
+ * the underlying connection be reused; {@link #abort()} drops the connection instead and unblocks a
+ * thread reading the body.
+ */
+final class HttpResponse implements Closeable {
+    final int code;
+    /** response headers, names are lower case */
+    final Map<String, String> headers;
+    final InputStream body;
+    private final Closeable mConnection;
+
+    HttpResponse(int code, Map<String, String> headers, InputStream body, Closeable connection) {
+        this.code = code;
+        this.headers = headers;
+        this.body = body;
+        mConnection = connection;
+    }
+
+    String header(String name) {
+        return headers.get(name.toLowerCase(Locale.US));
+    }
+
+    boolean isSuccessful() {
+        return code >= 200 && code < 300;
+    }
+
+    /** @return value of {@code Content-Length}, or -1 if absent */
+    long contentLength() {
+        return parseLong(header("Content-Length"), -1);
+    }
+
+    /** @return true if the server announced byte range support */
+    boolean acceptsRanges() {
+        return "bytes".equalsIgnoreCase(header("Accept-Ranges"));
+    }
+
+    /** @return the complete entity length from {@code Content-Range: bytes a-b/total}, or -1 */
+    long contentRangeTotal() {
+        String contentRange = header("Content-Range");
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        return slash < 0 ? -1 : parseLong(contentRange.substring(slash + 1), -1);
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (body != null) {
+                body.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Drop the connection. Does nothing once the body has been read to its end: the connection
+     * may then already serve another request.
+     */
+    void abort() {
+        try {
+            if (mConnection != null) {
+                mConnection.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static long parseLong(String s, long defaultValue) {
+        if (s == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
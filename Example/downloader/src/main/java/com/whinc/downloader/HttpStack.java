@@ -0,0 +1,14 @@
+package com.whinc.downloader;
+
+import java.io.IOException;
+
+/**
+ * Transport used by the in-process download engine to talk HTTP.
+ */
+interface HttpStack {
+    /**
+     * Execute request and return the response with an unread body.
+     * @throws IOException if the request cannot be sent or the response headers cannot be read
+     */
+    HttpResponse execute(HttpRequest request) throws IOException;
+}
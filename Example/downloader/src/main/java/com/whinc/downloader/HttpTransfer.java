@@ -0,0 +1,794 @@
+package com.whinc.downloader;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Download one url into one file over HTTP.<br>
+ *     <br>
+ * The server is probed with a {@code HEAD} request first. If it reports {@code Accept-Ranges: bytes}
+ * and a {@code Content-Length}, the target file is preallocated and downloaded as several byte range
+ * segments in parallel, each written at its own offset; connections that finish early split the
+ * remaining segments, see {@link RangeDownload}. Otherwise the file is downloaded as a single
+ * stream.<br>
+ *     <br>
+ * Ranged downloads keep a {@link DownloadJournal} next to the file while they run. A transfer
+ * created with {@code resume = true} reads it, checks that the entity's length, {@code ETag} and
+ * {@code Last-Modified} are unchanged, and downloads only the missing ranges; if the validators
+ * differ the file is downloaded again from the start. The journal is deleted on success.<br>
+ *     <br>
+ * How the bytes reach the file is chosen with {@link #setWriteMode(int)}, see {@link FileSink}. An
+ * {@link IntegrityCheck} verifies them on the way, see {@link #setIntegrityCheck}. An existing
+ * file can be updated with only its changed blocks, see {@link #setDeltaManifest(String)}, and a
+ * {@link DownloadCache} may answer the download without transferring the file at all: a cached url
+ * is requested with a conditional {@code GET} instead of the {@code HEAD} request. Reads are
+ * held to a {@link RateLimiter}, see {@link #setRateLimiter(RateLimiter)}. With an
+ * {@link ArchiveExtractor} the file is a directory the archive is unpacked into while it arrives,
+ * over one connection and without journal or cache.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class HttpTransfer {
+    static final int DEFAULT_SEGMENT_COUNT = 4;
+    /** segments smaller than this are not worth an extra connection */
+    static final long MIN_SEGMENT_SIZE = 512 * 1024;
+    private static final int BUFFER_SIZE = 32 * 1024;
+    /** report progress every time this many bytes have been written */
+    private static final long PROGRESS_STEP = 64 * 1024;
+
+    private final HttpStack mStack;
+    private final ExecutorService mExecutor;
+    private final String mUrl;
+    private final File mFile;
+    private final int mSegmentCount;
+    private final boolean mResume;
+    private final TransferListener mListener;
+    private int mWriteMode = FileSink.MODE_CHANNEL;
+    private IntegrityCheck mCheck;
+    private String mDeltaManifestUrl;
+    private DownloadCache mCache;
+    private RateLimiter mRateLimiter;
+    private boolean mAdaptive;
+    private long mHedgeDelay;
+    private ArchiveExtractor mExtractor;
+    private EventLoop mEventLoop;
+    /** mUrl followed by its mirrors */
+    private List<String> mSources;
+
+    private final AtomicLong mDownloadedBytes = new AtomicLong();
+    private final AtomicLong mReportedBytes = new AtomicLong();
+    private final List<HttpResponse> mOpenResponses = new ArrayList<HttpResponse>();
+    private volatile long mTotalBytes = -1;
+    /** set by {@link #cancel()}, suppresses all further callbacks */
+    private volatile boolean mCancelled;
+    /** set once the result has been reported, after which cancel() is refused, guarded by this */
+    private boolean mCompleted;
+    /** set when the workers must stop, on cancel or after the first segment failed */
+    private volatile boolean mStopped;
+    private volatile DownloadJournal mJournal;
+    private FileSink mSink;
+    /** value of the If-Range header sent with every range request */
+    private String mIfRange;
+    /** validators of the downloaded entity, stored with it in the cache */
+    private String mEtag;
+    private String mLastModified;
+    /** true if the file was copied from the cache */
+    private boolean mCached;
+    private DownloadMetrics mMetrics;
+    private MetricsRecorder mRecorder;
+    /** bytes already in the file when the transfer started, not received over the network */
+    private volatile long mStartBytes;
+    /** the transfer running on the event loop, null on threads */
+    private volatile NioTransfer mNio;
+
+    HttpTransfer(HttpStack stack, ExecutorService executor, String url, File file,
+                 int segmentCount, boolean resume, TransferListener listener) {
+        mStack = stack;
+        mExecutor = executor;
+        mUrl = url;
+        mSources = Collections.singletonList(url);
+        mFile = file;
+        mSegmentCount = Math.max(1, Math.min(segmentCount, DownloadJournal.MAX_SEGMENTS));
+        mResume = resume;
+        mListener = listener;
+    }
+
+    /** Verify the bytes against a copy of check while they are written, null for no verification. */
+    HttpTransfer setIntegrityCheck(IntegrityCheck check) {
+        mCheck = check == null ? null : check.copy();
+        return this;
+    }
+
+    /** Update an existing file with a {@link DeltaUpdate}, null to always download completely. */
+    HttpTransfer setDeltaManifest(String manifestUrl) {
+        mDeltaManifestUrl = manifestUrl;
+        return this;
+    }
+
+    /** Serve the file from cache if it is still current and store it there after downloading. */
+    HttpTransfer setCache(DownloadCache cache) {
+        mCache = cache;
+        return this;
+    }
+
+    /** Hold reads to the rate of limiter, null for no limit. */
+    HttpTransfer setRateLimiter(RateLimiter limiter) {
+        mRateLimiter = limiter;
+        return this;
+    }
+
+    /** Let the number of connections follow the measured throughput, see {@link RangeDownload}. */
+    HttpTransfer setAdaptiveConnections(boolean adaptive) {
+        mAdaptive = adaptive;
+        return this;
+    }
+
+    /** Send a hedged request for a segment that delivered nothing for delayMillis, 0 for never. */
+    HttpTransfer setHedgeDelay(long delayMillis) {
+        mHedgeDelay = delayMillis;
+        return this;
+    }
+
+    /**
+     * Other urls of the same file. A ranged download fetches its segments from all of them, see
+     * {@link RangeDownload}; the first one that answers the {@code HEAD} request is used for a file
+     * without ranges.
+     */
+    HttpTransfer setMirrors(List<String> urls) {
+        List<String> sources = new ArrayList<String>(urls.size() + 1);
+        sources.add(mUrl);
+        sources.addAll(urls);
+        mSources = sources;
+        return this;
+    }
+
+    /** Unpack the archive into the file, which is a directory, instead of storing it. */
+    HttpTransfer setExtractor(ArchiveExtractor extractor) {
+        mExtractor = extractor;
+        return this;
+    }
+
+    /** Report the {@link TransferMetrics} of the transfer to metrics when it ends, null for none. */
+    HttpTransfer setMetrics(DownloadMetrics metrics) {
+        mMetrics = metrics;
+        return this;
+    }
+
+    /** @return the recorder of the running transfer, null if metrics are off */
+    MetricsRecorder recorder() {
+        return mRecorder;
+    }
+
+    /** @param mode one of the {@code HttpDownloader.WRITE_*} modes */
+    HttpTransfer setWriteMode(int mode) {
+        mWriteMode = mode;
+        return this;
+    }
+
+    /**
+     * Take the transfer to loop if it can run there, see {@link NioTransfer}; null, the default,
+     * runs every transfer on threads.
+     */
+    HttpTransfer setEventLoop(EventLoop loop) {
+        mEventLoop = loop;
+        return this;
+    }
+
+    /**
+     * Download the file without blocking the calling thread: on the event loop if it can take
+     * the transfer, otherwise on the executor. onDone is called once the transfer has ended, on the
+     * thread that ended it.
+     */
+    void start(Runnable onDone) {
+        if (mEventLoop != null && NioTransfer.canRun(mUrl) && mExtractor == null && mCache == null
+                && mDeltaManifestUrl == null
+                && mSources.size() == 1 && !(mResume && DownloadJournal.fileFor(mFile).exists())) {
+            begin();
+            NioTransfer nio = new NioTransfer(this, mEventLoop, mUrl);
+            mNio = nio;
+            if (mStopped) {
+                nio.abort();    // 在启动前已被取消
+            }
+            nio.start(onDone);
+            return;
+        }
+        runOnThreads(onDone);
+    }
+
+    /** Run the transfer on the executor, also used by the event loop to hand it back. */
+    void runOnThreads(final Runnable onDone) {
+        mNio = null;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                HttpTransfer.this.run();
+                onDone.run();
+            }
+        });
+    }
+
+    /** Download the file on the calling thread, segments run on the executor. */
+    void run() {
+        begin();
+        finish(false, null);
+    }
+
+    private void begin() {
+        if (mMetrics != null) {
+            mRecorder = new MetricsRecorder();
+        }
+    }
+
+    /**
+     * Download the file unless the event loop already has, then verify, cache and report it.
+     * @param transferred true if the bytes have been transferred by a {@link NioTransfer}
+     * @param error how the transfer on the event loop failed, null if it did not
+     */
+    void finish(boolean transferred, IOException error) {
+        int reason = 0;
+        try {
+            if (error != null) {
+                throw error;
+            }
+            if (!transferred) {
+                execute();
+            }
+            if (mCheck != null && !mCancelled) {
+                mCheck.verify(mFile);
+            }
+            DownloadJournal journal = mJournal;
+            if (journal != null && !mCancelled) {
+                journal.delete();
+                mJournal = null;
+            }
+            if (mCache != null && !mCached && !mCancelled && mExtractor == null) {
+                try {
+                    mCache.put(mUrl, mFile, mEtag, mLastModified);
+                } catch (IOException ignored) {
+                    // 缓存失败不影响下载结果
+                }
+            }
+            if (complete()) {
+                mListener.onSuccessful(mFile);
+            }
+        } catch (DownloadException e) {
+            DownloadJournal journal = mJournal;
+            if (e.getReason() == DownloadReason.ERROR_DIGEST_MISMATCH && journal != null) {
+                journal.delete();   // 已下载的数据有误, 不能继续
+                mJournal = null;
+            }
+            if (e.getReason() == DownloadReason.ERROR_DIGEST_MISMATCH && mCached) {
+                mCache.remove(mUrl);
+            }
+            reason = e.getReason();
+            if (complete()) {
+                mListener.onFailed(e.getReason(), e.getMessage());
+            }
+        } catch (IOException e) {
+            reason = DownloadReason.ERROR_HTTP_DATA_ERROR;
+            if (complete()) {
+                mListener.onFailed(DownloadReason.ERROR_HTTP_DATA_ERROR, e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            reason = DownloadReason.ERROR_UNKNOWN;
+            if (complete()) {
+                mListener.onFailed(DownloadReason.ERROR_UNKNOWN, e.toString());
+            }
+        } finally {
+            // 失败时保留日志, 以便之后继续下载
+            DownloadJournal journal = mJournal;
+            if (journal != null) {
+                journal.close();
+            }
+            if (mSink != null) {
+                mSink.close();
+            }
+        }
+        if (mRecorder != null) {
+            mMetrics.onTransferFinished(mRecorder.finish(mUrl, mDownloadedBytes.get() - mStartBytes,
+                    mCancelled ? 0 : reason, mCancelled, mCached));
+        }
+    }
+
+    /**
+     * Stop the transfer, no more callbacks are delivered.
+     * @return false if the result has already been reported, the transfer is left alone
+     */
+    boolean cancel() {
+        synchronized (this) {
+            if (mCompleted) {
+                return false;
+            }
+            mCancelled = true;
+        }
+        stop();
+        return true;
+    }
+
+    /** @return true if the result may be reported, the transfer can no longer be cancelled */
+    private synchronized boolean complete() {
+        if (mCancelled) {
+            return false;
+        }
+        mCompleted = true;
+        return true;
+    }
+
+    /**
+     * @return true once the success or failure has been reported; false for a cancelled transfer,
+     * also after it has returned
+     */
+    synchronized boolean isCompleted() {
+        return mCompleted;
+    }
+
+    /** Stop all workers and unblock their reads, a failure is still reported. */
+    void stop() {
+        mStopped = true;
+        NioTransfer nio = mNio;
+        if (nio != null) {
+            nio.abort();
+        }
+        synchronized (mOpenResponses) {
+            for (HttpResponse response : mOpenResponses) {
+                response.abort();
+            }
+            mOpenResponses.clear();
+        }
+    }
+
+    boolean isStopped() {
+        return mStopped;
+    }
+
+    private void execute() throws IOException {
+        if (mExtractor != null) {
+            extract();
+            return;
+        }
+        if (mCache != null) {
+            byte[] digest = mCheck != null ? mCheck.expectedDigest(DownloadCache.DIGEST) : null;
+            if (digest != null && mCache.contains(StreamDigest.toHex(digest))
+                    && copyFromCache(StreamDigest.toHex(digest))) {
+                return;     // 内容已知, 无需询问服务器
+            }
+            DownloadCache.Entry cached = mCache.get(mUrl);
+            if (cached != null && revalidate(cached)) {
+                return;
+            }
+            mCache.miss();
+        }
+
+        long length = -1;
+        boolean ranged = false;
+        String etag = null;
+        String lastModified = null;
+        HttpResponse head = probe();
+        try {
+            if (head.isSuccessful()) {
+                length = head.contentLength();
+                ranged = head.acceptsRanges() && length > 0;
+                etag = head.header("ETag");
+                lastModified = head.header("Last-Modified");
+            }
+        } finally {
+            head.close();
+        }
+        mEtag = etag;
+        mLastModified = lastModified;
+
+        mSink = FileSink.open(mFile, mWriteMode);
+        mSink.setRecorder(mRecorder);
+        if (!ranged) {
+            DownloadJournal.fileFor(mFile).delete();
+            downloadStream();
+            return;
+        }
+        // 弱ETag不能用于If-Range
+        mIfRange = etag != null && !etag.startsWith("W/") ? etag : lastModified;
+
+        long alignment = mCheck != null ? mCheck.alignment() : 1;
+        Segment[] segments = null;
+        if (mResume) {
+            DownloadJournal journal = DownloadJournal.open(mFile);
+            if (journal != null && journal.length() == length && mFile.length() == length
+                    && journal.matches(etag, lastModified)
+                    && isAligned(journal.segments(), alignment)) {
+                mJournal = journal;
+                segments = journal.segments();
+            } else if (journal != null) {
+                journal.delete();
+            }
+        }
+        boolean resumed = segments != null;
+        if (!resumed && mDeltaManifestUrl != null && mFile.length() > 0) {
+            DeltaUpdate delta = new DeltaUpdate(this, mExecutor, mSources.get(0), mDeltaManifestUrl, mIfRange,
+                    mFile, mSegmentCount, mWriteMode);
+            if (delta.run(length, mSink)) {
+                return;
+            }
+        }
+        if (segments == null) {
+            // 整个文件的摘要只能按顺序计算, 只用一个连接
+            int count = mCheck != null && mCheck.isSequential() ? 1 : mSegmentCount;
+            segments = Segment.split(length, count, MIN_SEGMENT_SIZE, alignment);
+            mSink.allocate(length);
+            mJournal = DownloadJournal.create(mFile, length, etag, lastModified, segments);
+        }
+        if (mCheck != null) {
+            mCheck.start(length, segments, mFile, resumed);
+        }
+        if (mRecorder != null) {
+            mRecorder.segments(segments.length);
+        }
+        new RangeDownload(this, mExecutor, mSources, mIfRange, mSink, mJournal, mCheck, mSegmentCount,
+                mAdaptive, mHedgeDelay).run(length, segments);
+    }
+
+    /**
+     * Send a {@code GET} with the validators of the cached entry. The cached file is copied if the
+     * response shows it is current, otherwise the body of the response is written to the file over
+     * this single connection, without a {@code HEAD} request or segments.
+     * @return false if the url must be downloaded as if it was not cached: the cached file has
+     * disappeared, or the first source failed and there are others to probe
+     */
+    private boolean revalidate(DownloadCache.Entry cached) throws IOException {
+        HttpRequest request = new HttpRequest(mSources.get(0));
+        cached.addConditions(request);
+        boolean mirrors = mSources.size() > 1;
+        HttpResponse response;
+        try {
+            response = send(request);
+        } catch (IOException e) {
+            if (mirrors && !mStopped) {
+                return false;
+            }
+            throw e;
+        }
+        if (cached.isCurrent(response)) {
+            if (response.code != 304) {
+                response.abort();   // 服务器忽略了条件, 不读取响应体
+            }
+            release(response);
+            if (copyFromCache(cached.digest)) {
+                return true;
+            }
+            mCache.remove(mUrl);    // 缓存文件已丢失, 重新下载
+            return false;
+        }
+        if (!response.isSuccessful()) {
+            release(response);
+            if (mirrors) {
+                return false;
+            }
+            throw httpError(response.code);
+        }
+        mCache.miss();
+        if (mRecorder != null) {
+            mRecorder.bodyStarted();
+        }
+        mEtag = response.header("ETag");
+        mLastModified = response.header("Last-Modified");
+        DownloadJournal.fileFor(mFile).delete();
+        stream(response);
+        return true;
+    }
+
+    /**
+     * Send the {@code HEAD} request to the sources in turn until one answers, and move that one to
+     * the front of mSources: the validators of the response belong to it.
+     */
+    private HttpResponse probe() throws IOException {
+        for (int i = 0; ; i++) {
+            String url = mSources.get(i);
+            HttpRequest headRequest = new HttpRequest(url).method("HEAD");
+            headRequest.recorder = mRecorder;
+            boolean last = i == mSources.size() - 1;
+            HttpResponse head;
+            try {
+                head = mStack.execute(headRequest);
+            } catch (IOException e) {
+                if (last || mStopped) {
+                    throw e;
+                }
+                continue;   // 尝试下一个源
+            }
+            if (!last && !head.isSuccessful() && head.code != 304) {
+                head.close();
+                continue;
+            }
+            if (i > 0) {
+                List<String> sources = new ArrayList<String>(mSources);
+                sources.add(0, sources.remove(i));
+                mSources = sources;
+            }
+            return head;
+        }
+    }
+
+    private void downloadStream() throws IOException {
+        stream(open(new HttpRequest(mSources.get(0))));
+    }
+
+    /** Write the body of response to the file as a single stream, and release response. */
+    private void stream(HttpResponse response) throws IOException {
+        try {
+            long length = response.contentLength();
+            if (mEtag == null && mLastModified == null) {
+                mEtag = response.header("ETag");    // HEAD失败时使用GET响应中的校验值
+                mLastModified = response.header("Last-Modified");
+            }
+            Segment segment = openStream(length);
+            copy(response.body, segment);
+            if (length > 0 && !segment.isDone() && !mStopped) {
+                throw new DownloadException(DownloadReason.ERROR_HTTP_DATA_ERROR,
+                        "connection closed early: " + segment);
+            }
+        } finally {
+            release(response);
+        }
+    }
+
+    /**
+     * Start a download over a single stream of length bytes, -1 if unknown: report it, preallocate
+     * the file and start the digest.
+     * @return the segment the stream fills
+     */
+    Segment openStream(long length) throws DownloadException {
+        if (mSink == null) {
+            mSink = FileSink.open(mFile, mWriteMode);
+            mSink.setRecorder(mRecorder);
+        }
+        mTotalBytes = length;
+        mListener.onStarted(length);
+        if (mRecorder != null) {
+            mRecorder.segments(1);
+        }
+        mSink.allocate(Math.max(length, 0));
+
+        Segment segment = new Segment(0, 0, length > 0 ? length : Long.MAX_VALUE);
+        if (mCheck != null) {
+            mCheck.start(length, new Segment[]{segment}, mFile, false);
+        }
+        return segment;
+    }
+
+    FileSink.Writer newWriter() throws DownloadException {
+        return mSink.newWriter();
+    }
+
+    /** Write n bytes of b at the position of a stream's segment, check and count them. */
+    void write(FileSink.Writer out, Segment segment, byte[] b, int n) throws DownloadException {
+        out.write(segment.position, b, 0, n);
+        if (mCheck != null) {
+            mCheck.update(segment, segment.position, b, 0, n);
+        }
+        segment.position += n;
+        DownloadJournal journal = mJournal;
+        if (journal != null) {
+            journal.update(segment);
+        }
+        onBytesWritten(n);
+    }
+
+    private void extract() throws IOException {
+        HttpResponse response = open(new HttpRequest(mUrl));
+        try {
+            long length = response.contentLength();
+            started(length, 0);
+            if (mRecorder != null) {
+                mRecorder.segments(1);
+            }
+            Segment segment = new Segment(0, 0, length > 0 ? length : Long.MAX_VALUE);
+            if (mCheck != null) {
+                mCheck.start(length, new Segment[]{segment}, mFile, false);
+            }
+            InputStream in = new CountingStream(response.body, segment);
+            try {
+                mExtractor.extract(in, mFile);
+                // 读完归档之后的数据(如zip的中央目录), 使摘要和进度覆盖整个响应
+                ByteBuffer pooled = BufferPool.shared().acquire();
+                try {
+                    byte[] buffer = pooled.array();
+                    while (in.read(buffer) != -1) {
+                    }
+                } finally {
+                    BufferPool.shared().release(pooled);
+                }
+            } catch (IOException e) {
+                if (mStopped) {
+                    return;
+                }
+                throw e;
+            }
+            if (length > 0 && !segment.isDone()) {
+                throw new DownloadException(DownloadReason.ERROR_HTTP_DATA_ERROR,
+                        "connection closed early: " + segment);
+            }
+        } finally {
+            release(response);
+        }
+    }
+
+    /** Copy body into file at the segment's position until the segment is filled or the body ends. */
+    private void copy(InputStream in, Segment segment) throws IOException {
+        ByteBuffer pooled = BufferPool.shared().acquire();
+        byte[] buffer = pooled.array();
+        FileSink.Writer out = mSink.newWriter();
+        try {
+            while (!mStopped && !segment.isDone()) {
+                int len = readLength((int) Math.min(buffer.length, segment.remaining()));
+                int n;
+                try {
+                    n = in.read(buffer, 0, len);
+                } catch (IOException e) {
+                    if (mStopped) {
+                        return;
+                    }
+                    throw new DownloadException(DownloadReason.ERROR_HTTP_DATA_ERROR,
+                            e.getMessage(), e);
+                }
+                if (n < 0) {
+                    break;
+                }
+                write(out, segment, buffer, n);
+                throttle(n);
+            }
+        } finally {
+            out.close();
+            BufferPool.shared().release(pooled);
+        }
+    }
+
+    /** @return false if the cached file has disappeared */
+    private boolean copyFromCache(String digest) throws IOException {
+        if (!mCache.copyTo(digest, mFile)) {
+            return false;
+        }
+        DownloadJournal.fileFor(mFile).delete();
+        mCached = true;
+        mCache.hit();
+        long length = mFile.length();
+        started(length, length);
+        return true;
+    }
+
+    /** Report the start of the download, done bytes are already in the file. */
+    void started(long length, long done) {
+        mStartBytes = done;
+        mTotalBytes = length;
+        mDownloadedBytes.set(done);
+        mReportedBytes.set(done);
+        mListener.onStarted(length);
+        if (done > 0) {
+            mListener.onProgress(done, length);
+        }
+    }
+
+    void onBytesWritten(int n) {
+        long downloaded = mDownloadedBytes.addAndGet(n);
+        long reported = mReportedBytes.get();
+        if ((downloaded - reported >= PROGRESS_STEP || downloaded == mTotalBytes)
+                && mReportedBytes.compareAndSet(reported, downloaded)) {
+            mListener.onProgress(downloaded, mTotalBytes);
+        }
+    }
+
+    /** @return how many of max bytes to read next under the rate limit */
+    int readLength(int max) {
+        return mRateLimiter == null ? max : mRateLimiter.chunk(max);
+    }
+
+    /** Charge n bytes read to the rate limit and wait until reading may go on, or the transfer stops. */
+    void throttle(int n) {
+        if (mRateLimiter == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long deadline = now + mRateLimiter.acquire(n, now);
+        while (!mStopped && (now = System.nanoTime()) < deadline) {
+            LockSupport.parkNanos(deadline - now);
+        }
+    }
+
+    /** Charge n bytes read to the rate limit. @return nanoseconds to wait before reading again */
+    long acquire(int n) {
+        return mRateLimiter == null ? 0 : mRateLimiter.acquire(n, System.nanoTime());
+    }
+
+    /** Execute request, register the response for {@link #cancel()} and check the status code. */
+    HttpResponse open(HttpRequest request) throws IOException {
+        HttpResponse response = send(request);
+        if (!response.isSuccessful()) {
+            release(response);
+            throw httpError(response.code);
+        }
+        if (mRecorder != null) {
+            mRecorder.bodyStarted();
+        }
+        return response;
+    }
+
+    /** Execute request, stop() aborts the response until it is released, whatever its status. */
+    private HttpResponse send(HttpRequest request) throws IOException {
+        request.recorder = mRecorder;
+        HttpResponse response = mStack.execute(request);
+        synchronized (mOpenResponses) {
+            if (mStopped) {
+                response.abort();
+                throw new DownloadException(DownloadReason.ERROR_UNKNOWN, "stopped");
+            }
+            mOpenResponses.add(response);
+        }
+        return response;
+    }
+
+    void release(HttpResponse response) {
+        synchronized (mOpenResponses) {
+            mOpenResponses.remove(response);
+        }
+        response.close();
+    }
+
+    private static boolean isAligned(Segment[] segments, long alignment) {
+        for (Segment segment : segments) {
+            if (segment.start % alignment != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The body of an extracted download, counted, checked and throttled as it is read. */
+    private final class CountingStream extends FilterInputStream {
+        private final Segment mSegment;
+
+        CountingStream(InputStream in, Segment segment) {
+            super(in);
+            mSegment = segment;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, readLength(len));
+            if (n > 0) {
+                if (mCheck != null) {
+                    mCheck.update(mSegment, mSegment.position, b, off, n);
+                }
+                mSegment.position += n;
+                onBytesWritten(n);
+                throttle(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(n, 1))];
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n));
+            return Math.max(read, 0);
+        }
+    }
+
+    static DownloadException httpError(int code) {
+        if (code >= 400 && code < 600) {
+            return new DownloadException(code, "HTTP " + code);
+        }
+        return new DownloadException(DownloadReason.ERROR_UNHANDLED_HTTP_CODE, "HTTP " + code);
+    }
+}
@@ -0,0 +1,339 @@
+package com.whinc.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Verifies a download against an expected digest while the bytes are written, so the file does not
+ * have to be read again after it is complete.<br>
+ *     <br>
+ * Three schemes are supported:
+ * <ul>
+ *     <li>A whole-file {@link StreamDigest#CRC32} or {@link StreamDigest#CRC32C}: every segment
+ *     checksums its own range and the results are combined in file order at the end, so segments
+ *     may be downloaded in parallel and split while they run.</li>
+ *     <li>A whole-file {@link MessageDigest} such as SHA-256 or MD5: it can only be computed over
+ *     the bytes in file order, so {@link HttpTransfer} downloads with a single connection.</li>
+ *     <li>Block digests: the file is cut into blocks of a fixed size, each with its own expected
+ *     digest. Segments are aligned to blocks, every block is checked as soon as it is complete and a
+ *     mismatch stops the download immediately.</li>
+ * </ul>
+ * When a download is resumed the bytes already on disk are read once to restore the running
+ * digests: the written part of each segment for whole-file digests, at most the current block of
+ * each segment for block digests. If a whole-file {@code MessageDigest} meets a journal with several
+ * segments it falls back to reading the file after the download, as do all checks of a file
+ * assembled by a {@link DeltaUpdate}.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class IntegrityCheck {
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final String mAlgorithm;
+    /** expected digest of the whole file, null when checking blocks */
+    private final byte[] mExpected;
+    private final long mBlockSize;
+    private final byte[][] mExpectedBlocks;
+
+    /** running digests by segment index, segments split off while downloading are added */
+    private SegmentCheck[] mChecks;
+    /** a whole-file message digest cannot be computed while writing, read the file at the end */
+    private boolean mVerifyAfter;
+
+    private IntegrityCheck(String algorithm, byte[] expected, long blockSize, byte[][] expectedBlocks) {
+        StreamDigest.newInstance(algorithm);    // 检查算法是否可用
+        mAlgorithm = algorithm;
+        mExpected = expected;
+        mBlockSize = blockSize;
+        mExpectedBlocks = expectedBlocks;
+    }
+
+    /** @throws IllegalArgumentException if the algorithm is not available or digest is not hex */
+    static IntegrityCheck forFile(String algorithm, String digest) {
+        return new IntegrityCheck(algorithm, StreamDigest.fromHex(digest), 0, null);
+    }
+
+    /** @throws IllegalArgumentException if the algorithm is not available or a digest is not hex */
+    static IntegrityCheck forBlocks(String algorithm, long blockSize, String[] digests) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("block size must be positive: " + blockSize);
+        }
+        if (digests.length == 0) {
+            throw new IllegalArgumentException("no block digests");
+        }
+        byte[][] expected = new byte[digests.length][];
+        for (int i = 0; i < digests.length; i++) {
+            expected[i] = StreamDigest.fromHex(digests[i]);
+        }
+        return new IntegrityCheck(algorithm, null, blockSize, expected);
+    }
+
+    /** @return a check with the same expectations and no state, for another transfer */
+    IntegrityCheck copy() {
+        return new IntegrityCheck(mAlgorithm, mExpected, mBlockSize, mExpectedBlocks);
+    }
+
+    /** @return the expected whole-file digest if it uses algorithm, otherwise null */
+    byte[] expectedDigest(String algorithm) {
+        return mExpected != null && mAlgorithm.equalsIgnoreCase(algorithm) ? mExpected : null;
+    }
+
+    /** @return true if the digest must be computed over the whole file in order, by one connection */
+    boolean isSequential() {
+        return mExpected != null && !StreamDigest.isCrc(mAlgorithm);
+    }
+
+    /** @return the size segments must be aligned to, 1 if any split works */
+    long alignment() {
+        return mBlockSize > 0 ? mBlockSize : 1;
+    }
+
+    /**
+     * Prepare the running digests before the segments are downloaded.
+     * @param length entity length, or -1 if unknown
+     * @param resumed true if the segments continue bytes already in file
+     */
+    void start(long length, Segment[] segments, File file, boolean resumed) throws DownloadException {
+        if (mBlockSize > 0 && length >= 0) {
+            long blocks = (length + mBlockSize - 1) / mBlockSize;
+            if (blocks != mExpectedBlocks.length) {
+                throw new DownloadException(DownloadReason.ERROR_DIGEST_MISMATCH, "expected " + blocks
+                        + " block digests for " + length + " bytes, got " + mExpectedBlocks.length);
+            }
+        }
+        mVerifyAfter = isSequential() && segments.length > 1;
+        mChecks = new SegmentCheck[DownloadJournal.MAX_SEGMENTS];
+        for (Segment segment : segments) {
+            SegmentCheck check = new SegmentCheck(segment);
+            if (resumed && !mVerifyAfter) {
+                check.restore(file);
+            }
+            mChecks[segment.index] = check;
+        }
+    }
+
+    /**
+     * Start the running digest of a segment split off another one while downloading, before any of
+     * its bytes are written. The split must be aligned to {@link #alignment()}.
+     */
+    void add(Segment segment) {
+        if (!mVerifyAfter) {
+            mChecks[segment.index] = new SegmentCheck(segment);
+        }
+    }
+
+    /** Called by the thread downloading segment, after b has been written at position. */
+    void update(Segment segment, long position, byte[] b, int off, int len) throws DownloadException {
+        if (!mVerifyAfter) {
+            mChecks[segment.index].update(position, b, off, len);
+        }
+    }
+
+    /**
+     * Check the complete file, call after all segments are done.
+     * @throws DownloadException with {@link DownloadReason#ERROR_DIGEST_MISMATCH}
+     */
+    void verify(File file) throws IOException {
+        if (mVerifyAfter || (mChecks == null && mExpected != null)) {
+            check(digestOf(file, mAlgorithm), mExpected, "file");
+            return;
+        }
+        if (mChecks == null) {
+            readBlocks(file);   // 未经start(), 例如增量更新的文件
+        }
+        if (mBlockSize > 0) {
+            long end = 0;
+            for (SegmentCheck check : inFileOrder()) {
+                check.finishBlock();
+                end = Math.max(end, check.mPosition);
+            }
+            long blocks = (end + mBlockSize - 1) / mBlockSize;
+            if (blocks != mExpectedBlocks.length) {
+                throw new DownloadException(DownloadReason.ERROR_DIGEST_MISMATCH, "file has "
+                        + blocks + " blocks, expected " + mExpectedBlocks.length);
+            }
+            return;
+        }
+        byte[] actual;
+        List<SegmentCheck> checks = inFileOrder();
+        if (StreamDigest.isCrc(mAlgorithm)) {
+            // 按文件顺序依次合并各分段的CRC
+            int poly = ((Crc32) checks.get(0).mDigest).poly();
+            long crc = 0;
+            for (SegmentCheck check : checks) {
+                crc = Crc32.combine(poly, crc, ((Crc32) check.mDigest).getValue(), check.mHashed);
+            }
+            actual = Crc32.toBytes(crc);
+        } else {
+            actual = checks.get(0).mDigest.digest();
+        }
+        check(actual, mExpected, "file");
+    }
+
+    /** @return the running digests sorted by the start of their segments */
+    private List<SegmentCheck> inFileOrder() {
+        List<SegmentCheck> checks = new ArrayList<SegmentCheck>();
+        for (SegmentCheck check : mChecks) {
+            if (check != null) {
+                checks.add(check);
+            }
+        }
+        Collections.sort(checks, new Comparator<SegmentCheck>() {
+            @Override
+            public int compare(SegmentCheck a, SegmentCheck b) {
+                long x = a.mSegment.start;
+                long y = b.mSegment.start;
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        return checks;
+    }
+
+    /**
+     * Check a whole-file digest against everything in, for a file downloaded by somebody else.
+     * @throws DownloadException with {@link DownloadReason#ERROR_DIGEST_MISMATCH}
+     */
+    void verify(InputStream in) throws IOException {
+        if (mExpected == null) {
+            throw new IllegalStateException("block digests can only be checked while downloading");
+        }
+        StreamDigest digest = StreamDigest.newInstance(mAlgorithm);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, n);
+        }
+        check(digest.digest(), mExpected, "file");
+    }
+
+    private static byte[] digestOf(File file, String algorithm) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            StreamDigest digest = StreamDigest.newInstance(algorithm);
+            read(raf, 0, raf.length(), digest);
+            return digest.digest();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void readBlocks(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            SegmentCheck check = new SegmentCheck(new Segment(0, 0, raf.length()));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = 0;
+            int n;
+            while ((n = raf.read(buffer)) > 0) {
+                check.update(position, buffer, 0, n);
+                position += n;
+            }
+            mChecks = new SegmentCheck[]{check};
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void read(RandomAccessFile raf, long from, long to, StreamDigest digest)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        raf.seek(from);
+        while (from < to) {
+            int n = raf.read(buffer, 0, (int) Math.min(buffer.length, to - from));
+            if (n < 0) {
+                throw new IOException("unexpected end of " + raf);
+            }
+            digest.update(buffer, 0, n);
+            from += n;
+        }
+    }
+
+    private static void check(byte[] actual, byte[] expected, String what) throws DownloadException {
+        if (!MessageDigest.isEqual(actual, expected)) {
+            throw new DownloadException(DownloadReason.ERROR_DIGEST_MISMATCH, what + " digest is "
+                    + StreamDigest.toHex(actual) + ", expected " + StreamDigest.toHex(expected));
+        }
+    }
+
+    /** Running digest of one segment, only used by the thread currently writing it. */
+    private final class SegmentCheck {
+        private final Segment mSegment;
+        private final StreamDigest mDigest;
+        /** bytes fed into mDigest, for whole-file checks */
+        private long mHashed;
+        /** end of the bytes fed into the digest */
+        private long mPosition;
+
+        SegmentCheck(Segment segment) {
+            mSegment = segment;
+            mDigest = StreamDigest.newInstance(mAlgorithm);
+            mPosition = segment.start;
+        }
+
+        void restore(File file) throws DownloadException {
+            long from = mSegment.start;
+            if (mBlockSize > 0) {
+                from = mSegment.position / mBlockSize * mBlockSize;
+            }
+            mPosition = from;
+            if (from == mSegment.position) {
+                return;
+            }
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    read(raf, from, mSegment.position, mDigest);
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                throw new DownloadException(DownloadReason.ERROR_FILE_ERROR, e.getMessage(), e);
+            }
+            mHashed = mSegment.position - from;
+            mPosition = mSegment.position;
+        }
+
+        void update(long position, byte[] b, int off, int len) throws DownloadException {
+            if (mBlockSize == 0) {
+                mDigest.update(b, off, len);
+                mHashed += len;
+                mPosition = position + len;
+                return;
+            }
+            while (len > 0) {
+                long blockEnd = (mPosition / mBlockSize + 1) * mBlockSize;
+                int n = (int) Math.min(len, blockEnd - mPosition);
+                mDigest.update(b, off, n);
+                mPosition += n;
+                off += n;
+                len -= n;
+                if (mPosition == blockEnd) {
+                    checkBlock(blockEnd - 1);
+                }
+            }
+        }
+
+        /** Check the last, short block of the file. */
+        void finishBlock() throws DownloadException {
+            if (mPosition % mBlockSize != 0) {
+                checkBlock(mPosition - 1);
+            }
+        }
+
+        private void checkBlock(long lastByte) throws DownloadException {
+            int block = (int) (lastByte / mBlockSize);
+            if (block >= mExpectedBlocks.length) {
+                throw new DownloadException(DownloadReason.ERROR_DIGEST_MISMATCH,
+                        "more data than " + mExpectedBlocks.length + " blocks");
+            }
+            check(mDigest.digest(), mExpectedBlocks[block], "block " + block);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.whinc.downloader;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * {@link Executor} running tasks on the main thread, the default callback executor.
+ */
+final class MainThreadExecutor implements Executor {
+    private static final MainThreadExecutor sInstance = new MainThreadExecutor();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private MainThreadExecutor() {}
+
+    static MainThreadExecutor get() {
+        return sInstance;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        mHandler.post(command);
+    }
+}
@@ -0,0 +1,149 @@
+package com.whinc.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A download kept in memory, see {@link HttpDownloader#load(String, File, BodyListener)}.<br>
+ *     <br>
+ * The body is read over one {@link DownloadChannel}, so the expected digest and the bandwidth
+ * limits apply as to any other download. A body of known length below {@link BufferPool#BUFFER_SIZE}
+ * is read into a pooled buffer, a longer one into an array of its length; a body of unknown length
+ * starts in a pooled buffer that is doubled while needed. Once the body turns out longer than the
+ * limit, from its {@code Content-Length} or while it arrives, the bytes read so far and the rest are
+ * written to the spill file instead.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class MemoryTransfer {
+    private final DownloadChannel mChannel;
+    private final long mLimit;
+    private final File mSpillFile;
+    private final BufferPool mPool = BufferPool.shared();
+
+    // 以下字段先由下载线程访问, 结果交给回调后由回调线程访问
+    /** the pooled buffer holding the body, null if it is in an array of its own */
+    private ByteBuffer mPooled;
+
+    /**
+     * @param limit keep at most this many bytes in memory
+     * @param spillFile where to write a longer body
+     * @param check verify the body against a copy of check, or null
+     * @param limiter limit of the read rate, or null
+     */
+    MemoryTransfer(HttpStack stack, String url, long limit, File spillFile, IntegrityCheck check,
+                   RateLimiter limiter) {
+        mChannel = new DownloadChannel(stack, url, null, check, limiter);
+        mLimit = limit;
+        mSpillFile = spillFile;
+    }
+
+    /**
+     * Download the body, blocking. Release the returned buffer with {@link #release(ByteBuffer)}.
+     * @return the body between position 0 and its limit, or null if it has been written to the
+     * spill file
+     */
+    ByteBuffer load() throws IOException {
+        ByteBuffer body = null;
+        try {
+            long length = mChannel.length();
+            if (length > mLimit) {
+                spill(null, length);
+                return null;
+            }
+            if (length >= 0 && length >= BufferPool.BUFFER_SIZE) {
+                body = ByteBuffer.allocate((int) length + 1);   // 多一个字节以读到结尾
+            } else {
+                body = mPooled = mPool.acquire();
+            }
+            boolean end = false;
+            while (!end) {
+                if (!body.hasRemaining() && body.position() <= mLimit) {
+                    body = grow(body);
+                }
+                end = mChannel.read(body) < 0;
+                if (body.position() > mLimit) {
+                    ByteBuffer read = body;
+                    body = null;
+                    spill(read, length);    // 超过上限, 已读取的和其余的字节写入文件
+                    return null;
+                }
+            }
+            body.flip();
+            return body;
+        } catch (IOException e) {
+            release(body);
+            throw e;
+        } catch (RuntimeException e) {
+            release(body);
+            throw e;
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    /** Return a body returned by {@link #load()}, does nothing if it is null. */
+    void release(ByteBuffer body) {
+        if (body != null && body == mPooled) {
+            mPooled = null;
+            mPool.release(body);
+        }
+    }
+
+    /** Stop the transfer from any thread, {@link #load()} fails and deletes the spill file. */
+    void cancel() {
+        mChannel.close();
+    }
+
+    /** @return a buffer twice as large, at most one byte over the limit, holding the bytes of body */
+    private ByteBuffer grow(ByteBuffer body) {
+        long capacity = Math.min((long) body.capacity() * 2, mLimit + 1);
+        ByteBuffer larger = ByteBuffer.allocate((int) capacity);
+        body.flip();
+        larger.put(body);
+        release(body);
+        return larger;
+    }
+
+    /**
+     * Write the bytes read so far and the rest of the body to the spill file.
+     * @param read bytes read so far between 0 and its position, or null
+     */
+    private void spill(ByteBuffer read, long length) throws IOException {
+        FileSink sink = null;
+        FileSink.Writer writer = null;
+        ByteBuffer buffer = read;
+        boolean complete = false;
+        try {
+            sink = FileSink.open(mSpillFile, FileSink.MODE_CHANNEL);
+            sink.allocate(Math.max(length, 0));
+            writer = sink.newWriter();
+            long position = 0;
+            if (buffer != null) {
+                writer.write(position, buffer.array(), 0, buffer.position());
+                position = buffer.position();
+                release(buffer);
+            }
+            buffer = mPooled = mPool.acquire();
+            int n;
+            while ((n = mChannel.read(buffer)) >= 0) {
+                writer.write(position, buffer.array(), 0, n);
+                position += n;
+                buffer.clear();
+            }
+            complete = true;
+        } finally {
+            release(buffer);
+            if (writer != null) {
+                writer.close();
+            }
+            if (sink != null) {
+                sink.close();
+            }
+            if (!complete) {
+                mSpillFile.delete();
+            }
+        }
+    }
+}
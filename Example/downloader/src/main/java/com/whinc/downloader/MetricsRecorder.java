@@ -0,0 +1,87 @@
+package com.whinc.downloader;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the {@link TransferMetrics} of one transfer while it runs. It is handed to the requests
+ * of the transfer ({@link HttpRequest#recorder}) and to its {@link FileSink}; every method is called
+ * once per connection, exchange or event, never per chunk of bytes, except that writers add up
+ * their own disk time and report it when they close. Thread safe, segments record concurrently.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class MetricsRecorder {
+    private final long mStartNanos = System.nanoTime();
+    private final AtomicLong mDnsNanos = new AtomicLong();
+    private final AtomicLong mConnectNanos = new AtomicLong();
+    private final AtomicLong mTlsNanos = new AtomicLong();
+    private final AtomicLong mDiskNanos = new AtomicLong();
+    private final AtomicLong mFirstByteNanos = new AtomicLong(-1);
+    /** time the first response body was opened, 0 before */
+    private final AtomicLong mBodyStart = new AtomicLong();
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mConnectionsOpened = new AtomicInteger();
+    private final AtomicInteger mConnectionsReused = new AtomicInteger();
+    private final AtomicInteger mRetries = new AtomicInteger();
+    private final AtomicInteger mHedges = new AtomicInteger();
+    private final AtomicInteger mSplits = new AtomicInteger();
+    private volatile int mSegments;
+
+    /** A new connection has been opened, tlsNanos is 0 for plain http. */
+    void connected(long dnsNanos, long connectNanos, long tlsNanos) {
+        mConnectionsOpened.incrementAndGet();
+        mDnsNanos.addAndGet(dnsNanos);
+        mConnectNanos.addAndGet(connectNanos);
+        mTlsNanos.addAndGet(tlsNanos);
+    }
+
+    /** A response head has been read firstByteNanos after the request was sent. */
+    void exchanged(boolean reused, long firstByteNanos) {
+        mRequests.incrementAndGet();
+        if (reused) {
+            mConnectionsReused.incrementAndGet();
+        }
+        mFirstByteNanos.compareAndSet(-1, firstByteNanos);
+    }
+
+    /** A request failed on a pooled connection and is sent again on a new one. */
+    void retried() {
+        mRetries.incrementAndGet();
+    }
+
+    /** A response body the file is downloaded from has been opened. */
+    void bodyStarted() {
+        mBodyStart.compareAndSet(0, System.nanoTime());
+    }
+
+    void hedged() {
+        mHedges.incrementAndGet();
+    }
+
+    void split() {
+        mSplits.incrementAndGet();
+    }
+
+    void segments(int count) {
+        mSegments = count;
+    }
+
+    void disk(long nanos) {
+        mDiskNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param bytes received over the network
+     * @param reason {@link DownloadReason} code, 0 if the transfer succeeded or was cancelled
+     */
+    TransferMetrics finish(String url, long bytes, int reason, boolean cancelled, boolean cached) {
+        long now = System.nanoTime();
+        long bodyStart = mBodyStart.get();
+        return new TransferMetrics(url, reason, cancelled, cached, now - mStartNanos,
+                mDnsNanos.get(), mConnectNanos.get(), mTlsNanos.get(), mFirstByteNanos.get(),
+                bodyStart == 0 ? 0 : now - bodyStart, mDiskNanos.get(), bytes, mRequests.get(),
+                mConnectionsOpened.get(), mConnectionsReused.get(), mRetries.get(), mHedges.get(),
+                mSplits.get(), mSegments);
+    }
+}
@@ -0,0 +1,777 @@
+package com.whinc.downloader;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The network side of a {@link HttpTransfer} run by an {@link EventLoop}: one plain http
+ * {@code GET} over one non-blocking connection, without {@code HEAD} probe, ranges or journal,
+ * which suits many small files. Keep-alive connections are reused, redirects are followed, a
+ * redirect to https or to a url reached through a proxy hands the transfer back to the threaded
+ * engine.<br>
+ *     <br>
+ * The carrier thread reads the socket, parses the response and decodes the body into one of two
+ * buffers; a full buffer is written to the file by a worker thread while the other fills. When
+ * both are full the carrier stops reading the socket until the write is done, so a slow disk slows
+ * the connection down through TCP flow control instead of queueing bytes in memory. The rate limit
+ * works the same way, reading pauses on a timer. Buffers are sized to the body if it is small,
+ * otherwise taken from the {@link BufferPool}.<br>
+ *     <br>
+ * Writing, the digest and the final checks and callbacks are those of {@link HttpTransfer}, see
+ * {@link HttpTransfer#openStream(long)} and {@link HttpTransfer#finish(boolean, IOException)}.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class NioTransfer implements EventLoop.Handler {
+    private static final long CONNECT_TIMEOUT_NANOS = 15 * 1000000000L;
+    private static final long READ_TIMEOUT_NANOS = 30 * 1000000000L;
+    private static final long TIMEOUT_CHECK_NANOS = 1000000000L;
+    private static final int MAX_REDIRECTS = 10;
+    /** also the longest response head */
+    private static final int IN_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE = 8 * 1024;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final int BODY_FIXED = 0;
+    private static final int BODY_CHUNKED = 1;
+    private static final int BODY_UNTIL_CLOSE = 2;
+
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_DATA = 1;
+    private static final int CHUNK_DATA_END = 2;
+    private static final int CHUNK_TRAILER = 3;
+
+    private final HttpTransfer mTransfer;
+    private final EventLoop mLoop;
+    private final EventLoop.Carrier mCarrier;
+    private final String mStartUrl;
+    private final MetricsRecorder mRecorder;
+    private final String mUserAgent = System.getProperty("http.agent");
+    private final AtomicBoolean mAborted = new AtomicBoolean();
+    private Runnable mOnDone;
+
+    // 以下字段只在载体线程访问
+    private URL mUrl;
+    private String mRoute;
+    private int mRedirects;
+    private SelectionKey mKey;
+    private boolean mReused;
+    private boolean mConnected;
+    /** true once a byte of the response has arrived */
+    private boolean mReceived;
+    private ByteBuffer mRequest;
+    private final ByteBuffer mIn = ByteBuffer.allocate(IN_BUFFER_SIZE);
+    private long mDnsNanos;
+    private long mConnectStart;
+    private long mSentNanos;
+    private long mLastActivity;
+    private EventLoop.Timer mTimeout;
+    private EventLoop.Timer mThrottle;
+    private boolean mThrottled;
+    private boolean mHeadDone;
+    private boolean mHttp10;
+    private boolean mKeepAlive;
+    private long mLength = -1;
+    private int mFraming;
+    /** body bytes left for a fixed length, bytes left in the chunk for a chunked body */
+    private long mRemaining;
+    private int mChunkState;
+    private final StringBuilder mLine = new StringBuilder();
+    private boolean mEof;
+    /** true once the whole body has been decoded into mFill */
+    private boolean mBodyEnded;
+    private byte[] mFill;
+    private int mFillLength;
+    /** the buffer not being filled, null while it is written */
+    private byte[] mSpare;
+    /** the buffers behind mFill and mSpare if they are taken from the {@link BufferPool} */
+    private ByteBuffer[] mPooled;
+    private boolean mWriting;
+    private boolean mLastSubmitted;
+    private IOException mFailure;
+    private boolean mEnded;
+
+    // 以下字段只在工作线程访问, 同时只有一个写入任务
+    private Segment mSegment;
+    private FileSink.Writer mWriter;
+
+    private final Runnable mTimeoutCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkTimeout();
+        }
+    };
+
+    private final Runnable mResumeReading = new Runnable() {
+        @Override
+        public void run() {
+            mThrottle = null;
+            mThrottled = false;
+            mLastActivity = System.nanoTime();
+            updateInterest();
+        }
+    };
+
+    NioTransfer(HttpTransfer transfer, EventLoop loop, String url) {
+        mTransfer = transfer;
+        mLoop = loop;
+        mCarrier = loop.next();
+        mStartUrl = url;
+        mRecorder = transfer.recorder();
+    }
+
+    /** @return true if url can be downloaded on the event loop: plain http, not through a proxy */
+    static boolean canRun(String url) {
+        if (!url.regionMatches(true, 0, "http://", 0, 7)) {
+            return false;
+        }
+        try {
+            return PooledHttpStack.proxyFor(new URL(url)) == null;
+        } catch (MalformedURLException e) {
+            return true;    // 连接时报告错误
+        }
+    }
+
+    /** Send the request, onDone is called on a worker thread after the transfer has finished. */
+    void start(Runnable onDone) {
+        mOnDone = onDone;
+        mCarrier.execute(new Runnable() {
+            @Override
+            public void run() {
+                mLastActivity = System.nanoTime();
+                mTimeout = mCarrier.schedule(TIMEOUT_CHECK_NANOS, mTimeoutCheck);
+                try {
+                    connect(new URL(mStartUrl));
+                } catch (MalformedURLException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /** Stop the transfer, may be called from any thread. */
+    void abort() {
+        if (mAborted.compareAndSet(false, true)) {
+            mCarrier.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fail(new DownloadException(DownloadReason.ERROR_UNKNOWN, "stopped"));
+                }
+            });
+        }
+    }
+
+    private void connect(URL url) {
+        if (mEnded) {
+            return;     // 启动前已被停止
+        }
+        mUrl = url;
+        final String host = url.getHost();
+        final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        mRoute = HttpConnection.route("http", host, port);
+        mRequest = ByteBuffer.wrap(requestHead(url, host, port).getBytes(ISO_8859_1));
+        mIn.clear();
+        mLine.setLength(0);
+        mHeadDone = false;
+        mReceived = false;
+        mLastActivity = System.nanoTime();
+
+        SelectionKey idle = mCarrier.takeIdle(mRoute, this);
+        if (idle != null) {
+            mKey = idle;
+            mReused = true;
+            mConnected = true;
+            mKey.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        mReused = false;
+        mConnected = false;
+        // 域名解析会阻塞, 在工作线程进行
+        mLoop.workers().execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                final InetSocketAddress address = new InetSocketAddress(host, port);
+                final long dnsNanos = System.nanoTime() - start;
+                mCarrier.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        open(address, dnsNanos);
+                    }
+                });
+            }
+        });
+    }
+
+    private void open(InetSocketAddress address, long dnsNanos) {
+        if (mEnded) {
+            return;
+        }
+        if (address.isUnresolved()) {
+            fail(new UnknownHostException(address.getHostName()));
+            return;
+        }
+        mDnsNanos = dnsNanos;
+        mLastActivity = System.nanoTime();
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            mConnectStart = System.nanoTime();
+            boolean connected = channel.connect(address);
+            mKey = mCarrier.register(channel, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+            if (connected) {
+                connected();
+            }
+        } catch (IOException e) {
+            if (mKey == null && channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            fail(e);
+        }
+    }
+
+    private void connected() {
+        mConnected = true;
+        long now = System.nanoTime();
+        mLastActivity = now;
+        if (mRecorder != null) {
+            mRecorder.connected(mDnsNanos, now - mConnectStart, 0);
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (((SocketChannel) key.channel()).finishConnect()) {
+                    connected();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            } else if (key.isWritable()) {
+                writeRequest();
+            } else if (key.isReadable()) {
+                readResponse();
+            }
+        } catch (IOException e) {
+            failed(e);
+        } catch (RuntimeException e) {
+            fail(new DownloadException(DownloadReason.ERROR_UNKNOWN, e.toString(), e));
+        }
+    }
+
+    private void writeRequest() throws IOException {
+        ((SocketChannel) mKey.channel()).write(mRequest);
+        if (!mRequest.hasRemaining()) {
+            mSentNanos = System.nanoTime();
+            mLastActivity = mSentNanos;
+            mKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void readResponse() throws IOException {
+        boolean body = mHeadDone;
+        int max = body ? mTransfer.readLength(mIn.remaining()) : mIn.remaining();
+        int n = EventLoop.read((SocketChannel) mKey.channel(), mIn, max);
+        if (n == 0) {
+            return;
+        }
+        if (n < 0) {
+            endOfStream();
+            return;
+        }
+        mReceived = true;
+        mLastActivity = System.nanoTime();
+        if (!body && !parseHead()) {
+            return;
+        }
+        pump();
+        long wait = body ? mTransfer.acquire(n) : 0;
+        if (wait > 0 && !mBodyEnded && !mEnded) {
+            mThrottled = true;
+            updateInterest();
+            mThrottle = mCarrier.schedule(wait, mResumeReading);
+        }
+    }
+
+    private void endOfStream() throws IOException {
+        if (!mHeadDone) {
+            throw new ProtocolException("unexpected end of stream");
+        }
+        if (mFraming != BODY_UNTIL_CLOSE) {
+            throw new DownloadException(DownloadReason.ERROR_HTTP_DATA_ERROR, "connection closed early");
+        }
+        mEof = true;
+        closeKey();
+        pump();
+    }
+
+    /**
+     * Parse the response head once it is complete in mIn, follow redirects and check the status.
+     * @return true if the body of a successful response follows
+     */
+    private boolean parseHead() throws IOException {
+        while (true) {
+            int end = headEnd(mIn);
+            if (end < 0) {
+                if (!mIn.hasRemaining()) {
+                    throw new ProtocolException("response head too large");
+                }
+                return false;
+            }
+            String[] lines = new String(mIn.array(), 0, end, ISO_8859_1).split("\r\n");
+            mIn.flip();
+            mIn.position(end + 4);
+            mIn.compact();
+
+            // HTTP/1.1 200 OK
+            String statusLine = lines[0];
+            if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12
+                    || statusLine.charAt(8) != ' ') {
+                throw new ProtocolException("Unexpected status line: " + statusLine);
+            }
+            int code;
+            try {
+                code = Integer.parseInt(statusLine.substring(9, 12));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Unexpected status line: " + statusLine);
+            }
+            mHttp10 = statusLine.startsWith("HTTP/1.0");
+            Map<String, String> headers = new HashMap<String, String>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new ProtocolException("Unexpected header: " + lines[i]);
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+                if (!headers.containsKey(name)) {
+                    headers.put(name, lines[i].substring(colon + 1).trim());
+                }
+            }
+            if (code < 200) {
+                continue;   // 跳过1xx响应
+            }
+            if (mRecorder != null) {
+                mRecorder.exchanged(mReused, System.nanoTime() - mSentNanos);
+            }
+            String location = headers.get("location");
+            if (isRedirect(code) && location != null) {
+                if (mRedirects == MAX_REDIRECTS) {
+                    throw new DownloadException(DownloadReason.ERROR_TOO_MANY_REDIRECTS,
+                            "more than " + MAX_REDIRECTS + " redirects: " + mUrl);
+                }
+                mRedirects++;
+                closeKey();
+                URL next = new URL(mUrl, location);
+                if (!canRun(next.toString())) {
+                    handBack();
+                } else {
+                    connect(next);
+                }
+                return false;
+            }
+            if (code < 200 || code >= 300) {
+                throw HttpTransfer.httpError(code);
+            }
+            startBody(code, headers);
+            return true;
+        }
+    }
+
+    private void startBody(int code, Map<String, String> headers) {
+        mKeepAlive = isKeepAlive(headers);
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLength = headers.get("content-length");
+        mFraming = BODY_UNTIL_CLOSE;
+        if (code == 204) {
+            mFraming = BODY_FIXED;
+            mLength = 0;
+        } else if (transferEncoding != null
+                && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+            mFraming = BODY_CHUNKED;
+            mChunkState = CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                mLength = Long.parseLong(contentLength.trim());
+                mFraming = BODY_FIXED;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (mFraming == BODY_UNTIL_CLOSE) {
+            mKeepAlive = false;
+        }
+        mRemaining = mFraming == BODY_FIXED ? mLength : 0;
+        mHeadDone = true;
+        if (mRecorder != null) {
+            mRecorder.bodyStarted();
+        }
+        if (mLength >= 0 && mLength < BufferPool.BUFFER_SIZE) {
+            // 小文件只分配与文件同样大小的缓冲区
+            mFill = new byte[(int) Math.max(1, mLength)];
+            mSpare = new byte[mFill.length];
+        } else {
+            BufferPool pool = BufferPool.shared();
+            mPooled = new ByteBuffer[]{pool.acquire(), pool.acquire()};
+            mFill = mPooled[0].array();
+            mSpare = mPooled[1].array();
+        }
+    }
+
+    /** Decode the received body into the buffers and hand full buffers to the writer. */
+    private void pump() throws IOException {
+        while (!mLastSubmitted && !mEnded) {
+            decode();
+            if (mBodyEnded) {
+                releaseConnection();
+            }
+            if (!mBodyEnded && mFillLength < mFill.length) {
+                break;
+            }
+            if (mWriting) {
+                break;      // 两个缓冲区都已满, 暂停读取直到写入完成
+            }
+            submit(mBodyEnded);
+        }
+        updateInterest();
+    }
+
+    private void decode() throws IOException {
+        if (mBodyEnded) {
+            return;
+        }
+        mIn.flip();
+        try {
+            while (!mBodyEnded && mFillLength < mFill.length) {
+                if (mFraming == BODY_CHUNKED && mChunkState != CHUNK_DATA) {
+                    String line = readLine();
+                    if (line == null) {
+                        break;
+                    }
+                    chunkLine(line);
+                    continue;
+                }
+                if (mFraming == BODY_FIXED && mRemaining == 0) {
+                    mBodyEnded = true;
+                    break;
+                }
+                if (!mIn.hasRemaining()) {
+                    break;
+                }
+                int n = Math.min(mIn.remaining(), mFill.length - mFillLength);
+                if (mFraming != BODY_UNTIL_CLOSE) {
+                    n = (int) Math.min(n, mRemaining);
+                }
+                mIn.get(mFill, mFillLength, n);
+                mFillLength += n;
+                if (mFraming != BODY_UNTIL_CLOSE) {
+                    mRemaining -= n;
+                    if (mRemaining == 0) {
+                        if (mFraming == BODY_FIXED) {
+                            mBodyEnded = true;
+                        } else {
+                            mChunkState = CHUNK_DATA_END;
+                        }
+                    }
+                }
+            }
+            if (mFraming == BODY_FIXED && mRemaining == 0) {
+                mBodyEnded = true;
+            } else if (mFraming == BODY_UNTIL_CLOSE && mEof && !mIn.hasRemaining()) {
+                mBodyEnded = true;
+            }
+        } finally {
+            mIn.compact();
+        }
+    }
+
+    private void chunkLine(String line) throws ProtocolException {
+        switch (mChunkState) {
+            case CHUNK_SIZE:
+                int semicolon = line.indexOf(';');
+                String hex = (semicolon >= 0 ? line.substring(0, semicolon) : line).trim();
+                long size;
+                try {
+                    size = Long.parseLong(hex, 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("bad chunk size: " + line);
+                }
+                if (size < 0) {
+                    throw new ProtocolException("bad chunk size: " + line);
+                }
+                if (size == 0) {
+                    mChunkState = CHUNK_TRAILER;
+                } else {
+                    mRemaining = size;
+                    mChunkState = CHUNK_DATA;
+                }
+                break;
+            case CHUNK_DATA_END:
+                if (line.length() != 0) {
+                    throw new ProtocolException("expected CRLF after chunk: " + line);
+                }
+                mChunkState = CHUNK_SIZE;
+                break;
+            default:
+                if (line.length() == 0) {
+                    mBodyEnded = true;  // 尾部字段结束
+                }
+                break;
+        }
+    }
+
+    /** @return the next line of the flipped mIn without CRLF, or null if it is not complete yet */
+    private String readLine() throws ProtocolException {
+        while (mIn.hasRemaining()) {
+            char c = (char) (mIn.get() & 0xff);
+            if (c == '\n') {
+                int length = mLine.length();
+                if (length > 0 && mLine.charAt(length - 1) == '\r') {
+                    mLine.setLength(length - 1);
+                }
+                String line = mLine.toString();
+                mLine.setLength(0);
+                return line;
+            }
+            if (mLine.length() >= MAX_LINE) {
+                throw new ProtocolException("line too long");
+            }
+            mLine.append(c);
+        }
+        return null;
+    }
+
+    /** Write the filled buffer on a worker thread and continue with the spare one. */
+    private void submit(final boolean last) {
+        final byte[] buffer = mFill;
+        final int length = mFillLength;
+        mFill = mSpare;
+        mSpare = null;
+        mFillLength = 0;
+        mWriting = true;
+        mLastSubmitted = last;
+        mLoop.workers().execute(new Runnable() {
+            @Override
+            public void run() {
+                IOException error = null;
+                try {
+                    if (mSegment == null) {
+                        mSegment = mTransfer.openStream(mLength);
+                        mWriter = mTransfer.newWriter();
+                    }
+                    if (length > 0) {
+                        mTransfer.write(mWriter, mSegment, buffer, length);
+                    }
+                    if (last && mLength > 0 && !mSegment.isDone()) {
+                        throw new DownloadException(DownloadReason.ERROR_HTTP_DATA_ERROR,
+                                "connection closed early: " + mSegment);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new DownloadException(DownloadReason.ERROR_UNKNOWN, e.toString(), e);
+                }
+                final IOException failure = error;
+                mCarrier.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        written(buffer, failure, last);
+                    }
+                });
+            }
+        });
+    }
+
+    private void written(byte[] buffer, IOException failure, boolean last) {
+        mWriting = false;
+        mSpare = buffer;
+        if (failure != null) {
+            fail(failure);
+            return;
+        }
+        if (mFailure != null || last) {
+            end();
+            return;
+        }
+        mLastActivity = System.nanoTime();  // 等待写入的时间不算读取超时
+        try {
+            pump();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void updateInterest() {
+        if (mKey == null || !mKey.isValid() || !mHeadDone) {
+            return;
+        }
+        boolean read = !mBodyEnded && !mThrottled && !(mWriting && mFillLength == mFill.length);
+        mKey.interestOps(read ? SelectionKey.OP_READ : 0);
+    }
+
+    /** Keep the connection for the next transfer if the response ended cleanly. */
+    private void releaseConnection() {
+        if (mKey == null) {
+            return;
+        }
+        if (mKeepAlive && mIn.position() == 0 && mKey.isValid()) {
+            mCarrier.putIdle(mRoute, mKey);
+            mKey = null;
+        } else {
+            closeKey();
+        }
+    }
+
+    private void checkTimeout() {
+        mTimeout = null;
+        if (mEnded) {
+            return;
+        }
+        boolean waiting = mKey != null && !mThrottled
+                && !(mWriting && mFill != null && mFillLength == mFill.length);
+        long limit = mConnected ? READ_TIMEOUT_NANOS : CONNECT_TIMEOUT_NANOS;
+        if (waiting && System.nanoTime() - mLastActivity > limit) {
+            fail(new SocketTimeoutException(mConnected ? "read timed out" : "connect timed out"));
+            return;
+        }
+        mTimeout = mCarrier.schedule(TIMEOUT_CHECK_NANOS, mTimeoutCheck);
+    }
+
+    /** Fail with e, or retry on a new connection if a reused one was closed before it answered. */
+    private void failed(IOException e) {
+        if (mReused && !mReceived && !mEnded && !mAborted.get()) {
+            closeKey();
+            if (mRecorder != null) {
+                mRecorder.retried();
+            }
+            connect(mUrl);  // 空闲期间被服务器关闭的连接, 换连接重试
+            return;
+        }
+        fail(e);
+    }
+
+    private void fail(IOException e) {
+        if (mEnded) {
+            return;
+        }
+        if (mFailure == null) {
+            mFailure = e;
+        }
+        closeKey();
+        if (!mWriting) {
+            end();  // 否则写入完成后结束
+        }
+    }
+
+    private void end() {
+        if (mEnded) {
+            return;
+        }
+        mEnded = true;
+        cancelTimers();
+        closeKey();
+        mFill = null;
+        mSpare = null;
+        if (mPooled != null) {
+            BufferPool.shared().release(mPooled[0]);    // 没有写入任务时才会结束
+            BufferPool.shared().release(mPooled[1]);
+            mPooled = null;
+        }
+        final IOException failure = mFailure;
+        mLoop.workers().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mWriter != null) {
+                    mWriter.close();
+                }
+                mTransfer.finish(true, failure);
+                mOnDone.run();
+            }
+        });
+    }
+
+    /** Let the threaded engine download the file from the start, e.g. after a redirect to https. */
+    private void handBack() {
+        mEnded = true;
+        cancelTimers();
+        closeKey();
+        mTransfer.runOnThreads(mOnDone);
+    }
+
+    private void cancelTimers() {
+        if (mTimeout != null) {
+            mTimeout.cancel();
+            mTimeout = null;
+        }
+        if (mThrottle != null) {
+            mThrottle.cancel();
+            mThrottle = null;
+        }
+    }
+
+    private void closeKey() {
+        if (mKey != null) {
+            EventLoop.close(mKey);
+            mKey = null;
+        }
+    }
+
+    private String requestHead(URL url, String host, int port) {
+        String target = url.getFile().length() == 0 ? "/" : url.getFile();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("GET ").append(target).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(port == url.getDefaultPort() ? host : host + ":" + port).append("\r\n");
+        if (mUserAgent != null) {
+            sb.append("User-Agent: ").append(mUserAgent).append("\r\n");
+        }
+        sb.append("Accept-Encoding: identity\r\n");
+        sb.append("Connection: keep-alive\r\n");
+        sb.append("\r\n");
+        return sb.toString();
+    }
+
+    private boolean isKeepAlive(Map<String, String> headers) {
+        String connection = headers.get("connection");
+        if (connection != null) {
+            connection = connection.toLowerCase(Locale.US);
+            if (connection.contains("close")) {
+                return false;
+            }
+            if (connection.contains("keep-alive")) {
+                return true;
+            }
+        }
+        return !mHttp10;
+    }
+
+    private static boolean isRedirect(int code) {
+        return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+    }
+
+    /** @return the length of the response head in buffer before its empty line, or -1 */
+    private static int headEnd(ByteBuffer buffer) {
+        byte[] a = buffer.array();
+        for (int i = 3; i < buffer.position(); i++) {
+            if (a[i] == '\n' && a[i - 1] == '\r' && a[i - 2] == '\n' && a[i - 3] == '\r') {
+                return i - 3;
+            }
+        }
+        return -1;
+    }
+}
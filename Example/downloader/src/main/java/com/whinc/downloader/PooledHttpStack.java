@@ -0,0 +1,185 @@
+package com.whinc.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link HttpStack} speaking HTTP/1.1 over sockets taken from a {@link ConnectionPool}.<br>
+ *     <br>
+ * Connection reuse is controlled here rather than left to {@code HttpURLConnection}: a connection
+ * goes back to the pool as soon as its response body has been read to the end, also when the reader
+ * stops at the last byte of a range without waiting for end of stream, and a body closed early drops
+ * its connection. A request that fails on a reused connection before any response arrives is
+ * retried on a new connection, since the server may have closed it while it was idle.<br>
+ *     <br>
+ * Redirects are followed, except from https to http, up to {@link #MAX_REDIRECTS}; more fail with
+ * {@link DownloadReason#ERROR_TOO_MANY_REDIRECTS}. A url the default {@link ProxySelector} sends
+ * through a proxy, for example set by {@code http.proxyHost}, is requested with
+ * {@link UrlConnectionStack} instead, without pooling.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class PooledHttpStack implements HttpStack {
+    private static final int CONNECT_TIMEOUT = 15 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+    private static final int MAX_REDIRECTS = 10;
+
+    private final ConnectionPool mPool;
+    private final String mUserAgent = System.getProperty("http.agent");
+
+    PooledHttpStack(ConnectionPool pool) {
+        mPool = pool;
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        URL url = new URL(request.url);
+        String method = request.method;
+        for (int redirects = 0; ; redirects++) {
+            Proxy proxy = proxyFor(url);
+            HttpResponse response = proxy == null ? executeOnce(url, method, request)
+                    : UrlConnectionStack.execute(url, method, request, proxy);
+            String location = response.header("Location");
+            if (!isRedirect(response.code) || location == null) {
+                return response;
+            }
+            response.close();
+            if (redirects == MAX_REDIRECTS) {
+                throw new DownloadException(DownloadReason.ERROR_TOO_MANY_REDIRECTS,
+                        "more than " + MAX_REDIRECTS + " redirects: " + request.url);
+            }
+            URL next = new URL(url, location);
+            if ("https".equalsIgnoreCase(url.getProtocol())
+                    && !"https".equalsIgnoreCase(next.getProtocol())) {
+                throw new DownloadException(DownloadReason.ERROR_UNHANDLED_HTTP_CODE,
+                        "HTTP " + response.code + " redirects from https to " + next);
+            }
+            url = next;
+            if (response.code == 303 && !"HEAD".equals(method)) {
+                method = "GET";
+            }
+        }
+    }
+
+    private HttpResponse executeOnce(URL url, String method, HttpRequest request) throws IOException {
+        String scheme = url.getProtocol();
+        if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+            throw new MalformedURLException("Unsupported scheme: " + url);
+        }
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String route = HttpConnection.route(scheme, host, port);
+        String target = url.getFile().length() == 0 ? "/" : url.getFile();
+        Map<String, String> requestHeaders = requestHeaders(url, request);
+
+        MetricsRecorder recorder = request.recorder;
+        while (true) {
+            HttpConnection pooled = mPool.get(route);
+            final HttpConnection connection = pooled != null ? pooled
+                    : HttpConnection.connect(scheme, host, port, CONNECT_TIMEOUT, READ_TIMEOUT,
+                            recorder);
+            Map<String, String> headers = new HashMap<String, String>();
+            int code;
+            long sent = System.nanoTime();
+            try {
+                connection.writeRequest(method, target, requestHeaders);
+                code = connection.readResponseHead(headers);
+            } catch (IOException e) {
+                connection.close();
+                if (pooled != null) {
+                    if (recorder != null) {
+                        recorder.retried();
+                    }
+                    continue;   // 空闲期间被服务器关闭的连接, 换新连接重试
+                }
+                throw e;
+            }
+            if (recorder != null) {
+                recorder.exchanged(pooled != null, System.nanoTime() - sent);
+            }
+
+            final boolean keepAlive = connection.isKeepAlive(headers);
+            // 响应体结束和abort()只有先到的一方处理连接: 放回池中的连接可能已在为其它下载服务
+            final AtomicBoolean ended = new AtomicBoolean();
+            HttpConnection.BodyListener listener = new HttpConnection.BodyListener() {
+                @Override
+                public void onBodyEnd(boolean complete) {
+                    if (!ended.compareAndSet(false, true)) {
+                        return;
+                    }
+                    if (complete && keepAlive) {
+                        mPool.put(connection);
+                    } else {
+                        connection.close();
+                    }
+                }
+            };
+            InputStream body = null;
+            if ("HEAD".equals(method) || code == 204 || code == 304) {
+                listener.onBodyEnd(true);
+            } else {
+                body = connection.openBody(headers, listener);
+            }
+            return new HttpResponse(code, headers, body, new Closeable() {
+                @Override
+                public void close() {
+                    if (ended.compareAndSet(false, true)) {
+                        connection.close();
+                    }
+                }
+            });
+        }
+    }
+
+    private Map<String, String> requestHeaders(URL url, HttpRequest request) {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        int port = url.getPort();
+        headers.put("Host", port == -1 || port == url.getDefaultPort()
+                ? url.getHost() : url.getHost() + ":" + port);
+        if (mUserAgent != null) {
+            headers.put("User-Agent", mUserAgent);
+        }
+        // 分段下载时禁止透明压缩, 否则Range对应的是压缩后的字节
+        headers.put("Accept-Encoding", "identity");
+        headers.put("Connection", "keep-alive");
+        String range = request.rangeHeader();
+        if (range != null) {
+            headers.put("Range", range);
+        }
+        headers.putAll(request.headers);
+        return headers;
+    }
+
+    /** @return the proxy the default {@link ProxySelector} chooses for url, null to connect directly */
+    static Proxy proxyFor(URL url) {
+        ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null) {
+            return null;
+        }
+        List<Proxy> proxies;
+        try {
+            proxies = selector.select(url.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        Proxy proxy = proxies == null || proxies.isEmpty() ? Proxy.NO_PROXY : proxies.get(0);
+        return proxy.type() == Proxy.Type.DIRECT ? null : proxy;
+    }
+
+    private static boolean isRedirect(int code) {
+        return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+    }
+}
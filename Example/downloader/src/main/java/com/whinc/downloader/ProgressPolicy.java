@@ -0,0 +1,72 @@
+package com.whinc.downloader;
+
+/**
+ * Controls how often {@link DownloadListener#onProgress(ProgressSnapshot)} is delivered.<br>
+ *     <br>
+ * A progress update is delivered only when every configured threshold has been reached since the
+ * last delivered update. Updates in between are merged, the listener always receives the latest
+ * state. Status changes (pending, paused, failed, successful, completed) are never throttled.<br>
+ *     <br>
+ * The default policy delivers at most 10 updates per second, use {@code setMinIntervalMillis(0)}
+ * to receive every update.
+ *     <pre>
+ *         downloader.setProgressPolicy(new ProgressPolicy().setMaxUpdatesPerSecond(4).setMinPercentDelta(1));
+ *     </pre>
+ */
+public final class ProgressPolicy {
+    private static final long DEFAULT_MIN_INTERVAL_MILLIS = 100;
+
+    private long mMinIntervalMillis = DEFAULT_MIN_INTERVAL_MILLIS;
+    private long mMinBytesDelta;
+    private float mMinPercentDelta;
+
+    /** Minimum time between two delivered updates, default is 100ms. */
+    public ProgressPolicy setMinIntervalMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("interval must not be negative: " + millis);
+        }
+        mMinIntervalMillis = millis;
+        return this;
+    }
+
+    /** Equal to {@code setMinIntervalMillis(1000 / updatesPerSecond)}. */
+    public ProgressPolicy setMaxUpdatesPerSecond(int updatesPerSecond) {
+        if (updatesPerSecond <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + updatesPerSecond);
+        }
+        return setMinIntervalMillis(1000 / updatesPerSecond);
+    }
+
+    /** Minimum number of bytes downloaded between two delivered updates. */
+    public ProgressPolicy setMinBytesDelta(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must not be negative: " + bytes);
+        }
+        mMinBytesDelta = bytes;
+        return this;
+    }
+
+    /**
+     * Minimum progress between two delivered updates, in percent of the total size.
+     * Ignored while the total size is unknown.
+     */
+    public ProgressPolicy setMinPercentDelta(float percent) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("percent must be in [0, 100]: " + percent);
+        }
+        mMinPercentDelta = percent;
+        return this;
+    }
+
+    public long getMinIntervalMillis() {
+        return mMinIntervalMillis;
+    }
+
+    public long getMinBytesDelta() {
+        return mMinBytesDelta;
+    }
+
+    public float getMinPercentDelta() {
+        return mMinPercentDelta;
+    }
+}
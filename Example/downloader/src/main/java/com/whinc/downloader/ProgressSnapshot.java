@@ -0,0 +1,98 @@
+package com.whinc.downloader;
+
+/**
+ * Progress of one download, passed to {@link DownloadListener#onProgress(ProgressSnapshot)}.<br>
+ *     <br>
+ * Sizes are 64-bit, so files larger than 2GB are reported correctly. Besides the byte counts it
+ * carries the instantaneous throughput (since the previous update), an exponentially weighted
+ * moving average of the throughput and the estimated time left.<br>
+ *     <br>
+ * The same instance is updated in place and passed to every progress callback of a download, copy
+ * the values you need to keep after the callback returns.
+ */
+public final class ProgressSnapshot {
+    /** time constant of the moving average, older samples decay with exp(-age / tau) */
+    private static final double EWMA_TAU_NANOS = 3e9;
+
+    private final long mStartNanos;
+    private long mDownloadedBytes;
+    private long mTotalBytes = -1;
+    private long mElapsedMillis;
+    private double mInstantBytesPerSecond;
+    private double mAverageBytesPerSecond;
+    private long mLastNanos;
+    /** whether a sample has been recorded, the first one only sets the baseline */
+    private boolean mSampled;
+
+    ProgressSnapshot(long startNanos) {
+        mStartNanos = startNanos;
+    }
+
+    /**
+     * Record a new sample, no allocation. The throughput is measured from the first sample on:
+     * the bytes of a resumed download that were already on disk are not throughput.
+     */
+    void update(long downloadedBytes, long totalBytes, long nanos) {
+        long dt = nanos - mLastNanos;
+        long bytes = downloadedBytes - mDownloadedBytes;
+        if (!mSampled) {
+            mSampled = true;
+            mLastNanos = nanos;
+        } else if (dt > 0) {
+            mInstantBytesPerSecond = bytes * 1e9 / dt;
+            if (mAverageBytesPerSecond == 0) {
+                mAverageBytesPerSecond = mInstantBytesPerSecond;
+            } else {
+                double alpha = 1 - Math.exp(-dt / EWMA_TAU_NANOS);
+                mAverageBytesPerSecond += alpha * (mInstantBytesPerSecond - mAverageBytesPerSecond);
+            }
+            mLastNanos = nanos;
+        }
+        mDownloadedBytes = downloadedBytes;
+        mTotalBytes = totalBytes;
+        mElapsedMillis = (nanos - mStartNanos) / 1000000L;
+    }
+
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    /** @return total size of the file, or -1 if unknown */
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /** @return progress in [0, 1], or -1 if the total size is unknown */
+    public float getFraction() {
+        return mTotalBytes > 0 ? (float) mDownloadedBytes / mTotalBytes : -1;
+    }
+
+    /** @return time since the download started */
+    public long getElapsedMillis() {
+        return mElapsedMillis;
+    }
+
+    /** @return throughput since the previous progress update, 0 for the first one */
+    public double getInstantBytesPerSecond() {
+        return mInstantBytesPerSecond;
+    }
+
+    /** @return exponentially weighted moving average of the throughput */
+    public double getAverageBytesPerSecond() {
+        return mAverageBytesPerSecond;
+    }
+
+    /** @return estimated time left based on the average throughput, or -1 if unknown */
+    public long getEtaMillis() {
+        if (mTotalBytes < 0 || mAverageBytesPerSecond <= 0) {
+            return -1;
+        }
+        return (long) ((mTotalBytes - mDownloadedBytes) * 1000 / mAverageBytesPerSecond);
+    }
+
+    @Override
+    public String toString() {
+        return mDownloadedBytes + "/" + mTotalBytes + " bytes, "
+                + (long) mAverageBytesPerSecond + " B/s, eta " + getEtaMillis() + "ms";
+    }
+}
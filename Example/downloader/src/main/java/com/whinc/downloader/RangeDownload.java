@@ -0,0 +1,638 @@
+package com.whinc.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads the segments of a ranged {@link HttpTransfer} with a pool of connections that changes
+ * while the download runs.<br>
+ *     <br>
+ * A connection that has finished its segment does not sit idle while others are still busy: it
+ * takes a segment nobody works on, or else splits the segment expected to finish last, the one
+ * with the most remaining bytes for the throughput measured on its connection, and downloads the
+ * second half of what is left (work stealing). The connection of the split segment simply stops at
+ * the new end. Splits are aligned like the initial segments and appended to the
+ * {@link DownloadJournal}, so a resumed download continues them.<br>
+ *     <br>
+ * With a hedge delay, a connection that has delivered nothing for that long, including one still
+ * waiting for its response, gets a hedged duplicate: a second request for the rest of its segment.
+ * Whichever of the two delivers the segment's next byte first keeps the segment and the other one
+ * is dropped, so a stalled server or route costs one delay instead of a read timeout.<br>
+ *     <br>
+ * With adaptive connections the download starts with two connections and measures their total
+ * throughput every second. Another connection is added as long as the last one raised the
+ * throughput by at least a tenth, up to the configured count; a connection that did not, or a
+ * throughput that falls by as much, takes one away for a few seconds before the next attempt.
+ * Without it the configured count is used throughout.<br>
+ *     <br>
+ * With several equivalent sources, e.g. mirrors, every request goes to the source ranked best by
+ * {@link SourceRanking}, so the segments are fetched from several sources at once and most from the
+ * fastest. Once a source has been rated at less than half of another one, its connections give up
+ * their segments one per check and the rest is requested from the better source; a source that
+ * keeps failing is given up and its segments move to the others. The download fails only when all
+ * sources have been given up. Only the probed source is asked with {@code If-Range}, the others must
+ * report the same length in {@code Content-Range}; an expected digest guards against a mirror with
+ * other content.<br>
+ *     <br>
+ * A whole-file digest that must be computed in order ({@link IntegrityCheck#isSequential()}) keeps
+ * the single segment unsplit, hedged requests still apply.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class RangeDownload {
+    /** how often the pool is checked for stalled connections and missing workers */
+    private static final long TICK_MILLIS = 100;
+    /** throughput is measured over windows of this length */
+    private static final long WINDOW_NANOS = 1000 * 1000000L;
+    /** an added connection must raise the throughput by this factor to be kept */
+    private static final double GAIN = 1.1;
+    /** windows to wait after a connection has been taken away */
+    private static final int HOLD_WINDOWS = 5;
+    /** a tail smaller than this is not worth a new request */
+    private static final long MIN_SPLIT_SIZE = 256 * 1024;
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final HttpTransfer mTransfer;
+    private final ExecutorService mExecutor;
+    private final SourceRanking mSources;
+    private final String mIfRange;
+    private final FileSink mSink;
+    private final DownloadJournal mJournal;
+    private final IntegrityCheck mCheck;
+    private final int mMaxConnections;
+    private final boolean mAdaptive;
+    private final long mHedgeNanos;
+    private final long mAlignment;
+    private final boolean mSplittable;
+    /** bytes written by all workers */
+    private final AtomicLong mBytes = new AtomicLong();
+    private long mLength;
+
+    // 以下字段由this保护
+    /** all segments by index, including those split off */
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private final List<Worker> mWorkers = new ArrayList<Worker>();
+    private int mTarget;
+    private IOException mFailure;
+
+    // 以下字段只由调用run()的线程使用
+    private long mWindowStart;
+    private long mWindowBytes;
+    private double mLastRate;
+    private boolean mProbing;
+    private int mHold;
+
+    /**
+     * @param urls equivalent sources, the one ifRange belongs to first
+     * @param connections maximum number of connections
+     * @param hedgeDelayMillis stall after which a hedged request is sent, 0 for none
+     */
+    RangeDownload(HttpTransfer transfer, ExecutorService executor, List<String> urls,
+                  String ifRange, FileSink sink, DownloadJournal journal, IntegrityCheck check,
+                  int connections, boolean adaptive, long hedgeDelayMillis) {
+        mTransfer = transfer;
+        mExecutor = executor;
+        mSources = new SourceRanking(urls);
+        mIfRange = ifRange;
+        mSink = sink;
+        mJournal = journal;
+        mCheck = check;
+        mMaxConnections = connections;
+        mAdaptive = adaptive;
+        mHedgeNanos = hedgeDelayMillis * 1000000L;
+        mAlignment = check != null ? check.alignment() : 1;
+        mSplittable = check == null || !check.isSequential();
+        mTarget = adaptive ? Math.min(2, connections) : connections;
+    }
+
+    /** Download segments on the executor, returns when all are done or the transfer has stopped. */
+    void run(long length, Segment[] segments) throws IOException {
+        mLength = length;
+        long done = 0;
+        for (Segment segment : segments) {
+            done += segment.position - segment.start;
+        }
+        mTransfer.started(length, done);
+        synchronized (this) {
+            Collections.addAll(mSegments, segments);
+        }
+        mWindowStart = System.nanoTime();
+
+        while (true) {
+            if (!mTransfer.isStopped()) {
+                long now = System.nanoTime();
+                if (mAdaptive) {
+                    adapt(now);
+                }
+                if (mHedgeNanos > 0) {
+                    hedge(now);
+                }
+                if (mSources.size() > 1) {
+                    rebalance();
+                }
+                fill();
+            }
+            synchronized (this) {
+                // 未持有分段的连接不再写入, 不必等待, 例如仍在等待响应的落败请求
+                if ((mTransfer.isStopped() || isComplete()) && !isWriting()) {
+                    break;
+                }
+                try {
+                    wait(TICK_MILLIS);
+                } catch (InterruptedException e) {
+                    mTransfer.stop();
+                    Thread.currentThread().interrupt();
+                    throw new DownloadException(DownloadReason.ERROR_UNKNOWN, "interrupted", e);
+                }
+            }
+        }
+        synchronized (this) {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+    }
+
+    /** Start workers until the target count is reached or there is nothing left to take. */
+    private void fill() {
+        while (true) {
+            Worker worker = new Worker(null);
+            synchronized (this) {
+                if (mWorkers.size() >= mTarget || take(worker) == null) {
+                    return;
+                }
+                mWorkers.add(worker);
+            }
+            mExecutor.execute(worker);
+        }
+    }
+
+    /** Send a hedged request for every connection that has stalled. */
+    private void hedge(long now) {
+        List<Worker> hedges = new ArrayList<Worker>();
+        synchronized (this) {
+            for (Worker worker : mWorkers) {
+                Segment segment = worker.mSegment;
+                if (segment != null && worker.mRival == null && !worker.mHedged
+                        && now - worker.mLastProgress > mHedgeNanos && owns(worker, segment)
+                        && !segment.isDone()) {
+                    Worker hedge = new Worker(worker);
+                    hedge.mSegment = segment;
+                    worker.mHedged = true;
+                    hedges.add(hedge);
+                }
+            }
+            mWorkers.addAll(hedges);
+        }
+        MetricsRecorder recorder = mTransfer.recorder();
+        for (Worker hedge : hedges) {
+            if (recorder != null) {
+                recorder.hedged();
+            }
+            mExecutor.execute(hedge);
+        }
+    }
+
+    /** Let one connection to a slow source give up its segment, a new one takes it elsewhere. */
+    private void rebalance() {
+        Worker moved = null;
+        synchronized (this) {
+            for (Worker worker : mWorkers) {
+                Segment segment = worker.mSegment;
+                SourceRanking.Source source = worker.mSource;
+                if (segment == null || source == null || worker.mRival != null || worker.mHedged
+                        || segment.remaining() < MIN_SPLIT_SIZE || !mSources.isSlow(source)) {
+                    continue;
+                }
+                synchronized (segment) {
+                    if (segment.owner != worker) {
+                        continue;
+                    }
+                    segment.owner = null;
+                }
+                moved = worker;
+                break;
+            }
+        }
+        if (moved != null) {
+            moved.mMoved = true;
+            moved.abort();
+        }
+    }
+
+    /** Adjust the target number of connections to the throughput of the last window. */
+    private void adapt(long now) {
+        if (now - mWindowStart < WINDOW_NANOS) {
+            return;
+        }
+        long bytes = mBytes.get();
+        double rate = (bytes - mWindowBytes) * 1e9 / (now - mWindowStart);
+        mWindowStart = now;
+        mWindowBytes = bytes;
+        synchronized (this) {
+            if (mProbing) {
+                mProbing = false;
+                if (rate < mLastRate * GAIN) {
+                    mTarget--;      // 增加的连接没有提高吞吐量
+                    mHold = HOLD_WINDOWS;
+                }
+            } else if (rate * GAIN < mLastRate && mTarget > 1) {
+                mTarget--;
+                mHold = HOLD_WINDOWS;
+            } else if (mHold > 0) {
+                mHold--;
+            } else if (mTarget < mMaxConnections) {
+                mTarget++;
+                mProbing = true;
+            }
+        }
+        mLastRate = rate;
+    }
+
+    /**
+     * Find work for worker: a segment without owner, or else the tail of the segment expected to
+     * finish last. Call with the lock held.
+     * @return the segment now owned by worker, or null if there is none
+     */
+    private Segment take(Worker worker) {
+        Segment taken = null;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                if (segment.owner == null && !segment.isDone()) {
+                    segment.owner = worker;
+                    taken = segment;
+                    break;
+                }
+            }
+        }
+        if (taken == null && mSplittable && mSegments.size() < DownloadJournal.MAX_SEGMENTS) {
+            taken = steal(worker);
+        }
+        worker.mSegment = taken;
+        worker.mLastProgress = System.nanoTime();
+        return taken;
+    }
+
+    private Segment steal(Worker thief) {
+        long now = System.nanoTime();
+        double meanRate = 0;
+        int measured = 0;
+        for (Worker worker : mWorkers) {
+            double rate = worker.rate(now);
+            if (rate > 0) {
+                meanRate += rate;
+                measured++;
+            }
+        }
+        meanRate = measured > 0 ? meanRate / measured : 1;
+
+        Segment victim = null;
+        double longest = 0;
+        for (Worker worker : mWorkers) {
+            Segment segment = worker.mSegment;
+            if (segment == null || !owns(worker, segment)) {
+                continue;
+            }
+            double rate = worker.rate(now);
+            double time = segment.remaining() / (rate > 0 ? rate : meanRate);
+            if (time > longest) {
+                longest = time;
+                victim = segment;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        Segment tail = victim.splitTail(mSegments.size(), BUFFER_SIZE, MIN_SPLIT_SIZE, mAlignment);
+        if (tail == null) {
+            return null;
+        }
+        tail.owner = thief;
+        if (mCheck != null) {
+            mCheck.add(tail);
+        }
+        if (mJournal != null) {
+            mJournal.add(tail);
+            mJournal.updateEnd(victim);
+        }
+        mSegments.add(tail);
+        MetricsRecorder recorder = mTransfer.recorder();
+        if (recorder != null) {
+            recorder.split();
+        }
+        return tail;
+    }
+
+    /** @return the next segment for a worker that has finished its last one, or null to stop */
+    private synchronized Segment next(Worker worker) {
+        if (mFailure != null || mTransfer.isStopped() || mWorkers.size() > mTarget) {
+            worker.mSegment = null;
+            return null;
+        }
+        return take(worker);
+    }
+
+    private synchronized void finished(Worker worker) {
+        Segment segment = worker.mSegment;
+        if (segment != null) {
+            synchronized (segment) {
+                if (segment.owner == worker) {
+                    segment.owner = null;   // 未完成的分段交给其它连接
+                }
+            }
+        }
+        Worker rival = worker.mRival;
+        if (rival != null) {
+            rival.mHedged = false;  // 对冲请求失败, 原连接可以再次对冲
+        }
+        mWorkers.remove(worker);
+        notifyAll();
+    }
+
+    /**
+     * @return true if worker's failure must fail the transfer: nobody else can finish its segment,
+     * and there is no other source to ask
+     */
+    private synchronized boolean isFatal(Worker worker) {
+        Segment segment = worker.mSegment;
+        if (segment == null || !owns(worker, segment)) {
+            return false;
+        }
+        if (mSources.size() > 1 && mSources.hasUsable()) {
+            return false;   // 分段交给其它源
+        }
+        for (Worker other : mWorkers) {
+            if (other != worker && other.mSegment == segment) {
+                return false;   // 对冲请求可以接手
+            }
+        }
+        return true;
+    }
+
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (mFailure == null) {
+                mFailure = e;
+            }
+            notifyAll();
+        }
+        mTransfer.stop();   // 任一分段失败则终止其它分段
+    }
+
+    /** Drop the other connections still working on a segment that is complete. */
+    private synchronized void dropOthers(Worker worker, Segment segment) {
+        for (Worker other : mWorkers) {
+            if (other != worker && other.mSegment == segment) {
+                other.abort();
+            }
+        }
+    }
+
+    /** @return true if a worker still owns a segment and may write to it, call with the lock held */
+    private boolean isWriting() {
+        for (Worker worker : mWorkers) {
+            Segment segment = worker.mSegment;
+            if (segment != null && owns(worker, segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isComplete() {
+        for (Segment segment : mSegments) {
+            if (!segment.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean owns(Worker worker, Segment segment) {
+        synchronized (segment) {
+            return segment.owner == worker;
+        }
+    }
+
+    /**
+     * Download the rest of segment.
+     * @return true if worker owns the complete segment and may take more work
+     */
+    private boolean download(Worker worker, Segment segment) throws IOException {
+        SourceRanking.Source source = mSources.acquire();
+        if (source == null) {
+            throw new DownloadException(DownloadReason.ERROR_UNKNOWN, "all sources failed");
+        }
+        worker.mSource = source;
+        boolean failed = true;
+        try {
+            boolean done = download(worker, segment, source);
+            failed = false;
+            return done;
+        } finally {
+            worker.mSource = null;
+            // 停止或让出分段时中断的请求不算源的失败
+            mSources.release(source, failed && !worker.mMoved && !mTransfer.isStopped());
+        }
+    }
+
+    private boolean download(Worker worker, Segment segment, SourceRanking.Source source)
+            throws IOException {
+        long from = segment.position;
+        HttpRequest request = new HttpRequest(source.url).range(from, segment.end - 1);
+        if (mIfRange != null && source.index == 0) {
+            request.header("If-Range", mIfRange);
+        }
+        HttpResponse response = mTransfer.open(request);
+        worker.mResponse = response;
+        try {
+            if (response.code != 206) {
+                // 服务器忽略了Range, 或者If-Range校验失败(文件已改变)
+                throw new DownloadException(DownloadReason.ERROR_CANNOT_RESUME,
+                        "server ignored range request, status " + response.code);
+            }
+            if (source.index != 0 && response.contentRangeTotal() != mLength) {
+                throw new DownloadException(DownloadReason.ERROR_CANNOT_RESUME,
+                        "source has another length: " + response.header("Content-Range"));
+            }
+            return copy(worker, response.body, segment, from, source);
+        } finally {
+            worker.mResponse = null;
+            mTransfer.release(response);
+        }
+    }
+
+    /**
+     * Copy body, which starts at from, into the segment until it is filled, the body ends or
+     * worker loses the segment to its rival.
+     */
+    private boolean copy(Worker worker, InputStream in, Segment segment, long from,
+                         SourceRanking.Source source) throws IOException {
+        byte[] buffer = worker.mBuffer.array();
+        long position = from;
+        while (!mTransfer.isStopped() && !segment.isDone()) {
+            int len = mTransfer.readLength((int) Math.min(buffer.length, segment.end - position));
+            if (len <= 0) {
+                break;
+            }
+            int n;
+            try {
+                n = in.read(buffer, 0, len);
+            } catch (IOException e) {
+                if (mTransfer.isStopped() || !owns(worker, segment)) {
+                    return false;
+                }
+                throw new DownloadException(DownloadReason.ERROR_HTTP_DATA_ERROR, e.getMessage(), e);
+            }
+            if (n < 0) {
+                break;
+            }
+            source.transferred(n);
+            int written;
+            try {
+                written = commit(worker, segment, position, buffer, n);
+            } catch (DownloadException e) {
+                fail(e);    // 写入失败或摘要不符, 对冲请求也无济于事
+                return false;
+            }
+            position += n;
+            if (written < 0) {
+                return false;
+            }
+            if (written > 0) {
+                mBytes.addAndGet(written);
+                mTransfer.onBytesWritten(written);
+            }
+            mTransfer.throttle(n);
+        }
+        if (segment.isDone()) {
+            dropOthers(worker, segment);
+            return owns(worker, segment);
+        }
+        if (!mTransfer.isStopped() && owns(worker, segment)) {
+            throw new DownloadException(DownloadReason.ERROR_HTTP_DATA_ERROR,
+                    "connection closed early: " + segment);
+        }
+        return false;
+    }
+
+    /**
+     * Write n bytes of b, read from the body at position, to the segment if worker owns it. A
+     * hedged request takes the segment over when its bytes reach the segment's position first.
+     * @return number of bytes written, less than n if the segment has been split meanwhile, or -1
+     * if the segment belongs to another worker
+     */
+    private int commit(Worker worker, Segment segment, long position, byte[] b, int n)
+            throws DownloadException {
+        Worker rival = null;
+        int len;
+        synchronized (segment) {
+            long current = segment.position;
+            if (segment.owner != worker) {
+                // 对冲的两个请求中先送达下一个字节的一方胜出
+                if (worker.mRival == null
+                        || (segment.owner != null && segment.owner != worker.mRival)
+                        || position > current || position + n <= current) {
+                    return -1;
+                }
+                rival = (Worker) segment.owner;
+                segment.owner = worker;
+                worker.mRival = null;
+            }
+            long limit = Math.min(position + n, segment.end);
+            if (limit <= current) {
+                return 0;
+            }
+            int off = (int) (current - position);
+            len = (int) (limit - current);
+            worker.mWriter.write(current, b, off, len);
+            if (mCheck != null) {
+                mCheck.update(segment, current, b, off, len);
+            }
+            segment.position = limit;
+            if (mJournal != null) {
+                mJournal.update(segment);
+            }
+        }
+        if (rival != null) {
+            rival.abort();
+        }
+        worker.mLastProgress = System.nanoTime();
+        worker.mBytes += len;
+        return len;
+    }
+
+    /** One connection of the pool, downloading one segment after another. */
+    private final class Worker implements Runnable {
+        /** for a hedged request, the worker it duplicates until one of them has won */
+        volatile Worker mRival;
+        /** taken from the {@link BufferPool} while the worker runs */
+        ByteBuffer mBuffer;
+        final long mStarted = System.nanoTime();
+        /** segment worked on, guarded by RangeDownload.this */
+        Segment mSegment;
+        /** set while a hedged request for this worker's segment runs, guarded by RangeDownload.this */
+        boolean mHedged;
+        FileSink.Writer mWriter;
+        volatile HttpResponse mResponse;
+        /** source of the running request */
+        volatile SourceRanking.Source mSource;
+        /** set when the worker has been made to give up its segment for a faster source */
+        volatile boolean mMoved;
+        volatile long mLastProgress = System.nanoTime();
+        /** bytes written by this worker, for the throughput of its connection */
+        volatile long mBytes;
+
+        Worker(Worker rival) {
+            mRival = rival;
+        }
+
+        /** @return bytes per second written so far, 0 if nothing yet */
+        double rate(long now) {
+            long elapsed = now - mStarted;
+            return elapsed > 0 ? mBytes * 1e9 / elapsed : 0;
+        }
+
+        /** Drop the connection, unblocking a read. */
+        void abort() {
+            HttpResponse response = mResponse;
+            if (response != null) {
+                response.abort();
+            }
+        }
+
+        @Override
+        public void run() {
+            mBuffer = BufferPool.shared().acquire();
+            try {
+                mWriter = mSink.newWriter();
+                Segment segment;
+                synchronized (RangeDownload.this) {
+                    segment = mSegment;
+                }
+                while (segment != null && download(this, segment)) {
+                    segment = next(this);
+                }
+            } catch (IOException e) {
+                if (isFatal(this)) {
+                    fail(e);
+                }
+            } catch (RuntimeException e) {
+                fail(new DownloadException(DownloadReason.ERROR_UNKNOWN, e.toString(), e));
+            } finally {
+                if (mWriter != null) {
+                    mWriter.close();
+                }
+                BufferPool.shared().release(mBuffer);
+                mBuffer = null;
+                finished(this);
+            }
+        }
+    }
+}
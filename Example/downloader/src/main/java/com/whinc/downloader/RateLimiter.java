@@ -0,0 +1,83 @@
+package com.whinc.downloader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate at which the in-process download engine reads from the network. One limiter is
+ * shared by all {@link HttpDownloader}s, see {@link DownloaderFactory#getRateLimiter()}, and every
+ * downloader has its own, see {@link HttpDownloader#setMaxBytesPerSecond(long)}; a download is held
+ * to the lower of both. Rates can be changed at any time and apply to running downloads at once.<br>
+ *     <br>
+ * The limiter is a token bucket kept as a single timestamp, the time at which the bucket will have
+ * refilled (the generic cell rate algorithm): a read of n bytes moves it forward by the time n
+ * bytes take at the configured rate, with one compare-and-set and no lock. The thread that has just
+ * read from a connection then waits until the bucket is back within {@link #BURST_NANOS} of being
+ * full; there is no timer and no extra thread. Every read is limited to about
+ * {@code BURST_NANOS} worth of bytes, so parallel segments take turns in small slices in the order
+ * they asked and none of them falls behind.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+public final class RateLimiter {
+    /** bytes that may be read at once after an idle period, as time at the configured rate */
+    static final long BURST_NANOS = 100 * 1000000L;
+    private static final int MIN_CHUNK = 1024;
+
+    private final RateLimiter mParent;
+    /** time at which all bytes accounted so far have been paid for */
+    private final AtomicLong mNextFree = new AtomicLong(System.nanoTime());
+    private volatile long mBytesPerSecond;
+
+    /** @param parent limiter also charged for every byte, or null */
+    RateLimiter(RateLimiter parent) {
+        mParent = parent;
+    }
+
+    /** Limit reads to bytesPerSecond, 0 removes the limit. Takes effect for running downloads. */
+    public RateLimiter setBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("rate must not be negative: " + bytesPerSecond);
+        }
+        mBytesPerSecond = bytesPerSecond;
+        mNextFree.set(System.nanoTime());   // 不继承旧速率下的欠账
+        return this;
+    }
+
+    /** @return the limit in bytes per second, 0 if unlimited */
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /** @return how many of max bytes to read next, small enough to keep the wait after it short */
+    int chunk(int max) {
+        long rate = mBytesPerSecond;
+        int n = max;
+        if (rate > 0) {
+            n = (int) Math.min(n, Math.max(MIN_CHUNK, rate * BURST_NANOS / 1000000000L));
+        }
+        return mParent == null ? n : mParent.chunk(n);
+    }
+
+    /**
+     * Charge n bytes that have just been read.
+     * @return nanoseconds the caller has to wait before reading again
+     */
+    long acquire(int n, long now) {
+        long wait = 0;
+        long rate = mBytesPerSecond;
+        if (rate > 0) {
+            long cost = n * 1000000000L / rate;
+            long nextFree;
+            long next;
+            do {
+                nextFree = mNextFree.get();
+                next = Math.max(nextFree, now) + cost;
+            } while (!mNextFree.compareAndSet(nextFree, next));
+            wait = next - now - BURST_NANOS;
+        }
+        if (mParent != null) {
+            wait = Math.max(wait, mParent.acquire(n, now));
+        }
+        return Math.max(0, wait);
+    }
+}
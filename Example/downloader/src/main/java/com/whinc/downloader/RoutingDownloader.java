@@ -0,0 +1,202 @@
+package com.whinc.downloader;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link Downloader} that hands every download to the {@link DownloadEngine} its
+ * {@link RoutingPolicy} chooses, see {@link DownloaderFactory#create(Context)}.<br>
+ *     <br>
+ * Besides the usual settings, which are passed on to the engine's downloader, the following
+ * downloads can be described by their expected size, whether the user waits for them and the
+ * guarantees they require. Without any of them a download goes to the system download manager, as
+ * with earlier versions. Each engine's downloader is created on first use and kept;
+ * {@link #pause()}, {@link #resume()} and {@link #cancel()} apply to the last download. A batch is
+ * routed as one download of the total expected size.
+ */
+public class RoutingDownloader implements Downloader<RoutingDownloader> {
+    private final Context mContext;
+    private final RoutingPolicy mPolicy;
+    private final Map<DownloadEngine, Downloader<?>> mDownloaders = new HashMap<DownloadEngine, Downloader<?>>();
+    private DownloadListener mDownloadListener;
+    private String mTitle;
+    private String mDescription;
+    private boolean mNotificationVisible;
+    private Executor mCallbackExecutor;
+    private ProgressPolicy mProgressPolicy;
+    private int mPriority = DownloadScheduler.PRIORITY_NORMAL;
+    private String mDigestAlgorithm;
+    private String mDigest;
+    private long mExpectedSize = -1;
+    private boolean mForeground;
+    private int mRequiredGuarantees;
+    private volatile Downloader<?> mCurrent;
+    private volatile DownloadEngine mCurrentEngine;
+
+    RoutingDownloader(Context context, RoutingPolicy policy) {
+        mContext = context;
+        mPolicy = policy;
+    }
+
+    @Override
+    public RoutingDownloader setDownloadListener(DownloadListener l) {
+        mDownloadListener = l;
+        return this;
+    }
+
+    @Override
+    public RoutingDownloader setTitle(String title) {
+        mTitle = title;
+        return this;
+    }
+
+    @Override
+    public RoutingDownloader setDescription(String description) {
+        mDescription = description;
+        return this;
+    }
+
+    @Override
+    public RoutingDownloader setNotificationVisible(boolean b) {
+        mNotificationVisible = b;
+        return this;
+    }
+
+    @Override
+    public RoutingDownloader setCallbackExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor == null");
+        }
+        mCallbackExecutor = executor;
+        return this;
+    }
+
+    @Override
+    public RoutingDownloader setProgressPolicy(ProgressPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy == null");
+        }
+        mProgressPolicy = policy;
+        return this;
+    }
+
+    @Override
+    public RoutingDownloader setPriority(int priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    @Override
+    public RoutingDownloader setExpectedDigest(String algorithm, String digest) {
+        if (algorithm != null) {
+            IntegrityCheck.forFile(algorithm, digest);  // 提前检查参数
+        }
+        mDigestAlgorithm = algorithm;
+        mDigest = digest;
+        return this;
+    }
+
+    /** Size of the following downloads in bytes, -1 if unknown, the default. */
+    public RoutingDownloader setExpectedSize(long bytes) {
+        mExpectedSize = bytes;
+        return this;
+    }
+
+    /** Whether the user is waiting for the following downloads, default is false. */
+    public RoutingDownloader setForeground(boolean foreground) {
+        mForeground = foreground;
+        return this;
+    }
+
+    /**
+     * Guarantees the engine of the following downloads must give, {@link DownloadEngine} flags;
+     * 0, the default, for none.
+     */
+    public RoutingDownloader setRequiredGuarantees(int guarantees) {
+        mRequiredGuarantees = guarantees;
+        return this;
+    }
+
+    /** @return the engine of the last download, null if nothing has been downloaded yet */
+    public DownloadEngine getEngine() {
+        return mCurrentEngine;
+    }
+
+    /** @throws IllegalArgumentException also if no engine gives the required guarantees */
+    @Override
+    public void download(String url, File savePath) throws IOException, IllegalArgumentException {
+        DownloadEngine engine = mPolicy.route(mExpectedSize, mForeground, mRequiredGuarantees);
+        Downloader<?> downloader = downloaderOf(engine);
+        downloader.download(url, savePath);
+        // 启动成功后才切换, 失败时pause()和cancel()仍作用于上一个下载
+        mCurrent = downloader;
+        mCurrentEngine = engine;
+    }
+
+    @Override
+    public DownloadBatch downloadAll(Collection<DownloadSpec> specs, BatchListener listener)
+            throws IllegalArgumentException {
+        long total = 0;
+        for (DownloadSpec spec : specs) {
+            if (spec.getExpectedSize() < 0) {
+                total = -1;
+                break;
+            }
+            total += spec.getExpectedSize();
+        }
+        DownloadEngine engine = mPolicy.route(total, mForeground, mRequiredGuarantees);
+        Downloader<?> downloader = downloaderOf(engine);
+        DownloadBatch batch = downloader.downloadAll(specs, listener);
+        mCurrent = downloader;
+        mCurrentEngine = engine;
+        return batch;
+    }
+
+    @Override
+    public boolean pause() {
+        Downloader<?> current = mCurrent;
+        return current != null && current.pause();
+    }
+
+    @Override
+    public boolean resume() {
+        Downloader<?> current = mCurrent;
+        return current != null && current.resume();
+    }
+
+    @Override
+    public void cancel() {
+        Downloader<?> current = mCurrent;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /** @return the downloader of engine, configured with the current settings */
+    private Downloader<?> downloaderOf(DownloadEngine engine) {
+        Downloader<?> downloader = mDownloaders.get(engine);
+        if (downloader == null) {
+            downloader = engine.create(mContext);
+            mDownloaders.put(engine, downloader);
+        }
+        downloader.setDownloadListener(mDownloadListener);
+        downloader.setTitle(mTitle);
+        downloader.setDescription(mDescription);
+        downloader.setNotificationVisible(mNotificationVisible);
+        if (mCallbackExecutor != null) {
+            downloader.setCallbackExecutor(mCallbackExecutor);
+        }
+        if (mProgressPolicy != null) {
+            downloader.setProgressPolicy(mProgressPolicy);
+        }
+        downloader.setPriority(mPriority);
+        downloader.setExpectedDigest(mDigestAlgorithm, mDigest);
+        return downloader;
+    }
+}
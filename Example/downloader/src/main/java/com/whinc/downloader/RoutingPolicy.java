@@ -0,0 +1,98 @@
+package com.whinc.downloader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses the {@link DownloadEngine} of each download of a {@link RoutingDownloader}, by what the
+ * download requires, its expected size and whether the user is waiting for it.<br>
+ *     <br>
+ * Only engines giving all required guarantees are considered. A foreground download, or one of at
+ * most {@link #setSmallSizeLimit(long)} bytes, goes to the first of them that is
+ * {@link DownloadEngine#LOW_LATENCY}: for small payloads the system download manager's IPC, content
+ * provider round trips and broadcasts cost more than the transfer. Any other download, including one
+ * of unknown size, goes to the first that {@link DownloadEngine#SURVIVES_PROCESS_DEATH}. Otherwise
+ * the first candidate is used, engines are considered in the order they were added.<br>
+ *     <br>
+ * Override {@link #route(long, boolean, int)} for other rules. The policy is used from any thread.
+ *     <pre>
+ *         DownloaderFactory.getRoutingPolicy().setSmallSizeLimit(8 * 1024 * 1024);
+ *         RoutingDownloader downloader = DownloaderFactory.create(context)
+ *                 .setExpectedSize(300 * 1024)
+ *                 .setForeground(true);
+ *         downloader.download(url, file);     // 在进程内下载
+ *     </pre>
+ */
+public class RoutingPolicy {
+    /** default of {@link #setSmallSizeLimit(long)} */
+    public static final long DEFAULT_SMALL_SIZE_LIMIT = 4 * 1024 * 1024;
+
+    private final List<DownloadEngine> mEngines = new ArrayList<DownloadEngine>();
+    private volatile long mSmallSizeLimit = DEFAULT_SMALL_SIZE_LIMIT;
+
+    /** @param engines the engines to choose from, the preferred one first */
+    public RoutingPolicy(DownloadEngine... engines) {
+        for (DownloadEngine engine : engines) {
+            addEngine(engine);
+        }
+    }
+
+    /** Add an engine to choose from, after those added before. */
+    public synchronized RoutingPolicy addEngine(DownloadEngine engine) {
+        if (engine == null) {
+            throw new IllegalArgumentException("engine == null");
+        }
+        mEngines.add(engine);
+        return this;
+    }
+
+    public synchronized boolean removeEngine(DownloadEngine engine) {
+        return mEngines.remove(engine);
+    }
+
+    /** @return the engines to choose from, in order */
+    public synchronized List<DownloadEngine> getEngines() {
+        return new ArrayList<DownloadEngine>(mEngines);
+    }
+
+    /** Download a file of at most bytes in process even in the background, default is 4MB. */
+    public RoutingPolicy setSmallSizeLimit(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("limit must not be negative: " + bytes);
+        }
+        mSmallSizeLimit = bytes;
+        return this;
+    }
+
+    public long getSmallSizeLimit() {
+        return mSmallSizeLimit;
+    }
+
+    /**
+     * Choose the engine of a download.
+     * @param expectedSize size of the file in bytes, -1 if unknown
+     * @param foreground true if the user is waiting for the download
+     * @param requiredGuarantees {@link DownloadEngine} flags the engine must give, 0 for none
+     * @throws IllegalArgumentException if no engine gives the required guarantees
+     */
+    public DownloadEngine route(long expectedSize, boolean foreground, int requiredGuarantees) {
+        List<DownloadEngine> candidates = new ArrayList<DownloadEngine>();
+        for (DownloadEngine engine : getEngines()) {
+            if ((engine.getGuarantees() & requiredGuarantees) == requiredGuarantees) {
+                candidates.add(engine);
+            }
+        }
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("no engine gives guarantees " + requiredGuarantees);
+        }
+        boolean small = expectedSize >= 0 && expectedSize <= mSmallSizeLimit;
+        int preferred = foreground || small ? DownloadEngine.LOW_LATENCY
+                : DownloadEngine.SURVIVES_PROCESS_DEATH;
+        for (DownloadEngine engine : candidates) {
+            if ((engine.getGuarantees() & preferred) != 0) {
+                return engine;
+            }
+        }
+        return candidates.get(0);
+    }
+}
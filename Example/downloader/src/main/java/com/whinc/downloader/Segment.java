@@ -0,0 +1,85 @@
+package com.whinc.downloader;
+
+/**
+ * A byte range {@code [start, end)} of the target file downloaded by one connection. The end is
+ * lowered when the tail of the segment is handed to another connection, see {@link #splitTail}.
+ */
+final class Segment {
+    final int index;
+    final long start;
+    /** end of the range, only lowered, and only by {@link #splitTail} */
+    volatile long end;
+    /** next byte to be written, only advanced by the thread downloading this segment */
+    volatile long position;
+    /** the worker allowed to write this segment, used by {@link RangeDownload}, guarded by this */
+    Object owner;
+
+    Segment(int index, long start, long end) {
+        this.index = index;
+        this.start = start;
+        this.end = end;
+        this.position = start;
+    }
+
+    long remaining() {
+        return end - position;
+    }
+
+    boolean isDone() {
+        return position >= end;
+    }
+
+    /**
+     * Cut off the second half of the bytes not written yet, not counting margin bytes after the
+     * position that may already be on their way to this segment's connection.
+     * @param index index of the new segment
+     * @return the cut off tail, starting on a multiple of alignment, or null if it would be smaller
+     * than minSize
+     */
+    synchronized Segment splitTail(int index, long margin, long minSize, long alignment) {
+        long from = position + margin;
+        long align = Math.max(1, alignment);
+        long middle = (from + (end - from) / 2) / align * align;
+        if (middle < from) {
+            middle += align;
+        }
+        if (end - middle < minSize) {
+            return null;
+        }
+        Segment tail = new Segment(index, middle, end);
+        end = middle;
+        return tail;
+    }
+
+    /**
+     * Split {@code [0, length)} into at most {@code count} segments, none of them smaller than
+     * {@code minSize} bytes unless the whole range is.
+     */
+    static Segment[] split(long length, int count, long minSize) {
+        return split(length, count, minSize, 1);
+    }
+
+    /**
+     * Like {@link #split(long, int, long)}, but every segment except the last starts and ends on a
+     * multiple of {@code alignment}, which may leave fewer segments.
+     */
+    static Segment[] split(long length, int count, long minSize, long alignment) {
+        int n = (int) Math.max(1, Math.min(count, length / Math.max(1, minSize)));
+        long align = Math.max(1, alignment);
+        long size = Math.max(align, (length / n + align - 1) / align * align);
+        n = (int) Math.max(1, Math.min(n, (length + size - 1) / size));
+        Segment[] segments = new Segment[n];
+        long start = 0;
+        for (int i = 0; i < n; i++) {
+            long end = (i == n - 1) ? length : start + size;
+            segments[i] = new Segment(i, start, end);
+            start = end;
+        }
+        return segments;
+    }
+
+    @Override
+    public String toString() {
+        return "Segment#" + index + "[" + start + ", " + end + ") at " + position;
+    }
+}
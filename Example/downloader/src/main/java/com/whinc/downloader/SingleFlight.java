@@ -0,0 +1,279 @@
+package com.whinc.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downloads of the same url in flight in this process, shared by all {@link Downloader}s created by
+ * {@link DownloaderFactory}.<br>
+ *     <br>
+ * The first download of a url leads a {@link Flight}. A download of the same url started while the
+ * flight runs does not open a connection of its own, it follows the flight: it receives the
+ * leader's progress and status callbacks, and when the leader's file is complete it is copied to
+ * the follower's destination, verified against the follower's own expected digest, and reported
+ * as the follower's result. A follower that is cancelled or paused simply leaves the flight. A
+ * leader that is cancelled while others follow keeps downloading for them and only deletes its
+ * file once they have their copies; a leader paused by its user detaches all followers, which then
+ * report a pause and start over on {@link Downloader#resume()}.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class SingleFlight {
+    /** Callbacks of a follower, invoked on the leader's threads; implementations must not block. */
+    interface Member {
+        void onPending();
+
+        void onStarted(long totalBytes);
+
+        void onProgress(long downloadedBytes, long totalBytes);
+
+        /** The leader is paused for a while and continues later, the member is still attached. */
+        void onPaused(int reason);
+
+        /** @param file the member's own destination, already complete */
+        void onSuccessful(File file);
+
+        void onFailed(int reason, String message);
+
+        /** The leader was paused by its user, the member has left the flight. */
+        void onDetached(int reason);
+    }
+
+    private final Map<String, Flight> mFlights = new HashMap<String, Flight>();
+
+    /**
+     * Attach member to the flight of url, catching it up with the progress so far.
+     * @return the flight, or null if url is not in flight and the caller has to download it
+     */
+    Flight follow(String url, File file, IntegrityCheck check, Member member) {
+        Flight flight;
+        synchronized (this) {
+            flight = mFlights.get(url);
+        }
+        return flight != null && flight.add(file, check, member) ? flight : null;
+    }
+
+    /**
+     * Start a flight of url led by the caller, who reports its progress to the flight.
+     * @param deserted called when the leader was cancelled and its last follower left, must cancel
+     *                 the download
+     */
+    synchronized Flight lead(String url, Runnable deserted) {
+        Flight flight = new Flight(url, deserted);
+        if (!mFlights.containsKey(url)) {
+            mFlights.put(url, flight);   // 否则同时开始的另一个下载已登记, 本次不可跟随
+        }
+        return flight;
+    }
+
+    /** Start a flight of url that nobody can follow, for a download whose result cannot be copied. */
+    Flight solo(String url, Runnable deserted) {
+        return new Flight(url, deserted);
+    }
+
+    private synchronized void end(Flight flight) {
+        if (mFlights.get(flight.mUrl) == flight) {
+            mFlights.remove(flight.mUrl);
+        }
+    }
+
+    /** One download and the members following it. */
+    final class Flight {
+        private final String mUrl;
+        private final Runnable mDeserted;
+
+        // 以下字段由this保护
+        private final List<Follower> mFollowers = new ArrayList<Follower>();
+        private boolean mStarted;
+        private long mTotalBytes = -1;
+        private long mDownloadedBytes;
+        private int mPausedReason;
+        private boolean mAbandoned;
+        private boolean mEnded;
+
+        private Flight(String url, Runnable deserted) {
+            mUrl = url;
+            mDeserted = deserted;
+        }
+
+        private boolean add(File file, IntegrityCheck check, Member member) {
+            boolean started;
+            long total;
+            long downloaded;
+            int paused;
+            synchronized (this) {
+                if (mEnded) {
+                    return false;
+                }
+                mFollowers.add(new Follower(file, check, member));
+                started = mStarted;
+                total = mTotalBytes;
+                downloaded = mDownloadedBytes;
+                paused = mPausedReason;
+            }
+            if (started) {
+                member.onStarted(total);
+                if (downloaded > 0) {
+                    member.onProgress(downloaded, total);
+                }
+            }
+            if (paused != 0) {
+                member.onPaused(paused);
+            }
+            return true;
+        }
+
+        /** Detach a follower, it receives no more callbacks. */
+        void remove(Member member) {
+            boolean deserted;
+            synchronized (this) {
+                for (int i = 0; i < mFollowers.size(); i++) {
+                    if (mFollowers.get(i).mMember == member) {
+                        mFollowers.remove(i);
+                        break;
+                    }
+                }
+                deserted = mAbandoned && !mEnded && mFollowers.isEmpty();
+                if (deserted) {
+                    mEnded = true;
+                }
+            }
+            if (deserted) {
+                end(this);
+                mDeserted.run();
+            }
+        }
+
+        /**
+         * The leader was cancelled. If members follow, the download goes on for them and the leader
+         * must delete its file after the flight has ended; otherwise the flight ends now.
+         * @return true if the leader has to keep downloading
+         */
+        boolean abandon() {
+            synchronized (this) {
+                if (!mEnded && !mFollowers.isEmpty()) {
+                    mAbandoned = true;
+                    return true;
+                }
+                mEnded = true;
+            }
+            end(this);
+            return false;
+        }
+
+        synchronized boolean isAbandoned() {
+            return mAbandoned;
+        }
+
+        void onPending() {
+            synchronized (this) {
+                mPausedReason = 0;
+            }
+            for (Follower follower : followers()) {
+                follower.mMember.onPending();
+            }
+        }
+
+        void onStarted(long totalBytes) {
+            synchronized (this) {
+                mStarted = true;
+                mTotalBytes = totalBytes;
+                mDownloadedBytes = 0;
+                mPausedReason = 0;
+            }
+            for (Follower follower : followers()) {
+                follower.mMember.onStarted(totalBytes);
+            }
+        }
+
+        void onProgress(long downloadedBytes, long totalBytes) {
+            synchronized (this) {
+                mStarted = true;
+                mTotalBytes = totalBytes;
+                mDownloadedBytes = downloadedBytes;
+                mPausedReason = 0;
+            }
+            for (Follower follower : followers()) {
+                follower.mMember.onProgress(downloadedBytes, totalBytes);
+            }
+        }
+
+        /** A pause by the leader's user detaches all members and ends the flight. */
+        void onPaused(int reason) {
+            if (reason == DownloadReason.PAUSED_BY_USER) {
+                for (Follower follower : finish()) {
+                    follower.mMember.onDetached(reason);
+                }
+                return;
+            }
+            synchronized (this) {
+                mPausedReason = reason;
+            }
+            for (Follower follower : followers()) {
+                follower.mMember.onPaused(reason);
+            }
+        }
+
+        /** The leader's file is complete, copy it to every member on the calling thread. */
+        void onSuccessful(File file) {
+            for (Follower follower : finish()) {
+                follower.deliver(file);
+            }
+        }
+
+        void onFailed(int reason, String message) {
+            for (Follower follower : finish()) {
+                follower.mMember.onFailed(reason, message);
+            }
+        }
+
+        private synchronized List<Follower> followers() {
+            return new ArrayList<Follower>(mFollowers);
+        }
+
+        private List<Follower> finish() {
+            List<Follower> followers;
+            synchronized (this) {
+                followers = new ArrayList<Follower>(mFollowers);
+                mFollowers.clear();
+                mEnded = true;
+            }
+            end(this);
+            return followers;
+        }
+    }
+
+    private static final class Follower {
+        private final File mFile;
+        private final IntegrityCheck mCheck;
+        private final Member mMember;
+
+        Follower(File file, IntegrityCheck check, Member member) {
+            mFile = file;
+            mCheck = check == null ? null : check.copy();
+            mMember = member;
+        }
+
+        void deliver(File source) {
+            try {
+                if (!mFile.getCanonicalPath().equals(source.getCanonicalPath())) {
+                    FileSink.copy(source, mFile);
+                }
+                if (mCheck != null) {
+                    mCheck.verify(mFile);
+                }
+            } catch (DownloadException e) {
+                mMember.onFailed(e.getReason(), e.getMessage());
+                return;
+            } catch (IOException e) {
+                mMember.onFailed(DownloadReason.ERROR_FILE_ERROR, e.getMessage());
+                return;
+            }
+            mMember.onSuccessful(mFile);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.whinc.downloader;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The equivalent urls of a {@link RangeDownload}, ranked by what their connections have delivered.
+ * <br>
+ *     <br>
+ * A source is rated by the throughput of one of its connections: the bytes it delivered over the
+ * time its connections were open, waiting for responses included, discounted by the share of its
+ * requests that failed. A new request goes to the source expected to serve it fastest next to the
+ * connections it already has, so a source that has not been measured yet gets one connection to try
+ * and a much faster one gets most. A source that failed {@link #MAX_FAILURES} times in a row is no
+ * longer used.<br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+final class SourceRanking {
+    /** consecutive failures after which a source is given up */
+    static final int MAX_FAILURES = 3;
+    /** a source is rated once its connections have delivered this much, or been open this long */
+    private static final long MIN_MEASURED_BYTES = 256 * 1024;
+    private static final long MIN_MEASURED_NANOS = 1000 * 1000000L;
+    /** a source rated this many times lower than the best one is slow */
+    private static final double SLOW_FACTOR = 2;
+
+    private final Source[] mSources;
+    /** times are kept relative to this, so their sums do not overflow */
+    private final long mBase = System.nanoTime();
+
+    /** One url of the file. */
+    static final class Source {
+        final String url;
+        /** 0 for the source the file was probed on */
+        final int index;
+        private final AtomicLong mBytes = new AtomicLong();
+
+        // 以下字段由SourceRanking.this保护
+        private int mActive;
+        /** sums of the start times of all connections and of the end times of the closed ones */
+        private long mStarts;
+        private long mEnds;
+        private int mRequests;
+        private int mFailures;
+        private int mFailuresInRow;
+
+        Source(String url, int index) {
+            this.url = url;
+            this.index = index;
+        }
+
+        /** Count n bytes delivered, may be called without lock. */
+        void transferred(long n) {
+            mBytes.addAndGet(n);
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+
+    /** @param urls the probed url first */
+    SourceRanking(List<String> urls) {
+        mSources = new Source[urls.size()];
+        for (int i = 0; i < mSources.length; i++) {
+            mSources[i] = new Source(urls.get(i), i);
+        }
+    }
+
+    int size() {
+        return mSources.length;
+    }
+
+    /**
+     * Choose the source of the next request and count it as open until {@link #release}.
+     * @return the source, or null if all have been given up
+     */
+    synchronized Source acquire() {
+        long now = System.nanoTime() - mBase;
+        Source best = null;
+        double bestScore = -1;
+        for (Source source : mSources) {
+            if (!isUsable(source)) {
+                continue;
+            }
+            double score;
+            double rate = rate(source, now);
+            if (rate >= 0) {
+                score = rate / (source.mActive + 1);
+            } else {
+                score = source.mActive == 0 ? Double.MAX_VALUE : 0;     // 未测量过的源先试一个连接
+            }
+            if (score > bestScore || (score == bestScore && source.mActive < best.mActive)) {
+                best = source;
+                bestScore = score;
+            }
+        }
+        if (best != null) {
+            best.mActive++;
+            best.mStarts += now;
+            best.mRequests++;
+        }
+        return best;
+    }
+
+    /**
+     * The request to source has ended.
+     * @param failed true if the source failed it
+     */
+    synchronized void release(Source source, boolean failed) {
+        source.mActive--;
+        source.mEnds += System.nanoTime() - mBase;
+        if (failed) {
+            source.mFailures++;
+            source.mFailuresInRow++;
+        } else {
+            source.mFailuresInRow = 0;
+        }
+    }
+
+    /** @return true if a source has not been given up yet */
+    synchronized boolean hasUsable() {
+        for (Source source : mSources) {
+            if (isUsable(source)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return true if source has been rated much lower than another usable source */
+    synchronized boolean isSlow(Source source) {
+        long now = System.nanoTime() - mBase;
+        double rate = rate(source, now);
+        if (rate < 0) {
+            return false;
+        }
+        for (Source other : mSources) {
+            if (other != source && isUsable(other) && rate * SLOW_FACTOR < rate(other, now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUsable(Source source) {
+        return source.mFailuresInRow < MAX_FAILURES;
+    }
+
+    /**
+     * @param now relative to mBase
+     * @return bytes per second of one connection to source, discounted by failures; -1 if unrated
+     */
+    private static double rate(Source source, long now) {
+        long bytes = source.mBytes.get();
+        // 已关闭连接的时长之和加上打开的连接至今的时长
+        long nanos = source.mEnds + source.mActive * now - source.mStarts;
+        if (bytes < MIN_MEASURED_BYTES && nanos < MIN_MEASURED_NANOS) {
+            return -1;
+        }
+        double rate = nanos > 0 ? bytes * 1e9 / nanos : 0;
+        return rate * (source.mRequests - source.mFailures) / Math.max(1, source.mRequests);
+    }
+
+    @Override
+    public synchronized String toString() {
+        long now = System.nanoTime() - mBase;
+        StringBuilder sb = new StringBuilder("SourceRanking{");
+        for (Source source : mSources) {
+            sb.append(source.url).append('=').append((long) rate(source, now)).append("B/s ")
+                    .append(source.mFailures).append('/').append(source.mRequests).append(" failed ");
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,84 @@
+package com.whinc.downloader;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * A digest computed over bytes as they stream past, either a {@link MessageDigest} algorithm such
+ * as {@code "SHA-256"} or {@code "MD5"}, or one of the checksums {@link #CRC32} and {@link #CRC32C}.
+ * <br>
+ *     <br>
+ * This class has no Android dependency.
+ */
+abstract class StreamDigest {
+    static final String CRC32 = "CRC32";
+    static final String CRC32C = "CRC32C";
+
+    /** @throws IllegalArgumentException if the algorithm is not available */
+    static StreamDigest newInstance(String algorithm) {
+        if (isCrc(algorithm)) {
+            return new Crc32(CRC32C.equalsIgnoreCase(algorithm) ? Crc32.CRC32C_POLY : Crc32.CRC32_POLY);
+        }
+        try {
+            return new Message(MessageDigest.getInstance(algorithm));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("unsupported digest algorithm: " + algorithm);
+        }
+    }
+
+    /** @return true for the CRC checksums, whose values of adjacent ranges can be combined */
+    static boolean isCrc(String algorithm) {
+        return CRC32.equalsIgnoreCase(algorithm) || CRC32C.equalsIgnoreCase(algorithm);
+    }
+
+    abstract void update(byte[] b, int off, int len);
+
+    /** @return the digest of all bytes since the last call, and reset */
+    abstract byte[] digest();
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+
+    /** @throws IllegalArgumentException if hex is not an even number of hex digits */
+    static byte[] fromHex(String hex) {
+        String s = hex.trim().toLowerCase(Locale.US);
+        if (s.length() % 2 != 0) {
+            throw new IllegalArgumentException("odd number of hex digits: " + hex);
+        }
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(s.charAt(2 * i), 16);
+            int lo = Character.digit(s.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("not a hex string: " + hex);
+            }
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return bytes;
+    }
+
+    private static final class Message extends StreamDigest {
+        private final MessageDigest mDigest;
+
+        Message(MessageDigest digest) {
+            mDigest = digest;
+        }
+
+        @Override
+        void update(byte[] b, int off, int len) {
+            mDigest.update(b, off, len);
+        }
+
+        @Override
+        byte[] digest() {
+            return mDigest.digest();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.whinc.downloader;
+
+import java.io.File;
+
+/**
+ * Callbacks of {@link HttpTransfer}. They are invoked on the transfer's worker threads and
+ * contain no Android types, so the engine can run on a plain JVM.
+ */
+interface TransferListener {
+    /** @param totalBytes size of the file, or -1 if the server did not report it */
+    void onStarted(long totalBytes);
+
+    void onProgress(long downloadedBytes, long totalBytes);
+
+    void onSuccessful(File file);
+
+    /** @param reason one of the {@link DownloadReason} codes */
+    void onFailed(int reason, String message);
+}
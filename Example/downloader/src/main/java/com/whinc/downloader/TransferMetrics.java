@@ -0,0 +1,166 @@
+package com.whinc.downloader;
+
+/**
+ * Timings and counts of one transfer, passed to {@link DownloadMetrics#onTransferFinished}.<br>
+ *     <br>
+ * A transfer may open several connections, for the {@code HEAD} probe, for parallel segments, for
+ * split or hedged ranges. The connection phases (DNS lookup, TCP connect, TLS handshake) are summed
+ * over the connections the transfer opened itself, a connection reused from the pool costs none of
+ * them. Time to first byte is that of the transfer's first exchange: from sending the request to
+ * reading the response headers. Disk time is spent preallocating and writing the file, it is only
+ * measured while metrics are enabled. All times are in nanoseconds.
+ */
+public final class TransferMetrics {
+    private final String mUrl;
+    private final int mReason;
+    private final boolean mCancelled;
+    private final boolean mCached;
+    private final long mDurationNanos;
+    private final long mDnsNanos;
+    private final long mConnectNanos;
+    private final long mTlsNanos;
+    private final long mFirstByteNanos;
+    private final long mBodyNanos;
+    private final long mDiskNanos;
+    private final long mBytes;
+    private final int mRequests;
+    private final int mConnectionsOpened;
+    private final int mConnectionsReused;
+    private final int mRetries;
+    private final int mHedges;
+    private final int mSplits;
+    private final int mSegments;
+
+    TransferMetrics(String url, int reason, boolean cancelled, boolean cached, long durationNanos,
+                    long dnsNanos, long connectNanos, long tlsNanos, long firstByteNanos,
+                    long bodyNanos, long diskNanos, long bytes, int requests, int connectionsOpened,
+                    int connectionsReused, int retries, int hedges, int splits, int segments) {
+        mUrl = url;
+        mReason = reason;
+        mCancelled = cancelled;
+        mCached = cached;
+        mDurationNanos = durationNanos;
+        mDnsNanos = dnsNanos;
+        mConnectNanos = connectNanos;
+        mTlsNanos = tlsNanos;
+        mFirstByteNanos = firstByteNanos;
+        mBodyNanos = bodyNanos;
+        mDiskNanos = diskNanos;
+        mBytes = bytes;
+        mRequests = requests;
+        mConnectionsOpened = connectionsOpened;
+        mConnectionsReused = connectionsReused;
+        mRetries = retries;
+        mHedges = hedges;
+        mSplits = splits;
+        mSegments = segments;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /** @return true if the file has been downloaded and verified */
+    public boolean isSuccessful() {
+        return mReason == 0 && !mCancelled;
+    }
+
+    /** @return true if the transfer was stopped by a pause, a preemption or a cancel */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /** @return the {@link DownloadReason} code of a failed transfer, 0 otherwise */
+    public int getReason() {
+        return mReason;
+    }
+
+    /** @return true if the file was copied from a {@link DownloadCache} */
+    public boolean isCached() {
+        return mCached;
+    }
+
+    /** @return time from the start of the transfer until it ended */
+    public long getDurationNanos() {
+        return mDurationNanos;
+    }
+
+    public long getDnsNanos() {
+        return mDnsNanos;
+    }
+
+    public long getConnectNanos() {
+        return mConnectNanos;
+    }
+
+    /** @return TLS handshake time, 0 for plain http */
+    public long getTlsNanos() {
+        return mTlsNanos;
+    }
+
+    /** @return time to first byte of the first exchange, -1 if no response was received */
+    public long getFirstByteNanos() {
+        return mFirstByteNanos;
+    }
+
+    /** @return time from the first response body until the end, in which the bytes were received */
+    public long getBodyNanos() {
+        return mBodyNanos;
+    }
+
+    public long getDiskNanos() {
+        return mDiskNanos;
+    }
+
+    /** @return bytes received over the network, without those resumed, reused or cached */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /** @return bytes per second while receiving the body, 0 if unknown */
+    public double getBytesPerSecond() {
+        return mBodyNanos > 0 ? mBytes * 1e9 / mBodyNanos : 0;
+    }
+
+    /** @return number of HTTP exchanges, including the probe */
+    public int getRequests() {
+        return mRequests;
+    }
+
+    public int getConnectionsOpened() {
+        return mConnectionsOpened;
+    }
+
+    public int getConnectionsReused() {
+        return mConnectionsReused;
+    }
+
+    /** @return requests sent again on a new connection after a pooled one had been closed */
+    public int getRetries() {
+        return mRetries;
+    }
+
+    /** @return hedged requests sent for stalled segments */
+    public int getHedges() {
+        return mHedges;
+    }
+
+    /** @return segments split to give an idle connection work */
+    public int getSplits() {
+        return mSplits;
+    }
+
+    /** @return segments at the start, 1 for a single stream, 0 if nothing was requested */
+    public int getSegments() {
+        return mSegments;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferMetrics{" + mUrl + " reason=" + mReason + " cancelled=" + mCancelled
+                + " duration=" + mDurationNanos / 1000000 + "ms dns=" + mDnsNanos / 1000000
+                + "ms connect=" + mConnectNanos / 1000000 + "ms tls=" + mTlsNanos / 1000000
+                + "ms ttfb=" + mFirstByteNanos / 1000000 + "ms disk=" + mDiskNanos / 1000000
+                + "ms bytes=" + mBytes + " requests=" + mRequests + " segments=" + mSegments + "}";
+    }
+}
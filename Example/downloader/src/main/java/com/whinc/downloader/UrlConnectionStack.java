@@ -0,0 +1,66 @@
+package com.whinc.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Requests through a proxy for {@link PooledHttpStack}, based on {@link HttpURLConnection} which
+ * speaks to http proxies and tunnels https through them. Redirects are left to the caller.
+ */
+final class UrlConnectionStack {
+    private static final int CONNECT_TIMEOUT = 15 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+
+    private UrlConnectionStack() {}
+
+    /** Send one request for url through proxy, without following a redirect. */
+    static HttpResponse execute(URL url, String method, HttpRequest request, Proxy proxy)
+            throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection(proxy);
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        conn.setInstanceFollowRedirects(false);
+        conn.setRequestMethod(method);
+        // 分段下载时禁止透明压缩, 否则Range对应的是压缩后的字节
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        String range = request.rangeHeader();
+        if (range != null) {
+            conn.setRequestProperty("Range", range);
+        }
+        for (Map.Entry<String, String> e : request.headers.entrySet()) {
+            conn.setRequestProperty(e.getKey(), e.getValue());
+        }
+
+        int code;
+        try {
+            code = conn.getResponseCode();
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> e : conn.getHeaderFields().entrySet()) {
+            if (e.getKey() != null && !e.getValue().isEmpty()) {
+                headers.put(e.getKey().toLowerCase(Locale.US), e.getValue().get(0));
+            }
+        }
+        InputStream body = null;
+        if (!"HEAD".equals(method)) {
+            body = code >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        }
+        return new HttpResponse(code, headers, body, new Closeable() {
+            @Override
+            public void close() {
+                conn.disconnect();
+            }
+        });
+    }
+}
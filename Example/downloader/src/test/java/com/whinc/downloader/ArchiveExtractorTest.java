@@ -0,0 +1,293 @@
+package com.whinc.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Extracts zip and tar archives built by the test with an {@link ArchiveExtractor}.
+ */
+public class ArchiveExtractorTest {
+    private final byte[] mBig = LocalServer.body(200 * 1024 + 7);
+    private File mParent;
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mParent = File.createTempFile("extract", ".dir");
+        mParent.delete();
+        mDir = new File(mParent, "out");
+    }
+
+    @After
+    public void tearDown() {
+        delete(mParent);
+    }
+
+    @Test
+    public void zipIsExtractedWithProgress() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        putZip(zip, "docs/", null);
+        putZip(zip, "docs/readme.txt", "hello".getBytes("UTF-8"));
+        putZip(zip, "a/b/big.bin", mBig);
+        zip.close();
+        final List<String> events = new ArrayList<String>();
+
+        new ArchiveExtractor(ArchiveExtractor.FORMAT_ZIP).setEntryListener(
+                new ArchiveExtractor.EntryListener() {
+                    @Override
+                    public void onEntryStarted(String name, long size) {
+                        events.add("started " + name);
+                    }
+
+                    @Override
+                    public void onEntryProgress(String name, long writtenBytes, long size) {
+                    }
+
+                    @Override
+                    public void onEntryExtracted(String name, File file) {
+                        events.add("extracted " + name + " " + file.length());
+                    }
+                }).extract(new ByteArrayInputStream(bytes.toByteArray()), mDir);
+
+        assertTrue(new File(mDir, "docs").isDirectory());
+        assertTrue(Arrays.equals("hello".getBytes("UTF-8"),
+                read(new File(mDir, "docs/readme.txt"))));
+        assertTrue(Arrays.equals(mBig, read(new File(mDir, "a/b/big.bin"))));
+        assertEquals(Arrays.asList("started docs/readme.txt", "extracted docs/readme.txt 5",
+                "started a/b/big.bin", "extracted a/b/big.bin " + mBig.length), events);
+    }
+
+    @Test
+    public void zipEntryOutsideTheTargetIsRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        putZip(zip, "ok.txt", new byte[1]);
+        putZip(zip, "a/../../evil.txt", new byte[1]);
+        zip.close();
+
+        assertOutside(ArchiveExtractor.FORMAT_ZIP, bytes.toByteArray());
+        assertFalse(new File(mParent, "evil.txt").exists());
+    }
+
+    @Test
+    public void filteredEntriesAreSkipped() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        putZip(zip, "docs/readme.txt", new byte[10]);
+        putZip(zip, "big.bin", mBig);
+        zip.close();
+
+        new ArchiveExtractor(ArchiveExtractor.FORMAT_ZIP).setEntryFilter(
+                new ArchiveExtractor.EntryFilter() {
+                    @Override
+                    public boolean accept(String name) {
+                        return !name.startsWith("docs/");
+                    }
+                }).extract(new ByteArrayInputStream(bytes.toByteArray()), mDir);
+
+        assertFalse(new File(mDir, "docs/readme.txt").exists());
+        assertTrue(Arrays.equals(mBig, read(new File(mDir, "big.bin"))));
+    }
+
+    @Test
+    public void tarLongNamesAndPrefixes() throws IOException {
+        String longName = repeat('x', 60) + "/" + repeat('y', 70) + "/f.txt";
+        String paxName = repeat('p', 120) + "/pax.txt";
+        Tar tar = new Tar();
+        tar.entry("dir/", '5', new byte[0]);
+        tar.entry("dir/small.txt", '0', "abc".getBytes("UTF-8"));
+        tar.longName(longName);
+        tar.entry("ignored", '0', "long".getBytes("UTF-8"));
+        tar.pax(paxName);
+        tar.entry("ignored too", '0', "pax".getBytes("UTF-8"));
+        tar.prefixed(repeat('q', 110), "prefixed.bin", mBig);
+        tar.entry("link", '2', new byte[0]);
+        byte[] archive = tar.finish();
+
+        new ArchiveExtractor(ArchiveExtractor.FORMAT_TAR)
+                .extract(new ByteArrayInputStream(archive), mDir);
+
+        assertTrue(Arrays.equals("abc".getBytes("UTF-8"), read(new File(mDir, "dir/small.txt"))));
+        assertTrue(Arrays.equals("long".getBytes("UTF-8"), read(new File(mDir, longName))));
+        assertTrue(Arrays.equals("pax".getBytes("UTF-8"), read(new File(mDir, paxName))));
+        assertTrue(Arrays.equals(mBig, read(new File(mDir, repeat('q', 110) + "/prefixed.bin"))));
+        assertFalse(new File(mDir, "ignored").exists());
+        assertFalse(new File(mDir, "link").exists());
+    }
+
+    @Test
+    public void gzipTarIsExtracted() throws IOException {
+        Tar tar = new Tar();
+        tar.entry("big.bin", '0', mBig);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(tar.finish());
+        gzip.close();
+
+        new ArchiveExtractor(ArchiveExtractor.FORMAT_TAR_GZ)
+                .extract(new ByteArrayInputStream(bytes.toByteArray()), mDir);
+
+        assertTrue(Arrays.equals(mBig, read(new File(mDir, "big.bin"))));
+    }
+
+    @Test
+    public void tarLongNameOutsideTheTargetIsRejected() throws IOException {
+        Tar tar = new Tar();
+        tar.longName("../" + repeat('z', 120));
+        tar.entry("harmless", '0', new byte[1]);
+
+        assertOutside(ArchiveExtractor.FORMAT_TAR, tar.finish());
+        assertFalse(new File(mParent, repeat('z', 120)).exists());
+    }
+
+    @Test
+    public void truncatedTarFails() throws IOException {
+        Tar tar = new Tar();
+        tar.entry("big.bin", '0', mBig);
+        byte[] archive = tar.finish();
+
+        try {
+            new ArchiveExtractor(ArchiveExtractor.FORMAT_TAR)
+                    .extract(new ByteArrayInputStream(archive, 0, 100000), mDir);
+            fail("truncated archive passed");
+        } catch (IOException expected) {
+            assertFalse(expected instanceof DownloadException);
+        }
+    }
+
+    private void assertOutside(int format, byte[] archive) throws IOException {
+        try {
+            new ArchiveExtractor(format).extract(new ByteArrayInputStream(archive), mDir);
+            fail("entry outside the target passed");
+        } catch (DownloadException e) {
+            assertEquals(DownloadReason.ERROR_FILE_ERROR, e.getReason());
+            assertTrue(e.getMessage(), e.getMessage().startsWith("entry outside target dir"));
+        }
+    }
+
+    /** @param data null for a directory */
+    private static void putZip(ZipOutputStream zip, String name, byte[] data) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        if (data != null) {
+            zip.write(data);
+        }
+        zip.closeEntry();
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] b = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            int n;
+            while (off < b.length && (n = in.read(b, off, b.length - off)) > 0) {
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** Writes a ustar archive with GNU long names and pax headers. */
+    private static final class Tar {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        void entry(String name, char type, byte[] data) throws IOException {
+            write(header(name, "", type, data.length), data);
+        }
+
+        void prefixed(String prefix, String name, byte[] data) throws IOException {
+            write(header(name, prefix, '0', data.length), data);
+        }
+
+        void longName(String name) throws IOException {
+            byte[] data = (name + "\0").getBytes("UTF-8");
+            write(header("././@LongLink", "", 'L', data.length), data);
+        }
+
+        void pax(String path) throws IOException {
+            String record = " path=" + path + "\n";
+            // 记录长度包括长度数字本身
+            int length = record.length() + 1;
+            length = record.length() + String.valueOf(length).length();
+            byte[] data = (length + record).getBytes("UTF-8");
+            write(header("PaxHeader", "", 'x', data.length), data);
+        }
+
+        byte[] finish() {
+            mOut.write(new byte[1024], 0, 1024);
+            return mOut.toByteArray();
+        }
+
+        private void write(byte[] header, byte[] data) {
+            mOut.write(header, 0, header.length);
+            mOut.write(data, 0, data.length);
+            int padding = (512 - data.length % 512) % 512;
+            mOut.write(new byte[padding], 0, padding);
+        }
+
+        private static byte[] header(String name, String prefix, char type, long size)
+                throws IOException {
+            byte[] h = new byte[512];
+            put(h, 0, name);
+            put(h, 100, "0000644");
+            put(h, 124, String.format("%011o", size));
+            put(h, 136, String.format("%011o", 1700000000L));
+            h[156] = (byte) type;
+            put(h, 257, "ustar");
+            put(h, 263, "00");
+            put(h, 345, prefix);
+            // 校验和按8个空格计算
+            Arrays.fill(h, 148, 156, (byte) ' ');
+            int sum = 0;
+            for (byte b : h) {
+                sum += b & 0xff;
+            }
+            put(h, 148, String.format("%06o", sum));
+            h[154] = 0;
+            return h;
+        }
+
+        private static void put(byte[] h, int off, String value) throws IOException {
+            byte[] bytes = value.getBytes("UTF-8");
+            System.arraycopy(bytes, 0, h, off, bytes.length);
+        }
+    }
+}
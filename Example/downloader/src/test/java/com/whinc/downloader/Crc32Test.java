@@ -0,0 +1,85 @@
+package com.whinc.downloader;
+
+import org.junit.Test;
+
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link Crc32} against {@link CRC32} and known CRC-32C values, and the combination of
+ * adjacent ranges.
+ */
+public class Crc32Test {
+    private static final byte[] CHECK = "123456789".getBytes();
+
+    @Test
+    public void crc32MatchesZip() {
+        byte[] data = LocalServer.body(100003);
+        Crc32 crc = new Crc32(Crc32.CRC32_POLY);
+        // 分几次写入, 覆盖8字节循环和尾部
+        crc.update(data, 0, 5);
+        crc.update(data, 5, 64);
+        crc.update(data, 69, data.length - 69);
+
+        assertEquals(zipCrc(data, 0, data.length), crc.getValue());
+    }
+
+    @Test
+    public void crc32cCheckValue() {
+        Crc32 crc = new Crc32(Crc32.CRC32C_POLY);
+        crc.update(CHECK, 0, CHECK.length);
+
+        assertEquals(0xe3069283L, crc.getValue());
+    }
+
+    @Test
+    public void digestIsBigEndianAndResets() {
+        Crc32 crc = new Crc32(Crc32.CRC32_POLY);
+        crc.update(CHECK, 0, CHECK.length);
+
+        assertEquals("cbf43926", StreamDigest.toHex(crc.digest()));
+        assertEquals(0, crc.getValue());
+    }
+
+    @Test
+    public void combineJoinsAdjacentRanges() {
+        byte[] data = LocalServer.body(300000);
+        for (int split : new int[]{0, 1, 7, 8, 4096, 123457, data.length}) {
+            for (int poly : new int[]{Crc32.CRC32_POLY, Crc32.CRC32C_POLY}) {
+                long whole = crcOf(poly, data, 0, data.length);
+                long first = crcOf(poly, data, 0, split);
+                long second = crcOf(poly, data, split, data.length - split);
+
+                assertEquals("split at " + split, whole,
+                        Crc32.combine(poly, first, second, data.length - split));
+            }
+        }
+    }
+
+    @Test
+    public void combineOfManyRanges() {
+        byte[] data = LocalServer.body(1 << 20);
+        int[] bounds = {0, 1000, 1001, 65536, 500000, data.length};
+        long crc = 0;
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            int len = bounds[i + 1] - bounds[i];
+            crc = Crc32.combine(Crc32.CRC32_POLY, crc,
+                    crcOf(Crc32.CRC32_POLY, data, bounds[i], len), len);
+        }
+
+        assertEquals(zipCrc(data, 0, data.length), crc);
+    }
+
+    private static long crcOf(int poly, byte[] data, int off, int len) {
+        Crc32 crc = new Crc32(poly);
+        crc.update(data, off, len);
+        return crc.getValue();
+    }
+
+    private static long zipCrc(byte[] data, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,227 @@
+package com.whinc.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a {@link DeltaUpdate} of an old file to the version served by a {@link LocalServer}.
+ */
+public class DeltaUpdateTest {
+    private static final int BLOCK = 4096;
+    /** not a multiple of the block size, the last block is short */
+    private static final int LENGTH = 64 * BLOCK + 1000;
+
+    private final byte[] mBody = LocalServer.body(LENGTH);
+    private final HttpStack mStack = new PooledHttpStack(new ConnectionPool());
+    private ExecutorService mExecutor;
+    private LocalServer mServer;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mExecutor = Executors.newCachedThreadPool();
+        mServer = new LocalServer(mBody);
+        mFile = File.createTempFile("delta", ".bin");
+        write(mFile, mBody);
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        DeltaManifest.write(mFile, BLOCK, manifest);
+        mServer.serve("/file.manifest", manifest.toByteArray());
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        mExecutor.shutdownNow();
+        new File(mFile.getPath() + ".delta").delete();
+        mFile.delete();
+    }
+
+    @Test
+    public void changedBlockIsFetchedInPlace() throws IOException {
+        byte[] old = mBody.clone();
+        old[10 * BLOCK + 5] ^= 1;
+        write(mFile, old);
+        RandomAccessFile open = new RandomAccessFile(mFile, "r");
+        try {
+            assertNull(run());
+
+            // 原地更新: 打开的文件也看到新内容
+            assertEquals(mBody[10 * BLOCK + 5], readAt(open, 10 * BLOCK + 5));
+        } finally {
+            open.close();
+        }
+        assertTrue(Arrays.equals(mBody, read(mFile)));
+        assertEquals(Arrays.asList(range(10, 11)), fetchedRanges());
+    }
+
+    @Test
+    public void shiftedBlocksAreFoundByTheRollingWindow() throws IOException {
+        // 在第20块中间插入7字节, 之后的块都错开了7字节
+        int at = 20 * BLOCK + 100;
+        byte[] old = new byte[LENGTH + 7];
+        System.arraycopy(mBody, 0, old, 0, at);
+        System.arraycopy(mBody, at, old, at + 7, LENGTH - at);
+        write(mFile, old);
+        RandomAccessFile open = new RandomAccessFile(mFile, "r");
+        try {
+            assertNull(run());
+
+            // 在临时文件中组装后改名, 打开的旧文件不变
+            assertEquals(old.length, open.length());
+        } finally {
+            open.close();
+        }
+        assertTrue(Arrays.equals(mBody, read(mFile)));
+        assertEquals(Arrays.asList(range(20, 21)), fetchedRanges());
+        assertFalse(new File(mFile.getPath() + ".delta").exists());
+    }
+
+    @Test
+    public void removedDataAndShortLastBlock() throws IOException {
+        // 删除开头的3000字节, 短的最后一块在旧文件的末尾
+        byte[] old = Arrays.copyOfRange(mBody, 3000, LENGTH);
+        write(mFile, old);
+
+        assertNull(run());
+
+        assertTrue(Arrays.equals(mBody, read(mFile)));
+        assertEquals(Arrays.asList(range(0, 1)), fetchedRanges());
+    }
+
+    @Test
+    public void adjacentMissingBlocksShareOneRange() throws IOException {
+        byte[] old = mBody.clone();
+        for (int block = 30; block < 34; block++) {
+            old[block * BLOCK] ^= 1;
+        }
+        old[50 * BLOCK] ^= 1;
+        write(mFile, old);
+
+        assertNull(run());
+
+        assertTrue(Arrays.equals(mBody, read(mFile)));
+        List<String> ranges = fetchedRanges();
+        assertEquals(2, ranges.size());
+        assertTrue(ranges.contains(range(30, 34)));
+        assertTrue(ranges.contains(range(50, 51)));
+    }
+
+    @Test
+    public void unrelatedFileIsDownloadedCompletely() throws IOException {
+        write(mFile, new byte[LENGTH]);
+
+        assertNull(run());
+
+        assertTrue(Arrays.equals(mBody, read(mFile)));
+        long fetched = 0;
+        for (String range : fetchedRanges()) {
+            String[] bounds = range.substring(6).split("-");
+            fetched += Long.parseLong(bounds[1]) - Long.parseLong(bounds[0]) + 1;
+        }
+        assertTrue(fetched >= LENGTH);
+    }
+
+    @Test
+    public void fetchedBlockNotMatchingTheManifestFails() throws IOException {
+        byte[] old = mBody.clone();
+        old[5 * BLOCK] ^= 1;
+        write(mFile, old);
+        byte[] served = mBody.clone();
+        served[5 * BLOCK + 1] ^= 1;
+        mServer.serve("/file.bin", served);
+
+        String failure = run();
+        assertNotNull(failure);
+        assertTrue(failure, failure.startsWith(DownloadReason.ERROR_DIGEST_MISMATCH + " "));
+    }
+
+    /** @return reason and message of the failure, null on success */
+    private String run() {
+        final String[] failure = new String[1];
+        new HttpTransfer(mStack, mExecutor, mServer.url(), mFile, 4, false, new TransferListener() {
+            @Override
+            public void onStarted(long totalBytes) {
+            }
+
+            @Override
+            public void onProgress(long downloadedBytes, long totalBytes) {
+            }
+
+            @Override
+            public void onSuccessful(File file) {
+            }
+
+            @Override
+            public void onFailed(int reason, String message) {
+                failure[0] = reason + " " + message;
+            }
+        }).setDeltaManifest(mServer.url("/file.manifest")).run();
+        return failure[0];
+    }
+
+    /** @return the Range header that fetches blocks [from, to) */
+    private static String range(int from, int to) {
+        long end = Math.min((long) to * BLOCK, LENGTH) - 1;
+        return "bytes=" + (long) from * BLOCK + "-" + end;
+    }
+
+    /** @return the Range headers sent, without the manifest and the probe */
+    private List<String> fetchedRanges() {
+        List<String> ranges = new ArrayList<String>();
+        for (String range : mServer.getRanges()) {
+            if (range != null) {
+                ranges.add(range);
+            }
+        }
+        return ranges;
+    }
+
+    private static byte readAt(RandomAccessFile raf, long position) throws IOException {
+        raf.seek(position);
+        return raf.readByte();
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] b = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            int n;
+            while (off < b.length && (n = in.read(b, off, b.length - off)) > 0) {
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+}
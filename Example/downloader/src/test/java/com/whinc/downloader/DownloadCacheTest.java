@@ -0,0 +1,229 @@
+package com.whinc.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the index, the shared files and the eviction of a {@link DownloadCache}.
+ */
+public class DownloadCacheTest {
+    private static final int SIZE = 10000;
+
+    private File mDir;
+    private File mSource;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("cache", ".dir");
+        mDir.delete();
+        mSource = File.createTempFile("cache", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+        mSource.delete();
+    }
+
+    @Test
+    public void storedFileIsNamedByItsDigest() throws IOException {
+        DownloadCache cache = new DownloadCache(mDir, 10 * SIZE);
+        byte[] data = content(1);
+
+        put(cache, "http://a/1", data);
+
+        DownloadCache.Entry entry = cache.get("http://a/1");
+        assertNotNull(entry);
+        assertEquals(sha256(data), entry.digest);
+        assertEquals(SIZE, entry.length);
+        assertEquals("\"e\"", entry.etag);
+        assertTrue(cache.contains(entry.digest));
+        File copy = new File(mDir, "copy");
+        assertTrue(cache.copyTo(entry.digest, copy));
+        assertTrue(Arrays.equals(data, read(copy)));
+    }
+
+    @Test
+    public void sameContentIsStoredOnce() throws IOException {
+        DownloadCache cache = new DownloadCache(mDir, 10 * SIZE);
+        put(cache, "http://a/1", content(1));
+        put(cache, "http://b/1", content(1));
+
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(SIZE, cache.getSize());
+        String digest = cache.get("http://a/1").digest;
+
+        cache.remove("http://a/1");
+        // 另一个url仍引用这个文件
+        assertTrue(new File(mDir, digest).isFile());
+        assertEquals(SIZE, cache.getSize());
+
+        cache.remove("http://b/1");
+        assertFalse(new File(mDir, digest).exists());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void replacedEntryReleasesItsFile() throws IOException {
+        DownloadCache cache = new DownloadCache(mDir, 10 * SIZE);
+        put(cache, "http://a/1", content(1));
+        String old = cache.get("http://a/1").digest;
+
+        put(cache, "http://a/1", content(2));
+
+        assertFalse(new File(mDir, old).exists());
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(SIZE, cache.getSize());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws IOException {
+        DownloadCache cache = new DownloadCache(mDir, 2 * SIZE + SIZE / 2);
+        put(cache, "http://a/1", content(1));
+        put(cache, "http://a/2", content(2));
+        cache.get("http://a/1");
+
+        put(cache, "http://a/3", content(3));
+
+        assertNotNull(cache.get("http://a/1"));
+        assertNull(cache.get("http://a/2"));
+        assertNotNull(cache.get("http://a/3"));
+        assertEquals(2 * SIZE, cache.getSize());
+    }
+
+    @Test
+    public void uncacheableResponsesAreNotStored() throws IOException {
+        DownloadCache cache = new DownloadCache(mDir, SIZE / 2);
+        write(mSource, content(1));
+
+        cache.put("http://a/1", mSource, "\"e\"", null);
+        cache.put("http://a/2", mSource, null, null);
+
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(Arrays.asList(new String[0]), Arrays.asList(cacheFiles()));
+    }
+
+    @Test
+    public void indexIsReadAgain() throws IOException {
+        DownloadCache cache = new DownloadCache(mDir, 2 * SIZE + SIZE / 2);
+        put(cache, "http://a/1", content(1));
+        put(cache, "http://a/2", content(2));
+        put(cache, "http://b/2", content(2));
+
+        DownloadCache reopened = new DownloadCache(mDir, 2 * SIZE + SIZE / 2);
+
+        assertEquals(3, reopened.getEntryCount());
+        assertEquals(2 * SIZE, reopened.getSize());
+        DownloadCache.Entry entry = reopened.get("http://a/2");
+        assertEquals(sha256(content(2)), entry.digest);
+        assertEquals("Mon, 01 Jan 2024 00:00:00 GMT", entry.lastModified);
+        // 引用计数和使用顺序也恢复了
+        reopened.remove("http://a/2");
+        assertTrue(reopened.contains(entry.digest));
+        put(reopened, "http://a/3", content(3));
+        assertNull(reopened.get("http://a/1"));
+        assertNotNull(reopened.get("http://b/2"));
+    }
+
+    @Test
+    public void damagedIndexEmptiesOnlyTheCachesFiles() throws IOException {
+        DownloadCache cache = new DownloadCache(mDir, 10 * SIZE);
+        put(cache, "http://a/1", content(1));
+        write(new File(mDir, "index"), new byte[]{1, 2, 3});
+        write(new File(mDir, "put123.tmp"), new byte[1]);
+        write(new File(mDir, "notes.txt"), new byte[1]);
+        String upper = sha256(content(2)).toUpperCase();
+        write(new File(mDir, upper), new byte[1]);
+
+        DownloadCache reopened = new DownloadCache(mDir, 10 * SIZE);
+
+        assertEquals(0, reopened.getEntryCount());
+        assertEquals(0, reopened.getSize());
+        String[] files = cacheFiles();
+        Arrays.sort(files);
+        assertEquals(Arrays.asList(upper, "index", "notes.txt"), Arrays.asList(files));
+    }
+
+    @Test
+    public void fileDeletedFromOutsideIsNotServed() throws IOException {
+        DownloadCache cache = new DownloadCache(mDir, 10 * SIZE);
+        put(cache, "http://a/1", content(1));
+        String digest = cache.get("http://a/1").digest;
+        new File(mDir, digest).delete();
+
+        assertNull(cache.get("http://a/1"));
+        assertFalse(cache.contains(digest));
+        assertEquals(0, cache.getSize());
+    }
+
+    private void put(DownloadCache cache, String url, byte[] data) throws IOException {
+        write(mSource, data);
+        cache.put(url, mSource, "\"e\"", "Mon, 01 Jan 2024 00:00:00 GMT");
+    }
+
+    /** @return the names in the cache directory */
+    private String[] cacheFiles() {
+        String[] names = mDir.list();
+        return names == null ? new String[0] : names;
+    }
+
+    /** @return SIZE bytes, different for every seed */
+    private static byte[] content(int seed) {
+        byte[] data = LocalServer.body(SIZE);
+        data[0] = (byte) seed;
+        return data;
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return StreamDigest.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] b = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            int n;
+            while (off < b.length && (n = in.read(b, off, b.length - off)) > 0) {
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,197 @@
+package com.whinc.downloader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the limits, the order and the preemption of the {@link DownloadScheduler}.
+ */
+public class DownloadSchedulerTest {
+    private DownloadScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new DownloadScheduler();
+    }
+
+    @Test
+    public void globalLimitHoldsTasksBack() {
+        mScheduler.setMaxConcurrent(2).setMaxPerHost(10);
+        Task a = new Task("a", DownloadScheduler.PRIORITY_NORMAL);
+        Task b = new Task("b", DownloadScheduler.PRIORITY_NORMAL);
+        Task c = new Task("c", DownloadScheduler.PRIORITY_NORMAL);
+
+        mScheduler.submitAll(Arrays.asList(a, b, c));
+
+        assertEquals(1, a.started);
+        assertEquals(1, b.started);
+        assertEquals(0, c.started);
+        assertEquals(2, mScheduler.getRunningCount());
+        assertEquals(1, mScheduler.getQueuedCount());
+
+        mScheduler.finished(a, false);
+
+        assertEquals(1, c.started);
+        assertEquals(0, mScheduler.getQueuedCount());
+    }
+
+    @Test
+    public void hostLimitLetsOtherHostsPass() {
+        mScheduler.setMaxConcurrent(4).setMaxPerHost(1);
+        Task first = new Task("same", DownloadScheduler.PRIORITY_NORMAL);
+        Task second = new Task("same", DownloadScheduler.PRIORITY_NORMAL);
+        Task other = new Task("other", DownloadScheduler.PRIORITY_NORMAL);
+
+        mScheduler.submitAll(Arrays.asList(first, second, other));
+
+        assertEquals(1, first.started);
+        assertEquals(0, second.started);
+        assertEquals(1, other.started);
+
+        mScheduler.finished(first, false);
+
+        assertEquals(1, second.started);
+    }
+
+    @Test
+    public void higherPriorityStartsFirst() {
+        mScheduler.setMaxConcurrent(1).setPreemptionEnabled(false);
+        Task running = new Task("a", DownloadScheduler.PRIORITY_NORMAL);
+        mScheduler.submit(running);
+        Task low = new Task("b", DownloadScheduler.PRIORITY_LOW);
+        Task normal = new Task("c", DownloadScheduler.PRIORITY_NORMAL);
+        Task high = new Task("d", DownloadScheduler.PRIORITY_HIGH);
+        mScheduler.submitAll(Arrays.asList(low, normal, high));
+
+        mScheduler.finished(running, false);
+        assertEquals(1, high.started);
+        assertEquals(0, normal.started);
+
+        mScheduler.finished(high, false);
+        assertEquals(1, normal.started);
+        assertEquals(0, low.started);
+    }
+
+    @Test
+    public void lowerPriorityIsPreemptedAndResumed() {
+        mScheduler.setMaxConcurrent(1);
+        Task low = new Task("a", DownloadScheduler.PRIORITY_LOW).preemptible();
+        mScheduler.submit(low);
+        Task high = new Task("b", DownloadScheduler.PRIORITY_HIGH);
+
+        mScheduler.submit(high);
+
+        assertEquals(1, low.preempted);
+        // 被抢占的任务停止之前不占用它的槽位
+        assertEquals(0, high.started);
+
+        mScheduler.finished(low, true);
+
+        assertEquals(1, high.started);
+        assertEquals(1, mScheduler.getQueuedCount());
+
+        mScheduler.finished(high, false);
+
+        assertEquals(2, low.started);
+        assertEquals(1, low.preempted);
+    }
+
+    @Test
+    public void onlyOneTaskIsPreemptedAtATime() {
+        mScheduler.setMaxConcurrent(2).setMaxPerHost(10);
+        Task low1 = new Task("a", DownloadScheduler.PRIORITY_LOW).preemptible();
+        Task low2 = new Task("b", DownloadScheduler.PRIORITY_LOW).preemptible();
+        mScheduler.submitAll(Arrays.asList(low1, low2));
+
+        mScheduler.submitAll(Arrays.asList(new Task("c", DownloadScheduler.PRIORITY_HIGH),
+                new Task("d", DownloadScheduler.PRIORITY_HIGH)));
+
+        assertEquals(0, low1.preempted);
+        assertEquals(1, low2.preempted);
+
+        mScheduler.finished(low2, true);
+
+        assertEquals(1, low1.preempted);
+    }
+
+    @Test
+    public void taskThatIsNotPreemptibleKeepsItsSlot() {
+        mScheduler.setMaxConcurrent(1);
+        Task low = new Task("a", DownloadScheduler.PRIORITY_LOW);
+        mScheduler.submit(low);
+        Task high = new Task("b", DownloadScheduler.PRIORITY_HIGH);
+
+        mScheduler.submit(high);
+
+        assertEquals(0, low.preempted);
+        assertEquals(0, high.started);
+    }
+
+    @Test
+    public void removedTaskIsNotStarted() {
+        mScheduler.setMaxConcurrent(1);
+        Task running = new Task("a", DownloadScheduler.PRIORITY_NORMAL);
+        Task queued = new Task("b", DownloadScheduler.PRIORITY_NORMAL);
+        mScheduler.submitAll(Arrays.asList(running, queued));
+
+        assertFalse(mScheduler.remove(running));
+        assertTrue(mScheduler.remove(queued));
+        mScheduler.finished(running, false);
+
+        assertEquals(0, queued.started);
+        assertEquals(0, mScheduler.getRunningCount());
+        assertEquals(0, mScheduler.getQueuedCount());
+    }
+
+    @Test
+    public void occupiedSlotCountsAgainstTheLimit() {
+        mScheduler.setMaxConcurrent(1);
+        Task system = new Task("a", DownloadScheduler.PRIORITY_NORMAL);
+        mScheduler.submit(system);
+        mScheduler.finished(system, false);
+        Task next = new Task("b", DownloadScheduler.PRIORITY_NORMAL);
+        mScheduler.occupy(system);
+
+        mScheduler.submit(next);
+
+        assertEquals(0, next.started);
+        mScheduler.finished(system, false);
+        assertEquals(1, next.started);
+    }
+
+    private static final class Task extends DownloadScheduler.Task {
+        int started;
+        int preempted;
+        private boolean mPreemptible;
+
+        Task(String host, int priority) {
+            super(host, priority);
+        }
+
+        Task preemptible() {
+            mPreemptible = true;
+            return this;
+        }
+
+        @Override
+        void onStart() {
+            started++;
+        }
+
+        @Override
+        boolean isPreemptible() {
+            return mPreemptible;
+        }
+
+        @Override
+        void onPreempt() {
+            preempted++;
+        }
+    }
+}
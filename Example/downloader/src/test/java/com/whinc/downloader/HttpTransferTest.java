@@ -0,0 +1,204 @@
+package com.whinc.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link HttpTransfer} on the JVM against a {@link LocalServer}.
+ */
+public class HttpTransferTest {
+    /** large enough for four segments of {@link HttpTransfer#MIN_SEGMENT_SIZE} */
+    private static final int LENGTH = 4 * 1024 * 1024 + 123;
+
+    private final byte[] mBody = LocalServer.body(LENGTH);
+    private final HttpStack mStack = new PooledHttpStack(new ConnectionPool());
+    private ExecutorService mExecutor;
+    private LocalServer mServer;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mExecutor = Executors.newCachedThreadPool();
+        mServer = new LocalServer(mBody);
+        mFile = File.createTempFile("transfer", ".bin");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        mExecutor.shutdownNow();
+        DownloadJournal.fileFor(mFile).delete();
+        mFile.delete();
+    }
+
+    @Test
+    public void rangedDownloadUsesSegments() throws IOException {
+        Result result = run(4, false);
+
+        assertNull(result.failure, result.failure);
+        assertEquals(LENGTH, result.totalBytes);
+        assertTrue(Arrays.equals(mBody, read(mFile)));
+        List<String> ranges = mServer.getRanges();
+        // 先完成的连接可能再分走其它分段的后半部分
+        assertTrue(ranges.size() >= 4);
+        assertFalse(ranges.contains(null));
+        assertFalse(DownloadJournal.fileFor(mFile).exists());
+    }
+
+    @Test
+    public void serverIgnoringRangesIsDownloadedAsOneStream() throws IOException {
+        mServer.setRangesEnabled(false);
+
+        Result result = run(4, false);
+
+        assertNull(result.failure, result.failure);
+        assertTrue(Arrays.equals(mBody, read(mFile)));
+        assertEquals(1, mServer.getGetCount());
+        assertNull(mServer.getRanges().get(0));
+        assertFalse(DownloadJournal.fileFor(mFile).exists());
+    }
+
+    @Test
+    public void resumeDownloadsOnlyMissingRanges() throws IOException {
+        mServer.setTruncate(256 * 1024);
+        Result first = run(4, false);
+        assertEquals(DownloadReason.ERROR_HTTP_DATA_ERROR, first.reason);
+        assertTrue(DownloadJournal.fileFor(mFile).exists());
+        DownloadJournal journal = DownloadJournal.open(mFile);
+        Segment[] segments = journal.segments();
+        journal.close();
+        long done = 0;
+        for (Segment segment : segments) {
+            done += segment.position - segment.start;
+        }
+        assertTrue(done > 0);
+        int requests = mServer.getRanges().size();
+
+        mServer.setTruncate(-1);
+        Result second = run(4, true);
+
+        assertNull(second.failure, second.failure);
+        assertTrue(Arrays.equals(mBody, read(mFile)));
+        // 每个分段从日志记录的位置继续
+        List<String> ranges = mServer.getRanges().subList(requests, mServer.getRanges().size());
+        for (Segment segment : segments) {
+            if (!segment.isDone()) {
+                String range = "bytes=" + segment.position + "-" + (segment.end - 1);
+                assertTrue(ranges + " lacks " + range, ranges.contains(range));
+            }
+        }
+        assertFalse(DownloadJournal.fileFor(mFile).exists());
+    }
+
+    @Test
+    public void shortStreamFailsWithDataError() throws IOException {
+        mServer.setRangesEnabled(false).setTruncate(LENGTH / 2);
+
+        Result result = run(4, false);
+
+        assertEquals(DownloadReason.ERROR_HTTP_DATA_ERROR, result.reason);
+    }
+
+    @Test
+    public void shortSegmentFailsWithDataError() throws IOException {
+        mServer.setTruncate(1000);
+
+        Result result = run(4, false);
+
+        assertEquals(DownloadReason.ERROR_HTTP_DATA_ERROR, result.reason);
+    }
+
+    @Test
+    public void httpErrorIsReportedAsReason() throws IOException {
+        mServer.setErrorCode(404);
+        assertEquals(404, run(4, false).reason);
+
+        mServer.setErrorCode(503);
+        assertEquals(503, run(4, false).reason);
+    }
+
+    @Test
+    public void unexpectedStatusIsUnhandledHttpCode() throws IOException {
+        mServer.setErrorCode(304);
+
+        assertEquals(DownloadReason.ERROR_UNHANDLED_HTTP_CODE, run(4, false).reason);
+    }
+
+    @Test
+    public void cancelAfterResultIsRefused() throws IOException {
+        HttpTransfer transfer = transfer(4, false, new Result());
+        transfer.run();
+
+        assertTrue(transfer.isCompleted());
+        assertFalse(transfer.cancel());
+        assertTrue(Arrays.equals(mBody, read(mFile)));
+    }
+
+    private Result run(int segments, boolean resume) {
+        Result result = new Result();
+        transfer(segments, resume, result).run();
+        return result;
+    }
+
+    private HttpTransfer transfer(int segments, boolean resume, final Result result) {
+        return new HttpTransfer(mStack, mExecutor, mServer.url(), mFile, segments, resume,
+                new TransferListener() {
+                    @Override
+                    public void onStarted(long totalBytes) {
+                        result.totalBytes = totalBytes;
+                    }
+
+                    @Override
+                    public void onProgress(long downloadedBytes, long totalBytes) {
+                    }
+
+                    @Override
+                    public void onSuccessful(File file) {
+                    }
+
+                    @Override
+                    public void onFailed(int reason, String message) {
+                        result.reason = reason;
+                        result.failure = reason + " " + message;
+                    }
+                });
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] b = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            int n;
+            while (off < b.length && (n = in.read(b, off, b.length - off)) > 0) {
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    private static final class Result {
+        long totalBytes = -1;
+        int reason;
+        /** reason and message of the failure, null on success */
+        String failure;
+    }
+}
@@ -0,0 +1,197 @@
+package com.whinc.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the {@link IntegrityCheck} of segments written in any order, of blocks and of resumed
+ * segments, without a download.
+ */
+public class IntegrityCheckTest {
+    private static final int BLOCK = 4096;
+
+    private final byte[] mData = LocalServer.body(10 * BLOCK + 100);
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("check", ".bin");
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(mData);
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void crcOfSegmentsWrittenOutOfOrder() throws IOException {
+        IntegrityCheck check = IntegrityCheck.forFile("CRC32", crc32(mData));
+        Segment[] segments = Segment.split(mData.length, 3, 1);
+        check.start(mData.length, segments, mFile, false);
+        // 最后一段先完成, 第一段中途分出一个新分段
+        write(check, segments[2], segments[2].end);
+        Segment tail = segments[0].splitTail(3, 0, 1, 1);
+        check.add(tail);
+        write(check, tail, tail.end);
+        write(check, segments[0], segments[0].end);
+        write(check, segments[1], segments[1].end);
+
+        check.verify(mFile);
+    }
+
+    @Test
+    public void wrongCrcIsMismatch() throws IOException {
+        IntegrityCheck check = IntegrityCheck.forFile("CRC32C", "00000000");
+        Segment[] segments = Segment.split(mData.length, 2, 1);
+        check.start(mData.length, segments, mFile, false);
+        for (Segment segment : segments) {
+            write(check, segment, segment.end);
+        }
+
+        assertMismatch(check);
+    }
+
+    @Test
+    public void messageDigestOfOneSegment() throws IOException {
+        String expected = digest("SHA-256", mData, 0, mData.length);
+        IntegrityCheck check = IntegrityCheck.forFile("SHA-256", expected);
+        Segment segment = new Segment(0, 0, mData.length);
+        check.start(mData.length, new Segment[]{segment}, mFile, false);
+        write(check, segment, segment.end);
+
+        check.verify(mFile);
+    }
+
+    @Test
+    public void resumedSegmentsRestoreTheirDigest() throws IOException {
+        IntegrityCheck check = IntegrityCheck.forFile("CRC32", crc32(mData));
+        Segment[] segments = Segment.split(mData.length, 2, 1);
+        segments[0].position = 1000;
+        segments[1].position = segments[1].start + 5000;
+        check.start(mData.length, segments, mFile, true);
+        for (Segment segment : segments) {
+            write(check, segment, segment.end);
+        }
+
+        check.verify(mFile);
+    }
+
+    @Test
+    public void blocksAreCheckedWhenComplete() throws IOException {
+        String[] digests = blockDigests();
+        digests[3] = digests[2];
+        IntegrityCheck check = IntegrityCheck.forBlocks("MD5", BLOCK, digests);
+        Segment segment = new Segment(0, 0, mData.length);
+        check.start(mData.length, new Segment[]{segment}, mFile, false);
+        write(check, segment, 3 * BLOCK + 100);
+
+        try {
+            // 第4块写完时立即失败, 不等到下载结束
+            write(check, segment, 4 * BLOCK);
+            fail("wrong block passed");
+        } catch (DownloadException e) {
+            assertEquals(DownloadReason.ERROR_DIGEST_MISMATCH, e.getReason());
+        }
+    }
+
+    @Test
+    public void lastShortBlockIsCheckedByVerify() throws IOException {
+        String[] digests = blockDigests();
+        digests[digests.length - 1] = digests[0];
+        IntegrityCheck check = IntegrityCheck.forBlocks("MD5", BLOCK, digests);
+        Segment segment = new Segment(0, 0, mData.length);
+        check.start(mData.length, new Segment[]{segment}, mFile, false);
+        write(check, segment, segment.end);
+
+        assertMismatch(check);
+    }
+
+    @Test
+    public void alignedSegmentsAndResumeInsideABlock() throws IOException {
+        IntegrityCheck check = IntegrityCheck.forBlocks("MD5", BLOCK, blockDigests());
+        Segment[] segments = Segment.split(mData.length, 3, 1, check.alignment());
+        for (Segment segment : segments) {
+            assertEquals(0, segment.start % BLOCK);
+        }
+        // 从当前块的开头重新计算摘要
+        segments[1].position = segments[1].start + BLOCK + 10;
+        check.start(mData.length, segments, mFile, true);
+        for (Segment segment : segments) {
+            write(check, segment, segment.end);
+        }
+
+        check.verify(mFile);
+    }
+
+    @Test
+    public void wrongBlockCountFailsAtStart() {
+        String[] digests = Arrays.copyOf(blockDigests(), 3);
+        IntegrityCheck check = IntegrityCheck.forBlocks("MD5", BLOCK, digests);
+        try {
+            check.start(mData.length, new Segment[]{new Segment(0, 0, mData.length)}, mFile, false);
+            fail("block count not checked");
+        } catch (DownloadException e) {
+            assertEquals(DownloadReason.ERROR_DIGEST_MISMATCH, e.getReason());
+        }
+    }
+
+    /** Feed segment's bytes up to end into check, in uneven pieces. */
+    private void write(IntegrityCheck check, Segment segment, long end) throws DownloadException {
+        while (segment.position < end) {
+            int n = (int) Math.min(1000, end - segment.position);
+            check.update(segment, segment.position, mData, (int) segment.position, n);
+            segment.position += n;
+        }
+    }
+
+    private String[] blockDigests() {
+        int blocks = (mData.length + BLOCK - 1) / BLOCK;
+        String[] digests = new String[blocks];
+        for (int i = 0; i < blocks; i++) {
+            int off = i * BLOCK;
+            digests[i] = digest("MD5", mData, off, Math.min(BLOCK, mData.length - off));
+        }
+        return digests;
+    }
+
+    private void assertMismatch(IntegrityCheck check) throws IOException {
+        try {
+            check.verify(mFile);
+            fail("mismatch not detected");
+        } catch (DownloadException e) {
+            assertEquals(DownloadReason.ERROR_DIGEST_MISMATCH, e.getReason());
+        }
+    }
+
+    private static String crc32(byte[] data) {
+        Crc32 crc = new Crc32(Crc32.CRC32_POLY);
+        crc.update(data, 0, data.length);
+        return StreamDigest.toHex(crc.digest());
+    }
+
+    private static String digest(String algorithm, byte[] data, int off, int len) {
+        try {
+            MessageDigest md = MessageDigest.getInstance(algorithm);
+            md.update(data, off, len);
+            return StreamDigest.toHex(md.digest());
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
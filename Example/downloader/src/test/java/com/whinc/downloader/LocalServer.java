@@ -0,0 +1,264 @@
+package com.whinc.downloader;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP/1.1 server on the loopback interface for the engine tests, serving the same body at every
+ * path not given its own with {@link #serve(String, byte[])}. Every response closes its connection.
+ */
+final class LocalServer {
+    static final String ETAG = "\"v1\"";
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final byte[] mBody;
+    private final ServerSocket mServerSocket;
+    private final Map<String, byte[]> mBodies = new ConcurrentHashMap<String, byte[]>();
+    private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicLong mGets = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    private volatile boolean mRangesEnabled = true;
+    private volatile int mErrorCode;
+    private volatile long mTruncate = -1;
+    private volatile int mChunkSize;
+
+    LocalServer(byte[] body) throws IOException {
+        mBody = body;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "LocalServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** @return body of length bytes with a fixed content */
+    static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 31 + (i >>> 11));
+        }
+        return body;
+    }
+
+    String url() {
+        return url("/file.bin");
+    }
+
+    /** @param path starting with '/' */
+    String url(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    /** Serve body at path, starting with '/', instead of the body given to the constructor. */
+    LocalServer serve(String path, byte[] body) {
+        mBodies.put(path, body);
+        return this;
+    }
+
+    /** Serve byte ranges, default is true. Without, every request receives the whole body with 200. */
+    LocalServer setRangesEnabled(boolean enabled) {
+        mRangesEnabled = enabled;
+        return this;
+    }
+
+    /** Answer every request with code, 0 for none, the default. */
+    LocalServer setErrorCode(int code) {
+        mErrorCode = code;
+        return this;
+    }
+
+    /** Close every response after bytes bytes of its body, -1 to send the whole body, the default. */
+    LocalServer setTruncate(long bytes) {
+        mTruncate = bytes;
+        return this;
+    }
+
+    /**
+     * Send bodies with chunked transfer encoding in chunks of size bytes and without ranges, 0 to
+     * send a Content-Length, the default.
+     */
+    LocalServer setChunked(int size) {
+        mChunkSize = size;
+        return this;
+    }
+
+    /** @return number of GET requests */
+    long getGetCount() {
+        return mGets.get();
+    }
+
+    /** @return body bytes written to all connections */
+    long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /** @return Range headers of the GET requests, null for a request without */
+    List<String> getRanges() {
+        synchronized (mRanges) {
+            return new ArrayList<String>(mRanges);
+        }
+    }
+
+    void stop() {
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;     // 已停止
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        respond(socket);
+                    } catch (IOException ignored) {
+                        // 客户端断开
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }, "LocalServer-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void respond(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return;
+        }
+        String range = null;
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.US).equals("range")) {
+                range = line.substring(colon + 1).trim();
+            }
+        }
+        boolean head = requestLine.startsWith("HEAD ");
+        String[] parts = requestLine.split(" ");
+        byte[] body = parts.length > 1 ? mBodies.get(parts[1]) : null;
+        if (body == null) {
+            body = mBody;
+        }
+        if (!head) {
+            mGets.incrementAndGet();
+            mRanges.add(range);
+        }
+        OutputStream out = socket.getOutputStream();
+        int error = mErrorCode;
+        if (error != 0) {
+            writeHead(out, error + " Error", "Content-Length: 0\r\n");
+            return;
+        }
+
+        int chunk = mChunkSize;
+        if (chunk > 0) {
+            writeHead(out, "200 OK", "ETag: " + ETAG + "\r\nTransfer-Encoding: chunked\r\n");
+            if (!head) {
+                writeChunked(out, body, chunk);
+            }
+            return;
+        }
+
+        boolean ranges = mRangesEnabled;
+        int start = 0;
+        int end = body.length - 1;
+        StringBuilder headers = new StringBuilder("ETag: " + ETAG + "\r\n");
+        String status = "200 OK";
+        if (ranges) {
+            headers.append("Accept-Ranges: bytes\r\n");
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring(6).split("-", -1);
+                start = Integer.parseInt(bounds[0]);
+                if (bounds[1].length() > 0) {
+                    end = Math.min(end, Integer.parseInt(bounds[1]));
+                }
+                status = "206 Partial Content";
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                        .append('/').append(body.length).append("\r\n");
+            }
+        }
+        int length = end - start + 1;
+        headers.append("Content-Length: ").append(length).append("\r\n");
+        writeHead(out, status, headers.toString());
+        if (head) {
+            return;
+        }
+        long truncate = mTruncate;
+        int n = truncate >= 0 ? (int) Math.min(truncate, length) : length;
+        out.write(body, start, n);
+        out.flush();
+        mBytesSent.addAndGet(n);
+    }
+
+    /** Write body in chunks, the first with an extension, and a trailer after the last. */
+    private void writeChunked(OutputStream out, byte[] body, int chunk) throws IOException {
+        long truncate = mTruncate;
+        int end = truncate >= 0 ? (int) Math.min(truncate, body.length) : body.length;
+        for (int off = 0; off < body.length; off += chunk) {
+            int n = Math.min(chunk, body.length - off);
+            String size = Integer.toHexString(n) + (off == 0 ? ";name=value" : "") + "\r\n";
+            out.write(size.getBytes("ISO-8859-1"));
+            if (off + n > end) {
+                out.write(body, off, end - off);
+                out.flush();
+                mBytesSent.addAndGet(end - off);
+                return;
+            }
+            out.write(body, off, n);
+            out.write(CRLF);
+            mBytesSent.addAndGet(n);
+        }
+        out.write("0\r\nX-Trailer: done\r\n\r\n".getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private static void writeHead(OutputStream out, String status, String headers) throws IOException {
+        String head = "HTTP/1.1 " + status + "\r\n" + headers + "Connection: close\r\n\r\n";
+        out.write(head.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    /** @return the line without CRLF, or null at the end of the stream */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return c == -1 && line.length() == 0 ? null : line.toString();
+    }
+}
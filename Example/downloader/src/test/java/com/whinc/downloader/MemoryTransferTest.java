@@ -0,0 +1,149 @@
+package com.whinc.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Loads bodies served by a {@link LocalServer} with a {@link MemoryTransfer}, in memory or spilled
+ * to a file at the limit.
+ */
+public class MemoryTransferTest {
+    private static final int LIMIT = 3 * BufferPool.BUFFER_SIZE;
+
+    private final HttpStack mStack = new PooledHttpStack(new ConnectionPool());
+    private LocalServer mServer;
+    private File mSpillFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mSpillFile = File.createTempFile("spill", ".bin");
+        mSpillFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (mServer != null) {
+            mServer.stop();
+        }
+        mSpillFile.delete();
+    }
+
+    @Test
+    public void smallBodyIsKeptInAPooledBuffer() throws IOException {
+        byte[] body = LocalServer.body(1000);
+        mServer = new LocalServer(body);
+
+        assertLoadedInMemory(body);
+    }
+
+    @Test
+    public void bodyOfTheLimitIsKeptInMemory() throws IOException {
+        byte[] body = LocalServer.body(LIMIT);
+        mServer = new LocalServer(body);
+
+        assertLoadedInMemory(body);
+    }
+
+    @Test
+    public void bodyOverTheLimitIsSpilledBeforeReading() throws IOException {
+        byte[] body = LocalServer.body(LIMIT + 1);
+        mServer = new LocalServer(body);
+
+        assertNull(newTransfer(null).load());
+
+        assertTrue(Arrays.equals(body, read(mSpillFile)));
+    }
+
+    @Test
+    public void unknownLengthGrowsUpToTheLimit() throws IOException {
+        // 从一个池中缓冲区开始, 翻倍直到上限
+        byte[] body = LocalServer.body(LIMIT);
+        mServer = new LocalServer(body).setChunked(10000);
+
+        assertLoadedInMemory(body);
+    }
+
+    @Test
+    public void unknownLengthOverTheLimitIsSpilledWhileReading() throws IOException {
+        byte[] body = LocalServer.body(LIMIT + 1);
+        mServer = new LocalServer(body).setChunked(10000);
+
+        assertNull(newTransfer(null).load());
+
+        // 已读入内存的字节和其余的字节都写入了文件
+        assertTrue(Arrays.equals(body, read(mSpillFile)));
+    }
+
+    @Test
+    public void failedSpillDeletesTheFile() throws IOException {
+        mServer = new LocalServer(LocalServer.body(2 * LIMIT)).setTruncate(LIMIT + 100);
+
+        try {
+            newTransfer(null).load();
+            fail("truncated body loaded");
+        } catch (IOException expected) {
+        }
+
+        assertFalse(mSpillFile.exists());
+    }
+
+    @Test
+    public void bodyNotMatchingTheDigestFails() throws IOException {
+        mServer = new LocalServer(LocalServer.body(1000));
+
+        try {
+            newTransfer(IntegrityCheck.forFile("CRC32", "00000000")).load();
+            fail("body with another digest loaded");
+        } catch (DownloadException e) {
+            assertEquals(DownloadReason.ERROR_DIGEST_MISMATCH, e.getReason());
+        }
+    }
+
+    private void assertLoadedInMemory(byte[] body) throws IOException {
+        MemoryTransfer transfer = newTransfer(null);
+
+        ByteBuffer loaded = transfer.load();
+
+        assertNotNull(loaded);
+        assertEquals(0, loaded.position());
+        byte[] bytes = new byte[loaded.remaining()];
+        loaded.get(bytes);
+        assertTrue(Arrays.equals(body, bytes));
+        assertFalse(mSpillFile.exists());
+        transfer.release(loaded);
+    }
+
+    private MemoryTransfer newTransfer(IntegrityCheck check) {
+        return new MemoryTransfer(mStack, mServer.url(), LIMIT, mSpillFile, check, null);
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] b = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            int n;
+            while (off < b.length && (n = in.read(b, off, b.length - off)) > 0) {
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+}
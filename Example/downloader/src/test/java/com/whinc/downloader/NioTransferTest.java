@@ -0,0 +1,231 @@
+package com.whinc.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link HttpTransfer}s on an {@link EventLoop}, that is through a {@link NioTransfer},
+ * against a {@link LocalServer}.
+ */
+public class NioTransferTest {
+    /** the carrier threads are daemons and cannot be stopped, one loop serves all tests */
+    private static final EventLoop sLoop = new EventLoop(1, 2);
+
+    private final HttpStack mStack = new PooledHttpStack(new ConnectionPool());
+    private ExecutorService mExecutor;
+    private LocalServer mServer;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mExecutor = Executors.newCachedThreadPool();
+        mFile = File.createTempFile("nio", ".bin");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (mServer != null) {
+            mServer.stop();
+        }
+        mExecutor.shutdownNow();
+        mFile.delete();
+    }
+
+    @Test
+    public void fixedLengthBody() throws Exception {
+        byte[] body = LocalServer.body(3 * BufferPool.BUFFER_SIZE + 17);
+        mServer = new LocalServer(body);
+
+        Result result = start(null).await();
+
+        assertNull(result.failure, result.failure);
+        assertEquals(body.length, result.totalBytes);
+        assertTrue(Arrays.equals(body, read(mFile)));
+        // 不发HEAD和Range请求
+        assertEquals(Arrays.asList((String) null), mServer.getRanges());
+    }
+
+    @Test
+    public void smallBody() throws Exception {
+        byte[] body = LocalServer.body(100);
+        mServer = new LocalServer(body);
+
+        Result result = start(null).await();
+
+        assertNull(result.failure, result.failure);
+        assertTrue(Arrays.equals(body, read(mFile)));
+    }
+
+    @Test
+    public void chunkedBodyIsDecoded() throws Exception {
+        // 块大小与缓冲区大小不对齐, 块头和块数据会跨越读取的边界
+        byte[] body = LocalServer.body(2 * BufferPool.BUFFER_SIZE + 12345);
+        mServer = new LocalServer(body).setChunked(1000);
+
+        Result result = start(null).await();
+
+        assertNull(result.failure, result.failure);
+        assertEquals(-1, result.totalBytes);
+        assertTrue(Arrays.equals(body, read(mFile)));
+    }
+
+    @Test
+    public void largeChunksSpanBothBuffers() throws Exception {
+        byte[] body = LocalServer.body(5 * BufferPool.BUFFER_SIZE + 1);
+        mServer = new LocalServer(body).setChunked(3 * BufferPool.BUFFER_SIZE / 2);
+
+        Result result = start(null).await();
+
+        assertNull(result.failure, result.failure);
+        assertTrue(Arrays.equals(body, read(mFile)));
+    }
+
+    @Test
+    public void chunkedBodyClosedEarlyFails() throws Exception {
+        mServer = new LocalServer(LocalServer.body(100000)).setChunked(1000).setTruncate(50500);
+
+        Result result = start(null).await();
+
+        assertEquals(DownloadReason.ERROR_HTTP_DATA_ERROR, result.reason);
+    }
+
+    @Test
+    public void fixedLengthBodyClosedEarlyFails() throws Exception {
+        mServer = new LocalServer(LocalServer.body(100000)).setTruncate(50000);
+
+        Result result = start(null).await();
+
+        assertEquals(DownloadReason.ERROR_HTTP_DATA_ERROR, result.reason);
+    }
+
+    @Test
+    public void slowWritesStopReadingTheSocket() throws Exception {
+        // 远大于两个缓冲区和本机连接的套接字缓冲区
+        byte[] body = LocalServer.body(48 * 1024 * 1024);
+        mServer = new LocalServer(body);
+        CountDownLatch disk = new CountDownLatch(1);
+
+        Result result = start(disk);
+        assertTrue(result.blocked.await(10, TimeUnit.SECONDS));
+        Thread.sleep(500);
+
+        // 写入被阻塞时读取停止, 服务器写不完响应
+        assertEquals(0, mServer.getBytesSent());
+        disk.countDown();
+        result.await();
+        assertNull(result.failure, result.failure);
+        assertTrue(Arrays.equals(body, read(mFile)));
+        assertEquals(body.length, mServer.getBytesSent());
+    }
+
+    @Test
+    public void rateLimitPausesReading() throws Exception {
+        byte[] body = LocalServer.body(1024 * 1024);
+        mServer = new LocalServer(body);
+        long start = System.nanoTime();
+
+        Result result = start(null, new RateLimiter(null).setBytesPerSecond(2 * 1024 * 1024))
+                .await();
+
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertNull(result.failure, result.failure);
+        assertTrue(Arrays.equals(body, read(mFile)));
+        // 0.5s减去开始时100ms的突发
+        assertTrue(elapsedMs + "ms", elapsedMs >= 350);
+    }
+
+    private Result start(CountDownLatch disk) {
+        return start(disk, null);
+    }
+
+    /**
+     * @param disk if not null, the first progress report blocks the writer until it is counted down
+     */
+    private Result start(final CountDownLatch disk, RateLimiter limiter) {
+        final Result result = new Result();
+        HttpTransfer transfer = new HttpTransfer(mStack, mExecutor, mServer.url(), mFile, 4, false,
+                new TransferListener() {
+                    @Override
+                    public void onStarted(long totalBytes) {
+                        result.totalBytes = totalBytes;
+                    }
+
+                    @Override
+                    public void onProgress(long downloadedBytes, long totalBytes) {
+                        if (disk != null && result.blocked.getCount() > 0) {
+                            result.blocked.countDown();
+                            try {
+                                disk.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onSuccessful(File file) {
+                    }
+
+                    @Override
+                    public void onFailed(int reason, String message) {
+                        result.reason = reason;
+                        result.failure = reason + " " + message;
+                    }
+                }).setEventLoop(sLoop);
+        if (limiter != null) {
+            transfer.setRateLimiter(limiter);
+        }
+        transfer.start(new Runnable() {
+            @Override
+            public void run() {
+                result.done.countDown();
+            }
+        });
+        return result;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] b = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            int n;
+            while (off < b.length && (n = in.read(b, off, b.length - off)) > 0) {
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    private static final class Result {
+        final CountDownLatch done = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        volatile long totalBytes = -2;
+        volatile int reason;
+        /** reason and message of the failure, null on success */
+        volatile String failure;
+
+        Result await() throws InterruptedException {
+            assertTrue("transfer did not end", done.await(30, TimeUnit.SECONDS));
+            return this;
+        }
+    }
+}
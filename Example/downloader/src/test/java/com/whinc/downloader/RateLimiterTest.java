@@ -0,0 +1,105 @@
+package com.whinc.downloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the waits {@link RateLimiter#acquire(int, long)} asks for, on a clock given by the test.
+ */
+public class RateLimiterTest {
+    private static final long SECOND = 1000000000L;
+    private static final long MS = 1000000L;
+
+    @Test
+    public void unlimitedNeverWaits() {
+        RateLimiter limiter = new RateLimiter(null);
+
+        assertEquals(0, limiter.acquire(10 * 1024 * 1024, System.nanoTime()));
+        assertEquals(65536, limiter.chunk(65536));
+    }
+
+    @Test
+    public void burstIsFreeThenReadsWait() {
+        RateLimiter limiter = new RateLimiter(null).setBytesPerSecond(1000000);
+        long now = System.nanoTime();
+
+        // 100ms的数据在突发范围内
+        assertEquals(0, limiter.acquire(100000, now));
+        assertEquals(100 * MS, limiter.acquire(100000, now));
+        assertEquals(150 * MS, limiter.acquire(50000, now));
+        // 等待之后再读, 只等这次读的时间
+        assertEquals(10 * MS, limiter.acquire(10000, now + 150 * MS));
+    }
+
+    @Test
+    public void steadyReadsKeepTheRate() {
+        RateLimiter limiter = new RateLimiter(null).setBytesPerSecond(500000);
+        long start = System.nanoTime();
+        long now = start;
+        long read = 0;
+        while (read < 5000000) {
+            int n = limiter.chunk(64 * 1024);
+            read += n;
+            now += limiter.acquire(n, now) + MS;   // 每次读本身耗时1ms
+        }
+
+        long elapsed = now - start;
+        // 5MB按500KB/s需要10s, 减去开始时的突发
+        assertTrue(elapsed / MS + "ms", elapsed >= 10 * SECOND - RateLimiter.BURST_NANOS - 100 * MS);
+        assertTrue(elapsed / MS + "ms", elapsed <= 10 * SECOND + 100 * MS);
+    }
+
+    @Test
+    public void idleTimeIsNotSaved() {
+        RateLimiter limiter = new RateLimiter(null).setBytesPerSecond(1000000);
+        long later = System.nanoTime() + 60 * SECOND;
+
+        // 空闲一分钟后也只能突发100ms的数据
+        assertEquals(0, limiter.acquire(100000, later));
+        assertEquals(100 * MS, limiter.acquire(100000, later));
+    }
+
+    @Test
+    public void newRateDropsTheDebt() {
+        RateLimiter limiter = new RateLimiter(null).setBytesPerSecond(1000);
+        long now = System.nanoTime();
+        assertTrue(limiter.acquire(100000, now) > 90 * SECOND);
+
+        limiter.setBytesPerSecond(1000000);
+
+        assertEquals(0, limiter.acquire(100000, System.nanoTime()));
+    }
+
+    @Test
+    public void parentAndChildBothLimit() {
+        RateLimiter global = new RateLimiter(null).setBytesPerSecond(1000000);
+        RateLimiter slow = new RateLimiter(global).setBytesPerSecond(100000);
+        RateLimiter free = new RateLimiter(global);
+        long now = System.nanoTime();
+
+        // 子限速更低, 按子限速等待
+        assertEquals(900 * MS, slow.acquire(100000, now));
+        // 全局的桶已被上一次读取占用
+        assertEquals(100 * MS, free.acquire(100000, now));
+        assertEquals(200 * MS, free.acquire(100000, now));
+    }
+
+    @Test
+    public void chunkIsAboutABurstOfTheLowerRate() {
+        RateLimiter global = new RateLimiter(null).setBytesPerSecond(1000000);
+        RateLimiter slow = new RateLimiter(global).setBytesPerSecond(5000);
+
+        assertEquals(100000, global.chunk(1 << 20));
+        assertEquals(500, global.chunk(500));
+        // 至少读1KB, 否则每次读取开销太大
+        assertEquals(1024, slow.chunk(1 << 20));
+        assertEquals(100000, new RateLimiter(global).chunk(1 << 20));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeRateIsRejected() {
+        new RateLimiter(null).setBytesPerSecond(-1);
+    }
+}
@@ -0,0 +1,133 @@
+package com.whinc.downloader;
+
+import android.content.Context;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks which {@link DownloadEngine} a {@link RoutingPolicy} chooses.
+ */
+public class RoutingPolicyTest {
+    private static final long MB = 1024 * 1024;
+
+    /** like the system download manager */
+    private final Engine mSystem = new Engine(DownloadEngine.SURVIVES_PROCESS_DEATH
+            | DownloadEngine.SYSTEM_VISIBLE);
+    /** like the in-process downloader */
+    private final Engine mInProcess = new Engine(DownloadEngine.LOW_LATENCY
+            | DownloadEngine.PAUSABLE);
+    private final RoutingPolicy mPolicy = new RoutingPolicy(mSystem, mInProcess);
+
+    @Test
+    public void smallOrForegroundDownloadsStayInProcess() {
+        assertSame(mInProcess, mPolicy.route(300 * 1024, false, 0));
+        assertSame(mInProcess, mPolicy.route(RoutingPolicy.DEFAULT_SMALL_SIZE_LIMIT, false, 0));
+        assertSame(mInProcess, mPolicy.route(0, false, 0));
+        assertSame(mInProcess, mPolicy.route(500 * MB, true, 0));
+        assertSame(mInProcess, mPolicy.route(-1, true, 0));
+    }
+
+    @Test
+    public void largeOrUnknownBackgroundDownloadsSurviveTheProcess() {
+        assertSame(mSystem, mPolicy.route(RoutingPolicy.DEFAULT_SMALL_SIZE_LIMIT + 1, false, 0));
+        // 大小未知时可能很大
+        assertSame(mSystem, mPolicy.route(-1, false, 0));
+    }
+
+    @Test
+    public void smallSizeLimitMovesTheBoundary() {
+        mPolicy.setSmallSizeLimit(8 * MB);
+
+        assertEquals(8 * MB, mPolicy.getSmallSizeLimit());
+        assertSame(mInProcess, mPolicy.route(8 * MB, false, 0));
+        assertSame(mSystem, mPolicy.route(8 * MB + 1, false, 0));
+
+        mPolicy.setSmallSizeLimit(0);
+        assertSame(mInProcess, mPolicy.route(0, false, 0));
+        assertSame(mSystem, mPolicy.route(1, false, 0));
+    }
+
+    @Test
+    public void requiredGuaranteesOverrideThePreference() {
+        assertSame(mSystem, mPolicy.route(1024, true, DownloadEngine.SYSTEM_VISIBLE));
+        assertSame(mInProcess, mPolicy.route(-1, false, DownloadEngine.PAUSABLE));
+        assertSame(mSystem, mPolicy.route(1024, true, DownloadEngine.SURVIVES_PROCESS_DEATH
+                | DownloadEngine.SYSTEM_VISIBLE));
+    }
+
+    @Test
+    public void firstCandidateWithoutThePreferredGuarantee() {
+        Engine plain = new Engine(0);
+        Engine other = new Engine(DownloadEngine.PAUSABLE);
+        RoutingPolicy policy = new RoutingPolicy(plain, other);
+
+        assertSame(plain, policy.route(1024, true, 0));
+        assertSame(plain, policy.route(-1, false, 0));
+        assertSame(other, policy.route(-1, false, DownloadEngine.PAUSABLE));
+    }
+
+    @Test
+    public void enginesAreConsideredInOrder() {
+        Engine second = new Engine(DownloadEngine.LOW_LATENCY);
+        mPolicy.addEngine(second);
+
+        assertSame(mInProcess, mPolicy.route(1024, true, 0));
+        assertTrue(mPolicy.removeEngine(mInProcess));
+        assertFalse(mPolicy.removeEngine(mInProcess));
+        assertSame(second, mPolicy.route(1024, true, 0));
+        assertEquals(Arrays.<DownloadEngine>asList(mSystem, second), mPolicy.getEngines());
+    }
+
+    @Test
+    public void missingGuaranteeIsRejected() {
+        RoutingPolicy policy = new RoutingPolicy(mInProcess);
+
+        try {
+            policy.route(1024, true, DownloadEngine.SYSTEM_VISIBLE);
+            fail("routed without the required guarantee");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new RoutingPolicy().route(1024, true, 0);
+            fail("routed without engines");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSmallSizeLimitIsRejected() {
+        mPolicy.setSmallSizeLimit(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullEngineIsRejected() {
+        mPolicy.addEngine(null);
+    }
+
+    /** Gives fixed guarantees, never creates a downloader. */
+    private static final class Engine implements DownloadEngine {
+        private final int mGuarantees;
+
+        Engine(int guarantees) {
+            mGuarantees = guarantees;
+        }
+
+        @Override
+        public int getGuarantees() {
+            return mGuarantees;
+        }
+
+        @Override
+        public Downloader<?> create(Context context) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.whinc.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link SingleFlight} by hand the way a leading download would, and checks what its
+ * followers receive.
+ */
+public class SingleFlightTest {
+    private static final String URL = "http://host/file.bin";
+
+    private final byte[] mBody = LocalServer.body(5000);
+    private final SingleFlight mFlights = new SingleFlight();
+    private final AtomicInteger mDeserted = new AtomicInteger();
+    private final Runnable mOnDeserted = new Runnable() {
+        @Override
+        public void run() {
+            mDeserted.incrementAndGet();
+        }
+    };
+    private File mLeaderFile;
+    private File mFollowerFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mLeaderFile = File.createTempFile("leader", ".bin");
+        mFollowerFile = File.createTempFile("follower", ".bin");
+        mFollowerFile.delete();
+        FileOutputStream out = new FileOutputStream(mLeaderFile);
+        try {
+            out.write(mBody);
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mLeaderFile.delete();
+        mFollowerFile.delete();
+    }
+
+    @Test
+    public void urlNotInFlightIsNotFollowed() {
+        assertNull(mFlights.follow(URL, mFollowerFile, null, new Member()));
+
+        mFlights.solo(URL, mOnDeserted);
+
+        assertNull(mFlights.follow(URL, mFollowerFile, null, new Member()));
+    }
+
+    @Test
+    public void followerCatchesUpAndReceivesACopy() throws IOException {
+        SingleFlight.Flight flight = mFlights.lead(URL, mOnDeserted);
+        flight.onStarted(mBody.length);
+        flight.onProgress(1000, mBody.length);
+        Member member = new Member();
+
+        assertSame(flight, mFlights.follow(URL, mFollowerFile, null, member));
+        flight.onProgress(3000, mBody.length);
+        flight.onSuccessful(mLeaderFile);
+
+        assertEquals(Arrays.asList("started 5000", "progress 1000", "progress 3000",
+                "successful " + mFollowerFile), member.events);
+        assertTrue(Arrays.equals(mBody, read(mFollowerFile)));
+        // 航班结束后不能再跟随
+        assertNull(mFlights.follow(URL, mFollowerFile, null, new Member()));
+    }
+
+    @Test
+    public void followerChecksItsOwnDigest() {
+        SingleFlight.Flight flight = mFlights.lead(URL, mOnDeserted);
+        Member member = new Member();
+        IntegrityCheck check = IntegrityCheck.forFile("CRC32", "00000000");
+        mFlights.follow(URL, mFollowerFile, check, member);
+
+        flight.onSuccessful(mLeaderFile);
+
+        assertEquals(1, member.events.size());
+        assertTrue(member.events.get(0), member.events.get(0)
+                .startsWith("failed " + DownloadReason.ERROR_DIGEST_MISMATCH));
+    }
+
+    @Test
+    public void secondLeaderOfTheSameUrlCannotBeFollowed() {
+        SingleFlight.Flight first = mFlights.lead(URL, mOnDeserted);
+        SingleFlight.Flight second = mFlights.lead(URL, mOnDeserted);
+
+        assertSame(first, mFlights.follow(URL, mFollowerFile, null, new Member()));
+
+        // 第二个航班结束不影响第一个的登记
+        second.onFailed(DownloadReason.ERROR_UNKNOWN, "x");
+        assertSame(first, mFlights.follow(URL, mFollowerFile, null, new Member()));
+    }
+
+    @Test
+    public void abandonedFlightWithoutFollowersEnds() {
+        SingleFlight.Flight flight = mFlights.lead(URL, mOnDeserted);
+
+        assertFalse(flight.abandon());
+
+        assertNull(mFlights.follow(URL, mFollowerFile, null, new Member()));
+        assertEquals(0, mDeserted.get());
+    }
+
+    @Test
+    public void abandonedFlightGoesOnUntilTheLastFollowerLeaves() {
+        SingleFlight.Flight flight = mFlights.lead(URL, mOnDeserted);
+        Member first = new Member();
+        Member second = new Member();
+        mFlights.follow(URL, mFollowerFile, null, first);
+        mFlights.follow(URL, mFollowerFile, null, second);
+
+        assertTrue(flight.abandon());
+        assertTrue(flight.isAbandoned());
+        flight.remove(first);
+        assertEquals(0, mDeserted.get());
+        flight.remove(second);
+
+        assertEquals(1, mDeserted.get());
+        assertNull(mFlights.follow(URL, mFollowerFile, null, new Member()));
+        // 已结束的航班不再通知
+        flight.remove(second);
+        flight.onSuccessful(mLeaderFile);
+        assertEquals(1, mDeserted.get());
+        assertTrue(second.events.isEmpty());
+    }
+
+    @Test
+    public void abandonedFlightThatCompletesIsNotDeserted() {
+        SingleFlight.Flight flight = mFlights.lead(URL, mOnDeserted);
+        Member member = new Member();
+        mFlights.follow(URL, mFollowerFile, null, member);
+        assertTrue(flight.abandon());
+
+        flight.onSuccessful(mLeaderFile);
+        flight.remove(member);
+
+        assertEquals(Arrays.asList("successful " + mFollowerFile), member.events);
+        assertEquals(0, mDeserted.get());
+    }
+
+    @Test
+    public void pauseByUserDetachesFollowers() {
+        SingleFlight.Flight flight = mFlights.lead(URL, mOnDeserted);
+        Member member = new Member();
+        mFlights.follow(URL, mFollowerFile, null, member);
+
+        flight.onPaused(DownloadReason.PAUSED_BY_USER);
+        flight.onProgress(10, 100);
+
+        assertEquals(Arrays.asList("detached " + DownloadReason.PAUSED_BY_USER), member.events);
+        assertNull(mFlights.follow(URL, mFollowerFile, null, new Member()));
+    }
+
+    @Test
+    public void otherPauseKeepsFollowersAttached() {
+        SingleFlight.Flight flight = mFlights.lead(URL, mOnDeserted);
+        Member member = new Member();
+        mFlights.follow(URL, mFollowerFile, null, member);
+
+        flight.onPaused(DownloadReason.PAUSED_WAITING_FOR_NETWORK);
+        Member late = new Member();
+        assertNotNull(mFlights.follow(URL, mFollowerFile, null, late));
+        flight.onFailed(DownloadReason.ERROR_HTTP_DATA_ERROR, "reset");
+
+        assertEquals(Arrays.asList("paused " + DownloadReason.PAUSED_WAITING_FOR_NETWORK,
+                "failed " + DownloadReason.ERROR_HTTP_DATA_ERROR), member.events);
+        assertEquals(member.events, late.events);
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] b = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            int n;
+            while (off < b.length && (n = in.read(b, off, b.length - off)) > 0) {
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    /** Records the callbacks it receives. */
+    private static final class Member implements SingleFlight.Member {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void onPending() {
+            events.add("pending");
+        }
+
+        @Override
+        public void onStarted(long totalBytes) {
+            events.add("started " + totalBytes);
+        }
+
+        @Override
+        public void onProgress(long downloadedBytes, long totalBytes) {
+            events.add("progress " + downloadedBytes);
+        }
+
+        @Override
+        public void onPaused(int reason) {
+            events.add("paused " + reason);
+        }
+
+        @Override
+        public void onSuccessful(File file) {
+            events.add("successful " + file);
+        }
+
+        @Override
+        public void onFailed(int reason, String message) {
+            events.add("failed " + reason);
+        }
+
+        @Override
+        public void onDetached(int reason) {
+            events.add("detached " + reason);
+        }
+    }
+}
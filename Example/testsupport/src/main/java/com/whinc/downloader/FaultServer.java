@@ -0,0 +1,483 @@
+package com.whinc.downloader;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP/1.1 server on the loopback interface for load and soak tests, which can inject the faults
+ * downloads meet in the field. Files are generated, not stored: {@link #url(String, long)} names
+ * a file of any size whose content is {@link #byteAt(long)}, so thousands of large files cost no
+ * memory.<br>
+ *     <br>
+ * Faults can be changed while the server runs, they apply to requests read afterwards:
+ * <ul>
+ *     <li>{@link #setLatencyMillis(long)} delays every response head</li>
+ *     <li>{@link #setBytesPerSecond(long)} throttles every response body</li>
+ *     <li>{@link #setDisconnectRate(float)} cuts response bodies off at a random byte</li>
+ *     <li>{@link #stallNext(int, long)} stops a few response bodies for a while</li>
+ *     <li>{@link #setMissingBytes(long)} ends response bodies short of their {@code Content-Length}</li>
+ *     <li>{@link #setRangesEnabled(boolean)} turns byte range support off and on</li>
+ *     <li>{@link #failNext(int, int)} answers a burst of requests with a server error</li>
+ * </ul>
+ * Connections are kept alive, each served by its own thread. Plain sockets are used, the server
+ * runs on Android as well as on a JVM.
+ *     <pre>
+ *         FaultServer server = new FaultServer().start();
+ *         server.setBytesPerSecond(512 * 1024).setDisconnectRate(0.01f);
+ *         downloader.download(server.url("a.bin", 8 * 1024 * 1024), file);
+ *         ...
+ *         server.failNext(50, 503);
+ *         ...
+ *         server.stop();
+ *     </pre>
+ */
+public final class FaultServer {
+    private static final int CHUNK = 8 * 1024;
+    private static final int MAX_HEADER_LINES = 100;
+
+    private final Random mRandom = new Random();
+    private final Set<Socket> mSockets = Collections.synchronizedSet(new HashSet<Socket>());
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FaultServer-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private ServerSocket mServerSocket;
+
+    private volatile long mLatencyMillis;
+    private volatile long mBytesPerSecond;
+    private volatile float mDisconnectRate;
+    private volatile boolean mRangesEnabled = true;
+    private volatile int mErrorCode = 503;
+    private final AtomicInteger mErrorsLeft = new AtomicInteger();
+    private volatile long mStallMillis;
+    private final AtomicInteger mStallsLeft = new AtomicInteger();
+    private volatile long mMissingBytes;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mDisconnects = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mStalls = new AtomicLong();
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final AtomicInteger mPeakConnections = new AtomicInteger();
+
+    /** Listen on a free port of the loopback interface. */
+    public synchronized FaultServer start() throws IOException {
+        if (mServerSocket != null) {
+            throw new IllegalStateException("already started");
+        }
+        mServerSocket = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+        final ServerSocket serverSocket = mServerSocket;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept(serverSocket);
+            }
+        });
+        return this;
+    }
+
+    /** Close the listening socket and all connections. */
+    public synchronized void stop() {
+        if (mServerSocket == null) {
+            return;
+        }
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                closeQuietly(socket);
+            }
+        }
+        mExecutor.shutdownNow();
+    }
+
+    public synchronized int getPort() {
+        if (mServerSocket == null) {
+            throw new IllegalStateException("not started");
+        }
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * @param name any name, requests of the same name and size receive the same content
+     * @return url of a file of size bytes
+     */
+    public String url(String name, long size) {
+        return "http://127.0.0.1:" + getPort() + "/" + size + "/" + name;
+    }
+
+    /** @return the byte at position of every file served */
+    public static byte byteAt(long position) {
+        return (byte) (position * 31 + (position >>> 11));
+    }
+
+    /** Delay the head of every response, default is 0. */
+    public FaultServer setLatencyMillis(long millis) {
+        mLatencyMillis = millis;
+        return this;
+    }
+
+    /** Limit every response body to this rate, 0 for unlimited, the default. */
+    public FaultServer setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Cut off this fraction of the response bodies at a random byte by resetting the connection,
+     * default is 0.
+     */
+    public FaultServer setDisconnectRate(float rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("rate must be in [0, 1]: " + rate);
+        }
+        mDisconnectRate = rate;
+        return this;
+    }
+
+    /**
+     * Serve byte ranges, default is true. Without ranges, {@code Accept-Ranges} is not sent and
+     * every request receives the whole file with 200.
+     */
+    public FaultServer setRangesEnabled(boolean enabled) {
+        mRangesEnabled = enabled;
+        return this;
+    }
+
+    /** Answer the next count requests with the status code, such as 500 or 503. */
+    public FaultServer failNext(int count, int code) {
+        if (code < 500 || code > 599) {
+            throw new IllegalArgumentException("not a server error: " + code);
+        }
+        mErrorCode = code;
+        mErrorsLeft.set(count);
+        return this;
+    }
+
+    /**
+     * Stop the next count response bodies after their first bytes for millis, then send the rest.
+     * The connection stays open and silent meanwhile, as behind a stalled route.
+     */
+    public FaultServer stallNext(int count, long millis) {
+        mStallMillis = millis;
+        mStallsLeft.set(count);
+        return this;
+    }
+
+    /**
+     * Close the connection this many bytes before the end of every response body, after a
+     * {@code Content-Length} announcing all of it; default is 0. The head of a {@code HEAD} request
+     * is not changed.
+     */
+    public FaultServer setMissingBytes(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes < 0: " + bytes);
+        }
+        mMissingBytes = bytes;
+        return this;
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /** @return body bytes written to all connections */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /** @return response bodies cut off by {@link #setDisconnectRate(float)} */
+    public long getDisconnectCount() {
+        return mDisconnects.get();
+    }
+
+    /** @return requests answered with an error by {@link #failNext(int, int)} */
+    public long getErrorCount() {
+        return mErrors.get();
+    }
+
+    /** @return response bodies stopped by {@link #stallNext(int, long)} */
+    public long getStallCount() {
+        return mStalls.get();
+    }
+
+    public int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    /** @return most connections open at the same time */
+    public int getPeakConnectionCount() {
+        return mPeakConnections.get();
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;     // 已停止
+            }
+            mSockets.add(socket);
+            int open = mConnections.incrementAndGet();
+            while (true) {
+                int peak = mPeakConnections.get();
+                if (open <= peak || mPeakConnections.compareAndSet(peak, open)) {
+                    break;
+                }
+            }
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (RuntimeException e) {
+                closed(socket);     // 已停止
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (respond(socket, in, out)) {
+                // 保持连接, 继续读取下一个请求
+            }
+        } catch (IOException ignored) {
+            // 客户端断开
+        } catch (InterruptedException ignored) {
+            // 已停止
+        } finally {
+            closed(socket);
+        }
+    }
+
+    /** @return true if the connection stays open for another request */
+    private boolean respond(Socket socket, InputStream in, OutputStream out)
+            throws IOException, InterruptedException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return false;
+        }
+        String range = null;
+        boolean close = false;
+        for (int i = 0; ; i++) {
+            String line = readLine(in);
+            if (line == null || i == MAX_HEADER_LINES) {
+                return false;
+            }
+            if (line.length() == 0) {
+                break;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+            String value = line.substring(colon + 1).trim();
+            if (name.equals("range")) {
+                range = value;
+            } else if (name.equals("connection")) {
+                close = value.equalsIgnoreCase("close");
+            }
+        }
+        mRequests.incrementAndGet();
+        String[] parts = requestLine.split(" ");
+        String method = parts[0];
+        long size = parts.length > 1 ? parseSize(parts[1]) : -1;
+
+        long latency = mLatencyMillis;
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+        if (size < 0) {
+            writeHead(out, 404, "Not Found", "Content-Length: 0\r\n");
+            return !close;
+        }
+        if (take(mErrorsLeft)) {
+            mErrors.incrementAndGet();
+            writeHead(out, mErrorCode, "Server Error", "Content-Length: 0\r\nRetry-After: 1\r\n");
+            return !close;
+        }
+
+        boolean ranges = mRangesEnabled;
+        long start = 0;
+        long end = size - 1;
+        StringBuilder headers = new StringBuilder();
+        headers.append("ETag: \"").append(size).append("\"\r\n");
+        if (ranges) {
+            headers.append("Accept-Ranges: bytes\r\n");
+        }
+        int code = 200;
+        if (ranges && range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+            String[] bounds = range.substring(6).split("-", -1);
+            try {
+                start = Long.parseLong(bounds[0].trim());
+                if (bounds.length > 1 && bounds[1].trim().length() > 0) {
+                    end = Math.min(end, Long.parseLong(bounds[1].trim()));
+                }
+            } catch (NumberFormatException e) {
+                start = size;
+            }
+            if (start >= size || start > end) {
+                writeHead(out, 416, "Range Not Satisfiable",
+                        "Content-Range: bytes */" + size + "\r\nContent-Length: 0\r\n");
+                return !close;
+            }
+            code = 206;
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(size).append("\r\n");
+        }
+        long length = end - start + 1;
+        headers.append("Content-Length: ").append(length).append("\r\n");
+        writeHead(out, code, code == 206 ? "Partial Content" : "OK", headers.toString());
+        if ("HEAD".equals(method)) {
+            return !close;
+        }
+
+        float disconnectRate = mDisconnectRate;
+        long cut = -1;
+        if (disconnectRate > 0 && length > 1) {
+            synchronized (mRandom) {
+                if (mRandom.nextFloat() < disconnectRate) {
+                    cut = start + (long) (mRandom.nextDouble() * length);
+                }
+            }
+        }
+        long missing = Math.min(mMissingBytes, length);
+        writeBody(out, start, cut >= 0 ? cut : end + 1 - missing);
+        if (cut >= 0) {
+            mDisconnects.incrementAndGet();
+            socket.setSoLinger(true, 0);    // 发送RST, 客户端读取时立即出错
+            return false;
+        }
+        return !close && missing == 0;    // 正常关闭连接, 客户端读到提前结束的响应
+    }
+
+    private void writeBody(OutputStream out, long from, long to)
+            throws IOException, InterruptedException {
+        byte[] buffer = new byte[CHUNK];
+        long started = System.nanoTime();
+        long sent = 0;
+        boolean stall = to > from && take(mStallsLeft);
+        for (long pos = from; pos < to; ) {
+            int n = (int) Math.min(CHUNK, to - pos);
+            for (int i = 0; i < n; i++) {
+                buffer[i] = byteAt(pos + i);
+            }
+            out.write(buffer, 0, n);
+            pos += n;
+            sent += n;
+            mBytesSent.addAndGet(n);
+            if (stall) {
+                stall = false;
+                mStalls.incrementAndGet();
+                out.flush();
+                Thread.sleep(mStallMillis);
+                started += mStallMillis * 1000000L;    // 停顿不计入限速
+            }
+            long rate = mBytesPerSecond;
+            if (rate > 0) {
+                // 按已发送字节数计算应当经过的时间, 提前了就休眠
+                long aheadNanos = sent * 1000000000L / rate - (System.nanoTime() - started);
+                if (aheadNanos > 0) {
+                    Thread.sleep(aheadNanos / 1000000, (int) (aheadNanos % 1000000));
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /** @return true if one of the requests left could be taken, for a burst of errors or stalls */
+    private static boolean take(AtomicInteger left) {
+        while (true) {
+            int count = left.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (left.compareAndSet(count, count - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static void writeHead(OutputStream out, int code, String message, String headers)
+            throws IOException {
+        String head = "HTTP/1.1 " + code + " " + message + "\r\n" + headers + "\r\n";
+        out.write(head.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    /** @return size from a path of {@link #url(String, long)}, or -1 */
+    private static long parseSize(String path) {
+        int from = path.startsWith("/") ? 1 : 0;
+        int slash = path.indexOf('/', from);
+        try {
+            long size = Long.parseLong(slash < 0 ? path.substring(from) : path.substring(from, slash));
+            return size >= 0 ? size : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** @return the line without CRLF, or null at the end of the stream */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int c = in.read();
+            if (c == -1) {
+                return line.length() > 0 ? line.toString() : null;
+            }
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+    }
+
+    private void closed(Socket socket) {
+        if (mSockets.remove(socket)) {
+            mConnections.decrementAndGet();
+        }
+        closeQuietly(socket);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.whinc.downloader;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Result of a {@link SoakRunner} run. Completion times are measured from the call of
+ * {@link Downloader#download} to the listener's final callback, in milliseconds, for successful
+ * downloads only. Peaks are sampled while the run lasts, so short spikes between two samples are
+ * missed.
+ */
+public final class SoakReport {
+    private final int mDownloads;
+    private final int mSuccessful;
+    private final int mCorrupt;
+    private final int mTimedOut;
+    private final Map<Integer, Integer> mFailures;
+    private final long mElapsedMillis;
+    private final long mBytes;
+    private final Histogram mCompletionMillis;
+    private final long mPeakHeapBytes;
+    private final int mPeakThreads;
+    private final int mPeakOpenFiles;
+    private final HistogramMetrics mMetrics;
+
+    SoakReport(int downloads, int successful, int corrupt, int timedOut, Map<Integer, Integer> failures,
+               long elapsedMillis, long bytes, Histogram completionMillis, long peakHeapBytes,
+               int peakThreads, int peakOpenFiles, HistogramMetrics metrics) {
+        mDownloads = downloads;
+        mSuccessful = successful;
+        mCorrupt = corrupt;
+        mTimedOut = timedOut;
+        mFailures = Collections.unmodifiableMap(failures);
+        mElapsedMillis = elapsedMillis;
+        mBytes = bytes;
+        mCompletionMillis = completionMillis;
+        mPeakHeapBytes = peakHeapBytes;
+        mPeakThreads = peakThreads;
+        mPeakOpenFiles = peakOpenFiles;
+        mMetrics = metrics;
+    }
+
+    public int getDownloadCount() {
+        return mDownloads;
+    }
+
+    /** @return downloads reported successful whose file has the expected length and content */
+    public int getSuccessfulCount() {
+        return mSuccessful;
+    }
+
+    /** @return downloads reported successful whose file is wrong */
+    public int getCorruptCount() {
+        return mCorrupt;
+    }
+
+    /** @return downloads reported failed */
+    public int getFailedCount() {
+        int failed = 0;
+        for (int count : mFailures.values()) {
+            failed += count;
+        }
+        return failed;
+    }
+
+    /** @return downloads not finished when the run timed out, they have been cancelled */
+    public int getTimedOutCount() {
+        return mTimedOut;
+    }
+
+    /** @return number of failed downloads by {@link DownloadReason} code */
+    public Map<Integer, Integer> getFailureReasons() {
+        return mFailures;
+    }
+
+    public long getElapsedMillis() {
+        return mElapsedMillis;
+    }
+
+    /** @return size of all files downloaded successfully */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public double getBytesPerSecond() {
+        return mElapsedMillis > 0 ? mBytes * 1000.0 / mElapsedMillis : 0;
+    }
+
+    public Histogram getCompletionMillis() {
+        return mCompletionMillis;
+    }
+
+    /** @return most heap in use at a sample, after the garbage collector ran at the start */
+    public long getPeakHeapBytes() {
+        return mPeakHeapBytes;
+    }
+
+    /** @return most live threads of the process at a sample */
+    public int getPeakThreads() {
+        return mPeakThreads;
+    }
+
+    /** @return most open file descriptors of the process at a sample, -1 if they cannot be counted */
+    public int getPeakOpenFiles() {
+        return mPeakOpenFiles;
+    }
+
+    /** @return per-transfer metrics of the run, including connections, retries and hedges */
+    public HistogramMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public String toString() {
+        return "SoakReport{downloads=" + mDownloads + " successful=" + mSuccessful
+                + " failed=" + getFailedCount() + " " + mFailures + " corrupt=" + mCorrupt
+                + " timedOut=" + mTimedOut + " elapsed=" + mElapsedMillis + "ms"
+                + " throughput=" + (long) getBytesPerSecond() / 1024 + "KB/s"
+                + " p50=" + mCompletionMillis.getValueAtPercentile(50) + "ms"
+                + " p99=" + mCompletionMillis.getValueAtPercentile(99) + "ms"
+                + " max=" + mCompletionMillis.getMax() + "ms"
+                + " peakHeap=" + mPeakHeapBytes / 1024 + "KB peakThreads=" + mPeakThreads
+                + " peakOpenFiles=" + mPeakOpenFiles
+                + " connections=" + mMetrics.getConnectionsOpened()
+                + " retries=" + mMetrics.getRetryCount() + "}";
+    }
+}
@@ -0,0 +1,284 @@
+package com.whinc.downloader;
+
+import android.net.Uri;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts many downloads from a {@link FaultServer} at once through the {@link Downloader} API,
+ * waits for them and reports throughput, completion times and the resources the process used,
+ * see {@link SoakReport}.
+ *     <pre>
+ *         FaultServer server = new FaultServer().start().setDisconnectRate(0.01f);
+ *         SoakReport report = new SoakRunner(server, context.getCacheDir())
+ *                 .setDownloadCount(1000)
+ *                 .setFileSize(1024 * 1024)
+ *                 .run();
+ *         Log.i(TAG, report.toString());
+ *     </pre>
+ * Every download uses its own {@link HttpDownloader} from {@link DownloaderFactory#createHttp()}
+ * and thus the shared scheduler, connection pool and rate limiter; configure them before the run
+ * to test other limits. Callbacks are delivered on the downloading threads, {@link #run()} blocks
+ * and may be called from any thread but the main thread. A successful file is checked for its
+ * length and a sample of its bytes; all files of the run are deleted.
+ */
+public final class SoakRunner {
+    private static final int SAMPLED_BYTES = 64;
+
+    private final FaultServer mServer;
+    private final File mDirectory;
+    private int mDownloadCount = 1000;
+    private long mFileSize = 256 * 1024;
+    private int mSegmentCount = HttpTransfer.DEFAULT_SEGMENT_COUNT;
+    private long mTimeoutMillis = 10 * 60 * 1000;
+    private long mSampleIntervalMillis = 100;
+
+    /** @param directory where the files are saved while the run lasts */
+    public SoakRunner(FaultServer server, File directory) {
+        mServer = server;
+        mDirectory = directory;
+    }
+
+    /** Number of downloads started at once, default is 1000. */
+    public SoakRunner setDownloadCount(int count) {
+        mDownloadCount = count;
+        return this;
+    }
+
+    /** Size of every file, default is 256KB. */
+    public SoakRunner setFileSize(long size) {
+        mFileSize = size;
+        return this;
+    }
+
+    /** See {@link HttpDownloader#setSegmentCount(int)}. */
+    public SoakRunner setSegmentCount(int count) {
+        mSegmentCount = count;
+        return this;
+    }
+
+    /** Cancel the downloads not finished after this time, default is 10 minutes. */
+    public SoakRunner setTimeoutMillis(long millis) {
+        mTimeoutMillis = millis;
+        return this;
+    }
+
+    /** Interval of the heap, thread and file descriptor samples, default is 100ms. */
+    public SoakRunner setSampleIntervalMillis(long millis) {
+        mSampleIntervalMillis = millis;
+        return this;
+    }
+
+    /** Run the downloads and wait until all have finished or the timeout has passed. */
+    public SoakReport run() throws IOException, InterruptedException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("cannot create " + mDirectory);
+        }
+        System.gc();
+        Sampler sampler = new Sampler(mSampleIntervalMillis);
+        sampler.start();
+
+        HistogramMetrics metrics = new HistogramMetrics();
+        Histogram completion = new Histogram();
+        Map<Integer, Integer> failures = new TreeMap<Integer, Integer>();
+        AtomicInteger successful = new AtomicInteger();
+        AtomicInteger corrupt = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(mDownloadCount);
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        HttpDownloader[] downloaders = new HttpDownloader[mDownloadCount];
+        Listener[] listeners = new Listener[mDownloadCount];
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < mDownloadCount; i++) {
+                File file = new File(mDirectory, "soak-" + i);
+                listeners[i] = new Listener(file, completion, failures, successful, corrupt, bytes, done);
+                downloaders[i] = DownloaderFactory.createHttp()
+                        .setCallbackExecutor(direct)
+                        .setSegmentCount(mSegmentCount)
+                        .setMetrics(metrics)
+                        .setDownloadListener(listeners[i]);
+                downloaders[i].download(mServer.url("soak-" + i, mFileSize), file);
+            }
+            done.await(mTimeoutMillis, TimeUnit.MILLISECONDS);
+        } finally {
+            sampler.interrupt();
+            sampler.join();
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        int timedOut = 0;
+        for (int i = 0; i < mDownloadCount; i++) {
+            if (listeners[i] != null && listeners[i].mFinished.compareAndSet(false, true)) {
+                timedOut++;
+                downloaders[i].cancel();
+            }
+        }
+        // 失败的下载会留下文件和续传日志
+        File[] left = mDirectory.listFiles();
+        if (left != null) {
+            for (File file : left) {
+                if (file.getName().startsWith("soak-")) {
+                    file.delete();
+                }
+            }
+        }
+        synchronized (failures) {
+            return new SoakReport(mDownloadCount, successful.get(), corrupt.get(), timedOut,
+                    new TreeMap<Integer, Integer>(failures), elapsedMillis, bytes.get(), completion,
+                    sampler.mPeakHeap, sampler.mPeakThreads, sampler.mPeakOpenFiles, metrics);
+        }
+    }
+
+    private final class Listener implements DownloadListener {
+        final File mFile;
+        final AtomicBoolean mFinished = new AtomicBoolean();
+        private final long mStartNanos = System.nanoTime();
+        private final Histogram mCompletion;
+        private final Map<Integer, Integer> mFailures;
+        private final AtomicInteger mSuccessful;
+        private final AtomicInteger mCorrupt;
+        private final AtomicLong mBytes;
+        private final CountDownLatch mDone;
+
+        Listener(File file, Histogram completion, Map<Integer, Integer> failures,
+                 AtomicInteger successful, AtomicInteger corrupt, AtomicLong bytes,
+                 CountDownLatch done) {
+            mFile = file;
+            mCompletion = completion;
+            mFailures = failures;
+            mSuccessful = successful;
+            mCorrupt = corrupt;
+            mBytes = bytes;
+            mDone = done;
+        }
+
+        @Override
+        public void onSuccessful(Uri downloadedFile) {
+            if (!mFinished.compareAndSet(false, true)) {
+                return;
+            }
+            long millis = (System.nanoTime() - mStartNanos) / 1000000;
+            if (isIntact(mFile)) {
+                mCompletion.record(millis);
+                mSuccessful.incrementAndGet();
+                mBytes.addAndGet(mFileSize);
+            } else {
+                mCorrupt.incrementAndGet();
+            }
+            mFile.delete();     // 不占用存储空间
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailed(int reasonCode, String reason) {
+            if (!mFinished.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (mFailures) {
+                Integer count = mFailures.get(reasonCode);
+                mFailures.put(reasonCode, count == null ? 1 : count + 1);
+            }
+            mFile.delete();
+            mDone.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+
+        @Override
+        public void onPending() {
+        }
+
+        @Override
+        @Deprecated
+        public void onRunning(int downloadedBytes, int totalBytes) {
+        }
+
+        @Override
+        public void onProgress(ProgressSnapshot snapshot) {
+        }
+
+        @Override
+        public void onPaused(int reasonCode, String reason) {
+        }
+    }
+
+    /** @return true if file has the expected length and bytes at evenly spread positions */
+    private boolean isIntact(File file) {
+        if (file.length() != mFileSize) {
+            return false;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long step = Math.max(1, mFileSize / SAMPLED_BYTES);
+                for (long pos = 0; pos < mFileSize; pos += step) {
+                    raf.seek(pos);
+                    if ((byte) raf.read() != FaultServer.byteAt(pos)) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Samples heap, threads and file descriptors of the process until interrupted. */
+    private static final class Sampler extends Thread {
+        private final long mIntervalMillis;
+        volatile long mPeakHeap;
+        volatile int mPeakThreads;
+        volatile int mPeakOpenFiles = -1;
+
+        Sampler(long intervalMillis) {
+            super("SoakRunner-sampler");
+            setDaemon(true);
+            mIntervalMillis = intervalMillis;
+        }
+
+        @Override
+        public void run() {
+            ThreadGroup root = Thread.currentThread().getThreadGroup();
+            while (root.getParent() != null) {
+                root = root.getParent();
+            }
+            File fds = new File("/proc/self/fd");
+            Runtime runtime = Runtime.getRuntime();
+            while (true) {
+                mPeakHeap = Math.max(mPeakHeap, runtime.totalMemory() - runtime.freeMemory());
+                mPeakThreads = Math.max(mPeakThreads, root.activeCount());
+                String[] open = fds.list();
+                if (open != null) {
+                    mPeakOpenFiles = Math.max(mPeakOpenFiles, open.length);
+                }
+                try {
+                    Thread.sleep(mIntervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
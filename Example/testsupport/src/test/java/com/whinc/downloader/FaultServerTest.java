@@ -0,0 +1,190 @@
+package com.whinc.downloader;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link HttpDownloader} against every fault of the {@link FaultServer}.
+ */
+public class FaultServerTest {
+    /** large enough for four segments */
+    private static final long SIZE = 4 * 1024 * 1024;
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private FaultServer mServer;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new FaultServer().start();
+        mFile = File.createTempFile("fault", ".bin");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        DownloadJournal.fileFor(mFile).delete();
+        mFile.delete();
+    }
+
+    @Test
+    public void resetMidBodyFailsWithDataError() throws Exception {
+        mServer.setDisconnectRate(1);
+
+        Result result = download("reset", false, DownloaderFactory.createHttp());
+
+        assertEquals(DownloadReason.ERROR_HTTP_DATA_ERROR, result.reason);
+        assertTrue(mServer.getDisconnectCount() > 0);
+    }
+
+    @Test
+    public void stalledSegmentIsHedged() throws Exception {
+        mServer.stallNext(1, 20 * 1000);
+
+        long start = System.nanoTime();
+        Result result = download("stall", false, DownloaderFactory.createHttp().setHedgeDelay(200));
+
+        assertEquals(0, result.reason);
+        assertEquals(1, mServer.getStallCount());
+        // 对冲请求接手停顿的分段, 不必等停顿结束
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        assertContent(SIZE);
+    }
+
+    @Test
+    public void shortStallOnlyDelaysStream() throws Exception {
+        mServer.setRangesEnabled(false).stallNext(1, 1000);
+
+        long start = System.nanoTime();
+        Result result = download("pause", false, DownloaderFactory.createHttp());
+
+        assertEquals(0, result.reason);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1000));
+        assertContent(SIZE);
+    }
+
+    @Test
+    public void wrongLengthFailsWithDataError() throws Exception {
+        mServer.setRangesEnabled(false).setMissingBytes(1000);
+
+        Result result = download("length", false, DownloaderFactory.createHttp());
+
+        assertEquals(DownloadReason.ERROR_HTTP_DATA_ERROR, result.reason);
+    }
+
+    @Test
+    public void wrongLengthIsResumed() throws Exception {
+        mServer.setMissingBytes(1000);
+        assertEquals(DownloadReason.ERROR_HTTP_DATA_ERROR,
+                download("resume", false, DownloaderFactory.createHttp().setSegmentCount(1)).reason);
+        long sent = mServer.getBytesSent();
+
+        mServer.setMissingBytes(0);
+        Result result = download("resume", true, DownloaderFactory.createHttp().setSegmentCount(1));
+
+        assertEquals(0, result.reason);
+        assertEquals(1000, mServer.getBytesSent() - sent);
+        assertContent(SIZE);
+    }
+
+    @Test
+    public void serverErrorIsReported() throws Exception {
+        mServer.failNext(2, 503);
+
+        Result result = download("error", false, DownloaderFactory.createHttp());
+
+        assertEquals(503, result.reason);
+        assertEquals(2, mServer.getErrorCount());
+    }
+
+    @Test
+    public void serverErrorOnProbeFallsBackToStream() throws Exception {
+        mServer.failNext(1, 500);
+
+        Result result = download("probe", false, DownloaderFactory.createHttp());
+
+        // HEAD失败, 按单个连接下载
+        assertEquals(0, result.reason);
+        assertEquals(1, mServer.getErrorCount());
+        assertEquals(2, mServer.getRequestCount());
+        assertContent(SIZE);
+    }
+
+    /** Download the file name of {@link #SIZE} bytes into mFile and wait for the result. */
+    private Result download(String name, boolean resume, HttpDownloader downloader)
+            throws Exception {
+        final Result result = new Result();
+        downloader.setCallbackExecutor(DIRECT).setDownloadListener(new DownloadListenerAdapter() {
+            @Override
+            public void onSuccessful(Uri downloadedFile) {
+                result.reason = 0;
+            }
+
+            @Override
+            public void onFailed(int reasonCode, String reason) {
+                result.reason = reasonCode;
+            }
+
+            @Override
+            public void onCompleted() {
+                result.completed.countDown();
+            }
+        });
+        String url = mServer.url(name, SIZE);
+        if (resume) {
+            downloader.resume(url, mFile);
+        } else {
+            downloader.download(url, mFile);
+        }
+        if (!result.completed.await(60, TimeUnit.SECONDS)) {
+            downloader.cancel();
+            fail("download of " + name + " did not complete");
+        }
+        return result;
+    }
+
+    private void assertContent(long size) throws IOException {
+        assertEquals(size, mFile.length());
+        InputStream in = new FileInputStream(mFile);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            long position = 0;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++, position++) {
+                    if (buffer[i] != FaultServer.byteAt(position)) {
+                        fail("wrong byte at " + position);
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final class Result {
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile int reason = -1;
+    }
+}